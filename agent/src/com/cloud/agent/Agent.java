@@ -25,6 +25,7 @@ import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
@@ -115,6 +116,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     long                        _lastPingResponseTime = 0;
     long                        _pingInterval         = 0;
     AtomicInteger               _inProgress           = new AtomicInteger();
+    volatile Request.Version    _wireVersion          = Request.Version.v1;
 
     StartupTask                 _startup              = null;
     long  _startupWaitDefault = 180000;
@@ -341,6 +343,14 @@ public class Agent implements HandlerFactory, IAgentControl {
         startup.setGuid(getResourceGuid());
         startup.setResourceName(getResourceName());
         startup.setVersion(getVersion());
+        if (isBinaryCodecEnabled()) {
+            startup.setWireVersion(Request.CURRENT_VERSION.ordinal());
+        }
+    }
+
+    protected boolean isBinaryCodecEnabled() {
+        Properties props = _shell.getProperties();
+        return props == null || Boolean.parseBoolean(props.getProperty("binary.codec", "true"));
     }
 
     @Override
@@ -363,6 +373,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         link.terminated();
 
         setLink(null);
+        _wireVersion = Request.Version.v1;
         cancelTasks();
 
         _resource.disconnected();
@@ -423,13 +434,14 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setId(startup.getHostId());
         _pingInterval = startup.getPingInterval() * 1000; // change to ms.
+        _wireVersion = isBinaryCodecEnabled() ? Request.negotiateVersion(startup.getWireVersion()) : Request.Version.v1;
 
         setLastPingResponseTime();
         scheduleWatch(link, response, _pingInterval, _pingInterval);
 
         _ugentTaskPool.setKeepAliveTime(2* _pingInterval, TimeUnit.MILLISECONDS);
 
-        s_logger.info("Startup Response Received: agent id = " + getId());
+        s_logger.info("Startup Response Received: agent id = " + getId() + ", wire version = " + _wireVersion);
     }
 
     protected void processRequest(final Request request, final Link link) {
@@ -584,6 +596,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            request.setVersion(_wireVersion);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -677,6 +690,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     }
 
     private void postRequest(Request request) throws AgentControlChannelException {
+        request.setVersion(_wireVersion);
         if (_link != null) {
             try {
                 _link.send(request.toBytes());
@@ -245,6 +245,19 @@ public interface NetworkModel {
 
     Set<Long> getAvailableIps(Network network, String requestedIp);
 
+    /**
+     * Picks a free guest ip address in the network and marks it as used, the
+     * caller is expected to persist it.
+     * @param requestedIp the ip address wanted, null to pick one at random.
+     * @return the ip address, null if the requested one is not available or the network is full.
+     */
+    String pickFreeGuestIp(Network network, String requestedIp);
+
+    /**
+     * Marks a guest ip address of the network as free again.
+     */
+    void releaseGuestIp(long networkId, String ip);
+
     String getDomainNetworkDomain(long domainId, long zoneId);
     
     PublicIpAddress getSourceNatIpAddressForGuestNetwork(Account owner, Network guestNetwork);
@@ -19,9 +19,16 @@ package com.cloud.bridge.io;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class FileRangeInputStream extends InputStream {
+	// ranges are mapped a window at a time to keep the address space use bounded
+	private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+	private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
 	private RandomAccessFile randomAccessFile;
 	private long curPos;
 	private long endPos; 
@@ -47,7 +54,7 @@ public class FileRangeInputStream extends InputStream {
 	
 	@Override
 	public int available() throws IOException {
-		return (int)(endPos - curPos);
+		return (int)Math.min(endPos - curPos, Integer.MAX_VALUE);
 	}
 
 	@Override
@@ -81,11 +88,35 @@ public class FileRangeInputStream extends InputStream {
 	
 	@Override
 	public long skip(long n) throws IOException {
-		long skipped = Math.min(n, available());
-		randomAccessFile.skipBytes((int)skipped);
+		long skipped = Math.max(Math.min(n, endPos - curPos), 0);
 		curPos += skipped;
+		randomAccessFile.seek(curPos);
 		return skipped;
 	}
+
+	/**
+	 * Writes the rest of the range to the stream straight from the memory mapped file, without
+	 * reading it into the heap first.
+	 * 
+	 * @return number of bytes written.
+	 */
+	public long writeTo(OutputStream os) throws IOException {
+		FileChannel channel = randomAccessFile.getChannel();
+		byte[] chunk = new byte[WRITE_CHUNK_SIZE];
+		long written = 0;
+		while (curPos < endPos) {
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, curPos, Math.min(endPos - curPos, MAP_WINDOW_SIZE));
+			while (window.hasRemaining()) {
+				int length = Math.min(window.remaining(), chunk.length);
+				window.get(chunk, 0, length);
+				os.write(chunk, 0, length);
+				curPos += length;
+				written += length;
+			}
+		}
+		randomAccessFile.seek(curPos);
+		return written;
+	}
 	
 	@Override
 	public void close() throws IOException {
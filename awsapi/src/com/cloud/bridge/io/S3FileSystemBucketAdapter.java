@@ -17,13 +17,23 @@
 package com.cloud.bridge.io;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -37,9 +47,16 @@ import com.cloud.bridge.service.exception.InternalErrorException;
 import com.cloud.bridge.service.exception.OutOfStorageException;
 import com.cloud.bridge.util.StringHelper;
 import com.cloud.bridge.util.OrderedPair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 public class S3FileSystemBucketAdapter implements S3BucketAdapter {
     protected final static Logger logger = Logger.getLogger(S3FileSystemBucketAdapter.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // digests the parts of a multipart upload while they are being concatenated
+    private static final ExecutorService s_digestExecutor = Executors.newFixedThreadPool(Math.max(Runtime.getRuntime().availableProcessors(), 2),
+            new NamedThreadFactory("S3PartDigest"));
 	
 	public S3FileSystemBucketAdapter() {
 	}
@@ -97,7 +114,7 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 			file.createNewFile();
 			
 	        fos = new FileOutputStream(file);
-	        byte[] buffer = new byte[4096];
+	        byte[] buffer = new byte[BUFFER_SIZE];
 	        int len = 0;
 	        while( (len = is.read(buffer)) > 0) {
 	        	fos.write(buffer, 0, len);
@@ -128,13 +145,17 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 	 * allowed to have upto 10,000 parts (each 5 gib long).   Amazon defines that while this operation is in progress
 	 * whitespace is sent back to the client inorder to keep the HTTP connection alive.
 	 * 
+	 * The parts are copied with FileChannel.transferTo, so the data doesn't pass through the JVM, while the MD5
+	 * of each part is computed on a separate pool in parallel.  Like Amazon, the resulting ETag is the MD5 of the
+	 * concatenated part MD5s followed by "-" and the number of parts.
+	 * 
 	 * @param mountedRoot - where both the source and dest buckets are located
 	 * @param destBucket - resulting location of the concatenated objects
 	 * @param fileName - resulting file name of the concatenated objects
 	 * @param sourceBucket - special bucket used to save uploaded file parts
 	 * @param parts - an array of file names in the sourceBucket
 	 * @param client - if not null, then keep the servlet connection alive while this potentially long concatentation takes place
-	 * @return OrderedPair with the first value the MD5 of the final object, and the second value the length of the final object
+	 * @return OrderedPair with the first value the multipart ETag of the final object, and the second value the length of the final object
 	 */
 	@Override
 	public OrderedPair<String,Long> concatentateObjects(String mountedRoot, String destBucket, String fileName, String sourceBucket, S3MultipartPart[] parts, OutputStream client) 
@@ -149,43 +170,92 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 			throw new InternalErrorException("Unable to get MD5 MessageDigest", e);
 		}
 		
+		String sourceDir = getBucketFolderDir(mountedRoot, sourceBucket) + File.separatorChar;
+		List<Future<byte[]>> digests = new ArrayList<Future<byte[]>>(parts.length);
+		for( int i=0; i < parts.length; i++ ) 
+		   digests.add(s_digestExecutor.submit(new PartDigest(new File(sourceDir + parts[i].getPath()))));
+
 		File file = new File(getBucketFolderDir(mountedRoot, destBucket) + File.separatorChar + fileName);
 		try {
 			// -> when versioning is off we need to rewrite the file contents
 			file.delete();
 			file.createNewFile();
 			
-	        final FileOutputStream fos = new FileOutputStream(file);
-	        byte[] buffer = new byte[4096];
-	        
-	        // -> get the input stream for the next file part
-	        for( int i=0; i < parts.length; i++ )
-	        {
-	           DataHandler nextPart = loadObject( mountedRoot, sourceBucket, parts[i].getPath());
-	           InputStream is = nextPart.getInputStream();
-	           
-	           int len = 0;
-	           while( (len = is.read(buffer)) > 0) {
-	        	   fos.write(buffer, 0, len);
-	        	   md5.update(buffer, 0, len);
-	        	   totalLength += len;
-	           }
-	           is.close();
-	           
-	           // -> after each file write tell the client we are still here to keep connection alive
-	           if (null != client) {
-	        	   client.write( new String(" ").getBytes());
-	        	   client.flush();
-	           }
-	        }        
-	        fos.close();	
-	        return new OrderedPair<String, Long>(StringHelper.toHexString(md5.digest()), new Long(totalLength));
-	        //Create an ordered pair whose first element is the MD4 digest as a (lowercase) hex String
+	        FileOutputStream fos = new FileOutputStream(file);
+	        try {
+	            FileChannel out = fos.getChannel();
+	            for( int i=0; i < parts.length; i++ )
+	            {
+	               FileInputStream is = new FileInputStream(sourceDir + parts[i].getPath());
+	               try {
+	                   FileChannel in = is.getChannel();
+	                   long size = in.size();
+	                   long position = 0;
+	                   while (position < size)
+	                       position += in.transferTo(position, size - position, out);
+	                   totalLength += size;
+	               } finally {
+	                   is.close();
+	               }
+	               
+	               // -> after each file write tell the client we are still here to keep connection alive
+	               if (null != client) {
+	            	   client.write( new String(" ").getBytes());
+	            	   client.flush();
+	               }
+	            }
+	        } finally {
+	            fos.close();
+	        }
+
+	        for (Future<byte[]> digest : digests)
+	            md5.update(digest.get());
+	        return new OrderedPair<String, Long>(StringHelper.toHexString(md5.digest()) + "-" + parts.length, new Long(totalLength));
 		} 
 		catch(IOException e) {
 			logger.error("concatentateObjects unexpected exception " + e.getMessage(), e);
 			throw new OutOfStorageException(e);
-		}	
+		}
+		catch(ExecutionException e) {
+			logger.error("concatentateObjects unexpected exception " + e.getMessage(), e);
+			throw new OutOfStorageException(e.getCause());
+		}
+		catch(InterruptedException e) {
+			throw new InternalErrorException("Interrupted while computing the MD5 of the parts", e);
+		}
+		finally {
+			for (Future<byte[]> digest : digests)
+				digest.cancel(true);
+		}
+	}
+
+	/**
+	 * Computes the MD5 of a file.
+	 */
+	protected static class PartDigest implements Callable<byte[]> {
+		private final File file;
+
+		public PartDigest(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public byte[] call() throws Exception {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			FileInputStream is = new FileInputStream(file);
+			try {
+				FileChannel in = is.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				while (in.read(buffer) >= 0) {
+					buffer.flip();
+					md5.update(buffer);
+					buffer.clear();
+				}
+			} finally {
+				is.close();
+			}
+			return md5.digest();
+		}
 	}
 	
 	@Override
@@ -83,6 +83,7 @@ public class EC2Engine extends ManagerBase {
     protected final static Logger logger = Logger.getLogger(EC2Engine.class);
     String managementServer = null;
     String cloudAPIPort = null;
+    long cloudAPICacheTtl = 2000;
 
     @Inject CloudStackSvcOfferingDao scvoDao;
     @Inject OfferingDao ofDao;
@@ -130,6 +131,7 @@ public class EC2Engine extends ManagerBase {
             }
             managementServer = EC2Prop.getProperty( "managementServer" );
             cloudAPIPort = EC2Prop.getProperty( "cloudAPIPort", null );
+            cloudAPICacheTtl = Long.parseLong(EC2Prop.getProperty( "cloudAPICacheTtl", "2000" ));
 
             try {
                 if(ofDao.getOfferingCount() == 0) {
@@ -166,6 +168,12 @@ public class EC2Engine extends ManagerBase {
         } else logger.error( "ec2-service.properties not found" );
     }
 
+    private CloudStackApi createApi() {
+        CloudStackApi api = new CloudStackApi(managementServer, cloudAPIPort, false);
+        api.setCacheTtl(cloudAPICacheTtl);
+        return api;
+    }
+
     /**
      * Helper function to manage the api connection
      * 
@@ -173,7 +181,7 @@ public class EC2Engine extends ManagerBase {
      */
     private CloudStackApi getApi() {
         if (_eng == null) {
-            _eng = new CloudStackApi(managementServer, cloudAPIPort, false);
+            _eng = createApi();
         }
         // regardless of whether _eng is initialized, we must make sure
         // access/secret keys are current with what's in the UserCredentials
@@ -201,7 +209,7 @@ public class EC2Engine extends ManagerBase {
 
         // okay, instead of using the getApi() nonsense for validate, we are going to manage _eng
         if (_eng == null) {
-            _eng = new CloudStackApi(managementServer, cloudAPIPort, false);
+            _eng = createApi();
         }
 
         try {
@@ -1659,6 +1667,7 @@ public class EC2Engine extends ManagerBase {
         if (null == virtualMachineIds || 0 == virtualMachineIds.length) {
             instances = lookupInstances( null, instances, resourceTags );
         } else {
+            // one call per instance, repeated lookups are answered by the client cache
             for( int i=0; i <  virtualMachineIds.length; i++ ) {
                 instances = lookupInstances( virtualMachineIds[i], instances, resourceTags );
             }
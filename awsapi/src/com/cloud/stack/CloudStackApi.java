@@ -112,6 +112,13 @@ public class CloudStackApi {
 	public void setSecretKey(String secretKey) {
 		this.secretKey = secretKey;
 	}
+
+	/**
+	 * @param cacheTtlMs how long list responses are reused for the same account, 0 to disable
+	 */
+	public void setCacheTtl(long cacheTtlMs) {
+		_client.setCacheTtl(cacheTtlMs);
+	}
 	
 	
 	// Virtual Machines
@@ -20,11 +20,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.log4j.Logger;
 
 import com.cloud.bridge.util.JsonAccessor;
@@ -36,14 +44,43 @@ import com.google.gson.JsonParser;
  * CloudStackClient implements a simple CloudStack client object, it can be used to execute CloudStack commands 
  * with JSON response
  * 
+ * Calls go through a pool of keep-alive connections.  The responses of list commands are cached per
+ * account for a short time and identical list calls that are in progress at the same time share one
+ * request; any other command from the account drops its cached responses.
  */
 public class CloudStackClient {
     protected final static Logger logger = Logger.getLogger(CloudStackClient.class);
     
+	private static final int DEFAULT_MAX_CONNECTIONS = 50;
+	private static final long MIN_POLL_INTERVAL_MS = 100;
+
 	private String _serviceUrl;
 	
-	private long _pollIntervalMs = 2000;			// 1 second polling interval
+	private long _pollIntervalMs = 2000;			// maximum polling interval, polling starts at 100ms and backs off
 	private long _pollTimeoutMs = 600000;			// 10 minutes polling timeout
+	private long _cacheTtlMs = 0;					// list response cache disabled by default
+
+	private final MultiThreadedHttpConnectionManager _connectionManager = new MultiThreadedHttpConnectionManager();
+	private final HttpClient _httpClient;
+
+	// apiKey -> (command -> cached response)
+	private final ConcurrentHashMap<String, Map<String, CachedResponse>> _cache = new ConcurrentHashMap<String, Map<String, CachedResponse>>();
+	// apiKey -> number of times the account's responses have been dropped, a response fetched
+	// before the latest drop is never handed out even if it made it into the cache after it
+	private final ConcurrentHashMap<String, AtomicLong> _generations = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<String, FutureTask<JsonAccessor>> _inProgress = new ConcurrentHashMap<String, FutureTask<JsonAccessor>>();
+
+	private static class CachedResponse {
+		final JsonAccessor response;
+		final long expires;
+		final long generation;
+
+		CachedResponse(JsonAccessor response, long expires, long generation) {
+			this.response = response;
+			this.expires = expires;
+			this.generation = generation;
+		}
+	}
 
 	public CloudStackClient(String serviceRootUrl) {
 		assert(serviceRootUrl != null);
@@ -52,6 +89,7 @@ public class CloudStackClient {
 			_serviceUrl = serviceRootUrl + "/api?";
 		else
 			_serviceUrl = serviceRootUrl + "api?";
+		_httpClient = createHttpClient();
 	}
 	
 	public CloudStackClient(String cloudStackServiceHost, int port, boolean bSslEnabled) {
@@ -73,6 +111,14 @@ public class CloudStackClient {
 		sb.append("/client/api");
 		sb.append("?");
 		_serviceUrl = sb.toString();
+		_httpClient = createHttpClient();
+	}
+
+	private HttpClient createHttpClient() {
+		// everything goes to the same management server
+		_connectionManager.getParams().setDefaultMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS);
+		_connectionManager.getParams().setMaxTotalConnections(DEFAULT_MAX_CONNECTIONS);
+		return new HttpClient(_connectionManager);
 	}
 	
 	public CloudStackClient setPollInterval(long intervalMs) {
@@ -84,15 +130,26 @@ public class CloudStackClient {
 		_pollTimeoutMs = pollTimeoutMs;
 		return this;
 	}
+
+	/**
+	 * @param cacheTtlMs how long the response of a list command is reused for the same account, 0 to disable
+	 */
+	public CloudStackClient setCacheTtl(long cacheTtlMs) {
+		_cacheTtlMs = cacheTtlMs;
+		if (cacheTtlMs <= 0)
+			_cache.clear();
+		return this;
+	}
 	
 	public <T> T call(CloudStackCommand cmd, String apiKey, String secretKey, boolean followToAsyncResult, 
 		String responseName, String responseObjName, Class<T> responseClz)	throws Exception {
 		
 		assert(responseName != null);
 		
-		JsonAccessor json = execute(cmd, apiKey, secretKey);
+		JsonAccessor json = cmd.isListCommand() ? executeCached(cmd, apiKey, secretKey) : execute(cmd, apiKey, secretKey);
 		if(followToAsyncResult && json.tryEval(responseName + ".jobid") != null) {
 			long startMs = System.currentTimeMillis();
+			long intervalMs = Math.min(MIN_POLL_INTERVAL_MS, _pollIntervalMs);
 	        while(System.currentTimeMillis() -  startMs < _pollTimeoutMs) {
 				CloudStackCommand queryJobCmd = new CloudStackCommand("queryAsyncJobResult");
 	        	queryJobCmd.setParam("jobId", json.getAsString(responseName + ".jobid"));
@@ -103,16 +160,22 @@ public class CloudStackClient {
 	    			int jobStatus = queryAsyncJobResponse.getAsInt("queryasyncjobresultresponse.jobstatus");
 	    			switch(jobStatus) {
 	    			case 2:
+	    				invalidate(apiKey);
 	    	    		throw new Exception(queryAsyncJobResponse.getAsString("queryasyncjobresultresponse.jobresult.errortext") + " Error Code - " + 
 	    	    		queryAsyncJobResponse.getAsString("queryasyncjobresultresponse.jobresult.errorcode") );
 	    	    		
 	    			case 0 :
+	    				// most jobs finish within a second or two, so start polling
+	    				// quickly and back off for the long running ones
 	            	    try { 
-	            	    	Thread.sleep( _pollIntervalMs ); 
+	            	    	Thread.sleep(Math.min(intervalMs, Math.max(_pollTimeoutMs - (System.currentTimeMillis() - startMs), 0)));
 	            	    } catch( Exception e ) {}
+	            	    intervalMs = Math.min(intervalMs * 2, _pollIntervalMs);
 	            	    break;
 	            	    
 	    			case 1 :
+	    				// the job has changed something, don't hand out stale lists
+	    				invalidate(apiKey);
 	    				if(responseObjName != null)
 	    					return (T)(new Gson()).fromJson(queryAsyncJobResponse.eval("queryasyncjobresultresponse.jobresult." + responseObjName), responseClz);
 	    				else
@@ -142,7 +205,7 @@ public class CloudStackClient {
 		
 		assert(responseName != null);
 		
-		JsonAccessor json = execute(cmd, apiKey, secretKey);
+		JsonAccessor json = cmd.isListCommand() ? executeCached(cmd, apiKey, secretKey) : execute(cmd, apiKey, secretKey);
 		
 		
 
@@ -158,42 +221,142 @@ public class CloudStackClient {
 		return (new Gson()).fromJson(json.eval(responseName), collectionType);
 	}
 
+	/**
+	 * Executes a read only command, answering from the account's cached responses if possible.
+	 */
+	public JsonAccessor executeCached(final CloudStackCommand cmd, final String apiKey, final String secretKey) throws Exception {
+		if (_cacheTtlMs <= 0 || apiKey == null)
+			return doExecute(cmd, apiKey, secretKey);
+
+		String key = cmd.getCacheKey();
+		long generation = getGeneration(apiKey).get();
+		Map<String, CachedResponse> responses = _cache.get(apiKey);
+		if (responses != null) {
+			CachedResponse cached = responses.get(key);
+			if (cached != null && cached.generation == generation && cached.expires > System.currentTimeMillis()) {
+				if(logger.isDebugEnabled())
+					logger.debug("Cloud API call + [" + key + "] answered from cache");
+				return cached.response;
+			}
+		}
+
+		// a call started before the latest drop may miss the change, so don't join it
+		String inProgressKey = apiKey + "\n" + generation + "\n" + key;
+		FutureTask<JsonAccessor> task = new FutureTask<JsonAccessor>(new Callable<JsonAccessor>() {
+			@Override
+			public JsonAccessor call() throws Exception {
+				return doExecute(cmd, apiKey, secretKey);
+			}
+		});
+		FutureTask<JsonAccessor> running = _inProgress.putIfAbsent(inProgressKey, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				_inProgress.remove(inProgressKey, task);
+			}
+			running = task;
+		} else if(logger.isDebugEnabled()) {
+			logger.debug("Cloud API call + [" + key + "] joins a call in progress");
+		}
+
+		JsonAccessor json;
+		try {
+			json = running.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+
+		// skip caching a response the account has changed things under since, readers check the
+		// generation too in case the change lands between this check and the put
+		if (running == task && getGeneration(apiKey).get() == generation) {
+			responses = _cache.get(apiKey);
+			if (responses == null) {
+				Map<String, CachedResponse> existing = _cache.putIfAbsent(apiKey, responses = new ConcurrentHashMap<String, CachedResponse>());
+				if (existing != null)
+					responses = existing;
+			}
+			long now = System.currentTimeMillis();
+			responses.put(key, new CachedResponse(json, now + _cacheTtlMs, generation));
+
+			// keep the cache from growing with one-off queries
+			for (Iterator<CachedResponse> it = responses.values().iterator(); it.hasNext();) {
+				if (it.next().expires <= now)
+					it.remove();
+			}
+		}
+		return json;
+	}
+
+	/**
+	 * Drops the cached responses of the account.
+	 */
+	public void invalidate(String apiKey) {
+		if (apiKey != null) {
+			getGeneration(apiKey).incrementAndGet();
+			_cache.remove(apiKey);
+		}
+	}
+
+	private AtomicLong getGeneration(String apiKey) {
+		AtomicLong generation = _generations.get(apiKey);
+		if (generation == null) {
+			AtomicLong existing = _generations.putIfAbsent(apiKey, generation = new AtomicLong());
+			if (existing != null)
+				generation = existing;
+		}
+		return generation;
+	}
+
 	public JsonAccessor execute(CloudStackCommand cmd, String apiKey, String secretKey) throws Exception {
+		if (!cmd.isReadOnlyCommand())
+			invalidate(apiKey);
+		return doExecute(cmd, apiKey, secretKey);
+	}
+
+	protected JsonAccessor doExecute(CloudStackCommand cmd, String apiKey, String secretKey) throws Exception {
 		JsonParser parser = new JsonParser();
-		URL url = new URL(_serviceUrl + cmd.signCommand(apiKey, secretKey));
+		String url = _serviceUrl + cmd.signCommand(apiKey, secretKey);
 		
 		if(logger.isDebugEnabled())
-			logger.debug("Cloud API call + [" + url.toString() + "]");
+			logger.debug("Cloud API call + [" + url + "]");
 		
-        URLConnection connect = url.openConnection();
-        
-        int statusCode;
-        statusCode = ((HttpURLConnection)connect).getResponseCode();
-        if(statusCode >= 400) {
-        	logger.error("Cloud API call + [" + url.toString() + "] failed with status code: " + statusCode);
-            String errorMessage = ((HttpURLConnection)connect).getResponseMessage();
-            if(errorMessage == null){
-                errorMessage = connect.getHeaderField("X-Description");
+        GetMethod method = new GetMethod(url);
+        try {
+            int statusCode = _httpClient.executeMethod(method);
+            if(statusCode >= 400) {
+            	logger.error("Cloud API call + [" + url + "] failed with status code: " + statusCode);
+                String errorMessage = method.getStatusText();
+                if(errorMessage == null){
+                    Header description = method.getResponseHeader("X-Description");
+                    if(description != null)
+                        errorMessage = description.getValue();
+                }
+                
+                if(errorMessage == null){
+                    errorMessage = "CloudStack API call HTTP response error, HTTP status code: " + statusCode;
+                }
+                errorMessage = errorMessage.concat(" Error Code - " + Integer.toString(statusCode));
+
+            	throw new IOException(errorMessage);
             }
             
-            if(errorMessage == null){
-                errorMessage = "CloudStack API call HTTP response error, HTTP status code: " + statusCode;
-            }
-            errorMessage = errorMessage.concat(" Error Code - " + Integer.toString(statusCode));
-
-        	throw new IOException(errorMessage);
+            InputStream inputStream = method.getResponseBodyAsStream(); 
+    		JsonElement jsonElement = parser.parse(new InputStreamReader(inputStream));
+    		if(jsonElement == null) {
+            	logger.error("Cloud API call + [" + url + "] failed: unable to parse expected JSON response");
+            	
+            	throw new IOException("CloudStack API call error : invalid JSON response");
+    		}
+    		
+    		if(logger.isDebugEnabled())
+    			logger.debug("Cloud API call + [" + url + "] returned: " + jsonElement.toString());
+    		return new JsonAccessor(jsonElement);
+        } finally {
+            // hands the connection back to the pool
+            method.releaseConnection();
         }
-        
-        InputStream inputStream = connect.getInputStream(); 
-		JsonElement jsonElement = parser.parse(new InputStreamReader(inputStream));
-		if(jsonElement == null) {
-        	logger.error("Cloud API call + [" + url.toString() + "] failed: unable to parse expected JSON response");
-        	
-        	throw new IOException("CloudStack API call error : invalid JSON response");
-		}
-		
-		if(logger.isDebugEnabled())
-			logger.debug("Cloud API call + [" + url.toString() + "] returned: " + jsonElement.toString());
-		return new JsonAccessor(jsonElement);
 	}
 }
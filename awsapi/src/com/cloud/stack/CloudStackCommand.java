@@ -55,6 +55,42 @@ public class CloudStackCommand {
 		return this;
 	}
 	
+	public String getName() {
+		return _params.get("command");
+	}
+
+	/**
+	 * @return true for the list commands, whose responses can be cached for a short while
+	 */
+	public boolean isListCommand() {
+		String name = getName();
+		return name != null && name.startsWith("list");
+	}
+
+	/**
+	 * @return true if the command doesn't change anything on the CloudStack side
+	 */
+	public boolean isReadOnlyCommand() {
+		String name = getName();
+		return name != null && (name.startsWith("list") || name.startsWith("get") || name.startsWith("query"));
+	}
+
+	/**
+	 * @return the parameters in a stable order, identical commands give identical keys
+	 */
+	public String getCacheKey() {
+		List<String> paramNames = new ArrayList<String>(_params.keySet());
+		Collections.sort(paramNames);
+
+		StringBuffer sb = new StringBuffer();
+		for(String name : paramNames) {
+			if(sb.length() > 0)
+				sb.append("&");
+			sb.append(name).append("=").append(urlSafe(_params.get(name)));
+		}
+		return sb.toString();
+	}
+	
 	public String signCommand(String apiKey, String secretKey) throws SignatureException {
 		assert(_params.get("command") != null);
 		
@@ -0,0 +1,179 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.gate.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import com.cloud.bridge.util.JsonAccessor;
+import com.cloud.gate.testcase.BaseTestCase;
+import com.cloud.stack.CloudStackClient;
+import com.cloud.stack.CloudStackCommand;
+import com.cloud.stack.models.CloudStackUserVm;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class CloudStackClientCacheTestCase extends BaseTestCase {
+    private HttpServer server;
+    private CloudStackClient client;
+    private final AtomicInteger lists = new AtomicInteger();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger others = new AtomicInteger();
+    private volatile long listDelayMs;
+    private volatile int pendingQueries;
+
+    @Override
+    protected void setUp() {
+        super.setUp();
+        try {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        server.createContext("/client/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getRawQuery();
+                String response;
+                if (query.startsWith("command=listVirtualMachines")) {
+                    lists.incrementAndGet();
+                    try {
+                        Thread.sleep(listDelayMs);
+                    } catch (InterruptedException e) {
+                    }
+                    response = "{ \"listvirtualmachinesresponse\" : { \"count\":1, \"virtualmachine\" : [ { \"id\":\"vm-1\", \"state\":\"Running\" } ] } }";
+                } else if (query.startsWith("command=queryAsyncJobResult")) {
+                    queries.incrementAndGet();
+                    if (pendingQueries-- > 0)
+                        response = "{ \"queryasyncjobresultresponse\" : { \"jobid\":\"job-1\", \"jobstatus\":0 } }";
+                    else
+                        response = "{ \"queryasyncjobresultresponse\" : { \"jobid\":\"job-1\", \"jobstatus\":1, \"jobresult\" : { \"virtualmachine\" : { \"id\":\"vm-1\", \"state\":\"Stopped\" } } } }";
+                } else {
+                    others.incrementAndGet();
+                    response = "{ \"stopvirtualmachineresponse\" : { \"jobid\":\"job-1\" } }";
+                }
+                byte[] bytes = response.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+        client = new CloudStackClient("127.0.0.1", server.getAddress().getPort(), false);
+        client.setCacheTtl(60000);
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop(0);
+    }
+
+    private List<CloudStackUserVm> list(String apiKey) throws Exception {
+        return client.listCall(new CloudStackCommand("listVirtualMachines").setParam("listAll", "true"), apiKey, "secret",
+                "listvirtualmachinesresponse", "virtualmachine", new com.google.gson.reflect.TypeToken<List<CloudStackUserVm>>() {}.getType());
+    }
+
+    public void testListResponsesAreCachedPerAccount() throws Exception {
+        Assert.assertEquals("vm-1", list("alice").get(0).getId());
+        list("alice");
+        Assert.assertEquals(1, lists.get());
+
+        list("bob");
+        Assert.assertEquals(2, lists.get());
+    }
+
+    public void testWriteDropsCache() throws Exception {
+        list("alice");
+        pendingQueries = 2;
+        CloudStackUserVm vm = client.call(new CloudStackCommand("stopVirtualMachine").setParam("id", "vm-1"), "alice", "secret", true,
+                "stopvirtualmachineresponse", "virtualmachine", CloudStackUserVm.class);
+        Assert.assertEquals("Stopped", vm.getState());
+        Assert.assertEquals(1, others.get());
+        Assert.assertEquals(3, queries.get());
+
+        list("alice");
+        Assert.assertEquals(2, lists.get());
+    }
+
+    public void testConcurrentListsAreCoalesced() throws Exception {
+        listDelayMs = 500;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        list("alice");
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        Assert.assertTrue(errors.isEmpty());
+        Assert.assertEquals(1, lists.get());
+    }
+
+    public void testListRacingAWriteIsNotCached() throws Exception {
+        listDelayMs = 500;
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    list("alice");
+                } catch (Exception e) {
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        client.execute(new CloudStackCommand("stopVirtualMachine").setParam("id", "vm-1"), "alice", "secret");
+        thread.join();
+
+        listDelayMs = 0;
+        list("alice");
+        Assert.assertEquals(2, lists.get());
+        list("alice");
+        Assert.assertEquals(2, lists.get());
+    }
+
+    public void testCacheDisabled() throws Exception {
+        client.setCacheTtl(0);
+        list("alice");
+        list("alice");
+        Assert.assertEquals(2, lists.get());
+
+        JsonAccessor json = client.execute(new CloudStackCommand("listVirtualMachines"), "alice", "secret");
+        Assert.assertEquals("vm-1", json.getAsString("listvirtualmachinesresponse.virtualmachine[0].id"));
+    }
+}
@@ -20,6 +20,7 @@ package com.cloud.agent.api;
 public class StartupAnswer extends Answer {
     long hostId;
     int pingInterval;
+    int wireVersion;
 
     protected StartupAnswer() {
     }
@@ -41,4 +42,15 @@ public class StartupAnswer extends Answer {
     public int getPingInterval() {
         return pingInterval;
     }
+
+    /**
+     * @return the Request.Version the management server has agreed to talk to the agent with.
+     */
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
 }
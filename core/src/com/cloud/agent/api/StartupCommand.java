@@ -43,6 +43,7 @@ public class StartupCommand extends Command {
     String agentTag;
     String resourceName;
     String gatewayIpAddress;
+    int wireVersion;
 
     public StartupCommand(Host.Type type) {
         this.type = type;
@@ -278,6 +279,17 @@ public class StartupCommand extends Command {
         this.gatewayIpAddress = gatewayIpAddress;
     }
 
+    /**
+     * @return the highest Request.Version the agent can marshall requests with.
+     */
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
+
 
     @Override
     public boolean executeInSequence() {
@@ -87,6 +87,8 @@ import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -115,6 +117,7 @@ public class VirtualRoutingResource implements Manager {
     private String _createIpAliasPath;
     private String _deleteIpAliasPath;
     private String _callDnsMasqPath;
+    private boolean _batchConfig;
 
     private int _timeout;
     private int _startTimeout;
@@ -180,7 +183,9 @@ public class VirtualRoutingResource implements Manager {
     }
 
     private Answer execute(VpnUsersCfgCommand cmd) {
-        for (VpnUsersCfgCommand.UsernamePassword userpwd: cmd.getUserpwds()) {         
+        VpnUsersCfgCommand.UsernamePassword[] userpwds = cmd.getUserpwds();
+        List<String> argsList = new ArrayList<String>(userpwds.length);
+        for (VpnUsersCfgCommand.UsernamePassword userpwd: userpwds) {
             String args = "";
             if (!userpwd.isAdd()) {
                 args +="-U ";
@@ -189,11 +194,15 @@ public class VirtualRoutingResource implements Manager {
                 args +="-u ";
                 args += userpwd.getUsernamePassword();
             }
-            String result = routerProxy("vpn_l2tp.sh", cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP), args);
-            if (result != null) {
-                return new Answer(cmd, false, "Configure VPN user failed for user " + userpwd.getUsername());
+            argsList.add(args);
+        }
+
+        String[] results = routerProxyBatch("vpn_l2tp.sh", cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP), argsList);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                return new Answer(cmd, false, "Configure VPN user failed for user " + userpwds[i].getUsername());
             }
-        }       
+        }
         return new Answer(cmd);
     }
 
@@ -300,24 +309,17 @@ public class VirtualRoutingResource implements Manager {
 
     protected Answer SetVPCStaticNatRules(SetStaticNatRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
-        String[] results = new String[cmd.getRules().length];
-        int i = 0;
-        boolean endResult = true;
+        List<String> argsList = new ArrayList<String>(cmd.getRules().length);
 
         for (StaticNatRuleTO rule : cmd.getRules()) {
             String args = rule.revoked() ? " -D" : " -A";
             args += " -l " + rule.getSrcIp();
             args += " -r " + rule.getDstIp();
-
-            String result = routerProxy("vpc_staticnat.sh", routerIp, args);
-            
-            if(result == null) {
-                results[i++] = null;
-            } else {
-                results[i++] = "Failed";
-                endResult = false;
-            }
+            argsList.add(args);
         }
+
+        String[] results = routerProxyBatch("vpc_staticnat.sh", routerIp, argsList);
+        boolean endResult = markFailed(results);
         return new SetStaticNatRulesAnswer(cmd, results, endResult);
 
     }
@@ -683,6 +685,128 @@ public class VirtualRoutingResource implements Manager {
         return command.execute();
     }
 
+    /**
+     * Runs the script on the router once for each entry in argsList.  With
+     * batching enabled all the entries are sent to the router over a single
+     * ssh session and applied by batch_config.sh under one lock; if any of
+     * them fails the router rolls the whole set back.  Routers without
+     * batch_config.sh fall back to one invocation per entry.
+     *
+     * @return the result of each entry, null if that entry was applied.
+     */
+    protected String[] routerProxyBatch(String script, String routerIP, List<String> argsList) {
+        String[] results = null;
+        if (_batchConfig && argsList.size() > 1) {
+            results = routerProxyBatchOnce(script, routerIP, argsList);
+        }
+        if (results == null) {
+            results = new String[argsList.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = routerProxy(script, routerIP, argsList.get(i));
+            }
+        }
+        return results;
+    }
+
+    private String[] routerProxyBatchOnce(String script, String routerIP, List<String> argsList) {
+        File batch = null;
+        try {
+            batch = File.createTempFile("router-batch", ".cfg");
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(batch)));
+            try {
+                for (String args : argsList) {
+                    if (args.indexOf('\n') >= 0) {
+                        return null;
+                    }
+                    writer.println(script + " " + args.trim());
+                }
+            } finally {
+                writer.close();
+            }
+
+            final Script command = new Script(_routerProxyPath, _timeout, s_logger);
+            command.add("batch_config.sh");
+            command.add(routerIP);
+            command.add("-i", batch.getAbsolutePath());
+            OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+            String result = command.execute(parser);
+            if (result == null) {
+                return parseBatchResults(parser.getLines(), argsList.size());
+            }
+            if (Script.ERR_TIMEOUT.equals(result)) {
+                // the router may still be applying the batch, don't run it twice
+                String[] results = new String[argsList.size()];
+                Arrays.fill(results, result);
+                return results;
+            }
+            s_logger.warn("Unable to run " + script + " as a batch on router " + routerIP + ": " + result + ", running it once per entry");
+            return null;
+        } catch (IOException e) {
+            s_logger.warn("Unable to write the " + script + " batch for router " + routerIP, e);
+            return null;
+        } finally {
+            if (batch != null) {
+                batch.delete();
+            }
+        }
+    }
+
+    /**
+     * Parses the "<line> <exit code>" output of batch_config.sh.  Entries the
+     * router never got to, or that were undone by a rollback, are failed too.
+     */
+    static String[] parseBatchResults(String output, int count) {
+        String[] results = new String[count];
+        Arrays.fill(results, "Not applied");
+        boolean rollback = false;
+        int applied = 0;
+        if (output != null) {
+            for (String line : output.split("\n")) {
+                line = line.trim();
+                if (line.equals("rollback")) {
+                    rollback = true;
+                    continue;
+                }
+                String[] tokens = line.split(" ");
+                if (tokens.length != 2) {
+                    continue;
+                }
+                int index = NumbersUtil.parseInt(tokens[0], 0) - 1;
+                if (index < 0 || index >= count) {
+                    continue;
+                }
+                int exitCode = NumbersUtil.parseInt(tokens[1], -1);
+                if (exitCode == 0) {
+                    results[index] = null;
+                    applied++;
+                } else {
+                    results[index] = "Failed, exit code " + exitCode;
+                }
+            }
+        }
+        if (rollback) {
+            for (int i = 0; i < count; i++) {
+                if (results[i] == null) {
+                    results[i] = "Rolled back";
+                }
+            }
+        } else if (applied != count) {
+            s_logger.warn("Only " + applied + " out of " + count + " batched entries were reported as applied");
+        }
+        return results;
+    }
+
+    private static boolean markFailed(String[] results) {
+        boolean endResult = true;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                results[i] = "Failed";
+                endResult = false;
+            }
+        }
+        return endResult;
+    }
+
     protected Answer execute(CheckRouterCommand cmd) {
         final String routerPrivateIPAddress = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
     
@@ -872,10 +996,8 @@ public class VirtualRoutingResource implements Manager {
 
     private SetPortForwardingRulesAnswer execute(SetPortForwardingRulesVpcCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
-        String[] results = new String[cmd.getRules().length];
-        int i = 0;
+        List<String> argsList = new ArrayList<String>(cmd.getRules().length);
 
-        boolean endResult = true;
         for (PortForwardingRuleTO rule : cmd.getRules()) {
             String args = rule.revoked() ? " -D" : " -A";
             args += " -P " + rule.getProtocol().toLowerCase();
@@ -883,16 +1005,11 @@ public class VirtualRoutingResource implements Manager {
             args += " -p " + rule.getStringSrcPortRange();
             args += " -r " + rule.getDstIp();
             args += " -d " + rule.getStringDstPortRange().replace(":", "-");
-
-            String result = routerProxy("vpc_portforwarding.sh", routerIp, args);
-
-            if (result != null) {
-                results[i++] = "Failed";
-                endResult = false;
-            } else {
-                results[i++] = null;
-            }
+            argsList.add(args);
         }
+
+        String[] results = routerProxyBatch("vpc_portforwarding.sh", routerIp, argsList);
+        boolean endResult = markFailed(results);
         return new SetPortForwardingRulesAnswer(cmd, results, endResult);
     }
 
@@ -1165,6 +1282,9 @@ public class VirtualRoutingResource implements Manager {
         if (_routerProxyPath == null) {
             throw new ConfigurationException("Unable to find router_proxy.sh");
         }
+
+        value = (String)params.get("router.batch.config");
+        _batchConfig = value == null || Boolean.parseBoolean(value);
         _createIpAliasPath = findScript("createipAlias.sh");
         if (_createIpAliasPath == null) {
             throw new ConfigurationException("unable to find createipAlias.sh");
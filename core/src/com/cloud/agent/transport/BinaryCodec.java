@@ -0,0 +1,1021 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * BinaryCodec is the marshaller behind Request.Version.v4.  It walks the
+ * same fields Gson does (every non-static, non-transient field, including
+ * the ones inherited from super classes) but writes them as a compact
+ * binary stream instead of JSON text.
+ *
+ * The stream is schema driven.  The first time a class shows up in a
+ * message its name and field layout (field name and kind) are written;
+ * every later instance of the class in the same message only refers to
+ * the schema by index and writes its field values in schema order.  The
+ * reader maps the remote field layout onto the local class by field name,
+ * so an agent and a management server with slightly different versions
+ * of a command still understand each other, just like they do with Gson.
+ *
+ * Anything the codec does not know how to marshal (e.g. JDK classes other
+ * than the boxed primitives, String, Date, collections and maps) makes
+ * encode() throw a CloudRuntimeException.  Request catches that and falls
+ * back to Gson for that request.
+ */
+public class BinaryCodec {
+
+    protected static final byte TAG_NULL        = 0;
+    protected static final byte TAG_TRUE        = 1;
+    protected static final byte TAG_FALSE       = 2;
+    protected static final byte TAG_BYTE        = 3;
+    protected static final byte TAG_SHORT       = 4;
+    protected static final byte TAG_CHAR        = 5;
+    protected static final byte TAG_INT         = 6;
+    protected static final byte TAG_LONG        = 7;
+    protected static final byte TAG_FLOAT       = 8;
+    protected static final byte TAG_DOUBLE      = 9;
+    protected static final byte TAG_STRING      = 10;
+    protected static final byte TAG_ENUM        = 11;
+    protected static final byte TAG_DATE        = 12;
+    protected static final byte TAG_OBJECT      = 13;
+    protected static final byte TAG_ARRAY       = 14;
+    protected static final byte TAG_PRIM_ARRAY  = 15;
+    protected static final byte TAG_COLLECTION  = 16;
+    protected static final byte TAG_MAP         = 17;
+
+    // Field kinds, also used as the element kind of primitive arrays.
+    protected static final byte KIND_BOOLEAN    = 1;
+    protected static final byte KIND_BYTE       = 2;
+    protected static final byte KIND_SHORT      = 3;
+    protected static final byte KIND_CHAR       = 4;
+    protected static final byte KIND_INT        = 5;
+    protected static final byte KIND_LONG       = 6;
+    protected static final byte KIND_FLOAT      = 7;
+    protected static final byte KIND_DOUBLE     = 8;
+    protected static final byte KIND_REF        = 9;
+
+    // Collection and map implementations that can be recreated on the other side.
+    protected static final byte COLL_ARRAY_LIST     = 0;
+    protected static final byte COLL_LINKED_LIST    = 1;
+    protected static final byte COLL_HASH_SET       = 2;
+    protected static final byte COLL_LINKED_HASH_SET = 3;
+    protected static final byte COLL_TREE_SET       = 4;
+    protected static final byte COLL_VECTOR         = 5;
+    protected static final byte MAP_HASH_MAP        = 0;
+    protected static final byte MAP_LINKED_HASH_MAP = 1;
+    protected static final byte MAP_TREE_MAP        = 2;
+    protected static final byte MAP_HASHTABLE       = 3;
+    protected static final byte MAP_CONCURRENT_HASH_MAP = 4;
+
+    protected static final int MAX_DEPTH = 128;
+    protected static final int INITIAL_SCRATCH_SIZE = 8192;
+    protected static final int MAX_RETAINED_SCRATCH_SIZE = 1024 * 1024;
+
+    private static final ConcurrentHashMap<Class<?>, Schema> s_schemas = new ConcurrentHashMap<Class<?>, Schema>();
+
+    private static final ThreadLocal<ByteBuffer> s_scratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_SCRATCH_SIZE);
+        }
+    };
+
+    private static final Object s_unsafe;
+    private static final Method s_allocateInstance;
+
+    static {
+        Object unsafe = null;
+        Method allocateInstance = null;
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field f = clazz.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            allocateInstance = clazz.getMethod("allocateInstance", Class.class);
+        } catch (Exception e) {
+            // Classes without a no-arg constructor can not be decoded; encode() refuses them.
+        }
+        s_unsafe = unsafe;
+        s_allocateInstance = allocateInstance;
+    }
+
+    /**
+     * Encodes the array, typically the Command[] or Answer[] of a Request.
+     *
+     * @param values array to encode.
+     * @return a flipped heap buffer holding exactly the encoded bytes.
+     * @throws CloudRuntimeException if the object graph contains a type the codec can not handle.
+     */
+    public static ByteBuffer encode(Object[] values) {
+        Writer writer = new Writer(s_scratch.get());
+        try {
+            writer.writeValue(values, 0);
+            ByteBuffer scratch = writer._buf;
+            scratch.flip();
+            ByteBuffer result = ByteBuffer.allocate(scratch.remaining());
+            result.put(scratch);
+            result.flip();
+            return result;
+        } finally {
+            ByteBuffer scratch = writer._buf;
+            scratch.clear();
+            s_scratch.set(scratch.capacity() > MAX_RETAINED_SCRATCH_SIZE ? ByteBuffer.allocate(INITIAL_SCRATCH_SIZE) : scratch);
+        }
+    }
+
+    /**
+     * Decodes what encode() has written.  The buffer's position is advanced
+     * past the encoded value.
+     */
+    public static Object decode(ByteBuffer buffer) {
+        Reader reader = new Reader(buffer);
+        return reader.readValue(null, 0);
+    }
+
+    protected static Schema getSchema(Class<?> clazz) {
+        Schema schema = s_schemas.get(clazz);
+        if (schema == null) {
+            schema = new Schema(clazz);
+            Schema old = s_schemas.putIfAbsent(clazz, schema);
+            if (old != null) {
+                schema = old;
+            }
+        }
+        return schema;
+    }
+
+    protected static byte getKind(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return KIND_REF;
+        } else if (type == boolean.class) {
+            return KIND_BOOLEAN;
+        } else if (type == byte.class) {
+            return KIND_BYTE;
+        } else if (type == short.class) {
+            return KIND_SHORT;
+        } else if (type == char.class) {
+            return KIND_CHAR;
+        } else if (type == int.class) {
+            return KIND_INT;
+        } else if (type == long.class) {
+            return KIND_LONG;
+        } else if (type == float.class) {
+            return KIND_FLOAT;
+        } else if (type == double.class) {
+            return KIND_DOUBLE;
+        }
+        throw new CloudRuntimeException("Unknown primitive type " + type);
+    }
+
+    protected static boolean isJdkClass(Class<?> clazz) {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    /**
+     * Field layout of a local class.  Fields are ordered super class first
+     * and by name within a class so both ends agree regardless of the
+     * order reflection returns them in.
+     */
+    protected static class Schema {
+        final Class<?> _clazz;
+        final Field[] _fields;
+        final byte[] _kinds;
+        final Map<String, Integer> _index;
+        final Constructor<?> _ctor;
+
+        Schema(Class<?> clazz) {
+            _clazz = clazz;
+            List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+
+            List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c : hierarchy) {
+                Field[] declared = c.getDeclaredFields();
+                Arrays.sort(declared, new Comparator<Field>() {
+                    @Override
+                    public int compare(Field f1, Field f2) {
+                        return f1.getName().compareTo(f2.getName());
+                    }
+                });
+                for (Field field : declared) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+
+            _fields = fields.toArray(new Field[fields.size()]);
+            _kinds = new byte[_fields.length];
+            _index = new HashMap<String, Integer>();
+            for (int i = 0; i < _fields.length; i++) {
+                _kinds[i] = getKind(_fields[i].getType());
+                // A shadowed field keeps the one closest to the concrete class.
+                _index.put(_fields[i].getName(), i);
+            }
+
+            Constructor<?> ctor = null;
+            try {
+                ctor = clazz.getDeclaredConstructor();
+                ctor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+            }
+            _ctor = ctor;
+        }
+
+        Object newInstance() {
+            try {
+                if (_ctor != null) {
+                    return _ctor.newInstance();
+                }
+                if (s_allocateInstance != null) {
+                    return s_allocateInstance.invoke(s_unsafe, _clazz);
+                }
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to instantiate " + _clazz.getName(), e);
+            }
+            throw new CloudRuntimeException("Unable to instantiate " + _clazz.getName() + " without a no-arg constructor");
+        }
+    }
+
+    /**
+     * Field layout as written by the sender, mapped onto the local schema.
+     */
+    protected static class RemoteSchema {
+        final Schema _local;
+        final Field[] _fields;
+        final byte[] _kinds;
+
+        RemoteSchema(Schema local, Field[] fields, byte[] kinds) {
+            _local = local;
+            _fields = fields;
+            _kinds = kinds;
+        }
+    }
+
+    protected static class Writer {
+        ByteBuffer _buf;
+        final IdentityHashMap<Class<?>, Integer> _types = new IdentityHashMap<Class<?>, Integer>();
+        final IdentityHashMap<Class<?>, Integer> _schemas = new IdentityHashMap<Class<?>, Integer>();
+
+        Writer(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        void ensure(int size) {
+            if (_buf.remaining() < size) {
+                int capacity = _buf.capacity();
+                while (capacity - _buf.position() < size) {
+                    capacity <<= 1;
+                }
+                ByteBuffer buf = ByteBuffer.allocate(capacity);
+                _buf.flip();
+                buf.put(_buf);
+                _buf = buf;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            _buf.put((byte)b);
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                _buf.put((byte)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            _buf.put((byte)value);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                _buf.put((byte)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            _buf.put((byte)value);
+        }
+
+        void writeZigZagInt(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        void writeZigZagLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String str) {
+            int len = str.length();
+            writeVarInt(len);
+            ensure(len * 3);
+            for (int i = 0; i < len; i++) {
+                char c = str.charAt(i);
+                if (c < 0x80) {
+                    _buf.put((byte)c);
+                } else if (c < 0x800) {
+                    _buf.put((byte)(0xC0 | (c >> 6)));
+                    _buf.put((byte)(0x80 | (c & 0x3F)));
+                } else {
+                    _buf.put((byte)(0xE0 | (c >> 12)));
+                    _buf.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                    _buf.put((byte)(0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        void writeType(Class<?> clazz) {
+            Integer index = _types.get(clazz);
+            if (index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+            writeVarInt(0);
+            writeString(clazz.getName());
+            _types.put(clazz, _types.size());
+        }
+
+        void writeSchema(Schema schema) {
+            Integer index = _schemas.get(schema._clazz);
+            if (index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+            writeVarInt(0);
+            writeString(schema._clazz.getName());
+            writeVarInt(schema._fields.length);
+            for (int i = 0; i < schema._fields.length; i++) {
+                writeString(schema._fields[i].getName());
+                writeByte(schema._kinds[i]);
+            }
+            _schemas.put(schema._clazz, _schemas.size());
+        }
+
+        void writeValue(Object value, int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new CloudRuntimeException("Object graph is too deep, possibly circular");
+            }
+            if (value == null) {
+                writeByte(TAG_NULL);
+                return;
+            }
+
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                writeByte(TAG_STRING);
+                writeString((String)value);
+            } else if (clazz == Long.class) {
+                writeByte(TAG_LONG);
+                writeZigZagLong((Long)value);
+            } else if (clazz == Integer.class) {
+                writeByte(TAG_INT);
+                writeZigZagInt((Integer)value);
+            } else if (clazz == Boolean.class) {
+                writeByte((Boolean)value ? TAG_TRUE : TAG_FALSE);
+            } else if (clazz == Double.class) {
+                writeByte(TAG_DOUBLE);
+                ensure(8);
+                _buf.putDouble((Double)value);
+            } else if (clazz == Float.class) {
+                writeByte(TAG_FLOAT);
+                ensure(4);
+                _buf.putFloat((Float)value);
+            } else if (clazz == Short.class) {
+                writeByte(TAG_SHORT);
+                writeZigZagInt((Short)value);
+            } else if (clazz == Byte.class) {
+                writeByte(TAG_BYTE);
+                writeByte((Byte)value);
+            } else if (clazz == Character.class) {
+                writeByte(TAG_CHAR);
+                writeVarInt((Character)value);
+            } else if (value instanceof Enum) {
+                writeByte(TAG_ENUM);
+                writeType(((Enum<?>)value).getDeclaringClass());
+                writeString(((Enum<?>)value).name());
+            } else if (clazz == Date.class) {
+                writeByte(TAG_DATE);
+                writeZigZagLong(((Date)value).getTime());
+            } else if (clazz.isArray()) {
+                writeArray(value, clazz.getComponentType(), depth);
+            } else if (value instanceof Collection) {
+                writeCollection((Collection<?>)value, depth);
+            } else if (value instanceof Map) {
+                writeMap((Map<?, ?>)value, depth);
+            } else if (isJdkClass(clazz)) {
+                throw new CloudRuntimeException("Unable to encode " + clazz.getName());
+            } else {
+                Schema schema = getSchema(clazz);
+                if (schema._ctor == null && s_allocateInstance == null) {
+                    throw new CloudRuntimeException("Unable to encode " + clazz.getName() + " without a no-arg constructor");
+                }
+                writeByte(TAG_OBJECT);
+                writeSchema(schema);
+                writeFields(value, schema, depth);
+            }
+        }
+
+        void writeFields(Object value, Schema schema, int depth) {
+            Field[] fields = schema._fields;
+            byte[] kinds = schema._kinds;
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Field field = fields[i];
+                    switch (kinds[i]) {
+                    case KIND_BOOLEAN:
+                        writeByte(field.getBoolean(value) ? 1 : 0);
+                        break;
+                    case KIND_BYTE:
+                        writeByte(field.getByte(value));
+                        break;
+                    case KIND_SHORT:
+                        writeZigZagInt(field.getShort(value));
+                        break;
+                    case KIND_CHAR:
+                        writeVarInt(field.getChar(value));
+                        break;
+                    case KIND_INT:
+                        writeZigZagInt(field.getInt(value));
+                        break;
+                    case KIND_LONG:
+                        writeZigZagLong(field.getLong(value));
+                        break;
+                    case KIND_FLOAT:
+                        ensure(4);
+                        _buf.putFloat(field.getFloat(value));
+                        break;
+                    case KIND_DOUBLE:
+                        ensure(8);
+                        _buf.putDouble(field.getDouble(value));
+                        break;
+                    default:
+                        writeValue(field.get(value), depth + 1);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to read fields of " + schema._clazz.getName(), e);
+            }
+        }
+
+        void writeArray(Object array, Class<?> componentType, int depth) {
+            int length = Array.getLength(array);
+            if (componentType.isPrimitive()) {
+                byte kind = getKind(componentType);
+                writeByte(TAG_PRIM_ARRAY);
+                writeByte(kind);
+                writeVarInt(length);
+                switch (kind) {
+                case KIND_BYTE:
+                    ensure(length);
+                    _buf.put((byte[])array);
+                    break;
+                case KIND_BOOLEAN:
+                    boolean[] booleans = (boolean[])array;
+                    for (int i = 0; i < length; i++) {
+                        writeByte(booleans[i] ? 1 : 0);
+                    }
+                    break;
+                case KIND_SHORT:
+                    short[] shorts = (short[])array;
+                    for (int i = 0; i < length; i++) {
+                        writeZigZagInt(shorts[i]);
+                    }
+                    break;
+                case KIND_CHAR:
+                    char[] chars = (char[])array;
+                    for (int i = 0; i < length; i++) {
+                        writeVarInt(chars[i]);
+                    }
+                    break;
+                case KIND_INT:
+                    int[] ints = (int[])array;
+                    for (int i = 0; i < length; i++) {
+                        writeZigZagInt(ints[i]);
+                    }
+                    break;
+                case KIND_LONG:
+                    long[] longs = (long[])array;
+                    for (int i = 0; i < length; i++) {
+                        writeZigZagLong(longs[i]);
+                    }
+                    break;
+                case KIND_FLOAT:
+                    ensure(length * 4);
+                    for (float f : (float[])array) {
+                        _buf.putFloat(f);
+                    }
+                    break;
+                default:
+                    ensure(length * 8);
+                    for (double d : (double[])array) {
+                        _buf.putDouble(d);
+                    }
+                }
+                return;
+            }
+
+            writeByte(TAG_ARRAY);
+            writeType(componentType);
+            writeVarInt(length);
+            Object[] objects = (Object[])array;
+            for (int i = 0; i < length; i++) {
+                writeValue(objects[i], depth + 1);
+            }
+        }
+
+        void writeCollection(Collection<?> collection, int depth) {
+            byte type;
+            if (collection instanceof LinkedList) {
+                type = COLL_LINKED_LIST;
+            } else if (collection instanceof Vector) {
+                type = COLL_VECTOR;
+            } else if (collection instanceof List) {
+                type = COLL_ARRAY_LIST;
+            } else if (collection instanceof SortedSet) {
+                if (((SortedSet<?>)collection).comparator() != null) {
+                    throw new CloudRuntimeException("Unable to encode a sorted set with a comparator");
+                }
+                type = COLL_TREE_SET;
+            } else if (collection.getClass() == HashSet.class) {
+                type = COLL_HASH_SET;
+            } else if (collection instanceof Set) {
+                type = COLL_LINKED_HASH_SET;
+            } else {
+                type = COLL_ARRAY_LIST;
+            }
+            writeByte(TAG_COLLECTION);
+            writeByte(type);
+            writeVarInt(collection.size());
+            for (Object element : collection) {
+                writeValue(element, depth + 1);
+            }
+        }
+
+        void writeMap(Map<?, ?> map, int depth) {
+            byte type;
+            if (map instanceof SortedMap) {
+                if (((SortedMap<?, ?>)map).comparator() != null) {
+                    throw new CloudRuntimeException("Unable to encode a sorted map with a comparator");
+                }
+                type = MAP_TREE_MAP;
+            } else if (map instanceof ConcurrentHashMap) {
+                type = MAP_CONCURRENT_HASH_MAP;
+            } else if (map instanceof Hashtable) {
+                type = MAP_HASHTABLE;
+            } else if (map.getClass() == HashMap.class) {
+                type = MAP_HASH_MAP;
+            } else {
+                type = MAP_LINKED_HASH_MAP;
+            }
+            writeByte(TAG_MAP);
+            writeByte(type);
+            writeVarInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey(), depth + 1);
+                writeValue(entry.getValue(), depth + 1);
+            }
+        }
+    }
+
+    protected static class Reader {
+        final ByteBuffer _buf;
+        final List<Class<?>> _types = new ArrayList<Class<?>>();
+        final List<RemoteSchema> _schemas = new ArrayList<RemoteSchema>();
+
+        Reader(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 28) {
+                    throw new CloudRuntimeException("Malformed varint");
+                }
+                b = _buf.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 63) {
+                    throw new CloudRuntimeException("Malformed varlong");
+                }
+                b = _buf.get();
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        int readZigZagInt() {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readZigZagLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            int len = readVarInt();
+            if (len > _buf.remaining()) {
+                throw new CloudRuntimeException("Malformed string of length " + len);
+            }
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                int b = _buf.get() & 0xFF;
+                if (b < 0x80) {
+                    chars[i] = (char)b;
+                } else if ((b & 0xE0) == 0xC0) {
+                    chars[i] = (char)(((b & 0x1F) << 6) | (_buf.get() & 0x3F));
+                } else {
+                    int b2 = _buf.get() & 0x3F;
+                    chars[i] = (char)(((b & 0x0F) << 12) | (b2 << 6) | (_buf.get() & 0x3F));
+                }
+            }
+            return new String(chars);
+        }
+
+        Class<?> loadClass(String name) {
+            try {
+                return Class.forName(name, false, BinaryCodec.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new CloudRuntimeException("can't find " + name);
+            }
+        }
+
+        Class<?> readType() {
+            int index = readVarInt();
+            if (index > 0) {
+                return _types.get(index - 1);
+            }
+            Class<?> clazz = loadClass(readString());
+            _types.add(clazz);
+            return clazz;
+        }
+
+        RemoteSchema readSchema() {
+            int index = readVarInt();
+            if (index > 0) {
+                return _schemas.get(index - 1);
+            }
+            Class<?> clazz = loadClass(readString());
+            if (isJdkClass(clazz) || clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) {
+                throw new CloudRuntimeException("Refusing to decode " + clazz.getName());
+            }
+            Schema local = getSchema(clazz);
+            int count = readVarInt();
+            Field[] fields = new Field[count];
+            byte[] kinds = new byte[count];
+            for (int i = 0; i < count; i++) {
+                String name = readString();
+                kinds[i] = _buf.get();
+                Integer localIndex = local._index.get(name);
+                if (localIndex != null && local._kinds[localIndex] == kinds[i]) {
+                    fields[i] = local._fields[localIndex];
+                }
+            }
+            RemoteSchema schema = new RemoteSchema(local, fields, kinds);
+            _schemas.add(schema);
+            return schema;
+        }
+
+        /**
+         * @param expected declared type of the field being read, null if unknown.
+         */
+        Object readValue(Class<?> expected, int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new CloudRuntimeException("Object graph is too deep");
+            }
+            byte tag = _buf.get();
+            switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BYTE:
+                return _buf.get();
+            case TAG_SHORT:
+                return (short)readZigZagInt();
+            case TAG_CHAR:
+                return (char)readVarInt();
+            case TAG_INT:
+                return readZigZagInt();
+            case TAG_LONG:
+                return readZigZagLong();
+            case TAG_FLOAT:
+                return _buf.getFloat();
+            case TAG_DOUBLE:
+                return _buf.getDouble();
+            case TAG_STRING:
+                return readString();
+            case TAG_ENUM:
+                return readEnum();
+            case TAG_DATE:
+                return new Date(readZigZagLong());
+            case TAG_OBJECT:
+                return readObject(readSchema(), depth);
+            case TAG_ARRAY:
+                return readArray(depth);
+            case TAG_PRIM_ARRAY:
+                return readPrimitiveArray();
+            case TAG_COLLECTION:
+                return readCollection(expected, depth);
+            case TAG_MAP:
+                return readMap(expected, depth);
+            default:
+                throw new CloudRuntimeException("Unknown tag " + tag);
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object readEnum() {
+            Class<?> clazz = readType();
+            String name = readString();
+            if (!clazz.isEnum()) {
+                throw new CloudRuntimeException(clazz.getName() + " is not an enum");
+            }
+            return Enum.valueOf((Class<? extends Enum>)clazz, name);
+        }
+
+        Object readObject(RemoteSchema schema, int depth) {
+            Object obj = schema._local.newInstance();
+            Field[] fields = schema._fields;
+            byte[] kinds = schema._kinds;
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Field field = fields[i];
+                    switch (kinds[i]) {
+                    case KIND_BOOLEAN:
+                        boolean z = _buf.get() != 0;
+                        if (field != null) {
+                            field.setBoolean(obj, z);
+                        }
+                        break;
+                    case KIND_BYTE:
+                        byte b = _buf.get();
+                        if (field != null) {
+                            field.setByte(obj, b);
+                        }
+                        break;
+                    case KIND_SHORT:
+                        short s = (short)readZigZagInt();
+                        if (field != null) {
+                            field.setShort(obj, s);
+                        }
+                        break;
+                    case KIND_CHAR:
+                        char c = (char)readVarInt();
+                        if (field != null) {
+                            field.setChar(obj, c);
+                        }
+                        break;
+                    case KIND_INT:
+                        int n = readZigZagInt();
+                        if (field != null) {
+                            field.setInt(obj, n);
+                        }
+                        break;
+                    case KIND_LONG:
+                        long l = readZigZagLong();
+                        if (field != null) {
+                            field.setLong(obj, l);
+                        }
+                        break;
+                    case KIND_FLOAT:
+                        float f = _buf.getFloat();
+                        if (field != null) {
+                            field.setFloat(obj, f);
+                        }
+                        break;
+                    case KIND_DOUBLE:
+                        double d = _buf.getDouble();
+                        if (field != null) {
+                            field.setDouble(obj, d);
+                        }
+                        break;
+                    case KIND_REF:
+                        Object value = readValue(field != null ? field.getType() : null, depth + 1);
+                        // Like Gson, a null leaves whatever the constructor has put there.
+                        if (field != null && value != null) {
+                            field.set(obj, value);
+                        }
+                        break;
+                    default:
+                        throw new CloudRuntimeException("Unknown field kind " + kinds[i]);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to set fields of " + schema._local._clazz.getName(), e);
+            }
+            return obj;
+        }
+
+        Object readArray(int depth) {
+            Class<?> componentType = readType();
+            int length = readVarInt();
+            if (length > _buf.remaining()) {
+                throw new CloudRuntimeException("Malformed array of length " + length);
+            }
+            Object[] array = (Object[])Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) {
+                array[i] = readValue(componentType, depth + 1);
+            }
+            return array;
+        }
+
+        Object readPrimitiveArray() {
+            byte kind = _buf.get();
+            int length = readVarInt();
+            if (length > _buf.remaining()) {
+                throw new CloudRuntimeException("Malformed array of length " + length);
+            }
+            switch (kind) {
+            case KIND_BYTE:
+                byte[] bytes = new byte[length];
+                _buf.get(bytes);
+                return bytes;
+            case KIND_BOOLEAN:
+                boolean[] booleans = new boolean[length];
+                for (int i = 0; i < length; i++) {
+                    booleans[i] = _buf.get() != 0;
+                }
+                return booleans;
+            case KIND_SHORT:
+                short[] shorts = new short[length];
+                for (int i = 0; i < length; i++) {
+                    shorts[i] = (short)readZigZagInt();
+                }
+                return shorts;
+            case KIND_CHAR:
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = (char)readVarInt();
+                }
+                return chars;
+            case KIND_INT:
+                int[] ints = new int[length];
+                for (int i = 0; i < length; i++) {
+                    ints[i] = readZigZagInt();
+                }
+                return ints;
+            case KIND_LONG:
+                long[] longs = new long[length];
+                for (int i = 0; i < length; i++) {
+                    longs[i] = readZigZagLong();
+                }
+                return longs;
+            case KIND_FLOAT:
+                float[] floats = new float[length];
+                for (int i = 0; i < length; i++) {
+                    floats[i] = _buf.getFloat();
+                }
+                return floats;
+            case KIND_DOUBLE:
+                double[] doubles = new double[length];
+                for (int i = 0; i < length; i++) {
+                    doubles[i] = _buf.getDouble();
+                }
+                return doubles;
+            default:
+                throw new CloudRuntimeException("Unknown array kind " + kind);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Collection<Object> newCollection(Class<?> expected, byte type) {
+            if (expected != null && Collection.class.isAssignableFrom(expected) && !expected.isInterface() && !Modifier.isAbstract(expected.getModifiers())) {
+                try {
+                    return (Collection<Object>)expected.newInstance();
+                } catch (Exception e) {
+                    // fall through to the type that was written
+                }
+            }
+            switch (type) {
+            case COLL_LINKED_LIST:
+                return new LinkedList<Object>();
+            case COLL_HASH_SET:
+                return new HashSet<Object>();
+            case COLL_LINKED_HASH_SET:
+                return new LinkedHashSet<Object>();
+            case COLL_TREE_SET:
+                return new TreeSet<Object>();
+            case COLL_VECTOR:
+                return new Vector<Object>();
+            default:
+                return new ArrayList<Object>();
+            }
+        }
+
+        Object readCollection(Class<?> expected, int depth) {
+            byte type = _buf.get();
+            int size = readVarInt();
+            if (size > _buf.remaining()) {
+                throw new CloudRuntimeException("Malformed collection of size " + size);
+            }
+            Collection<Object> collection = newCollection(expected, type);
+            for (int i = 0; i < size; i++) {
+                collection.add(readValue(null, depth + 1));
+            }
+            return collection;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> newMap(Class<?> expected, byte type) {
+            if (expected != null && Map.class.isAssignableFrom(expected) && !expected.isInterface() && !Modifier.isAbstract(expected.getModifiers())) {
+                try {
+                    return (Map<Object, Object>)expected.newInstance();
+                } catch (Exception e) {
+                    // fall through to the type that was written
+                }
+            }
+            switch (type) {
+            case MAP_LINKED_HASH_MAP:
+                return new LinkedHashMap<Object, Object>();
+            case MAP_TREE_MAP:
+                return new TreeMap<Object, Object>();
+            case MAP_HASHTABLE:
+                return new Hashtable<Object, Object>();
+            case MAP_CONCURRENT_HASH_MAP:
+                return new ConcurrentHashMap<Object, Object>();
+            default:
+                return new HashMap<Object, Object>();
+            }
+        }
+
+        Object readMap(Class<?> expected, int depth) {
+            byte type = _buf.get();
+            int size = readVarInt();
+            if (size > _buf.remaining()) {
+                throw new CloudRuntimeException("Malformed map of size " + size);
+            }
+            Map<Object, Object> map = newMap(expected, type);
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(null, depth + 1);
+                map.put(key, readValue(null, depth + 1));
+            }
+            return map;
+        }
+    }
+}
@@ -66,6 +66,10 @@ import com.google.gson.stream.JsonReader;
  * 6. AgentId - 8 bytes;
  * 7. Data Package.
  * 
+ * Versions v1 and v3 marshall the data package with Gson.  Version v4
+ * marshalls it with BinaryCodec; it is only used once both ends have
+ * agreed on it at StartupCommand time and falls back to Gson for any
+ * request that BinaryCodec can not encode.
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -77,7 +81,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Using BinaryCodec to marshall, negotiated through StartupCommand.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -89,6 +94,11 @@ public class Request {
         }
     };
 
+    /**
+     * The highest version this side of the wire can speak.
+     */
+    public static final Version CURRENT_VERSION = Version.v4;
+
     protected static final short       FLAG_RESPONSE        = 0x0;
     protected static final short       FLAG_REQUEST         = 0x1;
     protected static final short       FLAG_STOP_ON_ERROR   = 0x2;
@@ -107,6 +117,7 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected ByteBuffer _binary;
     
     protected Request() {
     }
@@ -131,6 +142,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final ByteBuffer binary) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binary = binary;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] { command }, true, fromServer);
     }
@@ -201,6 +217,27 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Sets the wire version this request is marshalled with.  Only the
+     * commands travel, so a request that has already been marshalled keeps
+     * the format it was received in.
+     */
+    public void setVersion(Version ver) {
+        if (_content == null && _binary == null) {
+            _ver = ver;
+        }
+    }
+
+    /**
+     * Picks the wire version to talk to a peer that advertised the given one.
+     */
+    public static Version negotiateVersion(int peerVersion) {
+        if (peerVersion >= Version.v4.ordinal() && CURRENT_VERSION.ordinal() >= Version.v4.ordinal()) {
+            return Version.v4;
+        }
+        return Version.v1;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -227,6 +264,9 @@ public class Request {
     }
 
     public Command[] getCommands() {
+        if (_cmds == null && _binary != null) {
+            _cmds = decodeBinary();
+        }
         if (_cmds == null) {
             try {
                 StringReader reader = new StringReader(_content);
@@ -245,6 +285,45 @@ public class Request {
         return "Cmd ";
     }
 
+    protected Command[] decodeBinary() {
+        try {
+            return (Command[])BinaryCodec.decode(_binary.duplicate());
+        } catch (RuntimeException e) {
+            s_logger.error("Caught problem decoding " + _binary.remaining() + " bytes of " + getType() + "in " + _ver, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Deserializes the content into commands or answers, whichever format it came in.
+     */
+    protected Command[] deserialize(Class<? extends Command[]> clazz) {
+        if (_binary != null) {
+            return decodeBinary();
+        }
+        return s_gson.fromJson(_content, clazz);
+    }
+
+    protected ByteBuffer serializeContent() {
+        if (_binary != null) {
+            return _binary.duplicate();
+        }
+        if (_content == null && _ver == Version.v4) {
+            try {
+                return BinaryCodec.encode(_cmds);
+            } catch (RuntimeException e) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Falling back to gson for Seq " + _agentId + "-" + _seq + ": " + e.getMessage());
+                }
+                _ver = Version.v1;
+            }
+        }
+        if (_content == null) {
+            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        }
+        return ByteBuffer.wrap(_content.getBytes());
+    }
+
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
@@ -291,15 +370,19 @@ public class Request {
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
         byte[] array;
+        int offset;
+        int len = buffer.remaining();
         if (buffer.hasArray()) {
             array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
         } else {
-            array = new byte[buffer.capacity()];
+            array = new byte[len];
             buffer.get(array);
+            offset = 0;
         }
         try {
             GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
+            out.write(array, offset, len);
             out.finish();
             out.close();
         } catch (IOException e) {
@@ -310,13 +393,8 @@ public class Request {
     
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
-        ByteBuffer tmp;
-        
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
-        }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
+        ByteBuffer tmp = serializeContent();
+        int capacity = tmp.remaining();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
             tmp = doCompress(tmp, capacity);
@@ -383,9 +461,13 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = deserialize(this instanceof Response ? Answer[].class : Command[].class);
                 } catch (RuntimeException e) {
-                    s_logger.error("Unable to convert to json: " + _content);
+                    if (_binary != null) {
+                        s_logger.error("Unable to decode " + _binary.remaining() + " bytes of " + getType() + "in " + _ver);
+                    } else {
+                        s_logger.error("Unable to convert to json: " + _content);
+                    }
                     throw e;
                 }
             }
@@ -405,7 +487,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = deserialize(this instanceof Response ? Answer[].class : Command[].class);
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -444,7 +526,7 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
         final byte reserved = buff.get(); // tossed away for now.
@@ -458,7 +540,7 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
@@ -467,6 +549,15 @@ public class Request {
         if ((flags & FLAG_COMPRESSED) != 0) {
             buff = doDecompress(buff, size);
         }
+
+        if (version.ordinal() == Version.v4.ordinal()) {
+            ByteBuffer binary = buff.slice();
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, binary);
+            } else {
+                return new Response(version, seq, agentId, mgmtId, via, flags, binary);
+            }
+        }
         
         byte[] command = null;
         int offset = 0;
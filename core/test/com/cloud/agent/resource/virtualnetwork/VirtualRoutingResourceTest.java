@@ -0,0 +1,44 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import junit.framework.TestCase;
+
+public class VirtualRoutingResourceTest extends TestCase {
+
+    public void testParseBatchResultsAllApplied() {
+        String[] results = VirtualRoutingResource.parseBatchResults("1 0\n2 0\n3 0\n", 3);
+        assertEquals(3, results.length);
+        for (String result : results) {
+            assertNull(result);
+        }
+    }
+
+    public void testParseBatchResultsRollback() {
+        String[] results = VirtualRoutingResource.parseBatchResults("1 0\n2 1\nrollback\n", 4);
+        assertEquals("Rolled back", results[0]);
+        assertEquals("Failed, exit code 1", results[1]);
+        assertEquals("Not applied", results[2]);
+        assertEquals("Not applied", results[3]);
+    }
+
+    public void testParseBatchResultsMissingOutput() {
+        String[] results = VirtualRoutingResource.parseBatchResults(null, 2);
+        assertNotNull(results[0]);
+        assertNotNull(results[1]);
+    }
+}
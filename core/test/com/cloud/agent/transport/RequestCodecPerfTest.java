@@ -0,0 +1,111 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.ClusterSyncAnswer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.host.Host;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Compares the Gson and binary wire codecs on the commands that dominate
+ * agent traffic.  It is left out of the regular build, run it with
+ * -Dtest=RequestCodecPerfTest and raise -Dcodec.perf.iterations to get
+ * stable numbers.  RequestTest checks these commands survive both codecs.
+ */
+public class RequestCodecPerfTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(RequestCodecPerfTest.class);
+
+    private static final int VMS = 200;
+    private static final int ITERATIONS = Integer.getInteger("codec.perf.iterations", 50);
+
+    public void testPingRoutingCommand() throws Exception {
+        HashMap<String, State> states = new HashMap<String, State>();
+        for (int i = 0; i < VMS; i++) {
+            states.put("i-2-" + i + "-VM", i % 10 == 0 ? State.Stopped : State.Running);
+        }
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 10, states);
+        compare("PingRoutingCommand", new Request(10, 1, new Command[] { ping }, false, false), false);
+    }
+
+    public void testClusterSyncAnswer() throws Exception {
+        HashMap<String, Pair<String, State>> states = new HashMap<String, Pair<String, State>>();
+        for (int i = 0; i < VMS; i++) {
+            states.put("i-2-" + i + "-VM", new Pair<String, State>("host-" + (i % 16), State.Running));
+        }
+        ClusterSyncAnswer answer = new ClusterSyncAnswer(3, states);
+        compare("ClusterSyncAnswer", new Response(new Request(10, 1, new Command[] { new PingRoutingCommand(Host.Type.Routing, 10, new HashMap<String, State>()) }, false, true), answer), true);
+    }
+
+    public void testGetVmStatsAnswer() throws Exception {
+        List<String> vmNames = new ArrayList<String>();
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < VMS; i++) {
+            vmNames.add("i-2-" + i + "-VM");
+            stats.put("i-2-" + i + "-VM", new VmStatsEntry(i * 0.37, i * 12.5, i * 3.25, i * 101.0, i * 77.0, 1 + i % 8, "vm"));
+        }
+        GetVmStatsCommand cmd = new GetVmStatsCommand(vmNames, "hostguid", "hostname");
+        GetVmStatsAnswer answer = new GetVmStatsAnswer(cmd, stats);
+        compare("GetVmStatsAnswer", new Response(new Request(10, 1, new Command[] { cmd }, false, true), answer), true);
+    }
+
+    protected void compare(String name, Request req, boolean isResponse) throws Exception {
+        Command[] cmds = isResponse ? ((Response)req).getAnswers() : req.getCommands();
+        long gson = run(req, cmds, Request.Version.v1, isResponse);
+        long binary = run(req, cmds, Request.Version.v4, isResponse);
+        s_logger.info(name + ": gson " + gson / ITERATIONS + " ns/op, binary " + binary / ITERATIONS + " ns/op, gson size " + size(req, cmds, Request.Version.v1, isResponse) +
+                " bytes, binary size " + size(req, cmds, Request.Version.v4, isResponse) + " bytes");
+    }
+
+    protected Request copy(Request req, Command[] cmds, Request.Version ver, boolean isResponse) {
+        Request copy = isResponse ? new Response(req, (Answer[])cmds) : new Request(req.getAgentId(), req.getManagementServerId(), cmds, false, req.isFromServer());
+        copy._ver = ver;
+        return copy;
+    }
+
+    protected int size(Request req, Command[] cmds, Request.Version ver, boolean isResponse) {
+        return copy(req, cmds, ver, isResponse).getBytes().length;
+    }
+
+    protected long run(Request req, Command[] cmds, Request.Version ver, boolean isResponse) throws Exception {
+        // Warm up before measuring.
+        for (int i = 0; i < ITERATIONS; i++) {
+            Request.parse(copy(req, cmds, ver, isResponse).getBytes()).getCommands();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Request parsed = Request.parse(copy(req, cmds, ver, isResponse).getBytes());
+            assertEquals(ver, parsed.getVersion());
+            assertEquals(cmds.length, parsed.getCommands().length);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -17,6 +17,9 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import junit.framework.TestCase;
 
@@ -29,14 +32,20 @@ import org.apache.cloudstack.storage.command.DownloadCommand;
 import org.apache.cloudstack.storage.to.TemplateObjectTO;
 
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.ClusterSyncAnswer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
+import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.ListTemplateCommand;
 import com.cloud.agent.api.to.NfsTO;
 import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.host.Host;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.storage.DataStoreRole;
@@ -44,6 +53,8 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
 
 /**
  *
@@ -164,6 +175,102 @@ public class RequestTest extends TestCase {
         assertEquals("nfs://192.168.56.10/opt/storage/secondary", ((NfsTO)((ListTemplateCommand)creq.getCommand()).getDataStore()).getUrl());
     }
 
+    public void testSerDeserBinary() {
+        s_logger.info("Testing serializing and deserializing with the binary codec");
+
+        SecStorageFirewallCfgCommand cmd1 = new SecStorageFirewallCfgCommand();
+        cmd1.addPortConfig("abc", "24", true, "eth0");
+        cmd1.addPortConfig("127.0.0.1", "44", false, "eth1");
+        GetHostStatsCommand cmd2 = new GetHostStatsCommand("hostguid", "hostname", 101);
+        ListTemplateCommand cmd3 = new ListTemplateCommand(new NfsTO("nfs://192.168.56.10/opt/storage/secondary", DataStoreRole.Image));
+        Request sreq = new Request(2, 3, new Command[] { cmd1, cmd2, cmd3 }, true, true);
+        sreq.setSequence(892403719);
+        sreq.setVersion(Request.Version.v4);
+
+        byte[] bytes = sreq.getBytes();
+        assertEquals(Request.Version.v4.ordinal(), bytes[0]);
+        assert Request.getSequence(bytes) == 892403719;
+        assert Request.getAgentId(bytes) == 2;
+        assert Request.getViaAgentId(bytes) == 2;
+
+        Request creq = null;
+        try {
+            creq = Request.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assert creq != null : "Couldn't get the request back";
+        compareRequest(creq, sreq);
+        for (int i = 0; i < sreq.getCommands().length; i++) {
+            assertEquals(GsonHelper.getGson().toJson(sreq.getCommands()[i]), GsonHelper.getGson().toJson(creq.getCommands()[i]));
+        }
+        assertEquals("nfs://192.168.56.10/opt/storage/secondary", ((NfsTO)((ListTemplateCommand)creq.getCommands()[2]).getDataStore()).getUrl());
+
+        Response cresp = new Response(creq, new Answer(cmd2, true, "No Problem"));
+        bytes = cresp.getBytes();
+        assertEquals(Request.Version.v4.ordinal(), bytes[0]);
+
+        Response sresp = null;
+        try {
+            sresp = Response.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assert sresp != null : "Couldn't get the response back";
+        compareRequest(cresp, sresp);
+        assertEquals("No Problem", sresp.getAnswer().getDetails());
+    }
+
+    public void testBinaryForwarding() {
+        s_logger.info("Testing a parsed binary request can be sent on as is");
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setVersion(Request.Version.v4);
+        byte[] bytes = sreq.getBytes();
+
+        try {
+            Request creq = Request.parse(bytes);
+            creq.setVersion(Request.Version.v1);
+            assertEquals(Request.Version.v4, creq.getVersion());
+            Assert.assertArrayEquals(bytes, creq.getBytes());
+        } catch (Exception e) {
+            Assert.fail("Unable to parse bytes: " + e.getMessage());
+        }
+    }
+
+    public void testAgentTrafficRoundTrip() throws Exception {
+        s_logger.info("Testing the commands that dominate agent traffic survive both codecs");
+        HashMap<String, State> states = new HashMap<String, State>();
+        HashMap<String, Pair<String, State>> syncStates = new HashMap<String, Pair<String, State>>();
+        List<String> vmNames = new ArrayList<String>();
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < 20; i++) {
+            String vmName = "i-2-" + i + "-VM";
+            states.put(vmName, i % 10 == 0 ? State.Stopped : State.Running);
+            syncStates.put(vmName, new Pair<String, State>("host-" + (i % 4), State.Running));
+            vmNames.add(vmName);
+            stats.put(vmName, new VmStatsEntry(i * 0.37, i * 12.5, i * 3.25, i * 101.0, i * 77.0, 1 + i % 8, "vm"));
+        }
+        GetVmStatsCommand statsCmd = new GetVmStatsCommand(vmNames, "hostguid", "hostname");
+
+        for (Request.Version ver : new Request.Version[] { Request.Version.v1, Request.Version.v4 }) {
+            Request ping = new Request(10, 1, new Command[] { new PingRoutingCommand(Host.Type.Routing, 10, states) }, false, false);
+            ping.setVersion(ver);
+            assertRoundTrip(ping);
+
+            Request statsReq = new Request(10, 1, new Command[] { statsCmd }, false, true);
+            statsReq.setVersion(ver);
+            assertRoundTrip(new Response(statsReq, new GetVmStatsAnswer(statsCmd, stats)));
+            assertRoundTrip(new Response(statsReq, new ClusterSyncAnswer(3, syncStates)));
+        }
+    }
+
     public void testDownload() {
         s_logger.info("Testing Download answer");
         VirtualMachineTemplate template = Mockito.mock(VirtualMachineTemplate.class);
@@ -233,6 +340,19 @@ public class RequestTest extends TestCase {
         logger.setLevel(level);
     }
 
+    protected void assertRoundTrip(Request req) throws Exception {
+        Request parsed = Request.parse(req.getBytes());
+        assertEquals(req.getVersion(), parsed.getVersion());
+        assertEquals(req instanceof Response, parsed instanceof Response);
+        compareRequest(req, parsed);
+        Command[] sent = req.getCommands();
+        Command[] received = parsed.getCommands();
+        assertEquals(sent.length, received.length);
+        for (int i = 0; i < sent.length; i++) {
+            assertEquals(GsonHelper.getGson().toJson(sent[i]), GsonHelper.getGson().toJson(received[i]));
+        }
+    }
+
     protected void compareRequest(Request req1, Request req2) {
         assert req1.getSequence() == req2.getSequence();
         assert req1.getAgentId() == req2.getAgentId();
@@ -19,6 +19,7 @@ package com.cloud.domain.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -41,6 +42,15 @@ import com.cloud.utils.db.Transaction;
 @Local(value={DomainDao.class})
 public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements DomainDao {
     private static final Logger s_logger = Logger.getLogger(DomainDaoImpl.class);
+
+    // How often (in seconds) the domain tree is checked against the domain table to pick up changes
+    // made by other management servers.  A negative value turns the in-memory tree off.
+    private static final int TREE_CHECK_INTERVAL = Integer.getInteger("domain.tree.check.interval", 5);
+    private static final String TREE_SQL = "SELECT id, parent, path FROM domain WHERE removed IS NULL";
+    private static final String TREE_FINGERPRINT_SQL = "SELECT COUNT(*), COALESCE(SUM(CRC32(CONCAT(id, ':', IFNULL(parent, ''), ':', path))), 0) FROM domain WHERE removed IS NULL";
+
+    private volatile DomainTree _tree;
+    private volatile long _treeChecked;
     
 	protected SearchBuilder<DomainVO> DomainNameLikeSearch;
 	protected SearchBuilder<DomainVO> ParentDomainNameLikeSearch;
@@ -136,6 +146,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             update(parentDomain.getId(), parentDomain);
             
     		txn.commit();
+    		refreshTree(domain.getId());
     		return domain;
     	} catch(Exception e) {
     		s_logger.error("Unable to create domain due to " + e.getMessage(), e);
@@ -192,6 +203,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         	update(parentDomain.getId(), parentDomain);
             success = super.remove(id);
             txn.commit();
+            refreshTree(id);
         } catch (SQLException ex) {
             success = false;
             s_logger.error("error removing domain: " + id, ex);
@@ -221,10 +233,14 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
     	return listBy(sc);
     }
 
+    /* Sub-domains are always listed from the domain table, the tree would
+     * miss the ones another management server created since its last check.
+     * Both lists match on the path prefix, the way the tree and
+     * isChildDomain() do. */
     @Override
     public List<DomainVO> findAllChildren(String path, Long parentId){
     	SearchCriteria<DomainVO> sc = FindAllChildrenSearch.create();
-    	sc.setParameters("path", "%"+path+"%");
+    	sc.setParameters("path", path+"%");
     	sc.setParameters("id", parentId);
     	return listBy(sc);
     }
@@ -246,6 +262,14 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             return true;
         }
 
+        /* A domain missing from the snapshot may have just been created by
+         * another management server, so only trust the tree when it knows
+         * both of them. */
+        DomainTree tree = getTree();
+        if (tree != null && tree.get(parentId) != null && tree.get(childId) != null) {
+            return tree.isChild(parentId, childId);
+        }
+
         boolean result = false;
         SearchCriteria<DomainVO> sc = DomainPairSearch.create();
         sc.setParameters("id", parentId, childId);
@@ -274,6 +298,13 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
     
     @Override
     public Set<Long> getDomainParentIds(long domainId) {
+        /* As in isChildDomain(), the domain or one of its parents may have
+         * been created by another management server since the last check. */
+        DomainTree tree = getTree();
+        if (tree != null && tree.hasAncestry(domainId)) {
+            return tree.getAncestorIds(domainId);
+        }
+
         Set<Long> parentDomains = new HashSet<Long>();
         Domain domain = findById(domainId);
 
@@ -289,4 +320,104 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         return parentDomains;
     }
 
+    @Override
+    public boolean update(Long id, DomainVO entity) {
+        boolean updated = super.update(id, entity);
+        refreshTree(id);
+        return updated;
+    }
+
+    @Override
+    public boolean expunge(Long id) {
+        boolean expunged = super.expunge(id);
+        refreshTree(id);
+        return expunged;
+    }
+
+    /**
+     * Returns the in-memory domain tree, loading it on first use and
+     * reloading it when the domain table no longer matches it, which is how
+     * changes made by other management servers are picked up.
+     * 
+     * @return the tree or null if it is turned off or couldn't be loaded.
+     */
+    protected DomainTree getTree() {
+        if (TREE_CHECK_INTERVAL < 0) {
+            return null;
+        }
+
+        DomainTree tree = _tree;
+        if (tree != null && System.currentTimeMillis() - _treeChecked < TREE_CHECK_INTERVAL * 1000L) {
+            return tree;
+        }
+
+        synchronized (this) {
+            tree = _tree;
+            if (tree != null && System.currentTimeMillis() - _treeChecked < TREE_CHECK_INTERVAL * 1000L) {
+                return tree;
+            }
+
+            try {
+                if (tree == null || !matchesTable(tree)) {
+                    tree = loadTree();
+                    _tree = tree;
+                }
+                _treeChecked = System.currentTimeMillis();
+                return tree;
+            } catch (SQLException e) {
+                s_logger.warn("Unable to load the domain tree, using the domain table directly", e);
+                _tree = null;
+                return null;
+            }
+        }
+    }
+
+    protected boolean matchesTable(DomainTree tree) throws SQLException {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = txn.prepareAutoCloseStatement(TREE_FINGERPRINT_SQL);
+        ResultSet rs = pstmt.executeQuery();
+        if (!rs.next()) {
+            return false;
+        }
+        boolean matches = rs.getInt(1) == tree.size() && rs.getLong(2) == tree.getFingerprint();
+        if (!matches && s_logger.isDebugEnabled()) {
+            s_logger.debug("Domain table has changed, reloading the domain tree");
+        }
+        return matches;
+    }
+
+    protected DomainTree loadTree() throws SQLException {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = txn.prepareAutoCloseStatement(TREE_SQL);
+        ResultSet rs = pstmt.executeQuery();
+        List<DomainTree.Node> nodes = new ArrayList<DomainTree.Node>();
+        while (rs.next()) {
+            long parent = rs.getLong(2);
+            nodes.add(new DomainTree.Node(rs.getLong(1), rs.wasNull() ? null : parent, rs.getString(3)));
+        }
+        return new DomainTree(nodes);
+    }
+
+    /**
+     * Brings a single domain in the tree up to date after it was created,
+     * changed or removed through this dao.
+     */
+    protected void refreshTree(Long id) {
+        if (id == null || _tree == null) {
+            return;
+        }
+
+        DomainVO domain = findById(id);
+        synchronized (this) {
+            DomainTree tree = _tree;
+            if (tree == null) {
+                return;
+            }
+            if (domain == null) {
+                _tree = tree.without(id);
+            } else {
+                _tree = tree.with(new DomainTree.Node(domain.getId(), domain.getParent(), domain.getPath()));
+            }
+        }
+    }
 }
@@ -0,0 +1,201 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Immutable snapshot of the domains that have not been removed, used to
+ * answer ancestry questions and list sub-domains without going to the
+ * database.  Changing a domain produces a new snapshot; readers never see
+ * a half updated tree.
+ */
+public class DomainTree {
+    public static class Node {
+        final long id;
+        final Long parent;
+        final String path;
+
+        public Node(long id, Long parent, String path) {
+            this.id = id;
+            this.parent = parent;
+            this.path = path;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Long getParent() {
+            return parent;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Same value as CRC32(CONCAT(id, ':', IFNULL(parent, ''), ':', path))
+         * in MySQL, so the snapshot can be checked against the domain table.
+         */
+        long fingerprint() {
+            CRC32 crc = new CRC32();
+            try {
+                crc.update((id + ":" + (parent != null ? parent.toString() : "") + ":" + path).getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new CloudRuntimeException("UTF-8 is not supported", e);
+            }
+            return crc.getValue();
+        }
+    }
+
+    private final Map<Long, Node> _nodes;
+    private final Map<String, Node> _byPath;
+    private final Map<Long, List<Long>> _children;
+    private final long _fingerprint;
+
+    public DomainTree(Collection<Node> nodes) {
+        _nodes = new HashMap<Long, Node>(nodes.size() * 2);
+        _byPath = new HashMap<String, Node>(nodes.size() * 2);
+        _children = new HashMap<Long, List<Long>>();
+
+        long fingerprint = 0;
+        for (Node node : nodes) {
+            _nodes.put(node.id, node);
+            _byPath.put(node.path, node);
+            fingerprint += node.fingerprint();
+        }
+        _fingerprint = fingerprint;
+
+        for (Node node : nodes) {
+            if (node.parent != null) {
+                List<Long> children = _children.get(node.parent);
+                if (children == null) {
+                    children = new ArrayList<Long>();
+                    _children.put(node.parent, children);
+                }
+                children.add(node.id);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of this tree with the domain added or replaced.
+     */
+    public DomainTree with(Node node) {
+        Map<Long, Node> nodes = new HashMap<Long, Node>(_nodes);
+        nodes.put(node.id, node);
+        return new DomainTree(nodes.values());
+    }
+
+    /**
+     * @return a copy of this tree without the domain.
+     */
+    public DomainTree without(long id) {
+        if (!_nodes.containsKey(id)) {
+            return this;
+        }
+        Map<Long, Node> nodes = new HashMap<Long, Node>(_nodes);
+        nodes.remove(id);
+        return new DomainTree(nodes.values());
+    }
+
+    public Node get(long id) {
+        return _nodes.get(id);
+    }
+
+    public Node get(String path) {
+        return _byPath.get(path);
+    }
+
+    public int size() {
+        return _nodes.size();
+    }
+
+    public long getFingerprint() {
+        return _fingerprint;
+    }
+
+    /**
+     * @return true if both domains exist and the child's path is under the
+     * parent's path.  A domain is its own child.
+     */
+    public boolean isChild(long parentId, long childId) {
+        Node parent = _nodes.get(parentId);
+        Node child = _nodes.get(childId);
+        return parent != null && child != null && child.path.startsWith(parent.path);
+    }
+
+    /**
+     * @return the id of the domain and of all the domains below it, parents
+     * before their children.
+     */
+    public List<Long> getSubtreeIds(long id) {
+        if (!_nodes.containsKey(id)) {
+            return Collections.emptyList();
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(id);
+        for (int i = 0; i < ids.size(); i++) {
+            List<Long> children = _children.get(ids.get(i));
+            if (children != null) {
+                ids.addAll(children);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return true if the domain and every domain above it, up to one
+     * without a parent, are in the tree.
+     */
+    public boolean hasAncestry(long id) {
+        Set<Long> seen = new HashSet<Long>();
+        Node node = _nodes.get(id);
+        while (node != null && seen.add(node.id)) {
+            if (node.parent == null) {
+                return true;
+            }
+            node = _nodes.get(node.parent);
+        }
+        return false;
+    }
+
+    /**
+     * @return the id of the domain and of all its ancestors up to ROOT.
+     */
+    public Set<Long> getAncestorIds(long id) {
+        Set<Long> ids = new HashSet<Long>();
+        Node node = _nodes.get(id);
+        while (node != null && ids.add(node.id)) {
+            node = node.parent != null ? _nodes.get(node.parent) : null;
+        }
+        return ids;
+    }
+}
@@ -115,7 +115,7 @@ public class NetworkVO implements Network {
     @Column(name="set_fields")
     long setFields;
 
-    @TableGenerator(name="mac_address_seq", table="op_networks", pkColumnName="id", valueColumnName="mac_address_seq", allocationSize=1)
+    @TableGenerator(name="mac_address_seq", table="op_networks", pkColumnName="id", valueColumnName="mac_address_seq", allocationSize=10)
     @Transient
     long macAddress = 1;
 
@@ -67,6 +67,7 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
     protected SearchBuilder<UserVmVO> LastHostSearch;
     protected SearchBuilder<UserVmVO> HostUpSearch;
     protected SearchBuilder<UserVmVO> HostRunningSearch;
+    protected SearchBuilder<UserVmVO> HostsRunningSearch;
     protected SearchBuilder<UserVmVO> StateChangeSearch;
     protected SearchBuilder<UserVmVO> AccountHostSearch;
 
@@ -145,6 +146,11 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         HostRunningSearch.and("host", HostRunningSearch.entity().getHostId(), SearchCriteria.Op.EQ);
         HostRunningSearch.and("state", HostRunningSearch.entity().getState(), SearchCriteria.Op.EQ);
         HostRunningSearch.done();
+
+        HostsRunningSearch = createSearchBuilder();
+        HostsRunningSearch.and("hosts", HostsRunningSearch.entity().getHostId(), SearchCriteria.Op.IN);
+        HostsRunningSearch.and("state", HostsRunningSearch.entity().getState(), SearchCriteria.Op.EQ);
+        HostsRunningSearch.done();
         
         AccountPodSearch = createSearchBuilder();
         AccountPodSearch.and("account", AccountPodSearch.entity().getAccountId(), SearchCriteria.Op.EQ);
@@ -283,6 +289,18 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         return listBy(sc);
     }
 
+    @Override
+    public List<UserVmVO> listRunningByHostIds(List<Long> hostIds) {
+        if (hostIds.isEmpty()) {
+            return new ArrayList<UserVmVO>();
+        }
+        SearchCriteria<UserVmVO> sc = HostsRunningSearch.create();
+        sc.setParameters("hosts", hostIds.toArray());
+        sc.setParameters("state", State.Running);
+
+        return listBy(sc);
+    }
+
     @Override
     public List<UserVmVO> listVirtualNetworkInstancesByAcctAndNetwork(long accountId, long networkId) {
 
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.vm.dao;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.utils.db.GenericDao;
@@ -27,6 +28,11 @@ public interface UserVmDetailsDao extends GenericDao<UserVmDetailVO, Long> {
     void persist(long vmId, Map<String, String> details);
     
     UserVmDetailVO findDetail(long vmId, String name);
+
+    /**
+     * @return vm id to the value of the detail, for the vms that have it.
+     */
+    Map<Long, String> findDetails(List<Long> vmIds, String name);
     
 	void deleteDetails(long vmId);
 }
@@ -35,6 +35,7 @@ import com.cloud.vm.UserVmDetailVO;
 public class UserVmDetailsDaoImpl extends GenericDaoBase<UserVmDetailVO, Long> implements UserVmDetailsDao {
     protected final SearchBuilder<UserVmDetailVO> VmSearch;
     protected final SearchBuilder<UserVmDetailVO> DetailSearch;
+    protected final SearchBuilder<UserVmDetailVO> VmsDetailSearch;
 
 	public UserVmDetailsDaoImpl() {
 		VmSearch = createSearchBuilder();
@@ -45,6 +46,11 @@ public class UserVmDetailsDaoImpl extends GenericDaoBase<UserVmDetailVO, Long> i
         DetailSearch.and("vmId", DetailSearch.entity().getVmId(), SearchCriteria.Op.EQ);
         DetailSearch.and("name", DetailSearch.entity().getName(), SearchCriteria.Op.EQ);
         DetailSearch.done();
+
+        VmsDetailSearch = createSearchBuilder();
+        VmsDetailSearch.and("vmIds", VmsDetailSearch.entity().getVmId(), SearchCriteria.Op.IN);
+        VmsDetailSearch.and("name", VmsDetailSearch.entity().getName(), SearchCriteria.Op.EQ);
+        VmsDetailSearch.done();
 	}
     
 	@Override
@@ -67,6 +73,23 @@ public class UserVmDetailsDaoImpl extends GenericDaoBase<UserVmDetailVO, Long> i
         return findOneBy(sc);
 	}
 
+    @Override
+    public Map<Long, String> findDetails(List<Long> vmIds, String name) {
+        Map<Long, String> details = new HashMap<Long, String>();
+        if (vmIds.isEmpty()) {
+            return details;
+        }
+
+        SearchCriteria<UserVmDetailVO> sc = VmsDetailSearch.create();
+        sc.setParameters("vmIds", vmIds.toArray());
+        sc.setParameters("name", name);
+
+        for (UserVmDetailVO result : search(sc, null)) {
+            details.put(result.getVmId(), result.getValue());
+        }
+        return details;
+    }
+
 	@Override
 	public Map<String, String> findDetails(long vmId) {
         SearchCriteria<UserVmDetailVO> sc = VmSearch.create();
@@ -87,6 +87,16 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 	List<VMInstanceVO> listUpByHostId(Long hostId);
 	List<VMInstanceVO> listByLastHostId(Long hostId);
 
+    /**
+     * Same as listUpByHostId() for a number of hosts in one go.
+     */
+    List<VMInstanceVO> listUpByHostIds(List<Long> hostIds);
+
+    /**
+     * Same as listByLastHostId() for a number of hosts in one go.
+     */
+    List<VMInstanceVO> listByLastHostIds(List<Long> hostIds);
+
     List<VMInstanceVO> listByTypeAndState(VirtualMachine.Type type, State state);
 
     List<VMInstanceVO> listByAccountId(long accountId);
@@ -77,6 +77,8 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> HostIdTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostUpSearch;
+    protected SearchBuilder<VMInstanceVO> HostsUpSearch;
+    protected SearchBuilder<VMInstanceVO> LastHostsSearch;
     protected SearchBuilder<VMInstanceVO> InstanceNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameSearch;
     protected GenericSearchBuilder<VMInstanceVO, Long> FindIdsOfVirtualRoutersByAccount;
@@ -189,6 +191,16 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         HostUpSearch.and("states", HostUpSearch.entity().getState(), Op.IN);
         HostUpSearch.done();
 
+        HostsUpSearch = createSearchBuilder();
+        HostsUpSearch.and("hosts", HostsUpSearch.entity().getHostId(), Op.IN);
+        HostsUpSearch.and("states", HostsUpSearch.entity().getState(), Op.IN);
+        HostsUpSearch.done();
+
+        LastHostsSearch = createSearchBuilder();
+        LastHostsSearch.and("lastHosts", LastHostsSearch.entity().getLastHostId(), Op.IN);
+        LastHostsSearch.and("state", LastHostsSearch.entity().getState(), Op.EQ);
+        LastHostsSearch.done();
+
         InstanceNameSearch = createSearchBuilder();
         InstanceNameSearch.and("instanceName", InstanceNameSearch.entity().getInstanceName(), Op.EQ);
         InstanceNameSearch.done();
@@ -444,6 +456,22 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
 		return listBy(sc);
 	}
 
+    @Override
+    public List<VMInstanceVO> listUpByHostIds(List<Long> hostIds) {
+        SearchCriteria<VMInstanceVO> sc = HostsUpSearch.create();
+        sc.setParameters("hosts", hostIds.toArray());
+        sc.setParameters("states", new Object[] {State.Starting, State.Running});
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMInstanceVO> listByLastHostIds(List<Long> hostIds) {
+        SearchCriteria<VMInstanceVO> sc = LastHostsSearch.create();
+        sc.setParameters("lastHosts", hostIds.toArray());
+        sc.setParameters("state", State.Stopped);
+        return listBy(sc);
+    }
+
     @Override
     public List<Long> findIdsOfAllocatedVirtualRoutersForAccount(long accountId) {
         SearchCriteria<Long> sc = FindIdsOfVirtualRoutersByAccount.create();
@@ -0,0 +1,82 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+public class DomainTreeTest extends TestCase {
+    DomainTree _tree;
+
+    @Override
+    protected void setUp() {
+        // ROOT(1) -> a(2) -> b(4)
+        //         -> ab(3)
+        _tree = new DomainTree(Arrays.asList(new DomainTree.Node(1, null, "/"), new DomainTree.Node(2, 1L, "/a/"), new DomainTree.Node(3, 1L, "/ab/"),
+                new DomainTree.Node(4, 2L, "/a/b/")));
+    }
+
+    public void testIsChild() {
+        assertTrue(_tree.isChild(1, 4));
+        assertTrue(_tree.isChild(2, 4));
+        assertTrue(_tree.isChild(2, 2));
+        assertFalse(_tree.isChild(2, 3));
+        assertFalse(_tree.isChild(4, 2));
+        assertFalse(_tree.isChild(2, 5));
+    }
+
+    public void testSubtreeAndAncestors() {
+        assertEquals(new HashSet<Long>(Arrays.asList(2L, 4L)), new HashSet<Long>(_tree.getSubtreeIds(2)));
+        assertEquals(4, _tree.getSubtreeIds(1).size());
+        assertEquals(Long.valueOf(1), _tree.getSubtreeIds(1).get(0));
+        assertTrue(_tree.getSubtreeIds(5).isEmpty());
+
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L, 4L)), _tree.getAncestorIds(4));
+        assertTrue(_tree.getAncestorIds(5).isEmpty());
+        assertEquals(4, _tree.get("/a/b/").getId());
+    }
+
+    public void testAncestryOfDomainsAddedOutOfOrder() {
+        assertTrue(_tree.hasAncestry(4));
+        assertTrue(_tree.hasAncestry(1));
+        assertFalse(_tree.hasAncestry(5));
+
+        // A domain added here under a parent the tree hasn't loaded yet.
+        DomainTree added = _tree.with(new DomainTree.Node(7, 6L, "/a/b/c/d/"));
+        assertFalse(added.hasAncestry(7));
+        assertTrue(added.with(new DomainTree.Node(6, 4L, "/a/b/c/")).hasAncestry(7));
+    }
+
+    public void testChangesProduceNewSnapshots() {
+        DomainTree renamed = _tree.with(new DomainTree.Node(4, 2L, "/a/c/"));
+        assertNull(renamed.get("/a/b/"));
+        assertEquals(4, renamed.get("/a/c/").getId());
+        assertEquals(4, _tree.get("/a/b/").getId());
+        assertFalse(renamed.getFingerprint() == _tree.getFingerprint());
+
+        DomainTree added = _tree.with(new DomainTree.Node(5, 4L, "/a/b/c/"));
+        assertTrue(added.isChild(2, 5));
+        assertEquals(3, added.getSubtreeIds(2).size());
+
+        DomainTree removed = added.without(5);
+        assertEquals(_tree.size(), removed.size());
+        assertEquals(_tree.getFingerprint(), removed.getFingerprint());
+        assertSame(removed, removed.without(5));
+    }
+}
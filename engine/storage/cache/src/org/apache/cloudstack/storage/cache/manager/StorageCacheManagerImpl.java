@@ -18,9 +18,12 @@
  */
 package org.apache.cloudstack.storage.cache.manager;
 
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.GetStorageStatsCommand;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.storage.DataStoreRole;
+import com.cloud.storage.StorageStats;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -29,6 +32,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import org.apache.cloudstack.engine.subsystem.api.storage.*;
 import org.apache.cloudstack.engine.subsystem.api.storage.ObjectInDataStoreStateMachine.Event;
 import org.apache.cloudstack.framework.async.AsyncCallFuture;
@@ -40,10 +44,12 @@ import org.apache.log4j.Logger;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class StorageCacheManagerImpl implements StorageCacheManager, Manager {
     private static final Logger s_logger = Logger.getLogger(StorageCacheManagerImpl.class);
@@ -59,10 +65,22 @@ public class StorageCacheManagerImpl implements StorageCacheManager, Manager {
     StorageCacheReplacementAlgorithm cacheReplacementAlgorithm;
     @Inject
     ConfigurationDao configDao;
+    @Inject
+    EndPointSelector endPointSelector;
     Boolean cacheReplacementEnabled = Boolean.TRUE;
     int workers;
     ScheduledExecutorService executors;
     int cacheReplaceMentInterval;
+    float highWatermark;
+    float lowWatermark;
+    int evictionBatchSize;
+
+    final AtomicLong cacheHits = new AtomicLong();
+    final AtomicLong cacheMisses = new AtomicLong();
+    final AtomicLong bytesReclaimed = new AtomicLong();
+    final AtomicLong objectsEvicted = new AtomicLong();
+    final Map<Long, Double> cacheStoreUsage = new ConcurrentHashMap<Long, Double>();
+    final Set<Long> pendingReplacements = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
     @Override
     public DataStore getCacheStorage(Scope scope) {
@@ -126,45 +144,153 @@ public class StorageCacheManagerImpl implements StorageCacheManager, Manager {
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         cacheReplacementEnabled = Boolean.parseBoolean(configDao.getValue(Config.StorageCacheReplacementEnabled.key()));
         cacheReplaceMentInterval = NumbersUtil.parseInt(configDao.getValue(Config.StorageCacheReplacementInterval.key()), 86400);
+        highWatermark = NumbersUtil.parseFloat(configDao.getValue(Config.StorageCacheHighWatermark.key()), 0.90f);
+        lowWatermark = NumbersUtil.parseFloat(configDao.getValue(Config.StorageCacheLowWatermark.key()), 0.75f);
+        if (lowWatermark > highWatermark) {
+            s_logger.warn(Config.StorageCacheLowWatermark.key() + " is above " + Config.StorageCacheHighWatermark.key() + ", using " + highWatermark + " for both");
+            lowWatermark = highWatermark;
+        }
+        evictionBatchSize = NumbersUtil.parseInt(configDao.getValue(Config.StorageCacheEvictionBatchSize.key()), 20);
         workers = NumbersUtil.parseInt(configDao.getValue(Config.ExpungeWorkers.key()), 10);
         executors = Executors.newScheduledThreadPool(workers, new NamedThreadFactory("StorageCacheManager-cache-replacement"));
+
+        try {
+            JmxUtil.registerMBean("StorageCacheManager", "StorageCacheManager", new StorageCacheManagerMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the storage cache manager MBean", e);
+        }
         return true;
     }
 
+    protected StorageStats getCacheStoreStats(DataStore store) {
+        EndPoint ep = endPointSelector.select(store);
+        if (ep == null) {
+            return null;
+        }
+        Answer answer = ep.sendMessage(new GetStorageStatsCommand(store.getTO()));
+        if (answer == null || !answer.getResult() || !(answer instanceof StorageStats)) {
+            return null;
+        }
+        StorageStats stats = (StorageStats)answer;
+        if (stats.getCapacityBytes() <= 0) {
+            return null;
+        }
+        cacheStoreUsage.put(store.getId(), (double)stats.getByteUsed() / stats.getCapacityBytes());
+        return stats;
+    }
+
+    /**
+     * Evicts unused objects from the cache store once its usage crosses the
+     * high watermark, a batch at a time, until it is back under the low
+     * watermark.  Stores whose usage can't be measured fall back to evicting
+     * whatever has not been used for storage.cache.replacement.lru.interval.
+     */
+    protected void replaceCacheObjects(DataStore store) {
+        StorageStats stats = getCacheStoreStats(store);
+        if (stats == null) {
+            DataObject object = cacheReplacementAlgorithm.chooseOneToBeReplaced(store);
+            while (object != null) {
+                if (!object.delete()) {
+                    break;
+                }
+                objectsEvicted.incrementAndGet();
+                cacheReplacementAlgorithm.objectReplaced(object);
+                object = cacheReplacementAlgorithm.chooseOneToBeReplaced(store);
+            }
+            return;
+        }
+
+        long capacity = stats.getCapacityBytes();
+        long used = stats.getByteUsed();
+        if (used < capacity * (double)highWatermark) {
+            return;
+        }
+
+        long target = (long)(capacity * (double)lowWatermark);
+        s_logger.debug("Cache store " + store.getName() + " is using " + used + " out of " + capacity + " bytes, evicting down to " + target + " bytes");
+        while (used > target) {
+            List<DataObject> objects = cacheReplacementAlgorithm.chooseToBeReplaced(store, used - target, evictionBatchSize);
+            if (objects.isEmpty()) {
+                s_logger.warn("Cache store " + store.getName() + " is still using " + used + " out of " + capacity + " bytes but has nothing left to evict");
+                break;
+            }
+            int deleted = 0;
+            for (DataObject object : objects) {
+                if (object.delete()) {
+                    deleted++;
+                    objectsEvicted.incrementAndGet();
+                    cacheReplacementAlgorithm.objectReplaced(object);
+                }
+            }
+            if (deleted == 0) {
+                s_logger.warn("Failed to evict any of " + objects.size() + " objects from cache store " + store.getName() + ", giving up until the next run");
+                break;
+            }
+
+            stats = getCacheStoreStats(store);
+            if (stats == null) {
+                break;
+            }
+            if (stats.getByteUsed() >= used) {
+                s_logger.warn("Cache store " + store.getName() + " is still using " + stats.getByteUsed() + " bytes after evicting " + deleted + " objects, giving up until the next run");
+                break;
+            }
+            bytesReclaimed.addAndGet(used - stats.getByteUsed());
+            used = stats.getByteUsed();
+        }
+    }
+
+    /**
+     * Checks the cache store soon rather than waiting for the next periodic
+     * run, at most one pending check per store.
+     */
+    protected void scheduleReplacement(DataStore store) {
+        if (!cacheReplacementEnabled || executors == null) {
+            return;
+        }
+        if (pendingReplacements.add(store.getId())) {
+            executors.execute(new CacheReplacementRunner(store.getId()));
+        }
+    }
+
     protected class CacheReplacementRunner implements Runnable {
+        private final Long storeId;
+
+        public CacheReplacementRunner() {
+            this(null);
+        }
+
+        public CacheReplacementRunner(Long storeId) {
+            this.storeId = storeId;
+        }
 
         @Override
         public void run() {
             GlobalLock replacementLock = null;
+            boolean locked = false;
             try {
                 replacementLock = GlobalLock.getInternLock("storageCacheMgr.replacement");
-                if (replacementLock.lock(3)) {
+                locked = replacementLock.lock(3);
+                if (locked) {
                     List<DataStore> stores = getCacheStores();
                     Collections.shuffle(stores);
-                    DataObject object = null;
-                    DataStore findAStore = null;
                     for (DataStore store : stores) {
-                        object = cacheReplacementAlgorithm.chooseOneToBeReplaced(store);
-                        findAStore = store;
-                        if (object != null) {
-                            break;
+                        if (storeId == null || storeId.longValue() == store.getId()) {
+                            replaceCacheObjects(store);
                         }
                     }
-
-                    if (object == null) {
-                        return;
-                    }
-
-                    while(object != null) {
-                        object.delete();
-                        object = cacheReplacementAlgorithm.chooseOneToBeReplaced(findAStore);
-                    }
                 }
             } catch (Exception e) {
                 s_logger.debug("Failed to execute CacheReplacementRunner: " + e.toString());
             } finally {
+                if (storeId != null) {
+                    pendingReplacements.remove(storeId);
+                }
                 if (replacementLock != null) {
-                    replacementLock.unlock();
+                    if (locked) {
+                        replacementLock.unlock();
+                    }
+                    replacementLock.releaseRef();
                 }
             }
         }
@@ -193,8 +319,11 @@ public class StorageCacheManagerImpl implements StorageCacheManager, Manager {
             s_logger.debug("there is already one in the cache store");
             DataObject dataObj = objectInStoreMgr.get(data, store);
             dataObj.incRefCount();
+            cacheHits.incrementAndGet();
+            cacheReplacementAlgorithm.objectAccessed(dataObj);
             return dataObj;
         }
+        cacheMisses.incrementAndGet();
 
         DataObject objOnCacheStore = store.create(data);
 
@@ -211,6 +340,8 @@ public class StorageCacheManagerImpl implements StorageCacheManager, Manager {
             } else {
                 objOnCacheStore.processEvent(Event.OperationSuccessed, result.getAnswer());
                 objOnCacheStore.incRefCount();
+                cacheReplacementAlgorithm.objectAccessed(objOnCacheStore);
+                scheduleReplacement(store);
                 return objOnCacheStore;
             }
         } catch (InterruptedException e) {
@@ -244,6 +375,7 @@ public class StorageCacheManagerImpl implements StorageCacheManager, Manager {
         DataStore cacheStore = this.getCacheStorage(scope);
         DataObject objOnCacheStore = cacheStore.create(data);
         objOnCacheStore.incRefCount();
+        cacheReplacementAlgorithm.objectAccessed(objOnCacheStore);
         return objOnCacheStore;
     }
 
@@ -257,4 +389,24 @@ public class StorageCacheManagerImpl implements StorageCacheManager, Manager {
     public boolean deleteCacheObject(DataObject data) {
         return data.getDataStore().delete(data);
     }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public long getObjectsEvicted() {
+        return objectsEvicted.get();
+    }
+
+    public Map<Long, Double> getCacheStoreUsage() {
+        return new HashMap<Long, Double>(cacheStoreUsage);
+    }
 }
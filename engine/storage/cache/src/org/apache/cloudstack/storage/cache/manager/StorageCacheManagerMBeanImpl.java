@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.cache.manager;
+
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class StorageCacheManagerMBeanImpl extends StandardMBean implements StorageCacheManagerMBean {
+    private final StorageCacheManagerImpl _cacheMgr;
+
+    protected StorageCacheManagerMBeanImpl(StorageCacheManagerImpl cacheMgr) {
+        super(StorageCacheManagerMBean.class, false);
+        _cacheMgr = cacheMgr;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return _cacheMgr.getCacheHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return _cacheMgr.getCacheMisses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = _cacheMgr.getCacheHits();
+        long total = hits + _cacheMgr.getCacheMisses();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getBytesReclaimed() {
+        return _cacheMgr.getBytesReclaimed();
+    }
+
+    @Override
+    public long getObjectsEvicted() {
+        return _cacheMgr.getObjectsEvicted();
+    }
+
+    @Override
+    public Map<Long, Double> getCacheStoreUsage() {
+        return _cacheMgr.getCacheStoreUsage();
+    }
+}
@@ -18,9 +18,32 @@
  */
 package org.apache.cloudstack.storage.cache.manager;
 
+import java.util.List;
+
 import org.apache.cloudstack.engine.subsystem.api.storage.DataObject;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStore;
 
 public interface StorageCacheReplacementAlgorithm {
     DataObject chooseOneToBeReplaced(DataStore store);
+
+    /**
+     * Chooses unused objects to evict from a cache store, in eviction order,
+     * until their sizes add up to bytesToFree.
+     * @param store cache store to free space on.
+     * @param bytesToFree number of bytes wanted back.
+     * @param maxObjects most objects to return.
+     * @return objects to evict, empty if there is nothing left to evict.
+     */
+    List<DataObject> chooseToBeReplaced(DataStore store, long bytesToFree, int maxObjects);
+
+    /**
+     * Records a use of an object on a cache store, for algorithms that order
+     * by access frequency.
+     */
+    void objectAccessed(DataObject object);
+
+    /**
+     * Forgets an object once it has been evicted from its cache store.
+     */
+    void objectReplaced(DataObject object);
 }
@@ -17,6 +17,7 @@
  * under the License.
  */
 package org.apache.cloudstack.storage.cache.manager;
+import com.cloud.agent.api.to.DataObjectType;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.utils.DateUtil;
@@ -28,15 +29,24 @@ import org.apache.cloudstack.engine.subsystem.api.storage.*;
 import org.apache.cloudstack.storage.datastore.db.SnapshotDataStoreVO;
 import org.apache.cloudstack.storage.datastore.db.TemplateDataStoreVO;
 import org.apache.cloudstack.storage.datastore.db.VolumeDataStoreVO;
-import org.apache.commons.lang.math.NumberUtils;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
-
-
+/**
+ * Evicts unused objects from a cache store, templates, volumes and snapshots
+ * alike, least recently used first.  With storage.cache.replacement.policy
+ * set to LFU the objects used least often go first instead.  Access counts
+ * are kept in memory by the management server running the replacement.
+ */
 public class StorageCacheReplacementAlgorithmLRU implements StorageCacheReplacementAlgorithm {
     @Inject
     ConfigurationDao configDao;
@@ -48,6 +58,8 @@ public class StorageCacheReplacementAlgorithmLRU implements StorageCacheReplacem
     SnapshotDataFactory snapshotFactory;
 
     Integer unusedTimeInterval;
+    Comparator<CacheEntry> order = LRU_ORDER;
+    final ConcurrentHashMap<String, AtomicLong> accessCounts = new ConcurrentHashMap<String, AtomicLong>();
 
     public StorageCacheReplacementAlgorithmLRU() {
 
@@ -56,6 +68,9 @@ public class StorageCacheReplacementAlgorithmLRU implements StorageCacheReplacem
     @PostConstruct
     public void initialize() {
         unusedTimeInterval = NumbersUtil.parseInt(configDao.getValue(Config.StorageCacheReplacementLRUTimeInterval.key()), 30);
+        if ("LFU".equalsIgnoreCase(configDao.getValue(Config.StorageCacheReplacementPolicy.key()))) {
+            order = LFU_ORDER;
+        }
     }
 
     public void setUnusedTimeInterval(Integer interval) {
@@ -69,38 +84,162 @@ public class StorageCacheReplacementAlgorithmLRU implements StorageCacheReplacem
         cal.add(Calendar.DAY_OF_MONTH, -unusedTimeInterval.intValue());
         Date bef = cal.getTime();
 
+        List<CacheEntry> entries = listUnusedEntries(store, bef);
+        if (entries.isEmpty()) {
+            return null;
+        }
+        Collections.sort(entries, order);
+        return getDataObject(entries.get(0), store);
+    }
+
+    @Override
+    public List<DataObject> chooseToBeReplaced(DataStore store, long bytesToFree, int maxObjects) {
+        List<CacheEntry> entries = listUnusedEntries(store, null);
+        Collections.sort(entries, order);
+
+        List<DataObject> objects = new ArrayList<DataObject>();
+        long bytes = 0;
+        for (CacheEntry entry : entries) {
+            if (bytes >= bytesToFree || objects.size() >= maxObjects) {
+                break;
+            }
+            DataObject object = getDataObject(entry, store);
+            if (object == null) {
+                continue;
+            }
+            objects.add(object);
+            bytes += entry.size;
+        }
+        return objects;
+    }
+
+    @Override
+    public void objectAccessed(DataObject object) {
+        String key = getKey(object.getType(), object.getId(), object.getDataStore().getId());
+        AtomicLong count = accessCounts.get(key);
+        if (count == null) {
+            AtomicLong existing = accessCounts.putIfAbsent(key, count = new AtomicLong());
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public void objectReplaced(DataObject object) {
+        accessCounts.remove(getKey(object.getType(), object.getId(), object.getDataStore().getId()));
+    }
+
+    protected List<CacheEntry> listUnusedEntries(DataStore store, Date bef) {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>();
+
         SearchCriteriaService<TemplateDataStoreVO, TemplateDataStoreVO> sc = SearchCriteria2.create(TemplateDataStoreVO.class);
-        sc.addAnd(sc.getEntity().getLastUpdated(), SearchCriteria.Op.LT, bef);
+        if (bef != null) {
+            sc.addAnd(sc.getEntity().getLastUpdated(), SearchCriteria.Op.LT, bef);
+        }
         sc.addAnd(sc.getEntity().getState(), SearchCriteria.Op.EQ, ObjectInDataStoreStateMachine.State.Ready);
         sc.addAnd(sc.getEntity().getDataStoreId(), SearchCriteria.Op.EQ, store.getId());
         sc.addAnd(sc.getEntity().getDataStoreRole(), SearchCriteria.Op.EQ, store.getRole());
         sc.addAnd(sc.getEntity().getRefCnt(), SearchCriteria.Op.EQ, 0);
-        TemplateDataStoreVO template = sc.find();
-        if (template != null) {
-            return templateFactory.getTemplate(template.getTemplateId(), store);
+        for (TemplateDataStoreVO template : sc.list()) {
+            entries.add(newEntry(DataObjectType.TEMPLATE, template.getTemplateId(), store, template.getLastUpdated(), template.getPhysicalSize()));
         }
 
         SearchCriteriaService<VolumeDataStoreVO, VolumeDataStoreVO> volSc = SearchCriteria2.create(VolumeDataStoreVO.class);
-        volSc.addAnd(volSc.getEntity().getLastUpdated(), SearchCriteria.Op.LT, bef);
+        if (bef != null) {
+            volSc.addAnd(volSc.getEntity().getLastUpdated(), SearchCriteria.Op.LT, bef);
+        }
         volSc.addAnd(volSc.getEntity().getState(), SearchCriteria.Op.EQ, ObjectInDataStoreStateMachine.State.Ready);
         volSc.addAnd(volSc.getEntity().getDataStoreId(), SearchCriteria.Op.EQ, store.getId());
         volSc.addAnd(volSc.getEntity().getRefCnt(), SearchCriteria.Op.EQ, 0);
-        VolumeDataStoreVO volume = volSc.find();
-        if (volume != null) {
-            return volumeFactory.getVolume(volume.getVolumeId(), store);
+        for (VolumeDataStoreVO volume : volSc.list()) {
+            long size = volume.getPhysicalSize() > 0 ? volume.getPhysicalSize() : volume.getSize();
+            entries.add(newEntry(DataObjectType.VOLUME, volume.getVolumeId(), store, volume.getLastUpdated(), size));
         }
 
         SearchCriteriaService<SnapshotDataStoreVO, SnapshotDataStoreVO> snapshotSc = SearchCriteria2.create(SnapshotDataStoreVO.class);
-        snapshotSc.addAnd(snapshotSc.getEntity().getLastUpdated(), SearchCriteria.Op.LT, bef);
+        if (bef != null) {
+            snapshotSc.addAnd(snapshotSc.getEntity().getLastUpdated(), SearchCriteria.Op.LT, bef);
+        }
         snapshotSc.addAnd(snapshotSc.getEntity().getState(), SearchCriteria.Op.EQ, ObjectInDataStoreStateMachine.State.Ready);
         snapshotSc.addAnd(snapshotSc.getEntity().getDataStoreId(), SearchCriteria.Op.EQ, store.getId());
         snapshotSc.addAnd(snapshotSc.getEntity().getRole(), SearchCriteria.Op.EQ, store.getRole());
         snapshotSc.addAnd(snapshotSc.getEntity().getRefCnt(), SearchCriteria.Op.EQ, 0);
-        SnapshotDataStoreVO snapshot = snapshotSc.find();
-        if (snapshot != null) {
-            return snapshotFactory.getSnapshot(snapshot.getSnapshotId(), store);
+        for (SnapshotDataStoreVO snapshot : snapshotSc.list()) {
+            long size = snapshot.getPhysicalSize() > 0 ? snapshot.getPhysicalSize() : snapshot.getSize();
+            entries.add(newEntry(DataObjectType.SNAPSHOT, snapshot.getSnapshotId(), store, snapshot.getLastUpdated(), size));
+        }
+
+        return entries;
+    }
+
+    protected CacheEntry newEntry(DataObjectType type, long objectId, DataStore store, Date lastAccess, long size) {
+        String key = getKey(type, objectId, store.getId());
+        AtomicLong count = accessCounts.get(key);
+        return new CacheEntry(key, type, objectId, lastAccess, size, count == null ? 0 : count.get());
+    }
+
+    protected DataObject getDataObject(CacheEntry entry, DataStore store) {
+        switch (entry.type) {
+        case TEMPLATE:
+            return templateFactory.getTemplate(entry.objectId, store);
+        case VOLUME:
+            return volumeFactory.getVolume(entry.objectId, store);
+        case SNAPSHOT:
+            return snapshotFactory.getSnapshot(entry.objectId, store);
+        default:
+            return null;
+        }
+    }
+
+    protected static String getKey(DataObjectType type, long objectId, long storeId) {
+        return type + "-" + objectId + "-" + storeId;
+    }
+
+    protected static class CacheEntry {
+        final String key;
+        final DataObjectType type;
+        final long objectId;
+        final long lastAccess;
+        final long size;
+        final long accessCount;
+
+        CacheEntry(String key, DataObjectType type, long objectId, Date lastAccess, long size, long accessCount) {
+            this.key = key;
+            this.type = type;
+            this.objectId = objectId;
+            this.lastAccess = lastAccess == null ? 0 : lastAccess.getTime();
+            this.size = size;
+            this.accessCount = accessCount;
         }
+    }
 
-        return null;
+    static int compare(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
     }
+
+    /**
+     * Least recently used first, the least used of those last accessed at
+     * the same time first.
+     */
+    static final Comparator<CacheEntry> LRU_ORDER = new Comparator<CacheEntry>() {
+        @Override
+        public int compare(CacheEntry e1, CacheEntry e2) {
+            int result = StorageCacheReplacementAlgorithmLRU.compare(e1.lastAccess, e2.lastAccess);
+            return result != 0 ? result : StorageCacheReplacementAlgorithmLRU.compare(e1.accessCount, e2.accessCount);
+        }
+    };
+
+    /**
+     * Least frequently used first, the least recently used of equally used
+     * objects first.
+     */
+    static final Comparator<CacheEntry> LFU_ORDER = new Comparator<CacheEntry>() {
+        @Override
+        public int compare(CacheEntry e1, CacheEntry e2) {
+            int result = StorageCacheReplacementAlgorithmLRU.compare(e1.accessCount, e2.accessCount);
+            return result != 0 ? result : StorageCacheReplacementAlgorithmLRU.compare(e1.lastAccess, e2.lastAccess);
+        }
+    };
 }
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.cache.manager;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.DataObject;
+import org.apache.cloudstack.engine.subsystem.api.storage.DataStore;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.api.to.DataObjectType;
+import com.cloud.storage.StorageStats;
+
+public class StorageCacheManagerImplTest extends TestCase {
+
+    public void testLruOrder() {
+        TestAlgorithm algorithm = new TestAlgorithm();
+        algorithm.entries.add(algorithm.entry(DataObjectType.TEMPLATE, 1, 3000, 100, 5));
+        algorithm.entries.add(algorithm.entry(DataObjectType.VOLUME, 2, 1000, 100, 9));
+        algorithm.entries.add(algorithm.entry(DataObjectType.SNAPSHOT, 3, 2000, 100, 1));
+        algorithm.entries.add(algorithm.entry(DataObjectType.TEMPLATE, 4, 1000, 100, 2));
+
+        List<DataObject> objects = algorithm.chooseToBeReplaced(mock(DataStore.class), 1000, 10);
+        assertEquals(Arrays.asList(4L, 2L, 3L, 1L), algorithm.ids(objects));
+    }
+
+    public void testLfuOrder() {
+        TestAlgorithm algorithm = new TestAlgorithm();
+        algorithm.order = StorageCacheReplacementAlgorithmLRU.LFU_ORDER;
+        algorithm.entries.add(algorithm.entry(DataObjectType.TEMPLATE, 1, 3000, 100, 5));
+        algorithm.entries.add(algorithm.entry(DataObjectType.VOLUME, 2, 1000, 100, 9));
+        algorithm.entries.add(algorithm.entry(DataObjectType.SNAPSHOT, 3, 2000, 100, 1));
+        algorithm.entries.add(algorithm.entry(DataObjectType.TEMPLATE, 4, 1000, 100, 1));
+
+        List<DataObject> objects = algorithm.chooseToBeReplaced(mock(DataStore.class), 1000, 10);
+        assertEquals(Arrays.asList(4L, 3L, 1L, 2L), algorithm.ids(objects));
+    }
+
+    public void testChooseStopsAtBytesAndBatchSize() {
+        TestAlgorithm algorithm = new TestAlgorithm();
+        for (int i = 0; i < 10; i++) {
+            algorithm.entries.add(algorithm.entry(DataObjectType.TEMPLATE, i, i, 100, 0));
+        }
+        assertEquals(3, algorithm.chooseToBeReplaced(mock(DataStore.class), 250, 10).size());
+        assertEquals(2, algorithm.chooseToBeReplaced(mock(DataStore.class), 1000, 2).size());
+    }
+
+    public void testEvictsFromHighToLowWatermark() {
+        final LinkedList<Long> usage = new LinkedList<Long>(Arrays.asList(95L, 85L, 74L));
+        StorageCacheManagerImpl mgr = new StorageCacheManagerImpl() {
+            @Override
+            protected StorageStats getCacheStoreStats(DataStore store) {
+                final long used = usage.isEmpty() ? 74L : usage.removeFirst();
+                return new StorageStats() {
+                    @Override
+                    public long getByteUsed() {
+                        return used;
+                    }
+
+                    @Override
+                    public long getCapacityBytes() {
+                        return 100L;
+                    }
+                };
+            }
+        };
+        mgr.highWatermark = 0.9f;
+        mgr.lowWatermark = 0.75f;
+        mgr.evictionBatchSize = 2;
+
+        final DataObject object = mock(DataObject.class);
+        when(object.delete()).thenReturn(true);
+        StorageCacheReplacementAlgorithm algorithm = mock(StorageCacheReplacementAlgorithm.class);
+        when(algorithm.chooseToBeReplaced(org.mockito.Matchers.any(DataStore.class), anyLong(), anyInt())).thenAnswer(new Answer<List<DataObject>>() {
+            @Override
+            public List<DataObject> answer(InvocationOnMock invocation) throws Throwable {
+                return Arrays.asList(object, object);
+            }
+        });
+        mgr.cacheReplacementAlgorithm = algorithm;
+
+        mgr.replaceCacheObjects(mock(DataStore.class));
+        assertEquals(4, mgr.getObjectsEvicted());
+        assertEquals(21, mgr.getBytesReclaimed());
+        assertTrue(usage.isEmpty());
+    }
+
+    public void testGivesUpWhenNothingCanBeDeleted() {
+        StorageCacheManagerImpl mgr = fixedUsageManager(95L);
+        final DataObject object = mock(DataObject.class);
+        when(object.delete()).thenReturn(false);
+        StorageCacheReplacementAlgorithm algorithm = mock(StorageCacheReplacementAlgorithm.class);
+        when(algorithm.chooseToBeReplaced(org.mockito.Matchers.any(DataStore.class), anyLong(), anyInt())).thenReturn(Arrays.asList(object, object));
+        mgr.cacheReplacementAlgorithm = algorithm;
+
+        mgr.replaceCacheObjects(mock(DataStore.class));
+        assertEquals(0, mgr.getObjectsEvicted());
+        verify(algorithm, times(1)).chooseToBeReplaced(org.mockito.Matchers.any(DataStore.class), anyLong(), anyInt());
+        verify(algorithm, never()).objectReplaced(object);
+    }
+
+    public void testGivesUpWhenUsageDoesNotDrop() {
+        StorageCacheManagerImpl mgr = fixedUsageManager(95L);
+        final DataObject object = mock(DataObject.class);
+        when(object.delete()).thenReturn(true);
+        StorageCacheReplacementAlgorithm algorithm = mock(StorageCacheReplacementAlgorithm.class);
+        when(algorithm.chooseToBeReplaced(org.mockito.Matchers.any(DataStore.class), anyLong(), anyInt())).thenReturn(Arrays.asList(object));
+        mgr.cacheReplacementAlgorithm = algorithm;
+
+        mgr.replaceCacheObjects(mock(DataStore.class));
+        assertEquals(1, mgr.getObjectsEvicted());
+        assertEquals(0, mgr.getBytesReclaimed());
+        verify(algorithm, times(1)).objectReplaced(object);
+    }
+
+    public void testAccessCountKeptUntilReplaced() {
+        TestAlgorithm algorithm = new TestAlgorithm();
+        DataStore store = mock(DataStore.class);
+        when(store.getId()).thenReturn(1L);
+        DataObject object = mock(DataObject.class);
+        when(object.getType()).thenReturn(DataObjectType.TEMPLATE);
+        when(object.getId()).thenReturn(7L);
+        when(object.getDataStore()).thenReturn(store);
+        algorithm.objectAccessed(object);
+        algorithm.entries.add(algorithm.entry(DataObjectType.TEMPLATE, 7, 1000, 100, 1));
+
+        assertEquals(1, algorithm.chooseToBeReplaced(store, 1000, 10).size());
+        assertTrue(algorithm.accessCounts.containsKey(StorageCacheReplacementAlgorithmLRU.getKey(DataObjectType.TEMPLATE, 7, 1)));
+        algorithm.objectReplaced(object);
+        assertFalse(algorithm.accessCounts.containsKey(StorageCacheReplacementAlgorithmLRU.getKey(DataObjectType.TEMPLATE, 7, 1)));
+    }
+
+    public void testNoEvictionBelowHighWatermark() {
+        StorageCacheManagerImpl mgr = new StorageCacheManagerImpl() {
+            @Override
+            protected StorageStats getCacheStoreStats(DataStore store) {
+                return new StorageStats() {
+                    @Override
+                    public long getByteUsed() {
+                        return 80L;
+                    }
+
+                    @Override
+                    public long getCapacityBytes() {
+                        return 100L;
+                    }
+                };
+            }
+        };
+        mgr.highWatermark = 0.9f;
+        mgr.lowWatermark = 0.75f;
+        mgr.cacheReplacementAlgorithm = mock(StorageCacheReplacementAlgorithm.class);
+
+        mgr.replaceCacheObjects(mock(DataStore.class));
+        assertEquals(0, mgr.getObjectsEvicted());
+    }
+
+    private static StorageCacheManagerImpl fixedUsageManager(final long used) {
+        StorageCacheManagerImpl mgr = new StorageCacheManagerImpl() {
+            @Override
+            protected StorageStats getCacheStoreStats(DataStore store) {
+                return new StorageStats() {
+                    @Override
+                    public long getByteUsed() {
+                        return used;
+                    }
+
+                    @Override
+                    public long getCapacityBytes() {
+                        return 100L;
+                    }
+                };
+            }
+        };
+        mgr.highWatermark = 0.9f;
+        mgr.lowWatermark = 0.75f;
+        mgr.evictionBatchSize = 2;
+        return mgr;
+    }
+
+    static class TestAlgorithm extends StorageCacheReplacementAlgorithmLRU {
+        final List<CacheEntry> entries = new ArrayList<CacheEntry>();
+
+        CacheEntry entry(DataObjectType type, long id, long lastAccess, long size, long accessCount) {
+            return new CacheEntry(getKey(type, id, 1), type, id, new Date(lastAccess), size, accessCount);
+        }
+
+        @Override
+        protected List<CacheEntry> listUnusedEntries(DataStore store, Date bef) {
+            return new ArrayList<CacheEntry>(entries);
+        }
+
+        @Override
+        protected DataObject getDataObject(CacheEntry entry, DataStore store) {
+            DataObject object = mock(DataObject.class);
+            when(object.getId()).thenReturn(entry.objectId);
+            return object;
+        }
+
+        List<Long> ids(List<DataObject> objects) {
+            List<Long> ids = new ArrayList<Long>();
+            for (DataObject object : objects) {
+                ids.add(object.getId());
+            }
+            return ids;
+        }
+    }
+}
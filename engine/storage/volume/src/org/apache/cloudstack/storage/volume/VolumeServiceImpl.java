@@ -20,6 +20,7 @@ package org.apache.cloudstack.storage.volume;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -317,29 +318,20 @@ public class VolumeServiceImpl implements VolumeService {
     }
 
     class CreateBaseImageContext<T> extends AsyncRpcContext<T> {
-        private final VolumeInfo volume;
         private final PrimaryDataStore dataStore;
         private final TemplateInfo srcTemplate;
-        private final AsyncCallFuture<VolumeApiResult> future;
         final DataObject destObj;
         long templatePoolId;
 
-        public CreateBaseImageContext(AsyncCompletionCallback<T> callback, VolumeInfo volume,
-                PrimaryDataStore datastore, TemplateInfo srcTemplate, AsyncCallFuture<VolumeApiResult> future,
-                DataObject destObj, long templatePoolId) {
+        public CreateBaseImageContext(AsyncCompletionCallback<T> callback, PrimaryDataStore datastore,
+                TemplateInfo srcTemplate, DataObject destObj, long templatePoolId) {
             super(callback);
-            this.volume = volume;
             this.dataStore = datastore;
-            this.future = future;
             this.srcTemplate = srcTemplate;
             this.destObj = destObj;
             this.templatePoolId = templatePoolId;
         }
 
-        public VolumeInfo getVolume() {
-            return this.volume;
-        }
-
         public PrimaryDataStore getDataStore() {
             return this.dataStore;
         }
@@ -348,10 +340,6 @@ public class VolumeServiceImpl implements VolumeService {
             return this.srcTemplate;
         }
 
-        public AsyncCallFuture<VolumeApiResult> getFuture() {
-            return this.future;
-        }
-
         public long getTemplatePoolId() {
             return templatePoolId;
         }
@@ -359,26 +347,22 @@ public class VolumeServiceImpl implements VolumeService {
 
     }
 
-    private TemplateInfo waitForTemplateDownloaded(PrimaryDataStore store, TemplateInfo template) {
-        int storagePoolMaxWaitSeconds = NumbersUtil.parseInt(
-                configDao.getValue(Config.StoragePoolMaxWaitSeconds.key()), 3600);
-        int sleepTime = 120;
-        int tries = storagePoolMaxWaitSeconds / sleepTime;
-        while (tries > 0) {
-            TemplateInfo tmpl = store.getTemplate(template.getId());
-            if (tmpl != null) {
-                return tmpl;
-            }
-            try {
-                Thread.sleep(sleepTime * 1000);
-            } catch (InterruptedException e) {
-                s_logger.debug("waiting for template download been interrupted: " + e.toString());
-            }
-            tries--;
+    /**
+     * A volume waiting for its template to be copied to the primary storage.
+     */
+    private static class BaseImageWaiter {
+        final VolumeInfo volume;
+        final AsyncCallFuture<VolumeApiResult> future;
+
+        public BaseImageWaiter(VolumeInfo volume, AsyncCallFuture<VolumeApiResult> future) {
+            this.volume = volume;
+            this.future = future;
         }
-        return null;
     }
 
+    // template pool ref id -> volumes waiting for the copy of the template this management server has in flight
+    private final Map<Long, List<BaseImageWaiter>> _stagingTemplates = new HashMap<Long, List<BaseImageWaiter>>();
+
     @DB
     protected void createBaseImageAsync(VolumeInfo volume, PrimaryDataStore dataStore, TemplateInfo template,
             AsyncCallFuture<VolumeApiResult> future) {
@@ -391,71 +375,129 @@ public class VolumeServiceImpl implements VolumeService {
                     + " in VMTemplateStoragePool");
         }
         long templatePoolRefId = templatePoolRef.getId();
-        CreateBaseImageContext<CreateCmdResult> context = new CreateBaseImageContext<CreateCmdResult>(null, volume,
-                dataStore, template, future, templateOnPrimaryStoreObj, templatePoolRefId);
-        AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> caller = AsyncCallbackDispatcher.create(this);
-        caller.setCallback(caller.getTarget().copyBaseImageCallback(null, null)).setContext(context);
 
+        // Only the first deployment copies the template, the others are carried on
+        // from the copy callback instead of holding a thread waiting on the lock.
+        synchronized (_stagingTemplates) {
+            List<BaseImageWaiter> waiters = _stagingTemplates.get(templatePoolRefId);
+            if (waiters != null) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Template " + template.getUniqueName() + " is being copied to primary storage " + dataStore.getId()
+                            + ", volume " + volume.getId() + " waits for it");
+                }
+                waiters.add(new BaseImageWaiter(volume, future));
+                return;
+            }
+            waiters = new ArrayList<BaseImageWaiter>();
+            waiters.add(new BaseImageWaiter(volume, future));
+            _stagingTemplates.put(templatePoolRefId, waiters);
+        }
+
+        try {
+            copyBaseImageAsync(dataStore, template, templateOnPrimaryStoreObj, templatePoolRefId);
+        } catch (Throwable e) {
+            s_logger.debug("failed to create template on storage", e);
+            baseImageCopied(templatePoolRefId, dataStore, templateOnPrimaryStoreObj, e.toString());
+        }
+    }
+
+    protected void copyBaseImageAsync(PrimaryDataStore dataStore, TemplateInfo template, DataObject templateOnPrimaryStoreObj,
+            long templatePoolRefId) {
+        // A copy in flight on another management server holds the lock until the template
+        // lands, the lock master wakes us up as soon as it is released.
         int storagePoolMaxWaitSeconds = NumbersUtil.parseInt(
                 configDao.getValue(Config.StoragePoolMaxWaitSeconds.key()), 3600);
-        templatePoolRef = _tmpltPoolDao.acquireInLockTable(templatePoolRefId, storagePoolMaxWaitSeconds);
+        VMTemplateStoragePoolVO templatePoolRef = _tmpltPoolDao.acquireInLockTable(templatePoolRefId, storagePoolMaxWaitSeconds);
 
         if (templatePoolRef == null) {
             templatePoolRef = _tmpltPoolDao.findByPoolTemplate(dataStore.getId(), template.getId());
-            if (templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready ) {
+            if (templatePoolRef != null && templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready ) {
                 s_logger.info("Unable to acquire lock on VMTemplateStoragePool " + templatePoolRefId + ", But Template " + template.getUniqueName() + " is already copied to primary storage, skip copying");
-                createVolumeFromBaseImageAsync(volume, templateOnPrimaryStoreObj, dataStore, future);
+                baseImageCopied(templatePoolRefId, dataStore, templateOnPrimaryStoreObj, null);
                 return;
             }
             throw new CloudRuntimeException("Unable to acquire lock on VMTemplateStoragePool: " + templatePoolRefId);
         }
 
+        // lock acquired
+        if (templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready ) {
+            _tmpltPoolDao.releaseFromLockTable(templatePoolRefId);
+            s_logger.info("Template " + template.getUniqueName() + " is already copied to primary storage, skip copying");
+            baseImageCopied(templatePoolRefId, dataStore, templateOnPrimaryStoreObj, null);
+            return;
+        }
+
         try {
-            // lock acquired
-            if (templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready ) {
-                s_logger.info("Template " + template.getUniqueName() + " is already copied to primary storage, skip copying");
-                createVolumeFromBaseImageAsync(volume, templateOnPrimaryStoreObj, dataStore, future);
-                return;
-            }
             // remove the leftover hanging entry
             dataStore.delete(templateOnPrimaryStoreObj);
             // create a new entry to restart copying process
             templateOnPrimaryStoreObj = dataStore.create(template);
             templateOnPrimaryStoreObj.processEvent(Event.CreateOnlyRequested);
+
+            CreateBaseImageContext<CreateCmdResult> context = new CreateBaseImageContext<CreateCmdResult>(null, dataStore,
+                    template, templateOnPrimaryStoreObj, templatePoolRefId);
+            AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> caller = AsyncCallbackDispatcher.create(this);
+            caller.setCallback(caller.getTarget().copyBaseImageCallback(null, null)).setContext(context);
             motionSrv.copyAsync(template, templateOnPrimaryStoreObj, caller);
         } catch (Throwable e) {
             s_logger.debug("failed to create template on storage", e);
             templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
-            VolumeApiResult result = new VolumeApiResult(volume);
-            result.setResult(e.toString());
-            future.complete(result);
             _tmpltPoolDao.releaseFromLockTable(templatePoolRefId);
+            baseImageCopied(templatePoolRefId, dataStore, templateOnPrimaryStoreObj, e.toString());
         }
-        return;
     }
 
     @DB
     protected Void copyBaseImageCallback(AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> callback,
             CreateBaseImageContext<VolumeApiResult> context) {
         CopyCommandResult result = callback.getResult();
-        VolumeApiResult res = new VolumeApiResult(context.getVolume());
 
-        AsyncCallFuture<VolumeApiResult> future = context.getFuture();
         DataObject templateOnPrimaryStoreObj = context.destObj;
         if (!result.isSuccess()) {
             templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
             _tmpltPoolDao.releaseFromLockTable(context.getTemplatePoolId());
-            res.setResult(result.getResult());
-            future.complete(res);
+            baseImageCopied(context.getTemplatePoolId(), context.getDataStore(), templateOnPrimaryStoreObj, result.getResult());
             return null;
         }
 
         templateOnPrimaryStoreObj.processEvent(Event.OperationSuccessed, result.getAnswer());
         _tmpltPoolDao.releaseFromLockTable(context.getTemplatePoolId());
-        createVolumeFromBaseImageAsync(context.volume, templateOnPrimaryStoreObj, context.dataStore, future);
+        baseImageCopied(context.getTemplatePoolId(), context.getDataStore(), templateOnPrimaryStoreObj, null);
         return null;
     }
 
+    /**
+     * Carries on with the volumes that were waiting for the template to be copied.
+     * @param error null if the template is on the primary storage, the reason of the failure if not.
+     */
+    protected void baseImageCopied(long templatePoolRefId, PrimaryDataStore dataStore, DataObject templateOnPrimaryStoreObj,
+            String error) {
+        List<BaseImageWaiter> waiters;
+        synchronized (_stagingTemplates) {
+            waiters = _stagingTemplates.remove(templatePoolRefId);
+        }
+        if (waiters == null) {
+            return;
+        }
+
+        for (BaseImageWaiter waiter : waiters) {
+            VolumeApiResult result = new VolumeApiResult(waiter.volume);
+            if (error != null) {
+                result.setResult(error);
+                waiter.future.complete(result);
+                continue;
+            }
+
+            try {
+                createVolumeFromBaseImageAsync(waiter.volume, templateOnPrimaryStoreObj, dataStore, waiter.future);
+            } catch (Throwable e) {
+                s_logger.debug("failed to create volume " + waiter.volume.getId() + " from template on storage", e);
+                result.setResult(e.toString());
+                waiter.future.complete(result);
+            }
+        }
+    }
+
     private class CreateVolumeFromBaseImageContext<T> extends AsyncRpcContext<T> {
         private final DataObject vo;
         private final AsyncCallFuture<VolumeApiResult> future;
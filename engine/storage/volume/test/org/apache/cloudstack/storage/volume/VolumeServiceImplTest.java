@@ -0,0 +1,138 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.volume;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.DataMotionService;
+import org.apache.cloudstack.engine.subsystem.api.storage.DataObject;
+import org.apache.cloudstack.engine.subsystem.api.storage.ObjectInDataStoreStateMachine;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeService.VolumeApiResult;
+import org.apache.cloudstack.framework.async.AsyncCallFuture;
+import org.apache.cloudstack.framework.async.AsyncCompletionCallback;
+import org.apache.cloudstack.storage.datastore.PrimaryDataStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.storage.VMTemplateStoragePoolVO;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+
+public class VolumeServiceImplTest {
+    private static final int VOLUMES = 5;
+
+    VolumeServiceImpl _volumeService;
+    PrimaryDataStore _store;
+    TemplateInfo _template;
+    DataObject _templateOnStore;
+    VMTemplatePoolDao _tmpltPoolDao;
+    DataMotionService _motionSrv;
+    VMTemplateStoragePoolVO _templatePoolRef;
+
+    @Before
+    public void setup() {
+        _volumeService = new VolumeServiceImpl();
+        _store = mock(PrimaryDataStore.class);
+        _template = mock(TemplateInfo.class);
+        _templateOnStore = mock(DataObject.class);
+        _tmpltPoolDao = mock(VMTemplatePoolDao.class);
+        _motionSrv = mock(DataMotionService.class);
+        _templatePoolRef = mock(VMTemplateStoragePoolVO.class);
+
+        _volumeService._tmpltPoolDao = _tmpltPoolDao;
+        _volumeService.motionSrv = _motionSrv;
+        _volumeService.configDao = mock(ConfigurationDao.class);
+
+        when(_store.getId()).thenReturn(1L);
+        when(_template.getId()).thenReturn(2L);
+        when(_template.getUniqueName()).thenReturn("template");
+        when(_store.create(_template)).thenReturn(_templateOnStore);
+        when(_templatePoolRef.getId()).thenReturn(3L);
+        when(_templatePoolRef.getState()).thenReturn(ObjectInDataStoreStateMachine.State.Allocated);
+        when(_tmpltPoolDao.findByPoolTemplate(1L, 2L)).thenReturn(_templatePoolRef);
+        when(_tmpltPoolDao.acquireInLockTable(anyLong(), anyInt())).thenReturn(_templatePoolRef);
+    }
+
+    private List<AsyncCallFuture<VolumeApiResult>> deploy() {
+        List<AsyncCallFuture<VolumeApiResult>> futures = new ArrayList<AsyncCallFuture<VolumeApiResult>>();
+        for (int i = 0; i < VOLUMES; i++) {
+            VolumeInfo volume = mock(VolumeInfo.class);
+            when(volume.getId()).thenReturn((long)i);
+            when(_store.create(volume)).thenReturn(mock(DataObject.class));
+            AsyncCallFuture<VolumeApiResult> future = new AsyncCallFuture<VolumeApiResult>();
+            _volumeService.createBaseImageAsync(volume, _store, _template, future);
+            futures.add(future);
+        }
+        return futures;
+    }
+
+    @Test
+    public void testConcurrentDeploymentsCopyTemplateOnce() {
+        List<AsyncCallFuture<VolumeApiResult>> futures = deploy();
+
+        verify(_tmpltPoolDao, times(1)).acquireInLockTable(anyLong(), anyInt());
+        verify(_motionSrv, times(1)).copyAsync(eq(_template), eq(_templateOnStore), any(AsyncCompletionCallback.class));
+        for (AsyncCallFuture<VolumeApiResult> future : futures) {
+            assertFalse(future.isDone());
+        }
+
+        // the copy lands, every volume is created from it right away
+        _volumeService.baseImageCopied(3L, _store, _templateOnStore, null);
+        verify(_motionSrv, times(VOLUMES)).copyAsync(eq(_templateOnStore), any(DataObject.class), any(AsyncCompletionCallback.class));
+
+        // the next deployment starts over
+        deploy();
+        verify(_tmpltPoolDao, times(2)).acquireInLockTable(anyLong(), anyInt());
+    }
+
+    @Test
+    public void testFailedCopyCompletesWaiters() throws Exception {
+        List<AsyncCallFuture<VolumeApiResult>> futures = deploy();
+
+        _volumeService.baseImageCopied(3L, _store, _templateOnStore, "copy failed");
+        for (AsyncCallFuture<VolumeApiResult> future : futures) {
+            assertTrue(future.isDone());
+            assertFalse(future.get().isSuccess());
+        }
+        verify(_motionSrv, never()).copyAsync(eq(_templateOnStore), any(DataObject.class), any(AsyncCompletionCallback.class));
+    }
+
+    @Test
+    public void testTemplateAlreadyOnStorage() {
+        when(_templatePoolRef.getState()).thenReturn(ObjectInDataStoreStateMachine.State.Ready);
+        deploy();
+
+        verify(_motionSrv, never()).copyAsync(eq(_template), any(DataObject.class), any(AsyncCompletionCallback.class));
+        verify(_tmpltPoolDao, times(VOLUMES)).releaseFromLockTable(3L);
+        verify(_motionSrv, times(VOLUMES)).copyAsync(eq(_templateOnStore), any(DataObject.class), any(AsyncCompletionCallback.class));
+    }
+}
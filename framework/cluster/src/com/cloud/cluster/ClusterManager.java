@@ -40,6 +40,11 @@ public interface ClusterManager extends Manager {
      */
     void broadcast(long agentId, String cmds);
 
+    /**
+     * Sends the command to a management server node without waiting for the result.
+     */
+    void executeAsync(String strPeer, long agentId, String cmds, boolean stopOnError);
+
     int getHeartbeatThreshold();
 	
     void registerListener(ClusterManagerListener listener);
@@ -370,6 +370,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
         }
     }
 
+    @Override
     public void executeAsync(String strPeer, long agentId, String cmds, boolean stopOnError) {
         ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
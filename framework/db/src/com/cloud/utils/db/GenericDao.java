@@ -204,7 +204,23 @@ public interface GenericDao<T, ID extends Serializable> {
      * there's no primary key specified in the VO object.
      **/
     T persist(T entity);
-    
+
+    /**
+     * Persist a list of entity beans using JDBC batching.  The id field of
+     * each entity is updated with the new id.  Unlike persist(), the entities
+     * are not re-read from the database afterwards.
+     * @param entities the beans to persist.
+     */
+    void persistBatch(List<T> entities);
+
+    /**
+     * Update a set of entity beans using JDBC batching.  The entities must
+     * have been generated by this dao (see createForUpdate()).
+     * @param entities map of id to the changed entity bean.
+     * @return number of rows updated.
+     */
+    int updateBatch(Map<ID, T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
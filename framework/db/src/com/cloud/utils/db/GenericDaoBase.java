@@ -18,6 +18,7 @@ package com.cloud.utils.db;
 
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
@@ -37,8 +38,10 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -72,6 +75,7 @@ import com.cloud.utils.component.ComponentLifecycle;
 import com.cloud.utils.component.ComponentLifecycleBase;
 import com.cloud.utils.component.ComponentMethodInterceptable;
 import com.cloud.utils.crypt.DBEncryptionUtil;
+import com.cloud.utils.db.RowMapper.ColumnMapping;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.Ip;
@@ -119,6 +123,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
+    // Rows per executeBatch() in persistBatch() and updateBatch().  With
+    // rewriteBatchedStatements the driver folds each batch into a few packets.
+    protected final static int BATCH_SIZE = 500;
+
+    // Upper bound on the statements whose row mappers are kept per dao.
+    protected final static int MAX_ROW_MAPPERS = 256;
+
     protected final static Map<Class<?>, GenericDao<?, ? extends Serializable>> s_daoMaps = new ConcurrentHashMap<Class<?>, GenericDao<?, ? extends Serializable>>(71);
 
     protected Class<T> _entityBeanType;
@@ -135,6 +146,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected Map<String, Object> _discriminatorValues;
     protected String _selectByIdSql;
     protected String _count;
+    protected String _selectIdSql;
 
     protected Field _idField;
 
@@ -147,6 +159,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected Map<String, Attribute> _allAttributes;
     protected List<Attribute> _ecAttributes;
     protected Map<Pair<String, String>, Attribute> _allColumns;
+    protected final Map<String, RowMapper> _rowMappers = new ConcurrentHashMap<String, RowMapper>();
+    protected final ThreadLocal<Pair<WeakReference<ResultSet>, RowMapper>> _currentRowMapper = new ThreadLocal<Pair<WeakReference<ResultSet>, RowMapper>>();
     protected Enhancer _enhancer;
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
@@ -159,6 +173,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected static final String SELECT_LAST_INSERT_ID_SQL = "SELECT LAST_INSERT_ID()";
 
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
+    protected static final Random s_random = new Random();
+    /* Pivots lockOneRandomRow() draws before it keeps a row whatever the gap in front of it */
+    protected static final int RANDOM_ROW_PROBES = 32;
 
     public static <J> GenericDao<? extends J, ? extends Serializable> getDao(Class<J> entityType) {
         @SuppressWarnings("unchecked")
@@ -216,6 +233,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         _idAttributes = generator.getIdAttributes();
         _idField = _idAttributes.get(_table).length > 0 ? _idAttributes.get(_table)[0].field : null;
+        _selectIdSql = _idField != null ? generator.buildSelectSql(new Attribute[] { _idAttributes.get(_table)[0] }).first().toString() : null;
 
         _tables = generator.buildTableReferences();
 
@@ -316,13 +334,218 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return search(sc, filter, exclusive, false);
     }
 
+    /**
+     * Picks a random row without counting or sorting the result set.  A
+     * pivot is drawn uniformly between the smallest and largest id of the
+     * table and the first matching id at or after it is found by walking the
+     * primary key, wrapping around to the start if there is none.  The pivot
+     * lands on a row in proportion to the gap of non matching ids in front
+     * of it, so the row is only kept with a probability of one over that gap
+     * and a new pivot is drawn otherwise, which makes every matching row
+     * equally likely.  After RANDOM_ROW_PROBES pivots the row is kept
+     * whatever its gap, so picks from pools that are almost used up lean
+     * towards the rows after long gaps rather than taking ever longer.
+     * 
+     * The row is locked with the same walk, so if another transaction took
+     * it in the meantime the next matching row is locked instead.  Only
+     * criteria the walk can't express (joins, group by, custom selects,
+     * ids that aren't numbers) are still picked with ORDER BY RAND().
+     */
     @Override @DB(txn=false)
     public T lockOneRandomRow(final SearchCriteria<T> sc, final boolean exclusive) {
+        if (!canProbeRandomRow(sc)) {
+            return lockOneRandomRowBySort(sc, exclusive);
+        }
+
+        final Pair<Long, Long> range = getIdRange();
+        if (range == null) {
+            return null;
+        }
+        final long min = range.first();
+        final long max = range.second();
+        final long span = max - min + 1;
+
+        for (int probe = 1; ; probe++) {
+            Long id = findMatchingId(sc, min + nextRandom(span), true);
+            if (id == null) {
+                id = findMatchingId(sc, min, true);
+                if (id == null) {
+                    return null;
+                }
+            }
+
+            if (probe < RANDOM_ROW_PROBES) {
+                Long previous = findMatchingId(sc, id - 1, false);
+                if (previous == null) {
+                    previous = findMatchingId(sc, max, false);
+                }
+                final long gap = previous == null ? 1 : (id > previous ? id - previous : id - previous + span);
+                if (nextRandom(gap) != 0) {
+                    continue;
+                }
+            }
+
+            T bean = lockMatchingRow(sc, id, exclusive);
+            if (bean == null) {
+                // Everything from the id up has been taken since.
+                bean = lockMatchingRow(sc, min, exclusive);
+            }
+            return bean;
+        }
+    }
+
+    @DB(txn=false)
+    protected T lockOneRandomRowBySort(final SearchCriteria<T> sc, final boolean exclusive) {
         final Filter filter = new Filter(1);
         final List<T> beans = search(sc, filter, exclusive, true);
         return beans.isEmpty() ? null : beans.get(0);
     }
 
+    protected boolean canProbeRandomRow(final SearchCriteria<T> sc) {
+        if (_selectIdSql == null || _idField.getAnnotation(EmbeddedId.class) != null) {
+            return false;
+        }
+
+        final Class<?> type = _idField.getType();
+        if (type != long.class && type != Long.class && type != int.class && type != Integer.class) {
+            return false;
+        }
+
+        if (sc == null) {
+            return true;
+        }
+
+        final Collection<JoinBuilder<SearchCriteria<?>>> joins = sc.getJoins();
+        return sc.isSelectAll() && (joins == null || joins.isEmpty()) && sc.getGroupBy() == null;
+    }
+
+    protected static long nextRandom(final long bound) {
+        if (bound <= Integer.MAX_VALUE) {
+            return s_random.nextInt((int)bound);
+        }
+        return (s_random.nextLong() >>> 1) % bound;
+    }
+
+    protected String getIdColumn() {
+        return _table + "." + DbUtil.getColumnName(_idField, null);
+    }
+
+    /**
+     * @return the smallest and largest id in the table, read off the primary
+     * key, or null if the table is empty.
+     */
+    @DB(txn=false)
+    protected Pair<Long, Long> getIdRange() {
+        final String idColumn = getIdColumn();
+        final String sql = "SELECT MIN(" + idColumn + "), MAX(" + idColumn + ") FROM " + _table;
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            final ResultSet rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            final long min = rs.getLong(1);
+            if (rs.wasNull()) {
+                return null;
+            }
+            return new Pair<Long, Long>(min, rs.getLong(2));
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+    }
+
+    /**
+     * Appends the search criteria, and the removed check every other search
+     * adds, followed by the AND of the id condition.  The criteria passed in
+     * are left as they are.
+     */
+    protected void appendRandomRowClause(final StringBuilder str, final SearchCriteria<T> sc) {
+        final String clause = sc != null ? sc.getWhereClause() : null;
+        if (clause != null && clause.length() > 0) {
+            str.append("(").append(clause).append(") AND ");
+        }
+        if (_removed != null) {
+            str.append(_removed.first()).append("AND ");
+        }
+    }
+
+    protected String buildMatchingIdSql(final SearchCriteria<T> sc, final boolean ascending) {
+        final String idColumn = getIdColumn();
+        final StringBuilder str = new StringBuilder(_selectIdSql);
+        appendRandomRowClause(str, sc);
+        str.append(idColumn).append(ascending ? " >= ?" : " <= ?");
+        str.append(" ORDER BY ").append(idColumn).append(ascending ? " ASC" : " DESC").append(" LIMIT 1");
+        return str.toString();
+    }
+
+    protected String buildLockMatchingRowSql(final SearchCriteria<T> sc, final boolean exclusive) {
+        final String idColumn = getIdColumn();
+        final StringBuilder str = createPartialSelectSql(null, true);
+        appendRandomRowClause(str, sc);
+        str.append(idColumn).append(" >= ? ORDER BY ").append(idColumn).append(" LIMIT 1");
+        str.append(exclusive ? FOR_UPDATE_CLAUSE : SHARE_MODE_CLAUSE);
+        return str.toString();
+    }
+
+    protected int prepareRandomRowValues(final PreparedStatement pstmt, final SearchCriteria<T> sc) throws SQLException {
+        int i = 0;
+        if (sc != null) {
+            for (final Pair<Attribute, Object> value : sc.getValues()) {
+                prepareAttribute(++i, pstmt, value.first(), value.second());
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return the first matching id at or after from, or the last one at or
+     * before it if ascending is false.  Nothing is locked.
+     */
+    @DB(txn=false)
+    protected Long findMatchingId(final SearchCriteria<T> sc, final long from, final boolean ascending) {
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(buildMatchingIdSql(sc, ascending));
+            pstmt.setLong(prepareRandomRowValues(pstmt, sc) + 1, from);
+
+            final ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : null;
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+    }
+
+    /**
+     * Locks the first row at or after from that matches the search criteria.
+     */
+    @DB(txn=false)
+    protected T lockMatchingRow(final SearchCriteria<T> sc, final long from, final boolean exclusive) {
+        final Transaction txn = Transaction.currentTxn();
+        assert (txn.dbTxnStarted() == true) : "As nice as I can here now....how do you lock when there's no DB transaction?  Review your db 101 course from college.";
+
+        final String sql = buildLockMatchingRowSql(sc, exclusive);
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(prepareRandomRowValues(pstmt, sc) + 1, from);
+
+            if (s_logger.isDebugEnabled()) {
+                txn.registerLock(pstmt.toString());
+            }
+            final ResultSet rs = pstmt.executeQuery();
+            getRowMapper(sql, rs);
+            return rs.next() ? toEntityBean(rs, true) : null;
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (final Throwable e) {
+            throw new CloudRuntimeException("Caught: " + pstmt, e);
+        }
+    }
+
     @DB(txn=false)
     protected List<T> search(SearchCriteria<T> sc, final Filter filter, final Boolean lock, final boolean cache) {
         if (_removed != null) {
@@ -407,6 +630,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 txn.registerLock(pstmt.toString());
             }
             final ResultSet rs = pstmt.executeQuery();
+            getRowMapper(sql, rs);
             while (rs.next()) {
                 result.add(toEntityBean(rs, cache));
             }
@@ -504,14 +728,19 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB(txn=false)
     protected void setField(Object entity, Field field, ResultSet rs, int index) throws SQLException {
+        setField(entity, new ColumnMapping(field), rs, index);
+    }
+
+    @DB(txn=false)
+    protected void setField(Object entity, ColumnMapping column, ResultSet rs, int index) throws SQLException {
+        final Field field = column.getField();
         try {
-            final Class<?> type = field.getType();
+            final Class<?> type = column.getType();
             if (type == String.class) {
                 byte[] bytes = rs.getBytes(index);
                 if(bytes != null) {
                     try {
-                        Encrypt encrypt = field.getAnnotation(Encrypt.class);
-                        if (encrypt != null && encrypt.encrypt()){
+                        if (column.isEncrypted()){
                             field.set(entity, DBEncryptionUtil.decrypt(new String(bytes, "UTF-8")));
                         } else {
                             field.set(entity, new String(bytes, "UTF-8"));
@@ -535,16 +764,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                     field.set(entity, rs.getLong(index));
                 }
             } else if (type.isEnum()) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
-                final Enum<?>[] enums =  (Enum<?>[])field.getType().getEnumConstants();
-                for (final Enum<?> e : enums) {
-                    if ((enumType == EnumType.STRING && e.name().equalsIgnoreCase(rs.getString(index))) ||
-                            (enumType == EnumType.ORDINAL && e.ordinal() == rs.getInt(index))) {
-                        field.set(entity, e);
-                        return;
-                    }
+                final Enum<?> e = column.getEnumType() == EnumType.STRING ? column.toEnum(rs.getString(index)) : column.toEnum(rs.getInt(index));
+                if (e != null) {
+                    field.set(entity, e);
                 }
             } else if (type == int.class) {
                 field.set(entity, rs.getInt(index));
@@ -593,11 +815,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                     throw new CloudRuntimeException("Invalid URL: " + rs.getString(index), e);
                 }
             } else if (type == Ip.class) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
                 Ip ip = null;
-                if (enumType == EnumType.STRING) {
+                if (column.getEnumType() == EnumType.STRING) {
                     String s = rs.getString(index);
                     ip = s == null ? null : new Ip(NetUtils.ip2Long(s));
                 } else {
@@ -1083,6 +1302,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             final ResultSet rs = pstmt.executeQuery();
+            getRowMapper(sql, rs);
             while (rs.next()) {
                 result.add(toEntityBean(rs, true));
             }
@@ -1385,6 +1605,263 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         txn.commit();
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public void persistBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return;
+        }
+
+        final Map<ID, T> enhanced = new LinkedHashMap<ID, T>();
+        final List<T> fresh = new ArrayList<T>(entities.size());
+        for (T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass()) && _idField != null) {
+                try {
+                    enhanced.put((ID)_idField.get(entity), entity);
+                } catch (IllegalAccessException e) {
+                    throw new CloudRuntimeException("How can it be illegal access...come on", e);
+                }
+            } else {
+                fresh.add(entity);
+            }
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        txn.start();
+        if (!enhanced.isEmpty()) {
+            updateBatch(enhanced);
+        }
+        if (fresh.isEmpty()) {
+            txn.commit();
+            return;
+        }
+
+        final List<ID> ids = new ArrayList<ID>(fresh.size());
+        PreparedStatement pstmt = null;
+        try {
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+                pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+
+                for (int from = 0; from < fresh.size(); from += BATCH_SIZE) {
+                    final List<T> chunk = fresh.subList(from, Math.min(from + BATCH_SIZE, fresh.size()));
+                    for (T entity : chunk) {
+                        prepareAttributes(pstmt, entity, attrs, 1);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+
+                    // The first insert is the one on the primary table; the
+                    // secondary tables pick the id up from the entity.
+                    if (ids.size() < fresh.size()) {
+                        assignIds(pstmt.getGeneratedKeys(), chunk, ids);
+                    }
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                final List<Pair<ID, Map<Attribute, Object>>> changes = new ArrayList<Pair<ID, Map<Attribute, Object>>>(fresh.size());
+                for (int i = 0; i < fresh.size(); i++) {
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(fresh.get(i));
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+                    if (!ecAttributes.isEmpty()) {
+                        changes.add(new Pair<ID, Map<Attribute, Object>>(ids.get(i), ecAttributes));
+                    }
+                }
+
+                insertElementCollections(_idAttributes.get(_table)[0], changes);
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        }
+
+        if (_cache != null) {
+            for (ID id : ids) {
+                if (id != null) {
+                    _cache.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the generated keys of a batch on its entities.  The driver returns
+     * one key per row only when every row got an auto-generated id; otherwise
+     * the ids are expected to have been filled in by the caller.
+     */
+    @SuppressWarnings("unchecked")
+    protected void assignIds(final ResultSet rs, final List<T> chunk, final List<ID> ids) throws SQLException {
+        final List<ID> keys = new ArrayList<ID>(chunk.size());
+        while (rs != null && rs.next()) {
+            keys.add((ID)rs.getObject(1));
+        }
+
+        try {
+            for (int i = 0; i < chunk.size(); i++) {
+                T entity = chunk.get(i);
+                ID id = null;
+                if (_idField != null) {
+                    if (keys.size() == chunk.size()) {
+                        id = keys.get(i);
+                        _idField.set(entity, id);
+                    } else {
+                        id = (ID)_idField.get(entity);
+                    }
+                }
+                ids.add(id);
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+    }
+
+    /**
+     * Batched version of insertElementCollection() for several rows at once.
+     * All clears for a collection go out before any of its inserts.
+     */
+    protected void insertElementCollections(final Attribute idAttribute, final List<Pair<ID, Map<Attribute, Object>>> changes) throws SQLException {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        for (Attribute attr : _ecAttributes) {
+            EcInfo ec = (EcInfo)attr.attache;
+            PreparedStatement clear = null;
+            PreparedStatement insert = null;
+            for (Pair<ID, Map<Attribute, Object>> change : changes) {
+                if (!change.second().containsKey(attr)) {
+                    continue;
+                }
+                Object obj = change.second().get(attr);
+                if (clear == null) {
+                    clear = txn.prepareAutoCloseStatement(ec.clearSql);
+                    insert = txn.prepareAutoCloseStatement(ec.insertSql);
+                }
+                prepareAttribute(1, clear, idAttribute, change.first());
+                clear.addBatch();
+
+                if (obj == null) {
+                    continue;
+                }
+                Enumeration en = null;
+                if (ec.rawClass == null) {
+                    en = Collections.enumeration(Arrays.asList((Object[])obj));
+                } else {
+                    en = Collections.enumeration((Collection)obj);
+                }
+                while (en.hasMoreElements()) {
+                    if (ec.targetClass == Date.class) {
+                        insert.setString(1, DateUtil.getDateDisplayString(s_gmtTimeZone, (Date)en.nextElement()));
+                    } else {
+                        insert.setObject(1, en.nextElement());
+                    }
+                    prepareAttribute(2, insert, idAttribute, change.first());
+                    insert.addBatch();
+                }
+            }
+            if (clear != null) {
+                clear.executeBatch();
+                insert.executeBatch();
+            }
+        }
+        txn.commit();
+    }
+
+    @Override
+    public int updateBatch(final Map<ID, T> entities) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        // Each UpdateBuilder only carries the columns that changed, so rows are
+        // grouped by the statement they produce and each group is one batch.
+        final Attribute idAttribute = _idAttributes.get(_table)[0];
+        final Map<String, List<Pair<ID, UpdateBuilder>>> batches = new LinkedHashMap<String, List<Pair<ID, UpdateBuilder>>>();
+        final List<Pair<ID, Map<Attribute, Object>>> ecChanges = new ArrayList<Pair<ID, Map<Attribute, Object>>>();
+        String whereClause = null;
+        for (Map.Entry<ID, T> entry : entities.entrySet()) {
+            assert Enhancer.isEnhanced(entry.getValue().getClass()) : "Entity is not generated by this dao";
+            if (_cache != null) {
+                _cache.remove(entry.getKey());
+            }
+
+            UpdateBuilder ub = getUpdateBuilder(entry.getValue());
+            if (ub.getCollectionChanges() != null) {
+                ecChanges.add(new Pair<ID, Map<Attribute, Object>>(entry.getKey(), ub.getCollectionChanges()));
+            }
+
+            StringBuilder sql = ub.toSql(_tables);
+            if (sql == null) {
+                continue;
+            }
+            if (whereClause == null) {
+                SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(idAttribute, SearchCriteria.Op.EQ, entry.getKey());
+                whereClause = sc.getWhereClause();
+            }
+            sql.append(whereClause);
+
+            List<Pair<ID, UpdateBuilder>> batch = batches.get(sql.toString());
+            if (batch == null) {
+                batch = new ArrayList<Pair<ID, UpdateBuilder>>();
+                batches.put(sql.toString(), batch);
+            }
+            batch.add(new Pair<ID, UpdateBuilder>(entry.getKey(), ub));
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        int rowsUpdated = 0;
+        try {
+            txn.start();
+            insertElementCollections(idAttribute, ecChanges);
+
+            for (Map.Entry<String, List<Pair<ID, UpdateBuilder>>> batch : batches.entrySet()) {
+                pstmt = txn.prepareAutoCloseStatement(batch.getKey());
+                List<Pair<ID, UpdateBuilder>> rows = batch.getValue();
+                for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+                    for (Pair<ID, UpdateBuilder> row : rows.subList(from, Math.min(from + BATCH_SIZE, rows.size()))) {
+                        int i = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : row.second().getChanges()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.third());
+                        }
+                        prepareAttribute(i, pstmt, idAttribute, row.first());
+                        pstmt.addBatch();
+                    }
+                    for (int count : pstmt.executeBatch()) {
+                        rowsUpdated += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                }
+                for (Pair<ID, UpdateBuilder> row : rows) {
+                    row.second().clear();
+                }
+            }
+            txn.commit();
+            return rowsUpdated;
+        } catch (final SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+    }
+
     @DB(txn=false)
     protected Object generateValue(final Attribute attr) {
         if (attr.is(Attribute.Flag.Created) || attr.is(Attribute.Flag.Removed)) {
@@ -1572,9 +2049,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB(txn=false)
     protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
-        ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
+        RowMapper mapper = getRowMapper(result);
+        for (int index = 1, max = mapper.getColumnCount(); index <= max; index++) {
+            setField(entity, mapper.getColumn(index), result, index);
         }
         for (Attribute attr : _ecAttributes) {
             loadCollection(entity, attr);
@@ -1685,16 +2162,72 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB(txn=false)
     protected void setField(final Object entity, final ResultSet rs, ResultSetMetaData meta, final int index) throws SQLException {
+        Attribute attr = findColumnAttribute(meta, index);
+        assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
+        setField(entity, attr.field, rs, index);
+    }
+
+    @DB(txn=false)
+    protected Attribute findColumnAttribute(ResultSetMetaData meta, int index) throws SQLException {
         Attribute attr = _allColumns.get(new Pair<String, String>(meta.getTableName(index), meta.getColumnName(index)));
         if ( attr == null ){
             // work around for mysql bug to return original table name instead of view name in db view case
-            Table tbl = entity.getClass().getSuperclass().getAnnotation(Table.class);
+            Table tbl = _entityBeanType.getAnnotation(Table.class);
             if ( tbl != null ){
                 attr = _allColumns.get(new Pair<String, String>(tbl.name(), meta.getColumnLabel(index)));
             }
         }
-        assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
-        setField(entity, attr.field, rs, index);
+        return attr;
+    }
+
+    /**
+     * Resolves every column of the result set to its attribute.  This is the
+     * only place that reads the ResultSetMetaData on the select path.
+     */
+    @DB(txn=false)
+    protected RowMapper compileRowMapper(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        ColumnMapping[] columns = new ColumnMapping[meta.getColumnCount()];
+        for (int index = 1; index <= columns.length; index++) {
+            Attribute attr = findColumnAttribute(meta, index);
+            if (attr == null) {
+                throw new CloudRuntimeException("How come I can't find " + meta.getTableName(index) + "." + meta.getColumnName(index) + " in " + _entityBeanType);
+            }
+            columns[index - 1] = new ColumnMapping(attr.field);
+        }
+        return new RowMapper(columns);
+    }
+
+    /**
+     * @return the mapper for the result set currently being read on this
+     * thread, compiling one if the result set has not been seen before.
+     */
+    @DB(txn=false)
+    protected RowMapper getRowMapper(ResultSet rs) throws SQLException {
+        Pair<WeakReference<ResultSet>, RowMapper> current = _currentRowMapper.get();
+        if (current != null && current.first().get() == rs) {
+            return current.second();
+        }
+        RowMapper mapper = compileRowMapper(rs);
+        _currentRowMapper.set(new Pair<WeakReference<ResultSet>, RowMapper>(new WeakReference<ResultSet>(rs), mapper));
+        return mapper;
+    }
+
+    /**
+     * Same as getRowMapper(ResultSet) but the mapper is also kept for the
+     * statement so later executions of it skip the metadata entirely.
+     */
+    @DB(txn=false)
+    protected RowMapper getRowMapper(String sql, ResultSet rs) throws SQLException {
+        RowMapper mapper = _rowMappers.get(sql);
+        if (mapper == null) {
+            mapper = compileRowMapper(rs);
+            if (_rowMappers.size() < MAX_ROW_MAPPERS) {
+                _rowMappers.put(sql, mapper);
+            }
+        }
+        _currentRowMapper.set(new Pair<WeakReference<ResultSet>, RowMapper>(new WeakReference<ResultSet>(rs), mapper));
+        return mapper;
     }
 
     @Override
@@ -20,12 +20,18 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.StandardMBean;
 
@@ -36,7 +42,14 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 
-
+/**
+ * Merovingian2 hands out the global locks.  The op_lock table is the source
+ * of truth for who owns a lock.  Threads waiting for a lock wait on an in
+ * memory monitor for the key which is signalled when the lock is released on
+ * this server, or when a peer server, told through the PeerNotifier that we
+ * are waiting, reports that it released the lock.  The table is still
+ * rechecked every WAIT_INTERVAL in case a notification got lost.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
@@ -52,6 +65,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    private static final long WAIT_INTERVAL = 5000;
+    private static final int MAX_WAIT_STATS_KEYS = 1000;
+    private static final String OTHER_KEYS = "*others*";
+
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -60,6 +77,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private final ConcurrentHashMap<String, KeyMonitor> _monitors = new ConcurrentHashMap<String, KeyMonitor>();
+    private final ConcurrentHashMap<String, Set<Long>> _peerWaiters = new ConcurrentHashMap<String, Set<Long>>();
+    private final ConcurrentHashMap<String, WaitStats> _waitStats = new ConcurrentHashMap<String, WaitStats>();
+    private volatile PeerNotifier _peerNotifier;
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -112,40 +134,186 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
 
+    public void setPeerNotifier(PeerNotifier notifier) {
+        _peerNotifier = notifier;
+    }
+
     public boolean acquire(String key, int timeInSeconds) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
+        String msId = Long.toString(_msId);
+        String tid = Integer.toString(threadId);
 
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeInSeconds * 1000L;
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+        KeyMonitor monitor = enter(key);
+        try {
+            long notified = -1;
+            while (true) {
+                long generation = monitor.generation;
+                Map<String, String> owner = isLocked(key);
+                if (owner == null) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        recordWait(key, System.currentTimeMillis() - startTime, true);
+                        return true;
+                    }
+                } else if (owner.get("mgmt").equals(msId) && owner.get("tid").equals(tid)) {
+                    return increment(key, threadName, threadId);
+                } else if (!owner.get("mgmt").equals(msId) && notified != generation) {
+                    // Ask the owner to tell us when it lets go.
+                    PeerNotifier notifier = _peerNotifier;
+                    if (notifier != null) {
+                        notifier.waitingFor(key, Long.parseLong(owner.get("mgmt")));
+                    }
+                    notified = generation;
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
                 }
-            }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                try {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Waiting more time for lck-" + key);
+                    }
+                    monitor.await(generation, Math.min(remaining, WAIT_INTERVAL));
+                } catch (InterruptedException e) {
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
             }
+        } finally {
+            exit(key, monitor);
         }
+        recordWait(key, System.currentTimeMillis() - startTime, false);
         if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
+            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (System.currentTimeMillis() - startTime));
         }
         return false;
     }
 
+    /**
+     * A peer is waiting for a lock this server holds.  It is told when the
+     * lock is released.
+     */
+    public void peerWaiting(String key, long msId) {
+        Set<Long> peers;
+        while (true) {
+            peers = _peerWaiters.get(key);
+            if (peers == null) {
+                peers = Collections.synchronizedSet(new HashSet<Long>());
+                Set<Long> existing = _peerWaiters.putIfAbsent(key, peers);
+                if (existing != null) {
+                    peers = existing;
+                }
+            }
+            synchronized (peers) {
+                // Not dropped as empty by another peerWaiting() in the meantime
+                if (_peerWaiters.get(key) == peers) {
+                    peers.add(msId);
+                    break;
+                }
+            }
+        }
+
+        Map<String, String> owner = isLocked(key);
+        if (owner == null || !owner.get("mgmt").equals(Long.toString(_msId))) {
+            // Released before the peer's message got here.
+            synchronized (peers) {
+                peers.remove(msId);
+                if (peers.isEmpty()) {
+                    _peerWaiters.remove(key, peers);
+                }
+            }
+            PeerNotifier notifier = _peerNotifier;
+            if (notifier != null) {
+                notifier.released(key, Collections.singletonList(msId));
+            }
+        }
+    }
+
+    /**
+     * A peer released a lock that threads on this server are waiting for.
+     */
+    public void peerReleased(String key) {
+        signal(key);
+    }
+
+    protected void released(String key) {
+        signal(key);
+        Set<Long> peers = _peerWaiters.remove(key);
+        PeerNotifier notifier = _peerNotifier;
+        if (peers != null && notifier != null) {
+            List<Long> msIds;
+            synchronized (peers) {
+                msIds = new ArrayList<Long>(peers);
+            }
+            notifier.released(key, msIds);
+        }
+    }
+
+    protected KeyMonitor enter(String key) {
+        while (true) {
+            KeyMonitor monitor = _monitors.get(key);
+            if (monitor == null) {
+                monitor = new KeyMonitor();
+                KeyMonitor existing = _monitors.putIfAbsent(key, monitor);
+                if (existing != null) {
+                    monitor = existing;
+                }
+            }
+            synchronized (monitor) {
+                if (!monitor.removed) {
+                    monitor.waiters++;
+                    return monitor;
+                }
+            }
+        }
+    }
+
+    protected void exit(String key, KeyMonitor monitor) {
+        synchronized (monitor) {
+            if (--monitor.waiters == 0) {
+                monitor.removed = true;
+                _monitors.remove(key, monitor);
+            }
+        }
+    }
+
+    protected void signal(String key) {
+        KeyMonitor monitor = _monitors.get(key);
+        if (monitor != null) {
+            monitor.signal();
+        }
+    }
+
+    protected void signalAll() {
+        for (KeyMonitor monitor : _monitors.values()) {
+            monitor.signal();
+        }
+    }
+
+    protected void recordWait(String key, long waited, boolean acquired) {
+        WaitStats stats = _waitStats.get(key);
+        if (stats == null) {
+            if (_waitStats.size() >= MAX_WAIT_STATS_KEYS) {
+                key = OTHER_KEYS;
+                stats = _waitStats.get(key);
+            }
+            if (stats == null) {
+                stats = new WaitStats();
+                WaitStats existing = _waitStats.putIfAbsent(key, stats);
+                if (existing != null) {
+                    stats = existing;
+                }
+            }
+        }
+        stats.record(waited, acquired);
+    }
+
     protected boolean increment(String key, String threadName, int threadId) {
         PreparedStatement pstmt = null;
         try {
@@ -257,6 +425,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (rows > 0) {
+                signalAll();
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -293,8 +464,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 pstmt.setString(1, key);
                 pstmt.setLong(2, _msId);
                 int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
-                    s_logger.trace("lck-" + key + " removed");
+                if (result == 1) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " removed");
+                    }
+                    released(key);
                 }
                 decrCount();
             } else  if (rows < 1) {
@@ -369,6 +543,22 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return getLocks(SELECT_MGMT_LOCKS_SQL, _msId);
     }
 
+    @Override
+    public List<Map<String, String>> getLockWaitTimes() {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>(_waitStats.size());
+        for (Map.Entry<String, WaitStats> entry : _waitStats.entrySet()) {
+            Map<String, String> map = entry.getValue().toMap();
+            map.put("key", entry.getKey());
+            results.add(map);
+        }
+        return results;
+    }
+
+    @Override
+    public void resetLockWaitTimes() {
+        _waitStats.clear();
+    }
+
     public int owns(String key) {
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
@@ -449,6 +639,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                released(key);
+            }
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
@@ -458,4 +651,79 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * Carries the lock notifications to the other management servers.
+     */
+    public interface PeerNotifier {
+        /**
+         * Tells the server owning the lock that this server is waiting for it.
+         */
+        void waitingFor(String key, long ownerMsId);
+
+        /**
+         * Tells the waiting servers that the lock has been released.
+         */
+        void released(String key, Collection<Long> waitingMsIds);
+    }
+
+    protected static class KeyMonitor {
+        volatile long generation = 0;
+        int waiters = 0;
+        boolean removed = false;
+
+        public synchronized void await(long seen, long timeout) throws InterruptedException {
+            if (generation == seen) {
+                wait(timeout);
+            }
+        }
+
+        public synchronized void signal() {
+            generation++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Histogram of the time spent in acquire() for one key.
+     */
+    protected static class WaitStats {
+        static final long[] BOUNDS = {1, 10, 100, 1000, 5000, 30000};
+        static final String[] NAMES = {"<=1ms", "<=10ms", "<=100ms", "<=1s", "<=5s", "<=30s", ">30s"};
+
+        final long[] buckets = new long[BOUNDS.length + 1];
+        long acquired = 0;
+        long timedOut = 0;
+        long total = 0;
+        long max = 0;
+
+        public synchronized void record(long waited, boolean success) {
+            int i = 0;
+            while (i < BOUNDS.length && waited > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i]++;
+            if (success) {
+                acquired++;
+            } else {
+                timedOut++;
+            }
+            total += waited;
+            if (waited > max) {
+                max = waited;
+            }
+        }
+
+        public synchronized Map<String, String> toMap() {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("acquired", Long.toString(acquired));
+            map.put("timedOut", Long.toString(timedOut));
+            map.put("avgMs", Long.toString(total / Math.max(1, acquired + timedOut)));
+            map.put("maxMs", Long.toString(max));
+            for (int i = 0; i < buckets.length; i++) {
+                map.put(NAMES[i], Long.toString(buckets[i]));
+            }
+            return map;
+        }
+    }
 }
@@ -29,4 +29,11 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+
+    /**
+     * @return for every key, how long acquiring it took and how often it timed out.
+     */
+    List<Map<String, String>> getLockWaitTimes();
+
+    void resetLockWaitTimes();
 }
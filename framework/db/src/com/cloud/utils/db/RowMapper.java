@@ -0,0 +1,112 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+/**
+ * The columns of a result set resolved to the fields of an entity.  It is
+ * built once per select statement so that reading a row does not need to go
+ * back to the ResultSetMetaData or the field annotations.
+ */
+public class RowMapper {
+    protected final ColumnMapping[] _columns;
+
+    public RowMapper(ColumnMapping[] columns) {
+        _columns = columns;
+    }
+
+    public int getColumnCount() {
+        return _columns.length;
+    }
+
+    /**
+     * @param index 1-based column index as in ResultSet.
+     */
+    public ColumnMapping getColumn(int index) {
+        return _columns[index - 1];
+    }
+
+    public static class ColumnMapping {
+        protected final Field _field;
+        protected final Class<?> _type;
+        protected final boolean _encrypted;
+        protected final EnumType _enumType;
+        protected final Enum<?>[] _enums;
+        protected final Map<String, Enum<?>> _enumsByName;
+
+        public ColumnMapping(Field field) {
+            _field = field;
+            _type = field.getType();
+
+            Encrypt encrypt = field.getAnnotation(Encrypt.class);
+            _encrypted = encrypt != null && encrypt.encrypt();
+
+            Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            _enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
+
+            if (_type.isEnum()) {
+                _enums = (Enum<?>[])_type.getEnumConstants();
+                _enumsByName = new HashMap<String, Enum<?>>(_enums.length * 2);
+                for (Enum<?> e : _enums) {
+                    // First one wins, same as a linear equalsIgnoreCase() scan.
+                    String key = e.name().toUpperCase(Locale.ENGLISH);
+                    if (!_enumsByName.containsKey(key)) {
+                        _enumsByName.put(key, e);
+                    }
+                }
+            } else {
+                _enums = null;
+                _enumsByName = null;
+            }
+        }
+
+        public Field getField() {
+            return _field;
+        }
+
+        public Class<?> getType() {
+            return _type;
+        }
+
+        public boolean isEncrypted() {
+            return _encrypted;
+        }
+
+        public EnumType getEnumType() {
+            return _enumType;
+        }
+
+        /**
+         * @return the enum constant stored in the column; null if it does not
+         * match any of them.
+         */
+        public Enum<?> toEnum(String name) {
+            return name == null ? null : _enumsByName.get(name.toUpperCase(Locale.ENGLISH));
+        }
+
+        public Enum<?> toEnum(int ordinal) {
+            return ordinal >= 0 && ordinal < _enums.length ? _enums[ordinal] : null;
+        }
+    }
+}
@@ -21,11 +21,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.TableGenerator;
 
@@ -40,11 +42,23 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
  * 
  * allocation size.
  *
+ * When the allocation size of a TableGenerator is more than 1, a whole
+ * block of that many values is reserved in the table in one go and handed
+ * out from memory until it runs out.  The table row is still updated under
+ * a row lock, so blocks reserved by different management servers never
+ * overlap.  Values are no longer handed out in strict order across
+ * management servers, and whatever is left of a block is skipped when the
+ * management server restarts.  The allocation size can be overridden with
+ * the system property db.sequence.<generator name>.allocation.size.
+ *
  */
 public class SequenceFetcher {
     private final static Logger s_logger = Logger.getLogger(SequenceFetcher.class);
     ExecutorService _executors;
     private final static Random random = new Random();
+
+    private final ConcurrentHashMap<String, Block> _blocks = new ConcurrentHashMap<String, Block>();
+    private final ConcurrentHashMap<String, Object> _blockLocks = new ConcurrentHashMap<String, Object>();
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg) {
         return getNextSequence(clazz, tg, null, false);
@@ -59,7 +73,15 @@ public class SequenceFetcher {
     }
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
-        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom));
+        int allocationSize = getAllocationSize(tg);
+        if (!isRandom && allocationSize > 1) {
+            return getNextInBlock(clazz, tg, key, allocationSize);
+        }
+        return fetch(clazz, tg, key, isRandom, allocationSize);
+    }
+
+    protected <T> T fetch(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int allocationSize) {
+        Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom, allocationSize));
         try {
             return future.get();
         } catch (Exception e) {
@@ -67,6 +89,73 @@ public class SequenceFetcher {
             return null;
         }
     }
+
+    protected int getAllocationSize(TableGenerator tg) {
+        return Math.max(Integer.getInteger("db.sequence." + tg.name() + ".allocation.size", tg.allocationSize()), 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> T getNextInBlock(Class<T> clazz, TableGenerator tg, Object key, int allocationSize) {
+        String name = tg.table() + "." + tg.valueColumnName() + "." + (key == null ? tg.pkColumnValue() : key.toString());
+        while (true) {
+            Block block = _blocks.get(name);
+            if (block != null) {
+                long value = block.take();
+                if (value >= 0) {
+                    if (clazz.isAssignableFrom(Integer.class)) {
+                        return (T)Integer.valueOf((int)value);
+                    }
+                    return (T)Long.valueOf(value);
+                }
+            }
+
+            // only one thread reserves the next block of a sequence, the others wait for it
+            Object lock = _blockLocks.get(name);
+            if (lock == null) {
+                Object existing = _blockLocks.putIfAbsent(name, lock = new Object());
+                if (existing != null) {
+                    lock = existing;
+                }
+            }
+            synchronized (lock) {
+                if (_blocks.get(name) != block) {
+                    continue;
+                }
+                Long start = fetch(Long.class, tg, key, false, allocationSize);
+                if (start == null) {
+                    return null;
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Reserved " + name + " values " + start + " to " + (start + allocationSize - 1));
+                }
+                _blocks.put(name, new Block(start, start + allocationSize));
+            }
+        }
+    }
+
+    /**
+     * A range of values reserved in the sequence table, handed out in order.
+     */
+    protected static class Block {
+        private final AtomicLong _next;
+        private final long _end;
+
+        protected Block(long start, long end) {
+            _next = new AtomicLong(start);
+            _end = end;
+        }
+
+        /**
+         * @return the next value, or -1 once the block is used up.
+         */
+        protected long take() {
+            if (_next.get() >= _end) {
+                return -1;
+            }
+            long value = _next.getAndIncrement();
+            return value < _end ? value : -1;
+        }
+    }
     
     protected SequenceFetcher() {
         _executors = new ThreadPoolExecutor(100, 100, 120l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(250), new NamedThreadFactory("SequenceFetcher"));
@@ -82,12 +171,14 @@ public class SequenceFetcher {
         Class<T> _clazz;
         Object _key;
         boolean isRandom = false;
+        int _allocationSize;
         
-        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
+        protected Fetcher(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int allocationSize) {
             _tg = tg;
             _clazz = clazz;
             _key = key;
             this.isRandom = isRandom;
+            _allocationSize = allocationSize;
         }
         
         @Override @SuppressWarnings("unchecked")
@@ -115,7 +206,7 @@ public class SequenceFetcher {
                 if(isRandom){
                 	updateStmt.setInt(2, random.nextInt(10) + 1);
                 } else {
-                	updateStmt.setInt(2, _tg.allocationSize());
+                	updateStmt.setInt(2, _allocationSize);
                 }
                 if (_key == null) {
                     updateStmt.setString(3, _tg.pkColumnValue());
@@ -53,4 +53,18 @@ public class DbTestVO {
 
     public DbTestVO() {
     }
+
+    public DbTestVO(int fieldInt, long fieldLong, String fieldString) {
+        this.fieldInt = fieldInt;
+        this.fieldLong = fieldLong;
+        this.fieldString = fieldString;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setFieldLong(long fieldLong) {
+        this.fieldLong = fieldLong;
+    }
 }
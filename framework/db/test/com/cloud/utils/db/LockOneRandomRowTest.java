@@ -0,0 +1,212 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Checks that lockOneRandomRow() only hands out matching rows and spreads
+ * its picks evenly, and compares it against the old ORDER BY RAND() query
+ * at pool sizes from 1k to 1M rows.  Like the other tests here it needs the
+ * cloud database; set -Drandom.row.sizes to change the pool sizes.
+ */
+public class LockOneRandomRowTest {
+    private static final Logger s_logger = Logger.getLogger(LockOneRandomRowTest.class);
+
+    private static final String SIZES = System.getProperty("random.row.sizes", "1000,10000,100000,1000000");
+    private static final int PICKS = Integer.getInteger("random.row.picks", 200);
+    private static final int FREE_EVERY = 10;
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test` (" + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_int` int unsigned,"
+                + "`fld_long` bigint unsigned," + "`fld_string` varchar(255)," + "PRIMARY KEY (`id`)," + "INDEX `i_test__fld_int`(`fld_int`)"
+                + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test`");
+    }
+
+    @Test
+    public void testPicksOnlyMatchingRows() {
+        DbTestDao testDao = ComponentContext.inject(DbTestDao.class);
+        populate(testDao, 1000);
+
+        Set<Long> seen = new HashSet<Long>();
+        for (int i = 0; i < 2000; i++) {
+            DbTestVO vo = pick(testDao, true);
+            Assert.assertNotNull(vo);
+            Assert.assertEquals(0, vo.getFieldInt());
+            seen.add(vo.getId());
+        }
+        // 100 free rows and 2000 picks; a fixed or heavily skewed pick would never get close.
+        Assert.assertTrue("Only " + seen.size() + " distinct rows picked", seen.size() > 80);
+    }
+
+    @Test
+    public void testPicksAreUniformWhateverTheIdGaps() {
+        DbTestDao testDao = ComponentContext.inject(DbTestDao.class);
+        truncate();
+        List<DbTestVO> vos = new ArrayList<DbTestVO>();
+        for (int i = 0; i < 100; i++) {
+            vos.add(new DbTestVO(i < 20 || i == 99 ? 0 : 1, i, "Row " + i));
+        }
+        testDao.persistBatch(vos);
+
+        // Twenty one free rows, twenty packed at the start and one after a
+        // gap of 80 ids.  The first row after a random pivot would be the
+        // last one four times in five; kept at one over its gap it is 1 in 21.
+        int lastPicked = 0;
+        for (int i = 0; i < 2100; i++) {
+            DbTestVO vo = pick(testDao, true);
+            Assert.assertNotNull(vo);
+            if (vo.getFieldLong() == 99) {
+                lastPicked++;
+            }
+        }
+        Assert.assertTrue("Row after the gap picked " + lastPicked + " times out of 2100", lastPicked > 50 && lastPicked < 150);
+    }
+
+    @Test
+    public void testReturnsNullWhenNothingMatches() {
+        DbTestDao testDao = ComponentContext.inject(DbTestDao.class);
+        truncate();
+        List<DbTestVO> vos = new ArrayList<DbTestVO>();
+        for (int i = 0; i < 100; i++) {
+            vos.add(new DbTestVO(i == 0 ? 0 : 1, i, "Row " + i));
+        }
+        testDao.persistBatch(vos);
+
+        // Only the lowest id is free, so it is picked every time.
+        for (int i = 0; i < 50; i++) {
+            DbTestVO vo = pick(testDao, true);
+            Assert.assertNotNull(vo);
+            Assert.assertEquals(vos.get(0).getId(), vo.getId());
+        }
+
+        SearchCriteria<DbTestVO> sc = testDao.createSearchCriteria();
+        sc.addAnd("fieldInt", SearchCriteria.Op.EQ, 2);
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            txn.start();
+            Assert.assertNull(testDao.lockOneRandomRow(sc, true));
+            txn.commit();
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testBenchmark() {
+        DbTestDao testDao = ComponentContext.inject(DbTestDao.class);
+        for (String size : SIZES.split(",")) {
+            int rows = Integer.parseInt(size.trim());
+            populate(testDao, rows);
+
+            long sort = time(testDao, false);
+            long probe = time(testDao, true);
+            s_logger.info(rows + " rows: ORDER BY RAND() " + sort / PICKS / 1000 + " us/pick, indexed probe " + probe / PICKS / 1000 + " us/pick");
+        }
+    }
+
+    protected long time(DbTestDao testDao, boolean probe) {
+        long start = System.nanoTime();
+        for (int i = 0; i < PICKS; i++) {
+            Assert.assertNotNull(pick(testDao, probe));
+        }
+        return System.nanoTime() - start;
+    }
+
+    protected DbTestVO pick(DbTestDao testDao, boolean probe) {
+        SearchCriteria<DbTestVO> sc = testDao.createSearchCriteria();
+        sc.addAnd("fieldInt", SearchCriteria.Op.EQ, 0);
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            txn.start();
+            DbTestVO vo = probe ? testDao.lockOneRandomRow(sc, true) : testDao.lockOneRandomRowBySort(sc, true);
+            txn.commit();
+            return vo;
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Fills the table with the given number of rows, one in FREE_EVERY of
+     * which matches the search the way a free ip or vnet would.
+     */
+    protected void populate(DbTestDao testDao, int rows) {
+        truncate();
+        List<DbTestVO> vos = new ArrayList<DbTestVO>();
+        for (int i = 0; i < rows; i++) {
+            vos.add(new DbTestVO(i % FREE_EVERY == 0 ? 0 : 1, i, "Row " + i));
+            if (vos.size() == 10000) {
+                testDao.persistBatch(vos);
+                vos.clear();
+            }
+        }
+        if (!vos.isEmpty()) {
+            testDao.persistBatch(vos);
+        }
+    }
+
+    protected void truncate() {
+        execute("truncate table `cloud`.`test`");
+    }
+
+    private static void execute(String sql) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = Transaction.getStandaloneConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+}
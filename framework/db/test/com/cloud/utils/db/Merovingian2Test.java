@@ -16,6 +16,11 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -73,5 +78,70 @@ public class Merovingian2Test extends TestCase {
         result = _lockMaster.release("first"+1234);
         Assert.assertTrue(result);
     }
-    
+
+    @Test
+    public void testHandoffWithoutPolling() throws Exception {
+        final String key = "handoff" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+
+        final long[] waited = new long[1];
+        final boolean[] acquired = new boolean[1];
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                acquired[0] = _lockMaster.acquire(key, 30);
+                waited[0] = System.currentTimeMillis() - start;
+                if (acquired[0]) {
+                    _lockMaster.release(key);
+                }
+            }
+        });
+        waiter.start();
+
+        Thread.sleep(500);
+        s_logger.info("Releasing the lock held by the main thread");
+        Assert.assertTrue(_lockMaster.release(key));
+        waiter.join(30000);
+
+        Assert.assertTrue(acquired[0]);
+        s_logger.info("Waiter got the lock after " + waited[0] + " ms");
+        Assert.assertTrue("Lock was not handed off without polling: " + waited[0], waited[0] < 5000);
+
+        boolean found = false;
+        for (Map<String, String> stats : _lockMaster.getLockWaitTimes()) {
+            if (key.equals(stats.get("key"))) {
+                found = true;
+                Assert.assertEquals("2", stats.get("acquired"));
+            }
+        }
+        Assert.assertTrue(found);
+    }
+
+    @Test
+    public void testPeerNotifiedOfReleasedLockOnlyOnce() {
+        final List<Long> notified = new ArrayList<Long>();
+        _lockMaster.setPeerNotifier(new Merovingian2.PeerNotifier() {
+            @Override
+            public void waitingFor(String key, long ownerMsId) {
+            }
+
+            @Override
+            public void released(String key, Collection<Long> waitingMsIds) {
+                notified.addAll(waitingMsIds);
+            }
+        });
+        try {
+            String key = "peer" + 1234;
+            // the lock isn't held, the peer is told right away
+            _lockMaster.peerWaiting(key, 5678);
+            Assert.assertEquals(1, notified.size());
+
+            Assert.assertTrue(_lockMaster.acquire(key, 5));
+            Assert.assertTrue(_lockMaster.release(key));
+            Assert.assertEquals("peer was kept as a waiter", 1, notified.size());
+        } finally {
+            _lockMaster.setPeerNotifier(null);
+        }
+    }
 }
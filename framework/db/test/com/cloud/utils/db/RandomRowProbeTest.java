@@ -0,0 +1,137 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.Pair;
+
+/**
+ * Runs lockOneRandomRow() against ids kept in memory instead of a table, so
+ * the way it picks and locks rows can be checked without a database.
+ * LockOneRandomRowTest does the same against the cloud database.
+ */
+public class RandomRowProbeTest extends TestCase {
+
+    static class ProbeDao extends DbTestDao {
+        final TreeSet<Long> matching = new TreeSet<Long>();
+        /* Rows another transaction takes between the probe and the lock */
+        final Set<Long> taken = new HashSet<Long>();
+        long min = 1;
+        long max;
+        int locks;
+
+        @Override
+        protected Pair<Long, Long> getIdRange() {
+            return max < min ? null : new Pair<Long, Long>(min, max);
+        }
+
+        @Override
+        protected Long findMatchingId(SearchCriteria<DbTestVO> sc, long from, boolean ascending) {
+            return ascending ? matching.ceiling(from) : matching.floor(from);
+        }
+
+        @Override
+        protected DbTestVO lockMatchingRow(SearchCriteria<DbTestVO> sc, long from, boolean exclusive) {
+            locks++;
+            matching.removeAll(taken);
+            Long id = matching.ceiling(from);
+            return id == null ? null : new DbTestVO(0, id, "Row " + id);
+        }
+
+        @Override
+        protected DbTestVO lockOneRandomRowBySort(SearchCriteria<DbTestVO> sc, boolean exclusive) {
+            throw new AssertionError("Fell back to ORDER BY RAND()");
+        }
+    }
+
+    public void testPicksAreUniformWhateverTheIdGaps() {
+        ProbeDao dao = new ProbeDao();
+        dao.max = 100;
+        for (long id = 1; id <= 20; id++) {
+            dao.matching.add(id);
+        }
+        dao.matching.add(100L);
+
+        // Twenty free rows packed at the start and one after a gap of 80
+        // ids, which a pivot lands on four times in five.
+        int[] picks = new int[101];
+        int rounds = 21 * 500;
+        for (int i = 0; i < rounds; i++) {
+            picks[(int)dao.lockOneRandomRow(null, true).getFieldLong()]++;
+        }
+        for (long id : dao.matching) {
+            assertTrue("Row " + id + " picked " + picks[(int)id] + " times", picks[(int)id] > 400 && picks[(int)id] < 600);
+        }
+        assertEquals(rounds, dao.locks);
+    }
+
+    public void testWrapsAroundToTheFirstRow() {
+        ProbeDao dao = new ProbeDao();
+        dao.max = 1000;
+        dao.matching.add(3L);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(3, dao.lockOneRandomRow(null, true).getFieldLong());
+        }
+    }
+
+    public void testTakenRowMovesOnToTheNextOne() {
+        ProbeDao dao = new ProbeDao();
+        dao.max = 10;
+        dao.matching.add(4L);
+        dao.matching.add(9L);
+        dao.taken.add(4L);
+
+        // 4 is still seen by the probes but is gone by the time it is locked.
+        for (int i = 0; i < 20; i++) {
+            assertEquals(9, dao.lockOneRandomRow(null, true).getFieldLong());
+        }
+
+        dao.taken.add(9L);
+        assertNull(dao.lockOneRandomRow(null, true));
+    }
+
+    public void testNothingToPick() {
+        ProbeDao dao = new ProbeDao();
+        dao.max = 0;
+        assertNull(dao.lockOneRandomRow(null, true));
+        assertEquals(0, dao.locks);
+
+        dao.max = 50;
+        assertNull(dao.lockOneRandomRow(null, true));
+        assertEquals(0, dao.locks);
+    }
+
+    public void testProbeSql() {
+        DbTestDao dao = new DbTestDao();
+        SearchCriteria<DbTestVO> sc = dao.createSearchCriteria();
+        sc.addAnd("fieldInt", SearchCriteria.Op.EQ, 0);
+        String clause = sc.getWhereClause();
+
+        assertEquals("SELECT test.id FROM test WHERE (" + clause + ") AND test.id >= ? ORDER BY test.id ASC LIMIT 1", dao.buildMatchingIdSql(sc, true));
+        assertEquals("SELECT test.id FROM test WHERE test.id <= ? ORDER BY test.id DESC LIMIT 1", dao.buildMatchingIdSql(null, false));
+        String lock = dao.buildLockMatchingRowSql(sc, true);
+        assertTrue(lock, lock.endsWith(" FROM test WHERE (" + clause + ") AND test.id >= ? ORDER BY test.id LIMIT 1 FOR UPDATE "));
+        // The criteria of the caller are not added to.
+        assertEquals(clause, sc.getWhereClause());
+    }
+}
@@ -0,0 +1,109 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.TableGenerator;
+
+import junit.framework.TestCase;
+
+public class SequenceFetcherTest extends TestCase {
+
+    @TableGenerator(name = "test_block_sq", table = "sequence", pkColumnName = "name", valueColumnName = "value", pkColumnValue = "test_block_seq", allocationSize = 10)
+    long blockSequence;
+
+    @TableGenerator(name = "test_single_sq", table = "sequence", pkColumnName = "name", valueColumnName = "value", pkColumnValue = "test_single_seq", allocationSize = 1)
+    long singleSequence;
+
+    /**
+     * Stands in for the sequence table, counting the round trips.
+     */
+    static class FakeFetcher extends SequenceFetcher {
+        final AtomicLong row = new AtomicLong(1);
+        final AtomicInteger fetches = new AtomicInteger();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <T> T fetch(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom, int allocationSize) {
+            fetches.incrementAndGet();
+            return (T)Long.valueOf(row.getAndAdd(allocationSize));
+        }
+    }
+
+    private TableGenerator generator(String field) throws Exception {
+        return getClass().getDeclaredField(field).getAnnotation(TableGenerator.class);
+    }
+
+    public void testBlockAllocation() throws Exception {
+        FakeFetcher fetcher = new FakeFetcher();
+        TableGenerator tg = generator("blockSequence");
+        for (long i = 1; i <= 25; i++) {
+            assertEquals(Long.valueOf(i), fetcher.getNextSequence(Long.class, tg));
+        }
+        assertEquals(3, fetcher.fetches.get());
+    }
+
+    public void testSingleAllocationGoesToTheTable() throws Exception {
+        FakeFetcher fetcher = new FakeFetcher();
+        TableGenerator tg = generator("singleSequence");
+        for (long i = 1; i <= 5; i++) {
+            assertEquals(Long.valueOf(i), fetcher.getNextSequence(Long.class, tg));
+        }
+        assertEquals(5, fetcher.fetches.get());
+    }
+
+    public void testKeysHaveTheirOwnBlocks() throws Exception {
+        FakeFetcher fetcher = new FakeFetcher();
+        TableGenerator tg = generator("blockSequence");
+        assertEquals(Long.valueOf(1), fetcher.getNextSequence(Long.class, tg, 1L));
+        assertEquals(Long.valueOf(11), fetcher.getNextSequence(Long.class, tg, 2L));
+        assertEquals(Long.valueOf(2), fetcher.getNextSequence(Long.class, tg, 1L));
+        assertEquals(2, fetcher.fetches.get());
+    }
+
+    public void testConcurrentCallersGetUniqueValues() throws Exception {
+        final FakeFetcher fetcher = new FakeFetcher();
+        final TableGenerator tg = generator("blockSequence");
+        final Set<Long> values = Collections.synchronizedSet(new HashSet<Long>());
+        final int threads = 16;
+        final int perThread = 500;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            values.add(fetcher.getNextSequence(Long.class, tg));
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(threads * perThread, values.size());
+        assertEquals(threads * perThread / 10, fetcher.fetches.get());
+    }
+}
@@ -19,6 +19,10 @@ package com.cloud.utils.db;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -153,6 +157,42 @@ public class TransactionTest {
         }
     }
 
+    @Test
+    /**
+     * Batched inserts must hand back the generated ids in order and batched
+     * updates must only touch the rows they were given.
+     */
+    public void testPersistAndUpdateBatch() {
+        DbTestDao testDao = ComponentContext.inject(DbTestDao.class);
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            List<DbTestVO> vos = new ArrayList<DbTestVO>();
+            for (int i = 0; i < 1200; i++) {
+                vos.add(new DbTestVO(i, i, "Record " + i));
+            }
+            testDao.persistBatch(vos);
+
+            Map<Long, DbTestVO> updates = new LinkedHashMap<Long, DbTestVO>();
+            for (DbTestVO vo : vos) {
+                Assert.assertTrue(vo.getId() > 0);
+                DbTestVO found = testDao.findById(vo.getId());
+                Assert.assertEquals(vo.getFieldString(), found.getFieldString());
+                if (vo.getFieldInt() % 2 == 0) {
+                    found.setFieldLong(vo.getFieldLong() * 10);
+                    updates.put(found.getId(), found);
+                }
+            }
+            Assert.assertEquals(updates.size(), testDao.updateBatch(updates));
+
+            for (DbTestVO vo : vos) {
+                long expected = vo.getFieldInt() % 2 == 0 ? vo.getFieldLong() * 10 : vo.getFieldLong();
+                Assert.assertEquals(expected, testDao.findById(vo.getId()).getFieldLong());
+            }
+        } finally {
+            txn.close();
+        }
+    }
+
     @After
     /**
      * Delete all records after each test, but table is still kept
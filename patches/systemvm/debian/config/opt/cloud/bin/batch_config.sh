@@ -0,0 +1,79 @@
+#!/usr/bin/env bash
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+# @VERSION@
+
+# Applies a batch of router configuration changes in one go.
+#
+# The batch is read from stdin, one "<script> <args>" entry per line, where
+# <script> is a script in /opt/cloud/bin.  The entries are run in order while
+# holding biglock, and the per entry exit codes are printed as
+# "<line> <exit code>".  If any entry fails the iptables state (and the vpn
+# user database) is restored to what it was before the batch started and
+# "rollback" is printed after the results.
+
+source /root/func.sh
+
+lock="biglock"
+locked=$(getLockFile $lock)
+if [ "$locked" != "1" ]
+then
+    exit 1
+fi
+
+#set -x
+set -f
+
+snapshot=$(mktemp -d)
+sudo iptables-save > $snapshot/iptables
+[ -f /etc/ppp/chap-secrets ] && cp -p /etc/ppp/chap-secrets $snapshot/chap-secrets
+
+# the scripts we run skip taking biglock themselves, we hold it for them
+export CLOUD_BATCH_LOCKED=1
+
+line=0
+failed=0
+while read -r script args
+do
+  line=$((line + 1))
+  [ -z "$script" ] && continue
+  if [ "${script#*/}" != "$script" ] || [ ! -x /opt/cloud/bin/$script ]
+  then
+    echo "$line 127"
+    failed=1
+    break
+  fi
+  /opt/cloud/bin/$script $args < /dev/null > /dev/null 2>&1
+  result=$?
+  echo "$line $result"
+  if [ $result -ne 0 ]
+  then
+    failed=1
+    break
+  fi
+done
+
+if [ $failed -ne 0 ]
+then
+  logger -t cloud "$(basename $0): entry $line of the batch failed, rolling back"
+  sudo iptables-restore < $snapshot/iptables
+  [ -f $snapshot/chap-secrets ] && cp -p $snapshot/chap-secrets /etc/ppp/chap-secrets
+  echo "rollback"
+fi
+
+rm -rf $snapshot
+unlock_exit 0 $lock $locked
@@ -20,10 +20,16 @@
 source /root/func.sh
 source /opt/cloud/bin/vpc_func.sh
 lock="biglock"
-locked=$(getLockFile $lock)
-if [ "$locked" != "1" ]
+if [ -n "$CLOUD_BATCH_LOCKED" ]
 then
-    exit 1
+    # batch_config.sh already holds the lock for us
+    locked=0
+else
+    locked=$(getLockFile $lock)
+    if [ "$locked" != "1" ]
+    then
+        exit 1
+    fi
 fi
 
 usage() {
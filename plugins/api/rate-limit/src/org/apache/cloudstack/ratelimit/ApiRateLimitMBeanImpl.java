@@ -0,0 +1,55 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class ApiRateLimitMBeanImpl extends StandardMBean implements ApiRateLimitMBean {
+    private final ApiRateLimitServiceImpl _service;
+
+    protected ApiRateLimitMBeanImpl(ApiRateLimitServiceImpl service) {
+        super(ApiRateLimitMBean.class, false);
+        _service = service;
+    }
+
+    @Override
+    public long getAllowedCount() {
+        return _service.getAllowedCount();
+    }
+
+    @Override
+    public long getDeniedCount() {
+        return _service.getDeniedCount();
+    }
+
+    @Override
+    public Map<String, Long> getDeniedByApi() {
+        return _service.getDeniedByApi();
+    }
+
+    @Override
+    public int getTrackedAccounts() {
+        return _service.getTrackedAccounts();
+    }
+
+    @Override
+    public int getMaxAllowed() {
+        return _service.getLocalMaxAllowed();
+    }
+}
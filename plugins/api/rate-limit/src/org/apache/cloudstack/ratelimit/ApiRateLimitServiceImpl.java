@@ -17,15 +17,15 @@
 package org.apache.cloudstack.ratelimit;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.ejb.Local;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-
 import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.acl.APIChecker;
@@ -34,6 +34,8 @@ import org.apache.cloudstack.api.command.admin.ratelimit.ResetApiLimitCmd;
 import org.apache.cloudstack.api.command.user.ratelimit.GetApiLimitCmd;
 import org.apache.cloudstack.api.response.ApiLimitResponse;
 
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.exception.PermissionDeniedException;
@@ -41,7 +43,9 @@ import com.cloud.exception.RequestLimitException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.AdapterBase;
+import com.cloud.utils.mgmt.JmxUtil;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -64,7 +68,36 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 	 */
 	private int maxAllowed = 30;
 
-	private LimitStore _store = null;
+	/**
+	 * How long the admin-or-not answer for an account is trusted, in milliseconds
+	 */
+	private static final long ACCOUNT_CACHE_TTL = 60000L;
+
+	/**
+	 * How often the number of management servers sharing a cluster-wide limit is refreshed, in milliseconds
+	 */
+	private static final long CLUSTER_REFRESH_INTERVAL = 60000L;
+
+	private TokenBucketLimitStore _store = null;
+
+	/**
+	 * Number of requests each api call counts as, for the apis that cost more than one
+	 */
+	private Map<String, Integer> weights = new HashMap<String, Integer>();
+
+	/**
+	 * True if maxAllowed is shared by all the management servers in the cluster
+	 */
+	private boolean clusterWide = false;
+
+	private volatile int localMaxAllowed = maxAllowed;
+	private volatile long clusterRefreshed = 0;
+
+	private final ConcurrentHashMap<Long, AccountTypeEntry> accountTypes = new ConcurrentHashMap<Long, AccountTypeEntry>();
+
+	private final AtomicLong allowed = new AtomicLong();
+	private final AtomicLong denied = new AtomicLong();
+	private final ConcurrentHashMap<String, AtomicLong> deniedByApi = new ConcurrentHashMap<String, AtomicLong>();
 
 	@Inject
 	AccountService _accountService;
@@ -72,6 +105,9 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Inject
     ConfigurationDao _configDao;
 
+    @Inject
+    ManagementServerHostDao _msHostDao;
+
 	@Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
@@ -90,42 +126,120 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             if (maxReqs != null) {
                 maxAllowed = Integer.parseInt(maxReqs);
             }
+            weights = parseWeights(_configDao.getValue(Config.ApiLimitWeights.key()));
+            clusterWide = Boolean.parseBoolean(_configDao.getValue(Config.ApiLimitClusterWide.key()));
             // create limit store
-            EhcacheLimitStore cacheStore = new EhcacheLimitStore();
             int maxElements = 10000;
             String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
             if ( cachesize != null ){
                 maxElements = Integer.parseInt(cachesize);
             }
-            CacheManager cm = CacheManager.create();
-            Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
-            cm.addCache(cache);
-            s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements );
-            cacheStore.setCache(cache);
-            _store = cacheStore;
-
+            localMaxAllowed = maxAllowed;
+            _store = new TokenBucketLimitStore(maxAllowed, maxElements);
+            s_logger.info("Limit store created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements + ", clusterWide=" + clusterWide);
+
+            try {
+                JmxUtil.registerMBean("ApiRateLimit", "ApiRateLimit", new ApiRateLimitMBeanImpl(this));
+            } catch (Exception e) {
+                s_logger.warn("Unable to register the api rate limit MBean", e);
+            }
         }
 
         return true;
     }
 
+    /**
+     * Parses "api=weight,api=weight" into a map, skipping malformed entries.
+     */
+    static Map<String, Integer> parseWeights(String value) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        if (value == null) {
+            return result;
+        }
+        for (String pair : value.split(",")) {
+            String[] tokens = pair.split("=");
+            if (tokens.length != 2) {
+                continue;
+            }
+            int weight = NumbersUtil.parseInt(tokens[1].trim(), 1);
+            if (weight > 1) {
+                result.put(tokens[0].trim(), weight);
+            }
+        }
+        return result;
+    }
+
+    protected int getWeight(String apiCommandName) {
+        if (apiCommandName == null) {
+            return 1;
+        }
+        Integer weight = weights.get(apiCommandName);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * @return the number of requests this management server allows per
+     * account, its share of maxAllowed when the limit is cluster-wide.
+     */
+    protected int getLocalMaxAllowed() {
+        if (!clusterWide) {
+            return maxAllowed;
+        }
+        long now = System.currentTimeMillis();
+        if (now - clusterRefreshed > CLUSTER_REFRESH_INTERVAL) {
+            clusterRefreshed = now;
+            int servers = Math.max(_msHostDao.listBy(ManagementServerHost.State.Up).size(), 1);
+            int share = Math.max((maxAllowed + servers - 1) / servers, 1);
+            if (share != localMaxAllowed) {
+                s_logger.info("Api limit is shared by " + servers + " management servers, allowing " + share + " requests per account here");
+                localMaxAllowed = share;
+                _store.setMaxAllowed(share);
+                _store.resetCounters();
+            }
+        }
+        return localMaxAllowed;
+    }
+
+    protected boolean isRootAdmin(Long accountId) {
+        long now = System.currentTimeMillis();
+        AccountTypeEntry entry = accountTypes.get(accountId);
+        if (entry == null || now - entry.fetched > ACCOUNT_CACHE_TTL) {
+            Account account = _accountService.getAccount(accountId);
+            if (account == null) {
+                return false;
+            }
+            entry = new AccountTypeEntry(_accountService.isRootAdmin(account.getType()), now);
+            accountTypes.put(accountId, entry);
+        }
+        return entry.rootAdmin;
+    }
+
+    private static class AccountTypeEntry {
+        final boolean rootAdmin;
+        final long fetched;
+
+        AccountTypeEntry(boolean rootAdmin, long fetched) {
+            this.rootAdmin = rootAdmin;
+            this.fetched = fetched;
+        }
+    }
+
     @Override
     public ApiLimitResponse searchApiLimit(Account caller) {
         ApiLimitResponse response = new ApiLimitResponse();
         response.setAccountId(caller.getUuid());
         response.setAccountName(caller.getAccountName());
+        int max = getLocalMaxAllowed();
         StoreEntry entry = _store.get(caller.getId());
         if (entry == null) {
-
-            /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(caller.getId(), timeToLive);
             response.setApiIssued(0);
-            response.setApiAllowed(maxAllowed);
-            response.setExpireAfter(timeToLive);
+            response.setApiAllowed(max);
+            response.setExpireAfter(0);
         }
         else{
-            response.setApiIssued(entry.getCounter());
-            response.setApiAllowed(maxAllowed - entry.getCounter());
+            int issued = entry.getCounter();
+            response.setApiIssued(issued);
+            response.setApiAllowed(max - issued);
             response.setExpireAfter(entry.getExpireDuration());
         }
 
@@ -137,10 +251,11 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public boolean resetApiLimit(Long accountId) {
         if ( accountId != null ){
-            _store.create(accountId, timeToLive);
+            _store.reset(accountId);
         }
         else{
             _store.resetCounters();
+            accountTypes.clear();
         }
         return true;
     }
@@ -154,34 +269,66 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             return true;
         }
         Long accountId = user.getAccountId();
-        Account account = _accountService.getAccount(accountId);
-        if ( _accountService.isRootAdmin(account.getType())){
+        if (isRootAdmin(accountId)){
             // no API throttling on root admin
             return true;
         }
-        StoreEntry entry = _store.get(accountId);
+        int max = getLocalMaxAllowed();
+        TokenBucketLimitStore.TokenBucket entry = _store.get(accountId);
 
         if (entry == null) {
-
-            /* Populate the entry, thus unlocking any underlying mutex */
             entry = _store.create(accountId, timeToLive);
         }
 
-        /* Increment the client count and see whether we have hit the maximum allowed clients yet. */
-        int current = entry.incrementAndGet();
-
-        if (current <= maxAllowed) {
-            s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + current);
+        /* Take this api's worth of tokens, the bucket knows whether it had enough left. */
+        int weight = getWeight(apiCommandName);
+        if (entry.take(weight)) {
+            allowed.incrementAndGet();
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("account " + accountId + " has current count = " + entry.getCounter());
+            }
             return true;
         } else {
-            long expireAfter = entry.getExpireDuration();
+            denied.incrementAndGet();
+            if (apiCommandName != null) {
+                AtomicLong count = deniedByApi.get(apiCommandName);
+                if (count == null) {
+                    AtomicLong existing = deniedByApi.putIfAbsent(apiCommandName, count = new AtomicLong());
+                    if (existing != null) {
+                        count = existing;
+                    }
+                }
+                count.incrementAndGet();
+            }
+            // time until this api's worth of tokens has come back
+            long retryAfter = Math.max(timeToLive * 1000L * weight / Math.max(max, 1), 1);
             // for this exception, we can just show the same message to user and admin users.
-            String msg = "The given user has reached his/her account api limit, please retry after " + expireAfter + " ms.";
+            String msg = "The given user has reached his/her account api limit, please retry after " + retryAfter + " ms.";
             s_logger.warn(msg);
             throw new RequestLimitException(msg);
         }
     }
 
+    public long getAllowedCount() {
+        return allowed.get();
+    }
+
+    public long getDeniedCount() {
+        return denied.get();
+    }
+
+    public Map<String, Long> getDeniedByApi() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : deniedByApi.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public int getTrackedAccounts() {
+        return _store.size();
+    }
+
 
     @Override
     public List<Class<?>> getCommands() {
@@ -202,6 +349,11 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public void setMaxAllowed(int max) {
         this.maxAllowed = max;
+        this.localMaxAllowed = max;
+        this.clusterRefreshed = 0;
+        if (_store != null) {
+            _store.setMaxAllowed(max);
+        }
 
     }
 
@@ -26,6 +26,8 @@ public interface StoreEntry {
 
     int incrementAndGet();
 
+    int incrementAndGet(int weight);  /* counts one api call worth weight requests */
+
     boolean isExpired();
 
     long getExpireDuration();  /* seconds to reset counter */
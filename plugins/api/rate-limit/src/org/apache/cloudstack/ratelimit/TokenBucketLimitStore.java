@@ -0,0 +1,203 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free limit store.  Every account gets a token bucket holding up to
+ * maxAllowed tokens that refills smoothly at maxAllowed tokens per
+ * timeToLive seconds, instead of the whole allowance coming back at once when
+ * a fixed window expires.
+ *
+ * The bucket is kept as a single "theoretical arrival time" (the time at
+ * which it will be full again) and updated with compare-and-set, so requests
+ * from the same account never wait on each other.  The buckets themselves
+ * live in a striped ConcurrentHashMap.
+ */
+public class TokenBucketLimitStore implements LimitStore {
+
+    private static final int STRIPES = 64;
+
+    private final ConcurrentHashMap<Long, TokenBucket> buckets;
+
+    private final int maxElements;
+
+    private volatile int maxAllowed;
+
+    public TokenBucketLimitStore(int maxAllowed, int maxElements) {
+        this.maxAllowed = maxAllowed;
+        this.maxElements = maxElements;
+        this.buckets = new ConcurrentHashMap<Long, TokenBucket>(Math.min(maxElements, 1024), 0.75f, STRIPES);
+    }
+
+    /**
+     * Changes the size of the buckets.  The existing ones were sized for the
+     * old limit, so they are dropped and every account starts a full one.
+     */
+    public void setMaxAllowed(int maxAllowed) {
+        if (this.maxAllowed != maxAllowed) {
+            this.maxAllowed = maxAllowed;
+            buckets.clear();
+        }
+    }
+
+    @Override
+    public TokenBucket get(Long account) {
+        TokenBucket bucket = buckets.get(account);
+        /* A request racing with setMaxAllowed() may have put a bucket of the
+         * old size back in. */
+        if (bucket != null && bucket.capacity != Math.max(maxAllowed, 1)) {
+            buckets.remove(account, bucket);
+            return null;
+        }
+        return bucket;
+    }
+
+    @Override
+    public TokenBucket create(Long account, int timeToLiveInSecs) {
+        if (buckets.size() >= maxElements) {
+            purgeFullBuckets();
+        }
+        /* Callers look the bucket up before creating it without holding any
+         * lock, so another request may have created it in between. */
+        TokenBucket bucket = new TokenBucket(maxAllowed, timeToLiveInSecs);
+        TokenBucket existing = buckets.putIfAbsent(account, bucket);
+        return existing != null ? existing : bucket;
+    }
+
+    /**
+     * Drops the bucket of one account, its next request starts a full one.
+     */
+    public void reset(Long account) {
+        buckets.remove(account);
+    }
+
+    @Override
+    public void resetCounters() {
+        buckets.clear();
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * A bucket that has refilled completely is no different from a new one,
+     * so it can be dropped to make room.
+     */
+    protected void purgeFullBuckets() {
+        long now = System.nanoTime();
+        for (Iterator<TokenBucket> it = buckets.values().iterator(); it.hasNext();) {
+            if (it.next().isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    public static class TokenBucket implements StoreEntry {
+        private final int capacity;
+
+        /* nanoseconds it takes to refill one token */
+        private final long interval;
+
+        /* time at which the bucket is full again, in System.nanoTime() */
+        private final AtomicLong fullAt;
+
+        TokenBucket(int capacity, int timeToLiveInSecs) {
+            this.capacity = Math.max(capacity, 1);
+            this.interval = Math.max(TimeUnit.SECONDS.toNanos(Math.max(timeToLiveInSecs, 1)) / this.capacity, 1);
+            this.fullAt = new AtomicLong(System.nanoTime());
+        }
+
+        @Override
+        public int getCounter() {
+            return used(System.nanoTime());
+        }
+
+        @Override
+        public int incrementAndGet() {
+            return incrementAndGet(1);
+        }
+
+        /**
+         * Takes weight tokens out of the bucket.
+         * @return the number of tokens in use once they are taken, or a
+         * number above the capacity if there are not enough tokens left, in
+         * which case none are taken.
+         */
+        @Override
+        public int incrementAndGet(int weight) {
+            return take(weight) ? getCounter() : capacity + weight;
+        }
+
+        /**
+         * Takes weight tokens out of the bucket if it has that many left.
+         * The decision is made against the size of this bucket, whatever the
+         * limit of the caller is.
+         * @return true if the tokens were taken.
+         */
+        public boolean take(int weight) {
+            long cost = interval * weight;
+            long limit = interval * capacity;
+            while (true) {
+                long now = System.nanoTime();
+                long current = fullAt.get();
+                long next = Math.max(current, now) + cost;
+                if (next - now > limit) {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return isFull(System.nanoTime());
+        }
+
+        /**
+         * @return milliseconds until the bucket is full again.
+         */
+        @Override
+        public long getExpireDuration() {
+            long remaining = fullAt.get() - System.nanoTime();
+            return remaining > 0 ? TimeUnit.NANOSECONDS.toMillis(remaining) : 0;
+        }
+
+        boolean isFull(long now) {
+            return fullAt.get() - now <= 0;
+        }
+
+        private int used(long now) {
+            long remaining = fullAt.get() - now;
+            if (remaining <= 0) {
+                return 0;
+            }
+            return (int)((remaining + interval - 1) / interval);
+        }
+    }
+}
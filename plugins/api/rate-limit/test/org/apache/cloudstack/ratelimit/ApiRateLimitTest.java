@@ -113,7 +113,8 @@ public class ApiRateLimitTest {
     public void canDoReasonableNumberOfApiAccessPerSecond() throws Exception {
         int allowedRequests = 200;
         _limitService.setMaxAllowed(allowedRequests);
-        _limitService.setTimeToLive(1);
+        // tokens refill smoothly, a long interval keeps one from coming back while the loop runs
+        _limitService.setTimeToLive(60);
 
         User key = createFakeUser();
 
@@ -181,6 +182,72 @@ public class ApiRateLimitTest {
         }
     }
 
+    @Test
+    public void raisingTheLimitKeepsThrottling() {
+        _limitService.setMaxAllowed(1);
+        _limitService.setTimeToLive(60);
+
+        User key = createFakeUser();
+        assertTrue("Allow for the first request", isUnderLimit(key));
+        assertFalse("Second request should be blocked", isUnderLimit(key));
+
+        // The bucket of the old limit must not let every request through.
+        _limitService.setMaxAllowed(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Request " + i + " is within the new limit", isUnderLimit(key));
+        }
+        assertFalse("The new limit should be enforced", isUnderLimit(key));
+    }
+
+    @Test
+    public void bucketsOfTheOldSizeAreDropped() {
+        TokenBucketLimitStore store = new TokenBucketLimitStore(1, 100);
+        TokenBucketLimitStore.TokenBucket bucket = store.create(1L, 60);
+        assertTrue(bucket.take(1));
+        assertFalse("A bucket refuses against its own size", bucket.take(1));
+
+        store.setMaxAllowed(5);
+        assertNull("Buckets of the old size should be dropped", store.get(1L));
+        assertEquals(5, store.create(1L, 60).getCapacity());
+    }
+
+    @Test
+    public void concurrentCreateSharesOneBucket() throws Exception {
+        final TokenBucketLimitStore store = new TokenBucketLimitStore(100, 100);
+        int clientCount = 20;
+        final StoreEntry[] entries = new StoreEntry[clientCount];
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch endGate = new CountDownLatch(clientCount);
+
+        ExecutorService executor = Executors.newFixedThreadPool(clientCount);
+        for (int i = 0; i < clientCount; ++i) {
+            final int j = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        entries[j] = store.create(1L, 60);
+                        entries[j].incrementAndGet();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } finally {
+                        endGate.countDown();
+                    }
+                }
+            });
+        }
+
+        startGate.countDown();
+        endGate.await();
+        executor.shutdown();
+
+        for (StoreEntry entry : entries) {
+            assertSame("Every caller should get the same bucket", store.get(1L), entry);
+        }
+        assertEquals("No request should be lost to a replaced bucket", clientCount, store.get(1L).getCounter());
+    }
+
     @Test
     public void expiryOfCounterIsSupported() throws Exception {
         int allowedRequests = 1;
@@ -235,6 +302,70 @@ public class ApiRateLimitTest {
 
     }
 
+    @Test
+    public void tokensRefillSmoothly() throws Exception {
+        int allowedRequests = 2;
+        _limitService.setMaxAllowed(allowedRequests);
+        _limitService.setTimeToLive(2);
+
+        User key = this.createFakeUser();
+
+        assertTrue("The first request should be allowed", isUnderLimit(key));
+        assertTrue("The second request should be allowed", isUnderLimit(key));
+        assertFalse("The third request should be blocked", isUnderLimit(key));
+
+        // one token comes back every second, not both at the end of the interval
+        Thread.sleep(1050);
+
+        assertTrue("One request should be allowed after a token came back", isUnderLimit(key));
+        assertFalse("Only one token should have come back", isUnderLimit(key));
+    }
+
+    @Test
+    public void weightedApisUseMoreTokens() throws Exception {
+        ApiRateLimitServiceImpl limitService = new ApiRateLimitServiceImpl();
+        ConfigurationDao configDao = mock(ConfigurationDao.class);
+        when(configDao.getValue(Config.ApiLimitEnabled.key())).thenReturn("true");
+        when(configDao.getValue(Config.ApiLimitInterval.key())).thenReturn("60");
+        when(configDao.getValue(Config.ApiLimitMax.key())).thenReturn("10");
+        when(configDao.getValue(Config.ApiLimitWeights.key())).thenReturn("deployVirtualMachine=4, badEntry,listZones=x");
+        limitService._configDao = configDao;
+        limitService._accountService = _accountService;
+        limitService.configure("weightedApisUseMoreTokens", Collections.<String, Object> emptyMap());
+
+        User key = createFakeUser();
+        limitService.checkAccess(key, "deployVirtualMachine");
+        limitService.checkAccess(key, "deployVirtualMachine");
+        limitService.checkAccess(key, "listZones");
+        limitService.checkAccess(key, "listZones");
+        try {
+            limitService.checkAccess(key, "deployVirtualMachine");
+            fail("deployVirtualMachine counts as 4 requests, only 0 were left");
+        } catch (RequestLimitException e) {
+            // expected
+        }
+        assertEquals(1, limitService.getDeniedCount());
+        assertEquals(Long.valueOf(1), limitService.getDeniedByApi().get("deployVirtualMachine"));
+        assertEquals(4, limitService.getAllowedCount());
+    }
+
+    @Test
+    public void accountTypeIsCached() throws Exception {
+        _limitService.setMaxAllowed(100);
+        _limitService.setTimeToLive(1);
+
+        AccountVO acct = new AccountVO(6L);
+        acct.setType(Account.ACCOUNT_TYPE_NORMAL);
+        when(_accountService.getAccount(6L)).thenReturn(acct);
+
+        UserVO user = new UserVO();
+        user.setAccountId(6L);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(isUnderLimit(user));
+        }
+        verify(_accountService, times(1)).getAccount(6L);
+    }
+
     @Test
     public void disableApiLimit() throws Exception {
         try {
@@ -0,0 +1,426 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Samples host cpu, memory, load and nic counters straight from /proc
+ * instead of forking top and free.  Samples are taken on a schedule and
+ * kept in a small rolling window so GetHostStatsCommand is answered from
+ * memory; cpu figures are computed from the change in /proc/stat between
+ * two samples.  All reads go through one reused buffer.
+ */
+public class KVMHostStatsCollector implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(KVMHostStatsCollector.class);
+
+    private static final byte[] MEM_TOTAL = "MemTotal:".getBytes();
+    private static final byte[] MEM_FREE = "MemFree:".getBytes();
+    private static final byte[] BUFFERS = "Buffers:".getBytes();
+    private static final byte[] CACHED = "Cached:".getBytes();
+    private static final byte[] HUGE_PAGES_TOTAL = "HugePages_Total:".getBytes();
+    private static final byte[] HUGE_PAGES_FREE = "HugePages_Free:".getBytes();
+    private static final byte[] HUGE_PAGE_SIZE = "Hugepagesize:".getBytes();
+
+    // Fields of the cpu line in /proc/stat.
+    private static final int USER = 0;
+    private static final int IDLE = 3;
+    private static final int IOWAIT = 4;
+    private static final int STEAL = 7;
+    // guest and guest_nice are already counted in user and nice.
+    private static final int CPU_FIELDS = 8;
+
+    public static class Sample {
+        long timestamp;
+        double cpuUtilization;
+        double iowaitPercent;
+        double stealPercent;
+        double load1;
+        double load5;
+        double load15;
+        long totalMemoryKBs;
+        long freeMemoryKBs;
+        long hugePagesTotal;
+        long hugePagesFree;
+        long hugePageSizeKBs;
+        long rxBytes = -1;
+        long txBytes = -1;
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return percentage of cpu time not spent idle (100 - idle, as top
+         * reports it), time spent waiting for io counts as busy.
+         */
+        public double getCpuUtilization() {
+            return cpuUtilization;
+        }
+
+        public double getIowaitPercent() {
+            return iowaitPercent;
+        }
+
+        /**
+         * @return percentage of cpu time taken by the hypervisor this host runs on, if any.
+         */
+        public double getStealPercent() {
+            return stealPercent;
+        }
+
+        public double getLoad1() {
+            return load1;
+        }
+
+        public double getLoad5() {
+            return load5;
+        }
+
+        public double getLoad15() {
+            return load15;
+        }
+
+        public long getTotalMemoryKBs() {
+            return totalMemoryKBs;
+        }
+
+        /**
+         * @return free memory including buffers and page cache, like the -/+ buffers/cache line of free.
+         */
+        public long getFreeMemoryKBs() {
+            return freeMemoryKBs;
+        }
+
+        public long getHugePagesTotal() {
+            return hugePagesTotal;
+        }
+
+        public long getHugePagesFree() {
+            return hugePagesFree;
+        }
+
+        public long getHugePageSizeKBs() {
+            return hugePageSizeKBs;
+        }
+
+        /**
+         * @return bytes received on the nic since boot, -1 if the nic was not found.
+         */
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
+
+        void copyTo(Sample that) {
+            that.timestamp = timestamp;
+            that.cpuUtilization = cpuUtilization;
+            that.iowaitPercent = iowaitPercent;
+            that.stealPercent = stealPercent;
+            that.load1 = load1;
+            that.load5 = load5;
+            that.load15 = load15;
+            that.totalMemoryKBs = totalMemoryKBs;
+            that.freeMemoryKBs = freeMemoryKBs;
+            that.hugePagesTotal = hugePagesTotal;
+            that.hugePagesFree = hugePagesFree;
+            that.hugePageSizeKBs = hugePageSizeKBs;
+            that.rxBytes = rxBytes;
+            that.txBytes = txBytes;
+        }
+    }
+
+    private final String _procRoot;
+    private final String _nic;
+    private final byte[] _nicName;
+
+    private byte[] _buffer = new byte[16 * 1024];
+    private final long[] _cpu = new long[CPU_FIELDS];
+    private final long[] _previousCpu = new long[CPU_FIELDS];
+    private boolean _hasPrevious;
+
+    private final Sample[] _window;
+    private int _next;
+    private int _count;
+
+    public KVMHostStatsCollector(String procRoot, String nic, int windowSize) {
+        _procRoot = procRoot;
+        _nic = nic;
+        _nicName = nic != null ? nic.getBytes() : null;
+        _window = new Sample[Math.max(windowSize, 1)];
+        for (int i = 0; i < _window.length; i++) {
+            _window[i] = new Sample();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            sample();
+        } catch (Throwable th) {
+            s_logger.warn("Unable to sample the host stats", th);
+        }
+    }
+
+    /**
+     * Reads /proc and adds a sample to the window.
+     */
+    public synchronized void sample() throws IOException {
+        Sample sample = _window[_next];
+
+        int length = read("stat");
+        readCpu(length);
+        long total = 0;
+        long previousTotal = 0;
+        for (int i = 0; i < CPU_FIELDS; i++) {
+            total += _cpu[i];
+            previousTotal += _hasPrevious ? _previousCpu[i] : 0;
+        }
+        // The first sample can only report the averages since boot.
+        double elapsed = total - previousTotal;
+        if (elapsed > 0) {
+            sample.cpuUtilization = 100.0 * (elapsed - delta(IDLE)) / elapsed;
+            sample.iowaitPercent = 100.0 * delta(IOWAIT) / elapsed;
+            sample.stealPercent = 100.0 * delta(STEAL) / elapsed;
+        }
+        System.arraycopy(_cpu, 0, _previousCpu, 0, CPU_FIELDS);
+        _hasPrevious = true;
+
+        length = read("meminfo");
+        long memFree = 0;
+        long buffers = 0;
+        long cached = 0;
+        sample.totalMemoryKBs = 0;
+        sample.hugePagesTotal = 0;
+        sample.hugePagesFree = 0;
+        sample.hugePageSizeKBs = 0;
+        for (int pos = 0; pos < length; pos = nextLine(pos, length)) {
+            if (startsWith(pos, length, MEM_TOTAL)) {
+                sample.totalMemoryKBs = parseLong(pos + MEM_TOTAL.length, length);
+            } else if (startsWith(pos, length, MEM_FREE)) {
+                memFree = parseLong(pos + MEM_FREE.length, length);
+            } else if (startsWith(pos, length, BUFFERS)) {
+                buffers = parseLong(pos + BUFFERS.length, length);
+            } else if (startsWith(pos, length, CACHED)) {
+                cached = parseLong(pos + CACHED.length, length);
+            } else if (startsWith(pos, length, HUGE_PAGES_TOTAL)) {
+                sample.hugePagesTotal = parseLong(pos + HUGE_PAGES_TOTAL.length, length);
+            } else if (startsWith(pos, length, HUGE_PAGES_FREE)) {
+                sample.hugePagesFree = parseLong(pos + HUGE_PAGES_FREE.length, length);
+            } else if (startsWith(pos, length, HUGE_PAGE_SIZE)) {
+                sample.hugePageSizeKBs = parseLong(pos + HUGE_PAGE_SIZE.length, length);
+            }
+        }
+        sample.freeMemoryKBs = memFree + buffers + cached;
+
+        length = read("loadavg");
+        int pos = 0;
+        sample.load1 = parseDouble(pos, length);
+        pos = skipField(pos, length);
+        sample.load5 = parseDouble(pos, length);
+        pos = skipField(pos, length);
+        sample.load15 = parseDouble(pos, length);
+
+        readNic(sample);
+
+        sample.timestamp = System.currentTimeMillis();
+        _next = (_next + 1) % _window.length;
+        if (_count < _window.length) {
+            _count++;
+        }
+    }
+
+    /**
+     * @return the latest memory, load and nic figures with the cpu figures
+     * averaged over the window, or null if no sample could be taken.
+     */
+    public synchronized Sample getStats() {
+        if (_count == 0) {
+            try {
+                sample();
+            } catch (IOException e) {
+                s_logger.warn("Unable to read the host stats from " + _procRoot, e);
+                return null;
+            }
+        }
+
+        Sample stats = new Sample();
+        _window[(_next + _window.length - 1) % _window.length].copyTo(stats);
+
+        double cpu = 0;
+        double iowait = 0;
+        double steal = 0;
+        for (int i = 0; i < _count; i++) {
+            Sample sample = _window[(_next + _window.length - 1 - i) % _window.length];
+            cpu += sample.cpuUtilization;
+            iowait += sample.iowaitPercent;
+            steal += sample.stealPercent;
+        }
+        stats.cpuUtilization = cpu / _count;
+        stats.iowaitPercent = iowait / _count;
+        stats.stealPercent = steal / _count;
+        return stats;
+    }
+
+    public String getNic() {
+        return _nic;
+    }
+
+    private long delta(int field) {
+        return _cpu[field] - _previousCpu[field];
+    }
+
+    private void readCpu(int length) throws IOException {
+        // First line: cpu  user nice system idle iowait irq softirq steal guest guest_nice
+        if (length < 4 || _buffer[0] != 'c' || _buffer[1] != 'p' || _buffer[2] != 'u' || _buffer[3] != ' ') {
+            throw new IOException("Unexpected format of " + _procRoot + "/stat");
+        }
+        int pos = 3;
+        for (int i = USER; i < CPU_FIELDS; i++) {
+            pos = skipSpaces(pos, length);
+            if (pos >= length || _buffer[pos] == '\n') {
+                // Older kernels don't report all the fields.
+                _cpu[i] = 0;
+                continue;
+            }
+            _cpu[i] = parseLong(pos, length);
+            pos = skipField(pos, length);
+        }
+    }
+
+    private void readNic(Sample sample) throws IOException {
+        sample.rxBytes = -1;
+        sample.txBytes = -1;
+        if (_nicName == null) {
+            return;
+        }
+
+        // Inter-|   Receive ...          |  Transmit
+        //  face |bytes packets errs drop fifo frame compressed multicast|bytes ...
+        //  eth0: 1234 ...
+        int length = read("net/dev");
+        for (int pos = 0; pos < length; pos = nextLine(pos, length)) {
+            int start = skipSpaces(pos, length);
+            if (!startsWith(start, length, _nicName) || start + _nicName.length >= length || _buffer[start + _nicName.length] != ':') {
+                continue;
+            }
+            int field = start + _nicName.length + 1;
+            for (int i = 0; i < 9; i++) {
+                field = skipSpaces(field, length);
+                if (i == 0) {
+                    sample.rxBytes = parseLong(field, length);
+                } else if (i == 8) {
+                    sample.txBytes = parseLong(field, length);
+                }
+                field = skipField(field, length);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Reads a file under the proc root into the buffer, growing it if the
+     * file doesn't fit.
+     * 
+     * @return number of bytes read.
+     */
+    protected int read(String file) throws IOException {
+        FileInputStream in = new FileInputStream(_procRoot + "/" + file);
+        try {
+            int length = 0;
+            while (true) {
+                if (length == _buffer.length) {
+                    byte[] grown = new byte[_buffer.length * 2];
+                    System.arraycopy(_buffer, 0, grown, 0, length);
+                    _buffer = grown;
+                }
+                int read = in.read(_buffer, length, _buffer.length - length);
+                if (read < 0) {
+                    return length;
+                }
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean startsWith(int pos, int length, byte[] prefix) {
+        if (pos + prefix.length > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (_buffer[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nextLine(int pos, int length) {
+        while (pos < length && _buffer[pos] != '\n') {
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    private int skipSpaces(int pos, int length) {
+        while (pos < length && (_buffer[pos] == ' ' || _buffer[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipField(int pos, int length) {
+        pos = skipSpaces(pos, length);
+        while (pos < length && _buffer[pos] != ' ' && _buffer[pos] != '\t' && _buffer[pos] != '\n') {
+            pos++;
+        }
+        return skipSpaces(pos, length);
+    }
+
+    private long parseLong(int pos, int length) {
+        pos = skipSpaces(pos, length);
+        long value = 0;
+        while (pos < length && _buffer[pos] >= '0' && _buffer[pos] <= '9') {
+            value = value * 10 + (_buffer[pos++] - '0');
+        }
+        return value;
+    }
+
+    private double parseDouble(int pos, int length) {
+        pos = skipSpaces(pos, length);
+        double value = 0;
+        while (pos < length && _buffer[pos] >= '0' && _buffer[pos] <= '9') {
+            value = value * 10 + (_buffer[pos++] - '0');
+        }
+        if (pos < length && _buffer[pos] == '.') {
+            double scale = 0.1;
+            for (pos++; pos < length && _buffer[pos] >= '0' && _buffer[pos] <= '9'; pos++) {
+                value += (_buffer[pos] - '0') * scale;
+                scale /= 10;
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,272 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+import org.libvirt.LibvirtException;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * Gathers the cpu, network and disk counters of all the requested vms in
+ * one sweep over the running domains of each libvirt connection.
+ * 
+ * The device names of a domain are parsed from its xml once and cached
+ * against the domain id, which libvirt changes whenever the domain is
+ * started again, so a restarted or migrated vm is picked up on its own.
+ * Device changes that keep the id (nic plug, volume attach) have to be
+ * reported through invalidate().  Each vm keeps its last two samples, which
+ * are reused from cycle to cycle, and the deltas are computed between them.
+ */
+public class KVMVmStatsCollector {
+    private static final Logger s_logger = Logger.getLogger(KVMVmStatsCollector.class);
+
+    static class Topology {
+        final int domainId;
+        final String[] vifs;
+        final String[] disks;
+
+        Topology(int domainId, String[] vifs, String[] disks) {
+            this.domainId = domainId;
+            this.vifs = vifs;
+            this.disks = disks;
+        }
+    }
+
+    static class Sample {
+        long timestamp;
+        long cpuTime;
+        long rx;
+        long tx;
+        long ioRead;
+        long ioWrite;
+        long bytesRead;
+        long bytesWrite;
+    }
+
+    /**
+     * The two most recent samples of a vm.  The next sample is filled in
+     * on a spare and only takes the place of the older one on commit(), so
+     * a sample that could not be read completely is never used.
+     */
+    static class SampleRing {
+        Sample latest;
+        Sample previous;
+        Sample spare = new Sample();
+
+        Sample next() {
+            return spare;
+        }
+
+        void commit() {
+            Sample older = previous != null ? previous : new Sample();
+            previous = latest;
+            latest = spare;
+            spare = older;
+        }
+
+        Sample previous() {
+            return previous;
+        }
+    }
+
+    private final Map<String, Topology> _topologies = new ConcurrentHashMap<String, Topology>();
+    private final Map<String, SampleRing> _samples = new ConcurrentHashMap<String, SampleRing>();
+
+    /**
+     * Forgets the cached devices of the vm, to be called whenever a device
+     * is added to or removed from a running vm.
+     */
+    public void invalidate(String vmName) {
+        _topologies.remove(vmName);
+    }
+
+    /**
+     * Forgets everything about the vm, to be called when it is stopped.
+     */
+    public void remove(String vmName) {
+        _topologies.remove(vmName);
+        _samples.remove(vmName);
+    }
+
+    /**
+     * Collects the stats of the vms that are running on any of the
+     * connections.  Vms that aren't running are left out of the result.
+     */
+    public synchronized Map<String, VmStatsEntry> collect(List<Connect> conns, Collection<String> vmNames) {
+        Set<String> wanted = new HashSet<String>(vmNames);
+        Map<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+
+        for (Connect conn : conns) {
+            if (stats.size() == wanted.size()) {
+                break;
+            }
+
+            int[] ids;
+            int cpus;
+            try {
+                ids = conn.listDomains();
+                cpus = conn.nodeInfo().cpus;
+            } catch (LibvirtException e) {
+                s_logger.debug("Unable to list the domains: " + e.toString());
+                continue;
+            }
+
+            for (int id : ids) {
+                Domain dm = null;
+                try {
+                    dm = conn.domainLookupByID(id);
+                    String vmName = dm.getName();
+                    if (!wanted.contains(vmName) || stats.containsKey(vmName)) {
+                        continue;
+                    }
+                    stats.put(vmName, getVmStat(dm, id, vmName, cpus));
+                } catch (LibvirtException e) {
+                    // The domain may have gone away in between.
+                    s_logger.debug("Unable to get the stats of domain " + id + ": " + e.toString());
+                } finally {
+                    if (dm != null) {
+                        try {
+                            dm.free();
+                        } catch (LibvirtException e) {
+                            s_logger.trace("Ignoring libvirt error.", e);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (String vmName : wanted) {
+            if (!stats.containsKey(vmName)) {
+                remove(vmName);
+            }
+        }
+        return stats;
+    }
+
+    protected VmStatsEntry getVmStat(Domain dm, int id, String vmName, int cpus) throws LibvirtException {
+        Topology topology = _topologies.get(vmName);
+        if (topology == null || topology.domainId != id) {
+            topology = parseTopology(dm, id);
+            _topologies.put(vmName, topology);
+        }
+
+        SampleRing ring = _samples.get(vmName);
+        if (ring == null) {
+            ring = new SampleRing();
+            _samples.put(vmName, ring);
+        }
+
+        DomainInfo info = dm.getInfo();
+        Sample sample = ring.next();
+        sample.timestamp = System.currentTimeMillis();
+        sample.cpuTime = info.cpuTime;
+        sample.rx = 0;
+        sample.tx = 0;
+        for (String vif : topology.vifs) {
+            DomainInterfaceStats ifStats = dm.interfaceStats(vif);
+            sample.rx += ifStats.rx_bytes;
+            sample.tx += ifStats.tx_bytes;
+        }
+        sample.ioRead = 0;
+        sample.ioWrite = 0;
+        sample.bytesRead = 0;
+        sample.bytesWrite = 0;
+        for (String disk : topology.disks) {
+            DomainBlockStats blockStats = dm.blockStats(disk);
+            sample.ioRead += blockStats.rd_req;
+            sample.ioWrite += blockStats.wr_req;
+            sample.bytesRead += blockStats.rd_bytes;
+            sample.bytesWrite += blockStats.wr_bytes;
+        }
+        ring.commit();
+
+        VmStatsEntry stats = new VmStatsEntry();
+        stats.setNumCPUs(info.nrVirtCpu);
+        stats.setEntityType("vm");
+
+        Sample previous = ring.previous();
+        if (previous == null) {
+            return stats;
+        }
+
+        long elapsedTime = sample.timestamp - previous.timestamp;
+        if (elapsedTime > 0) {
+            double utilization = (sample.cpuTime - previous.cpuTime) / ((double)elapsedTime * 1000000) / cpus;
+            if (utilization > 0) {
+                stats.setCPUUtilization(utilization * 100);
+            }
+        }
+
+        long deltarx = sample.rx - previous.rx;
+        if (deltarx > 0) {
+            stats.setNetworkReadKBs(deltarx / 1024);
+        }
+        long deltatx = sample.tx - previous.tx;
+        if (deltatx > 0) {
+            stats.setNetworkWriteKBs(deltatx / 1024);
+        }
+        long deltaiord = sample.ioRead - previous.ioRead;
+        if (deltaiord > 0) {
+            stats.setDiskReadIOs(deltaiord);
+        }
+        long deltaiowr = sample.ioWrite - previous.ioWrite;
+        if (deltaiowr > 0) {
+            stats.setDiskWriteIOs(deltaiowr);
+        }
+        long deltabytesrd = sample.bytesRead - previous.bytesRead;
+        if (deltabytesrd > 0) {
+            stats.setDiskReadKBs(deltabytesrd / 1024);
+        }
+        long deltabyteswr = sample.bytesWrite - previous.bytesWrite;
+        if (deltabyteswr > 0) {
+            stats.setDiskWriteKBs(deltabyteswr / 1024);
+        }
+        return stats;
+    }
+
+    protected Topology parseTopology(Domain dm, int id) throws LibvirtException {
+        LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        parser.parseDomainXML(dm.getXMLDesc(0));
+
+        List<String> vifs = new ArrayList<String>();
+        for (InterfaceDef vif : parser.getInterfaces()) {
+            vifs.add(vif.getDevName());
+        }
+        List<String> disks = new ArrayList<String>();
+        for (DiskDef disk : parser.getDisks()) {
+            disks.add(disk.getDiskLabel());
+        }
+        return new Topology(id, vifs.toArray(new String[vifs.size()]), disks.toArray(new String[disks.size()]));
+    }
+}
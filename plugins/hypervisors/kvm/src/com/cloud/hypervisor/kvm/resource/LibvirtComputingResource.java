@@ -34,7 +34,6 @@ import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -45,11 +44,12 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -60,7 +60,6 @@ import org.libvirt.Connect;
 import org.libvirt.Domain;
 import org.libvirt.DomainBlockStats;
 import org.libvirt.DomainInfo;
-import org.libvirt.DomainInterfaceStats;
 import org.libvirt.DomainSnapshot;
 import org.libvirt.LibvirtException;
 import org.libvirt.NodeInfo;
@@ -231,6 +230,7 @@ import com.cloud.storage.template.TemplateProp;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.PropertiesUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
@@ -288,6 +288,8 @@ ServerResource {
     private long _hvVersion;
     private long _kernelVersion;
     private KVMHAMonitor _monitor;
+    private KVMHostStatsCollector _hostStatsCollector;
+    private ScheduledExecutorService _hostStatsExecutor;
     private final String _SSHKEYSPATH = "/root/.ssh";
     private final String _SSHPRVKEYPATH = _SSHKEYSPATH + File.separator
             + "id_rsa.cloud";
@@ -359,7 +361,7 @@ ServerResource {
     protected String _localStoragePath;
     protected String _localStorageUUID;
     private final Map <String, String> _pifs = new HashMap<String, String>();
-    private final Map<String, vmStats> _vmStats = new ConcurrentHashMap<String, vmStats>();
+    private final KVMVmStatsCollector _vmStatsCollector = new KVMVmStatsCollector();
 
     protected boolean _disconnected = true;
     protected int _timeout;
@@ -757,6 +759,12 @@ ServerResource {
 
         _storagePoolMgr = new KVMStoragePoolManager(_storage, _monitor);
 
+        int statsInterval = NumbersUtil.parseInt((String) params.get("host.stats.sample.interval"), 10);
+        int statsWindow = NumbersUtil.parseInt((String) params.get("host.stats.window"), 6);
+        _hostStatsCollector = new KVMHostStatsCollector("/proc", _publicBridgeName, statsWindow);
+        _hostStatsExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HostStatsCollector"));
+        _hostStatsExecutor.scheduleWithFixedDelay(_hostStatsCollector, 0, statsInterval, TimeUnit.SECONDS);
+
         _sysvmISOPath = (String) params.get("systemvm.iso.path");
         if (_sysvmISOPath == null) {
             String[] isoPaths = {"/usr/share/cloudstack-common/vms/systemvm.iso"};
@@ -1131,6 +1139,10 @@ ServerResource {
 
     @Override
     public boolean stop() {
+        if (_hostStatsExecutor != null) {
+            _hostStatsExecutor.shutdownNow();
+        }
+
         try {
             Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -1670,6 +1682,7 @@ ServerResource {
                 nicnum++;
             }
             vm.attachDevice(getVifDriver(nic.getType()).plug(nic, "Other PV (32-bit)").toString());
+            _vmStatsCollector.invalidate(vmName);
             return new PlugNicAnswer(cmd, true, "success");
         } catch (LibvirtException e) {
             String msg = " Plug Nic failed due to " + e.toString();
@@ -1693,6 +1706,7 @@ ServerResource {
             for (InterfaceDef pluggedNic : pluggedNics) {
                 if (pluggedNic.getMacAddress().equalsIgnoreCase(nic.getMac())) {
                     vm.detachDevice(pluggedNic.toString());
+                    _vmStatsCollector.invalidate(vmName);
                     // We don't know which "traffic type" is associated with
                     // each interface at this point, so inform all vif drivers
                     for(VifDriver vifDriver : getAllVifDrivers()){
@@ -2573,6 +2587,7 @@ ServerResource {
             KVMPhysicalDisk disk = primary.getPhysicalDisk(cmd.getVolumePath());
             attachOrDetachDisk(conn, cmd.getAttach(), cmd.getVmName(), disk,
                     cmd.getDeviceId().intValue(), cmd.getBytesReadRate(), cmd.getBytesWriteRate(), cmd.getIopsReadRate(), cmd.getIopsWriteRate());
+            _vmStatsCollector.invalidate(cmd.getVmName());
         } catch (LibvirtException e) {
             return new AttachVolumeAnswer(cmd, e.toString());
         } catch (InternalErrorException e) {
@@ -2778,48 +2793,31 @@ ServerResource {
     }
 
     private Answer execute(GetHostStatsCommand cmd) {
-        final Script cpuScript = new Script("/bin/bash", s_logger);
-        cpuScript.add("-c");
-        cpuScript
-        .add("idle=$(top -b -n 1|grep Cpu\\(s\\):|cut -d% -f4|cut -d, -f2);echo $idle");
-
-        final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-        String result = cpuScript.execute(parser);
-        if (result != null) {
-            s_logger.debug("Unable to get the host CPU state: " + result);
-            return new Answer(cmd, false, result);
+        KVMHostStatsCollector.Sample stats = _hostStatsCollector.getStats();
+        if (stats == null) {
+            return new Answer(cmd, false, "Unable to get the host stats");
         }
-        double cpuUtil = (100.0D - Double.parseDouble(parser.getLine()));
 
-        long freeMem = 0;
-        final Script memScript = new Script("/bin/bash", s_logger);
-        memScript.add("-c");
-        memScript
-        .add("freeMem=$(free|grep cache:|awk '{print $4}');echo $freeMem");
-        final OutputInterpreter.OneLineParser Memparser = new OutputInterpreter.OneLineParser();
-        result = memScript.execute(Memparser);
-        if (result != null) {
-            s_logger.debug("Unable to get the host Mem state: " + result);
-            return new Answer(cmd, false, result);
+        double rx;
+        double tx;
+        if (stats.getRxBytes() >= 0) {
+            rx = stats.getRxBytes();
+            tx = stats.getTxBytes();
+        } else {
+            Pair<Double, Double> nicStats = getNicStats(_publicBridgeName);
+            rx = nicStats.first();
+            tx = nicStats.second();
         }
-        freeMem = Long.parseLong(Memparser.getLine());
 
-        Script totalMem = new Script("/bin/bash", s_logger);
-        totalMem.add("-c");
-        totalMem.add("free|grep Mem:|awk '{print $2}'");
-        final OutputInterpreter.OneLineParser totMemparser = new OutputInterpreter.OneLineParser();
-        result = totalMem.execute(totMemparser);
-        if (result != null) {
-            s_logger.debug("Unable to get the host Mem state: " + result);
-            return new Answer(cmd, false, result);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Host stats: cpu " + stats.getCpuUtilization() + "%, steal " + stats.getStealPercent() + "%, iowait " + stats.getIowaitPercent() +
+                    "%, load " + stats.getLoad1() + " " + stats.getLoad5() + " " + stats.getLoad15() + ", hugepages " + stats.getHugePagesFree() + "/" +
+                    stats.getHugePagesTotal());
         }
-        long totMem = Long.parseLong(totMemparser.getLine());
-
-        Pair<Double, Double> nicStats = getNicStats(_publicBridgeName);
 
-        HostStatsEntry hostStats = new HostStatsEntry(cmd.getHostId(), cpuUtil,
-                nicStats.first() / 1024, nicStats.second() / 1024, "host",
-                totMem, freeMem, 0, 0);
+        HostStatsEntry hostStats = new HostStatsEntry(cmd.getHostId(), stats.getCpuUtilization(),
+                rx / 1024, tx / 1024, "host",
+                stats.getTotalMemoryKBs(), stats.getFreeMemoryKBs(), 0, 0);
         return new GetHostStatsAnswer(cmd, hostStats);
     }
 
@@ -2996,23 +2994,21 @@ ServerResource {
     }
 
     protected GetVmStatsAnswer execute(GetVmStatsCommand cmd) {
-        List<String> vmNames = cmd.getVmNames();
-        try {
-            HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
-            for (String vmName : vmNames) {
-                Connect conn = LibvirtConnection.getConnectionByVmName(vmName);
-                VmStatsEntry statEntry = getVmStat(conn, vmName);
-                if (statEntry == null) {
-                    continue;
-                }
-
-                vmStatsNameMap.put(vmName, statEntry);
+        List<Connect> conns = new ArrayList<Connect>();
+        for (HypervisorType hypervisor : new HypervisorType[] { HypervisorType.KVM, HypervisorType.LXC }) {
+            try {
+                conns.add(LibvirtConnection.getConnectionByType(hypervisor.toString()));
+            } catch (LibvirtException e) {
+                s_logger.debug("can't find connection: " + hypervisor.toString() + ", continue");
             }
-            return new GetVmStatsAnswer(cmd, vmStatsNameMap);
-        } catch (LibvirtException e) {
-            s_logger.debug("Can't get vm stats: " + e.toString());
+        }
+        if (conns.isEmpty()) {
+            s_logger.debug("Can't get vm stats: no libvirt connection");
             return new GetVmStatsAnswer(cmd, null);
         }
+
+        HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>(_vmStatsCollector.collect(conns, cmd.getVmNames()));
+        return new GetVmStatsAnswer(cmd, vmStatsNameMap);
     }
 
     protected Answer execute(StopCommand cmd) {
@@ -3032,6 +3028,7 @@ ServerResource {
             destroy_network_rules_for_vm(conn, vmName);
             String result = stopVM(conn, vmName);
             if (result == null) {
+                _vmStatsCollector.remove(vmName);
                 for (DiskDef disk : disks) {
                     if (disk.getDeviceType() == DiskDef.deviceType.CDROM
                             && disk.getDiskPath() != null) {
@@ -4474,118 +4471,6 @@ ServerResource {
         }
     }
 
-    private class vmStats {
-        long _usedTime;
-        long _tx;
-        long _rx;
-        long _io_rd;
-        long _io_wr;
-        long _bytes_rd;
-        long _bytes_wr;
-        Calendar _timestamp;
-    }
-
-    private VmStatsEntry getVmStat(Connect conn, String vmName)
-            throws LibvirtException {
-        Domain dm = null;
-        try {
-            dm = getDomain(conn, vmName);
-            DomainInfo info = dm.getInfo();
-
-            VmStatsEntry stats = new VmStatsEntry();
-            stats.setNumCPUs(info.nrVirtCpu);
-            stats.setEntityType("vm");
-
-            /* get cpu utilization */
-            vmStats oldStats = null;
-
-            Calendar now = Calendar.getInstance();
-
-            oldStats = _vmStats.get(vmName);
-
-            long elapsedTime = 0;
-            if (oldStats != null) {
-                elapsedTime = now.getTimeInMillis()
-                        - oldStats._timestamp.getTimeInMillis();
-                double utilization = (info.cpuTime - oldStats._usedTime)
-                        / ((double) elapsedTime * 1000000);
-
-                NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
-                if(utilization > 0){
-                    stats.setCPUUtilization(utilization * 100);
-                }
-            }
-
-            /* get network stats */
-
-            List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (InterfaceDef vif : vifs) {
-                DomainInterfaceStats ifStats = dm.interfaceStats(vif
-                        .getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
-            }
-
-            if (oldStats != null) {
-                long deltarx = rx - oldStats._rx;
-                if (deltarx > 0)
-                    stats.setNetworkReadKBs(deltarx / 1024);
-                long deltatx = tx - oldStats._tx;
-                if (deltatx > 0)
-                    stats.setNetworkWriteKBs(deltatx / 1024);
-            }
-
-            /* get disk stats */
-            List<DiskDef> disks = getDisks(conn, vmName);
-            long io_rd = 0;
-            long io_wr = 0;
-            long bytes_rd = 0;
-            long bytes_wr = 0;
-            for (DiskDef disk : disks) {
-                DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                io_rd += blockStats.rd_req;
-                io_wr += blockStats.wr_req;
-                bytes_rd += blockStats.rd_bytes;
-                bytes_wr += blockStats.wr_bytes;
-            }
-            
-            if (oldStats != null) {
-                long deltaiord = io_rd - oldStats._io_rd;
-                if (deltaiord > 0)
-                    stats.setDiskReadIOs(deltaiord);
-                long deltaiowr = io_wr - oldStats._io_wr;
-                if (deltaiowr > 0)
-                    stats.setDiskWriteIOs(deltaiowr);
-                long deltabytesrd = bytes_rd - oldStats._bytes_rd;
-                if (deltabytesrd > 0)
-                    stats.setDiskReadKBs(deltabytesrd / 1024);
-                long deltabyteswr = bytes_wr - oldStats._bytes_wr;
-                if (deltabyteswr > 0)
-                    stats.setDiskWriteKBs(deltabyteswr / 1024);
-            }
-            
-            /* save to Hashmap */
-            vmStats newStat = new vmStats();
-            newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._io_rd = io_rd;
-            newStat._io_wr = io_wr;
-            newStat._bytes_rd = bytes_rd;
-            newStat._bytes_wr = bytes_wr;
-            newStat._timestamp = now;
-            _vmStats.put(vmName, newStat);
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
-            }
-        }
-    }
-
     private boolean can_bridge_firewall(String prvNic) {
         Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
         cmd.add("can_bridge_firewall");
@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVMHostStatsCollectorTest {
+    File _proc;
+
+    @Before
+    public void setUp() throws IOException {
+        _proc = File.createTempFile("proc", "");
+        _proc.delete();
+        new File(_proc, "net").mkdirs();
+
+        write("meminfo", "MemTotal:       16330372 kB\nMemFree:         1000000 kB\nBuffers:          200000 kB\nCached:          3000000 kB\n" +
+                "SwapCached:            0 kB\nHugePages_Total:     512\nHugePages_Free:      256\nHugepagesize:       2048 kB\n");
+        write("loadavg", "0.52 1.25 2.00 3/512 12345\n");
+        write("net/dev", "Inter-|   Receive                                                |  Transmit\n" +
+                " face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n" +
+                "    lo: 5000 10 0 0 0 0 0 0 5000 10 0 0 0 0 0 0\n" +
+                "cloudbr0:123456789 1000 0 0 0 0 0 0 987654321 2000 0 0 0 0 0 0\n");
+    }
+
+    @After
+    public void tearDown() {
+        new File(_proc, "net/dev").delete();
+        new File(_proc, "net").delete();
+        for (File file : _proc.listFiles()) {
+            file.delete();
+        }
+        _proc.delete();
+    }
+
+    void write(String name, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(_proc, name));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    void writeCpu(long user, long system, long idle, long iowait, long steal) throws IOException {
+        write("stat", "cpu  " + user + " 0 " + system + " " + idle + " " + iowait + " 0 0 " + steal + " 0 0\n" +
+                "cpu0 1 2 3 4 5 6 7 8 0 0\nintr 12345\nctxt 67890\n");
+    }
+
+    @Test
+    public void testSample() throws IOException {
+        KVMHostStatsCollector collector = new KVMHostStatsCollector(_proc.getPath(), "cloudbr0", 3);
+        writeCpu(1000, 500, 8000, 400, 100);
+        collector.sample();
+        writeCpu(1300, 600, 8500, 450, 150);
+        collector.sample();
+
+        KVMHostStatsCollector.Sample stats = collector.getStats();
+        // Since boot: 2000 of 10000 ticks not idle, then 500 of the next 1000.
+        assertEquals((20.0 + 50.0) / 2, stats.getCpuUtilization(), 0.0001);
+        assertEquals((1.0 + 5.0) / 2, stats.getStealPercent(), 0.0001);
+        assertEquals((4.0 + 5.0) / 2, stats.getIowaitPercent(), 0.0001);
+        assertEquals(16330372, stats.getTotalMemoryKBs());
+        assertEquals(4200000, stats.getFreeMemoryKBs());
+        assertEquals(512, stats.getHugePagesTotal());
+        assertEquals(256, stats.getHugePagesFree());
+        assertEquals(2048, stats.getHugePageSizeKBs());
+        assertEquals(0.52, stats.getLoad1(), 0.0001);
+        assertEquals(1.25, stats.getLoad5(), 0.0001);
+        assertEquals(2.0, stats.getLoad15(), 0.0001);
+        assertEquals(123456789, stats.getRxBytes());
+        assertEquals(987654321, stats.getTxBytes());
+    }
+
+    @Test
+    public void testWindow() throws IOException {
+        KVMHostStatsCollector collector = new KVMHostStatsCollector(_proc.getPath(), "eth9", 2);
+        long busy = 0;
+        long idle = 0;
+        for (int i = 0; i < 5; i++) {
+            // Every interval is 100 ticks, i * 10 of them busy.
+            busy += i * 10;
+            idle += 100 - i * 10;
+            writeCpu(busy, 0, idle, 0, 0);
+            collector.sample();
+        }
+        KVMHostStatsCollector.Sample stats = collector.getStats();
+        assertEquals((30 + 40) / 2.0, stats.getCpuUtilization(), 0.0001);
+        assertEquals(-1, stats.getRxBytes());
+    }
+
+    @Test
+    public void testSampleOnDemand() throws IOException {
+        writeCpu(250, 250, 500, 0, 0);
+        KVMHostStatsCollector collector = new KVMHostStatsCollector(_proc.getPath(), null, 6);
+        assertEquals(50.0, collector.getStats().getCpuUtilization(), 0.0001);
+    }
+}
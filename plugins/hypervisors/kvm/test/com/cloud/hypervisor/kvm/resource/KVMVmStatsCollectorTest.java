@@ -0,0 +1,233 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+import org.libvirt.LibvirtException;
+import org.libvirt.NodeInfo;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.api.VmStatsEntry;
+
+public class KVMVmStatsCollectorTest {
+    private static final Logger s_logger = Logger.getLogger(KVMVmStatsCollectorTest.class);
+
+    private static final String DOMAIN_XML = "<domain type='kvm'><name>%s</name><devices>" +
+            "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='/mnt/pool/root'/><target dev='vda' bus='virtio'/></disk>" +
+            "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='/mnt/pool/data'/><target dev='vdb' bus='virtio'/></disk>" +
+            "<interface type='bridge'><mac address='02:00:00:00:00:01'/><source bridge='cloudbr0'/><target dev='vnet0'/><model type='virtio'/></interface>" +
+            "<interface type='bridge'><mac address='02:00:00:00:00:02'/><source bridge='cloudbr1'/><target dev='vnet1'/><model type='virtio'/></interface>" +
+            "</devices></domain>";
+
+    Connect _conn;
+    List<Domain> _domains;
+    long _counter;
+
+    @Before
+    public void setUp() throws LibvirtException {
+        _conn = mock(Connect.class);
+        NodeInfo node = new NodeInfo();
+        node.cpus = 4;
+        when(_conn.nodeInfo()).thenReturn(node);
+        _domains = new ArrayList<Domain>();
+    }
+
+    /**
+     * Every stats call returns counters that grow by 1 MB (or 1 ms of cpu
+     * time) each time they're read.
+     */
+    Domain addDomain(final int id, String name) throws LibvirtException {
+        Domain dm = mock(Domain.class);
+        when(dm.getName()).thenReturn(name);
+        when(dm.getXMLDesc(0)).thenReturn(String.format(DOMAIN_XML, name));
+        when(dm.getInfo()).thenAnswer(new Answer<DomainInfo>() {
+            @Override
+            public DomainInfo answer(InvocationOnMock invocation) {
+                DomainInfo info = new DomainInfo();
+                info.nrVirtCpu = 2;
+                info.cpuTime = ++_counter * 1000000;
+                return info;
+            }
+        });
+        when(dm.interfaceStats(anyString())).thenAnswer(new Answer<DomainInterfaceStats>() {
+            @Override
+            public DomainInterfaceStats answer(InvocationOnMock invocation) {
+                DomainInterfaceStats stats = new DomainInterfaceStats();
+                stats.rx_bytes = ++_counter * 1024 * 1024;
+                stats.tx_bytes = _counter * 1024 * 1024;
+                return stats;
+            }
+        });
+        when(dm.blockStats(anyString())).thenAnswer(new Answer<DomainBlockStats>() {
+            @Override
+            public DomainBlockStats answer(InvocationOnMock invocation) {
+                DomainBlockStats stats = new DomainBlockStats();
+                stats.rd_req = ++_counter;
+                stats.wr_req = _counter;
+                stats.rd_bytes = _counter * 1024 * 1024;
+                stats.wr_bytes = _counter * 1024 * 1024;
+                return stats;
+            }
+        });
+        _domains.add(dm);
+
+        final int index = _domains.size() - 1;
+        when(_conn.domainLookupByID(id)).thenAnswer(new Answer<Domain>() {
+            @Override
+            public Domain answer(InvocationOnMock invocation) {
+                return _domains.get(index);
+            }
+        });
+        return dm;
+    }
+
+    void listDomains(int... ids) throws LibvirtException {
+        when(_conn.listDomains()).thenReturn(ids);
+    }
+
+    @Test
+    public void testCollect() throws Exception {
+        Domain dm = addDomain(1, "i-2-1-VM");
+        addDomain(2, "i-2-2-VM");
+        listDomains(1, 2);
+
+        KVMVmStatsCollector collector = new KVMVmStatsCollector();
+        Map<String, VmStatsEntry> stats = collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM", "i-2-3-VM"));
+        assertEquals(1, stats.size());
+        assertEquals(2, stats.get("i-2-1-VM").getNumCPUs());
+        assertEquals(0, stats.get("i-2-1-VM").getNetworkReadKBs(), 0);
+
+        Thread.sleep(10);
+        stats = collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM"));
+        VmStatsEntry entry = stats.get("i-2-1-VM");
+        // Each of the two nics and two disks moved on by 5 reads.
+        assertEquals(2 * 5 * 1024, entry.getNetworkReadKBs(), 0);
+        assertEquals(2 * 5 * 1024, entry.getDiskWriteKBs(), 0);
+        assertEquals(2 * 5, entry.getDiskReadIOs(), 0);
+        assertTrue(entry.getCPUUtilization() > 0);
+
+        // The devices are only looked up once.
+        verify(dm, times(1)).getXMLDesc(0);
+        verify(dm, times(4)).interfaceStats(anyString());
+        verify(dm, times(4)).blockStats(anyString());
+        verify(_conn, times(0)).domainLookupByName(anyString());
+    }
+
+    @Test
+    public void testTopologyRefresh() throws LibvirtException {
+        Domain dm = addDomain(1, "i-2-1-VM");
+        listDomains(1);
+
+        KVMVmStatsCollector collector = new KVMVmStatsCollector();
+        collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM"));
+        collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM"));
+        verify(dm, times(1)).getXMLDesc(0);
+
+        collector.invalidate("i-2-1-VM");
+        collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM"));
+        verify(dm, times(2)).getXMLDesc(0);
+
+        // Restarted under a new domain id.
+        when(_conn.domainLookupByID(7)).thenReturn(dm);
+        listDomains(7);
+        collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM"));
+        verify(dm, times(3)).getXMLDesc(0);
+
+        // Gone, so the samples start over when it comes back.
+        listDomains();
+        assertTrue(collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM")).isEmpty());
+        listDomains(7);
+        assertEquals(0, collector.collect(Arrays.asList(_conn), Arrays.asList("i-2-1-VM")).get("i-2-1-VM").getNetworkReadKBs(), 0);
+    }
+
+    @Test
+    public void testUncommittedSampleIsNotUsed() {
+        KVMVmStatsCollector.SampleRing ring = new KVMVmStatsCollector.SampleRing();
+        ring.next().cpuTime = 1;
+        ring.commit();
+        ring.next().cpuTime = 2;
+        ring.commit();
+        assertEquals(1, ring.previous().cpuTime);
+
+        // Reading the counters failed half way, nothing is committed.
+        ring.next().cpuTime = -1;
+        assertEquals(1, ring.previous().cpuTime);
+
+        KVMVmStatsCollector.Sample sample = ring.next();
+        sample.cpuTime = 3;
+        ring.commit();
+        assertEquals(2, ring.previous().cpuTime);
+        assertTrue(ring.next() != sample);
+    }
+
+    @Test
+    public void testCycleCost() throws LibvirtException {
+        int vms = 150;
+        int cycles = Integer.getInteger("vmstats.perf.cycles", 20);
+        int[] ids = new int[vms];
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < vms; i++) {
+            ids[i] = i + 1;
+            names.add("i-2-" + ids[i] + "-VM");
+            addDomain(ids[i], names.get(i));
+        }
+        listDomains(ids);
+
+        KVMVmStatsCollector collector = new KVMVmStatsCollector();
+        collector.collect(Arrays.asList(_conn), names);
+        long start = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            assertEquals(vms, collector.collect(Arrays.asList(_conn), names).size());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // One listing and node info per cycle, then a lookup, info and
+        // one call per device for each vm; the xml is only read once.
+        for (Domain dm : _domains) {
+            verify(dm, times(1)).getXMLDesc(0);
+            verify(dm, times(cycles + 1)).getInfo();
+        }
+        verify(_conn, times(cycles + 1)).listDomains();
+        verify(_conn, times(0)).domainLookupByName(anyString());
+        int callsPerCycle = 2 + vms * (2 + 4);
+        s_logger.info(vms + " vms: " + elapsed / cycles / 1000 + " us and " + callsPerCycle + " libvirt calls per cycle");
+
+        verify(_conn, times((cycles + 1) * vms)).domainLookupByID(anyInt());
+    }
+}
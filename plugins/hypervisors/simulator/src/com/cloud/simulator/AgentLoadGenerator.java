@@ -0,0 +1,379 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.simulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.StartupAnswer;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.api.StartupRoutingCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Response;
+import com.cloud.host.Host;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.Networks.RouterPrivateIpStrategy;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Connects a number of simulated agents over the regular agent protocol and
+ * reports how many of them could connect and the ping round trip times.  It
+ * either runs against a management server or, with -local, starts an
+ * in-process NioServer that answers startup and ping commands, which
+ * measures the NIO layer alone.  Running it with -s 1 and with more
+ * selectors compares the single and the sharded selector modes.
+ * 
+ * Usage: AgentLoadGenerator [-h host] [-p port] [-n agents] [-t connectThreads]
+ *                           [-i pingInterval] [-d duration] [-z zone] [-pod pod]
+ *                           [-c cluster] [-local] [-s selectors]
+ * 
+ * -local needs a db.properties on the classpath to locate the keystore, the
+ * same as the management server.
+ */
+public class AgentLoadGenerator {
+    private static final Logger s_logger = Logger.getLogger(AgentLoadGenerator.class);
+
+    private static final int MAX_SAMPLES = 1000000;
+
+    private String _host = "localhost";
+    private int _port = 8250;
+    private int _agents = 100;
+    private int _connectThreads = 10;
+    private int _pingInterval = 60;
+    private int _duration = 300;
+    private String _zone = "1";
+    private String _pod = "1";
+    private String _cluster = "1";
+    private boolean _local = false;
+    private int _selectors = 1;
+
+    private final AtomicInteger _connected = new AtomicInteger();
+    private final AtomicInteger _failed = new AtomicInteger();
+    private final AtomicLong _pingsSent = new AtomicLong();
+    private final List<Long> _connectTimes = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> _pingTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+    private ScheduledExecutorService _pinger;
+
+    public static void main(String[] args) throws Exception {
+        AgentLoadGenerator generator = new AgentLoadGenerator();
+        Iterator<String> iter = Arrays.asList(args).iterator();
+        while (iter.hasNext()) {
+            String arg = iter.next();
+            if (arg.equals("-h")) {
+                generator._host = iter.next();
+            } else if (arg.equals("-p")) {
+                generator._port = Integer.parseInt(iter.next());
+            } else if (arg.equals("-n")) {
+                generator._agents = Integer.parseInt(iter.next());
+            } else if (arg.equals("-t")) {
+                generator._connectThreads = Integer.parseInt(iter.next());
+            } else if (arg.equals("-i")) {
+                generator._pingInterval = Integer.parseInt(iter.next());
+            } else if (arg.equals("-d")) {
+                generator._duration = Integer.parseInt(iter.next());
+            } else if (arg.equals("-z")) {
+                generator._zone = iter.next();
+            } else if (arg.equals("-pod")) {
+                generator._pod = iter.next();
+            } else if (arg.equals("-c")) {
+                generator._cluster = iter.next();
+            } else if (arg.equals("-local")) {
+                generator._local = true;
+            } else if (arg.equals("-s")) {
+                generator._selectors = Integer.parseInt(iter.next());
+            } else {
+                s_logger.warn("Unknown argument " + arg);
+            }
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        NioServer server = null;
+        if (_local) {
+            server = new NioServer("AgentLoadServer", _port, 10, _selectors, new ServerHandlerFactory());
+            server.start();
+        }
+
+        _pinger = Executors.newScheduledThreadPool(4, new NamedThreadFactory("AgentLoadPinger"));
+        List<SimulatedAgent> agents = new ArrayList<SimulatedAgent>(_agents);
+        ExecutorService connector = Executors.newFixedThreadPool(_connectThreads, new NamedThreadFactory("AgentLoadConnector"));
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < _agents; i++) {
+            final SimulatedAgent agent = new SimulatedAgent(i);
+            agents.add(agent);
+            connector.execute(new Runnable() {
+                @Override
+                public void run() {
+                    agent.connect();
+                }
+            });
+        }
+        connector.shutdown();
+        for (SimulatedAgent agent : agents) {
+            agent.awaitStartup(60);
+        }
+        s_logger.info(_connected.get() + " of " + _agents + " agents connected in " + (System.currentTimeMillis() - start) + " ms, " + _failed.get() + " failed");
+        report("Connect", _connectTimes);
+
+        long end = System.currentTimeMillis() + _duration * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(10000L, Math.max(1L, end - System.currentTimeMillis())));
+            s_logger.info(_connected.get() + " agents connected, " + _pingsSent.get() + " pings sent, " + _pingTimes.size() + " answered");
+        }
+        report("Ping", _pingTimes);
+
+        _pinger.shutdownNow();
+        for (SimulatedAgent agent : agents) {
+            agent.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    protected void record(List<Long> samples, long nanos) {
+        if (samples.size() < MAX_SAMPLES) {
+            samples.add(nanos);
+        }
+    }
+
+    protected void report(String name, List<Long> samples) {
+        Long[] sorted;
+        synchronized (samples) {
+            sorted = samples.toArray(new Long[samples.size()]);
+        }
+        if (sorted.length == 0) {
+            s_logger.info(name + ": no samples");
+            return;
+        }
+        Arrays.sort(sorted);
+        long total = 0;
+        for (Long sample : sorted) {
+            total += sample;
+        }
+        s_logger.info(name + " latency over " + sorted.length + " samples (ms): min " + ms(sorted[0]) + ", avg " + ms(total / sorted.length) + ", p50 "
+                + ms(sorted[sorted.length / 2]) + ", p99 " + ms(sorted[(int)(sorted.length * 0.99)]) + ", max " + ms(sorted[sorted.length - 1]));
+    }
+
+    protected static String ms(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    protected class SimulatedAgent implements HandlerFactory {
+        final int _index;
+        final CountDownLatch _started = new CountDownLatch(1);
+        final Map<Long, Long> _outstanding = new ConcurrentHashMap<Long, Long>();
+        NioClient _client;
+        volatile Link _link;
+        volatile long _hostId;
+        long _connectStart;
+
+        public SimulatedAgent(int index) {
+            _index = index;
+        }
+
+        public void connect() {
+            _connectStart = System.nanoTime();
+            _client = new NioClient("AgentLoad-" + _index, _host, _port, 1, this);
+            _client.start();
+            if (!_client.isStartup()) {
+                _failed.incrementAndGet();
+                _started.countDown();
+            }
+        }
+
+        public void awaitStartup(int seconds) throws InterruptedException {
+            if (!_started.await(seconds, TimeUnit.SECONDS)) {
+                s_logger.warn("Agent " + _index + " did not start up in " + seconds + " seconds");
+            }
+        }
+
+        public void stop() {
+            if (_client != null) {
+                _client.stop();
+            }
+        }
+
+        @Override
+        public Task create(Task.Type type, Link link, byte[] data) {
+            return new AgentTask(type, link, data);
+        }
+
+        protected StartupCommand createStartupCommand() {
+            StartupRoutingCommand startup = new StartupRoutingCommand(4, 2000, 8L * 1024 * 1024 * 1024, 0, "hvm", HypervisorType.Simulator, RouterPrivateIpStrategy.HostLocal);
+            startup.setStateChanges(new HashMap<String, State>());
+            startup.setGuid("agent-load-" + _index);
+            startup.setName("agent-load-" + _index);
+            startup.setDataCenter(_zone);
+            startup.setPod(_pod);
+            startup.setCluster(_cluster);
+            startup.setAgentTag("agent-simulator");
+            startup.setPrivateIpAddress("127.0." + (_index / 250) + "." + (_index % 250 + 1));
+            startup.setPrivateNetmask("255.255.0.0");
+            startup.setPrivateMacAddress(String.format("02:00:00:00:%02x:%02x", (_index >> 8) & 0xff, _index & 0xff));
+            startup.setVersion(getClass().getPackage().getImplementationVersion());
+            return startup;
+        }
+
+        protected void ping() {
+            Link link = _link;
+            if (link == null) {
+                return;
+            }
+            PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, _hostId, new HashMap<String, State>());
+            Request request = new Request(_hostId, -1, ping, false);
+            _outstanding.put(request.getSequence(), System.nanoTime());
+            try {
+                link.send(request.toBytes());
+                _pingsSent.incrementAndGet();
+            } catch (Exception e) {
+                _outstanding.remove(request.getSequence());
+                s_logger.debug("Agent " + _index + " failed to ping: " + e.getMessage());
+            }
+        }
+
+        protected class AgentTask extends Task {
+            public AgentTask(Type type, Link link, byte[] data) {
+                super(type, link, data);
+            }
+
+            @Override
+            protected void doTask(Task task) throws Exception {
+                if (task.getType() == Task.Type.CONNECT) {
+                    Request request = new Request(-1, -1, new Command[] { createStartupCommand() }, false, false);
+                    _outstanding.put(request.getSequence(), _connectStart);
+                    task.getLink().send(request.toBytes());
+                } else if (task.getType() == Task.Type.DATA) {
+                    Request request = Request.parse(task.getData());
+                    if (!(request instanceof Response)) {
+                        // Nothing is simulated on this agent, just fail whatever the server asks for.
+                        Command[] cmds = request.getCommands();
+                        Answer[] answers = new Answer[cmds.length];
+                        for (int i = 0; i < cmds.length; i++) {
+                            answers[i] = new Answer(cmds[i], false, "Not supported by the load generator");
+                        }
+                        task.getLink().send(new Response(request, answers).toBytes());
+                        return;
+                    }
+                    Long sent = _outstanding.remove(request.getSequence());
+                    Answer answer = ((Response)request).getAnswer();
+                    if (answer instanceof StartupAnswer) {
+                        if (answer.getResult()) {
+                            _hostId = ((StartupAnswer)answer).getHostId();
+                            _link = task.getLink();
+                            _connected.incrementAndGet();
+                            if (sent != null) {
+                                record(_connectTimes, System.nanoTime() - sent);
+                            }
+                            int interval = ((StartupAnswer)answer).getPingInterval();
+                            interval = interval > 0 ? Math.min(interval, _pingInterval) : _pingInterval;
+                            // Spread the pings of the agents over the interval.
+                            _pinger.scheduleAtFixedRate(new Runnable() {
+                                @Override
+                                public void run() {
+                                    ping();
+                                }
+                            }, (_index * 1000L / Math.max(1, _agents)) * interval, interval * 1000L, TimeUnit.MILLISECONDS);
+                        } else {
+                            s_logger.warn("Agent " + _index + " was rejected: " + answer.getDetails());
+                            _failed.incrementAndGet();
+                        }
+                        _started.countDown();
+                    } else if (sent != null) {
+                        record(_pingTimes, System.nanoTime() - sent);
+                    }
+                } else if (task.getType() == Task.Type.DISCONNECT) {
+                    if (_link != null) {
+                        _link = null;
+                        _connected.decrementAndGet();
+                    }
+                    _started.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stands in for the management server in -local mode.
+     */
+    protected class ServerHandlerFactory implements HandlerFactory {
+        final AtomicLong _nextHostId = new AtomicLong();
+
+        @Override
+        public Task create(Task.Type type, Link link, byte[] data) {
+            return new ServerTask(type, link, data);
+        }
+
+        protected class ServerTask extends Task {
+            public ServerTask(Type type, Link link, byte[] data) {
+                super(type, link, data);
+            }
+
+            @Override
+            protected void doTask(Task task) throws Exception {
+                if (task.getType() != Task.Type.DATA) {
+                    return;
+                }
+                Request request = Request.parse(task.getData());
+                if (request instanceof Response) {
+                    return;
+                }
+                Command[] cmds = request.getCommands();
+                Answer[] answers = new Answer[cmds.length];
+                for (int i = 0; i < cmds.length; i++) {
+                    if (cmds[i] instanceof StartupCommand) {
+                        answers[i] = new StartupAnswer((StartupCommand)cmds[i], _nextHostId.incrementAndGet(), _pingInterval);
+                    } else if (cmds[i] instanceof PingCommand) {
+                        answers[i] = new PingAnswer((PingCommand)cmds[i]);
+                    } else {
+                        answers[i] = new Answer(cmds[i], false, "Not supported by the load generator");
+                    }
+                }
+                task.getLink().send(new Response(request, answers).toBytes());
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.springframework.stereotype.Component;
 import com.cloud.hypervisor.vmware.manager.VmwareManager;
 import com.cloud.hypervisor.vmware.util.VmwareClient;
 import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.cloud.hypervisor.vmware.util.VmwareContextPool;
 import com.cloud.utils.StringUtils;
 
 @Component
@@ -34,6 +35,7 @@ public class VmwareContextFactory {
 
 	private static volatile int s_seq = 1;
 	private static VmwareManager s_vmwareMgr;
+	private static VmwareContextPool s_pool = new VmwareContextPool();
 
 	@Inject VmwareManager _vmwareMgr;
 
@@ -53,6 +55,10 @@ public class VmwareContextFactory {
 		assert(vCenterUserName != null);
 		assert(vCenterPassword != null);
 
+		VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName, vCenterPassword);
+		if(context != null)
+			return context;
+
 		String serviceUrl = "https://" + vCenterAddress + "/sdk/vimService";
 		//String[] params = new String[] {"--url", serviceUrl, "--username", vCenterUserName, "--password", vCenterPassword };
 
@@ -62,7 +68,8 @@ public class VmwareContextFactory {
 		VmwareClient vimClient = new VmwareClient(vCenterAddress + "-" + s_seq++);
 		vimClient.connect(serviceUrl, vCenterUserName, vCenterPassword);
 
-		VmwareContext context = new VmwareContext(vimClient, vCenterAddress);
+		context = new VmwareContext(vimClient, vCenterAddress);
+		context.setPoolInfo(s_pool, VmwareContextPool.composePoolKey(vCenterAddress, vCenterUserName, vCenterPassword));
 		context.registerStockObject(VmwareManager.CONTEXT_STOCK_NAME, s_vmwareMgr);
 
 		context.registerStockObject("serviceconsole", s_vmwareMgr.getServiceConsolePortGroupName());
@@ -334,6 +334,7 @@ import org.apache.cloudstack.storage.to.VolumeObjectTO;
 
 public class VmwareResource implements StoragePoolResource, ServerResource, VmwareHostService {
     private static final Logger s_logger = Logger.getLogger(VmwareResource.class);
+    private static final int PERF_QUERY_BATCH_SIZE = 250;
 
     protected String _name;
 
@@ -373,6 +374,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 
     protected ManagedObjectReference _morHyperHost;
     protected VmwareContext _serviceContext;
+    private int[] _networkPerfCounterIds;
     protected String _hostName;
 
     protected HashMap<String, State> _vms = new HashMap<String, State>(71);
@@ -5958,25 +5960,45 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         return newStates;
     }
 
-    private HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
-        VmwareHypervisorHost hyperHost = getHyperHost(getServiceContext());
-        HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
-        ManagedObjectReference perfMgr = getServiceContext().getServiceContent().getPerfManager();
-        VimPortType service = getServiceContext().getService();
-        PerfCounterInfo rxPerfCounterInfo = null;
-        PerfCounterInfo txPerfCounterInfo = null;
-
-        List<PerfCounterInfo> cInfo = (List<PerfCounterInfo>) getServiceContext().getVimClient().getDynamicProperty(perfMgr, "perfCounter");
-        for(PerfCounterInfo info : cInfo) {
-            if ("net".equalsIgnoreCase(info.getGroupInfo().getKey())) {
-                if ("transmitted".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    txPerfCounterInfo = info;
-                }
-                if ("received".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    rxPerfCounterInfo = info;
+    /**
+     * Looks up the ids of the network rx/tx performance counters, which don't change for the
+     * life of a vCenter, so they are only fetched once.
+     *
+     * @return the rx and tx counter ids, -1 if the counter isn't available
+     */
+    protected synchronized int[] getNetworkPerfCounterIds(VmwareContext context, ManagedObjectReference perfMgr) throws Exception {
+        if (_networkPerfCounterIds == null) {
+            int[] counterIds = new int[] { -1, -1 };
+            List<PerfCounterInfo> cInfo = (List<PerfCounterInfo>) context.getVimClient().getDynamicProperty(perfMgr, "perfCounter");
+            for(PerfCounterInfo info : cInfo) {
+                if ("net".equalsIgnoreCase(info.getGroupInfo().getKey())) {
+                    if ("received".equalsIgnoreCase(info.getNameInfo().getKey())) {
+                        counterIds[0] = info.getKey();
+                    }
+                    if ("transmitted".equalsIgnoreCase(info.getNameInfo().getKey())) {
+                        counterIds[1] = info.getKey();
+                    }
                 }
             }
+            _networkPerfCounterIds = counterIds;
         }
+        return _networkPerfCounterIds;
+    }
+
+    protected HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
+        VmwareContext context = getServiceContext();
+        VmwareHypervisorHost hyperHost = getHyperHost(context);
+        HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
+        ManagedObjectReference perfMgr = context.getServiceContent().getPerfManager();
+        VimPortType service = context.getService();
+
+        int[] counterIds = getNetworkPerfCounterIds(context, perfMgr);
+        int rxCounterId = counterIds[0];
+        int txCounterId = counterIds[1];
+
+        // vm mor -> vm name of the vms whose network counters are queried
+        Map<String, String> vmMorNames = new HashMap<String, String>();
+        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
 
         ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "summary.config.numCpu", "summary.quickStats.overallCpuUsage"});
         if (ocs != null && ocs.length > 0) {
@@ -6001,55 +6023,69 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         continue;
                     }
 
-                    ManagedObjectReference vmMor = hyperHost.findVmOnHyperHost(name).getMor();
-                    assert(vmMor!=null);
-
-                    ArrayList vmNetworkMetrics = new ArrayList();
-                    // get all the metrics from the available sample period
-                    List<PerfMetricId> perfMetrics = service.queryAvailablePerfMetric(perfMgr, vmMor, null, null, null);
-                    if(perfMetrics != null) {
-                        for(int index=0; index < perfMetrics.size(); ++index) {
-                            if ( ((rxPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == rxPerfCounterInfo.getKey())) ||
-                                    ((txPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == txPerfCounterInfo.getKey())) ) {
-                                vmNetworkMetrics.add(perfMetrics.get(index));
-                            }
+                    vmResponseMap.put(name, new VmStatsEntry(Integer.parseInt(maxCpuUsage), 0, 0, Integer.parseInt(numberCPUs), "vm"));
+
+                    if (rxCounterId < 0 && txCounterId < 0) {
+                        continue;
+                    }
+
+                    // the aggregate ("") instance sums up all the nics of the vm
+                    PerfQuerySpec qSpec = new PerfQuerySpec();
+                    qSpec.setEntity(oc.getObj());
+                    for (int counterId : counterIds) {
+                        if (counterId >= 0) {
+                            PerfMetricId metricId = new PerfMetricId();
+                            metricId.setCounterId(counterId);
+                            metricId.setInstance("");
+                            qSpec.getMetricId().add(metricId);
                         }
                     }
+                    qSpecs.add(qSpec);
+                    vmMorNames.put(oc.getObj().getValue(), name);
+                }
+            }
+        }
 
-                    double networkReadKBs=0;
-                    double networkWriteKBs=0;
-                    long sampleDuration=0;
-
-                    if (vmNetworkMetrics.size() != 0) {
-                        PerfQuerySpec qSpec = new PerfQuerySpec();
-                        qSpec.setEntity(vmMor);
-                        PerfMetricId[] availableMetricIds = (PerfMetricId[]) vmNetworkMetrics.toArray(new PerfMetricId[0]);
-                        qSpec.getMetricId().addAll(Arrays.asList(availableMetricIds));
-                        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
-                        qSpecs.add(qSpec);
-                        List<PerfEntityMetricBase> values = service.queryPerf(perfMgr, qSpecs);
-
-                        for(int i=0; i<values.size(); ++i) {
-                            List<PerfSampleInfo>  infos = ((PerfEntityMetric)values.get(i)).getSampleInfo();
-                            int endMs = infos.get(infos.size()-1).getTimestamp().getSecond() * 1000 + infos.get(infos.size()-1).getTimestamp().getMillisecond();
-                            int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
-                            sampleDuration = (endMs - beginMs) /1000;
-                            List<PerfMetricSeries> vals = ((PerfEntityMetric)values.get(i)).getValue();
-                            for(int vi = 0; ((vals!= null) && (vi < vals.size())); ++vi){
-                                if(vals.get(vi) instanceof PerfMetricIntSeries) {
-                                    PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
-                                    List<Long> perfValues = val.getValue();
-                                    if (vals.get(vi).getId().getCounterId() == rxPerfCounterInfo.getKey()) {
-                                        networkReadKBs = sampleDuration * perfValues.get(3); //get the average RX rate multiplied by sampled duration
-                                    }
-                                    if (vals.get(vi).getId().getCounterId() == txPerfCounterInfo.getKey()) {
-                                        networkWriteKBs = sampleDuration * perfValues.get(3);//get the average TX rate multiplied by sampled duration
-                                    }
-                                }
-                            }
+        // one query for all the vms on the host, split up to keep the responses reasonable
+        for (int start = 0; start < qSpecs.size(); start += PERF_QUERY_BATCH_SIZE) {
+            List<PerfEntityMetricBase> values = service.queryPerf(perfMgr, qSpecs.subList(start, Math.min(start + PERF_QUERY_BATCH_SIZE, qSpecs.size())));
+            if (values == null) {
+                continue;
+            }
+
+            for (PerfEntityMetricBase value : values) {
+                VmStatsEntry stats = vmResponseMap.get(vmMorNames.get(value.getEntity().getValue()));
+                if (stats == null || !(value instanceof PerfEntityMetric)) {
+                    continue;
+                }
+
+                List<PerfSampleInfo> infos = ((PerfEntityMetric)value).getSampleInfo();
+                if (infos == null || infos.isEmpty()) {
+                    continue;
+                }
+                int endMs = infos.get(infos.size()-1).getTimestamp().getSecond() * 1000 + infos.get(infos.size()-1).getTimestamp().getMillisecond();
+                int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
+                long sampleDuration = (endMs - beginMs) /1000;
+
+                List<PerfMetricSeries> vals = ((PerfEntityMetric)value).getValue();
+                for(int vi = 0; ((vals!= null) && (vi < vals.size())); ++vi){
+                    if(vals.get(vi) instanceof PerfMetricIntSeries) {
+                        List<Long> perfValues = ((PerfMetricIntSeries)vals.get(vi)).getValue();
+                        if (perfValues == null || perfValues.isEmpty()) {
+                            continue;
+                        }
+                        long sum = 0;
+                        for (Long perfValue : perfValues) {
+                            sum += perfValue;
+                        }
+                        // the average rate multiplied by the sampled duration
+                        double kbs = sampleDuration * ((double)sum / perfValues.size());
+                        if (vals.get(vi).getId().getCounterId() == rxCounterId) {
+                            stats.setNetworkReadKBs(kbs);
+                        } else if (vals.get(vi).getId().getCounterId() == txCounterId) {
+                            stats.setNetworkWriteKBs(kbs);
                         }
                     }
-                    vmResponseMap.put(name, new VmStatsEntry(Integer.parseInt(maxCpuUsage), networkReadKBs, networkWriteKBs, Integer.parseInt(numberCPUs), "vm"));
                 }
             }
         }
@@ -16,22 +16,47 @@
 // under the License.
 package com.cloud.hypervisor.vmware.resource;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.datatype.DatatypeFactory;
+
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.ScaleVmAnswer;
 import com.cloud.agent.api.ScaleVmCommand;
+import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.to.VirtualMachineTO;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineMO;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHost;
 import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.cloud.hypervisor.vmware.util.VmwareClient;
 import com.cloud.hypervisor.vmware.util.VmwareHelper;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ElementDescription;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.VimPortType;
 import com.vmware.vim25.VirtualMachineConfigSpec;
 import org.junit.Test;
 import org.junit.Before;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.MockitoAnnotations;
 import static org.mockito.Mockito.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class VmwareResourceTest {
@@ -55,6 +80,9 @@ public class VmwareResourceTest {
     VmwareHypervisorHost hyperHost;
     @Mock VirtualMachineMO vmMo;
     @Mock VirtualMachineConfigSpec vmConfigSpec;
+    @Mock VmwareClient vimClient;
+    @Mock VimPortType vimPort;
+    @Mock ServiceContent serviceContent;
 
     @Before
     public void setup(){
@@ -80,4 +108,100 @@ public class VmwareResourceTest {
         verify(_resource).execute(cmd);
     }
 
+    private PerfCounterInfo perfCounter(int key, String group, String name) {
+        ElementDescription groupInfo = new ElementDescription();
+        groupInfo.setKey(group);
+        ElementDescription nameInfo = new ElementDescription();
+        nameInfo.setKey(name);
+        PerfCounterInfo info = new PerfCounterInfo();
+        info.setKey(key);
+        info.setGroupInfo(groupInfo);
+        info.setNameInfo(nameInfo);
+        return info;
+    }
+
+    private ObjectContent vmProperties(String name, String morValue) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType("VirtualMachine");
+        mor.setValue(morValue);
+        ObjectContent oc = new ObjectContent();
+        oc.setObj(mor);
+        String[][] props = { { "name", name }, { "summary.config.numCpu", "2" }, { "summary.quickStats.overallCpuUsage", "500" } };
+        for (String[] prop : props) {
+            DynamicProperty dp = new DynamicProperty();
+            dp.setName(prop[0]);
+            dp.setVal(prop[1]);
+            oc.getPropSet().add(dp);
+        }
+        return oc;
+    }
+
+    private PerfEntityMetric perfValues(String morValue, int counterId, long... values) throws Exception {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType("VirtualMachine");
+        mor.setValue(morValue);
+        PerfEntityMetric metric = new PerfEntityMetric();
+        metric.setEntity(mor);
+        DatatypeFactory factory = DatatypeFactory.newInstance();
+        for (String time : new String[] { "2013-06-01T10:00:00Z", "2013-06-01T10:00:20Z" }) {
+            PerfSampleInfo info = new PerfSampleInfo();
+            info.setTimestamp(factory.newXMLGregorianCalendar(time));
+            info.setInterval(20);
+            metric.getSampleInfo().add(info);
+        }
+        PerfMetricId metricId = new PerfMetricId();
+        metricId.setCounterId(counterId);
+        metricId.setInstance("");
+        PerfMetricIntSeries series = new PerfMetricIntSeries();
+        series.setId(metricId);
+        for (long value : values) {
+            series.getValue().add(value);
+        }
+        metric.getValue().add(series);
+        return metric;
+    }
+
+    //Test the network counters of all the vms are fetched with a single query
+    @Test
+    public void testGetVmStatsBatchesPerfQueries() throws Exception {
+        ManagedObjectReference perfMgr = new ManagedObjectReference();
+        perfMgr.setType("PerformanceManager");
+        perfMgr.setValue("PerfMgr");
+        when(context.getServiceContent()).thenReturn(serviceContent);
+        when(context.getService()).thenReturn(vimPort);
+        when(context.getVimClient()).thenReturn(vimClient);
+        when(serviceContent.getPerfManager()).thenReturn(perfMgr);
+        List<PerfCounterInfo> counters = Arrays.asList(perfCounter(1, "cpu", "usage"), perfCounter(2, "net", "received"), perfCounter(3, "net", "transmitted"));
+        when(vimClient.getDynamicProperty(perfMgr, "perfCounter")).thenReturn(counters);
+
+        ObjectContent[] ocs = new ObjectContent[] { vmProperties("i-2-3-VM", "vm-3"), vmProperties("i-2-4-VM", "vm-4"), vmProperties("r-5-VM", "vm-5") };
+        when(hyperHost.getVmPropertiesOnHyperHost(any(String[].class))).thenReturn(ocs);
+        List<PerfEntityMetricBase> values = new ArrayList<PerfEntityMetricBase>();
+        values.add(perfValues("vm-3", 2, 10L, 30L));
+        when(vimPort.queryPerf(eq(perfMgr), anyListOf(PerfQuerySpec.class))).thenReturn(values);
+
+        List<String> vmNames = Arrays.asList("i-2-3-VM", "i-2-4-VM");
+        HashMap<String, VmStatsEntry> stats = _resource.getVmStats(vmNames);
+        _resource.getVmStats(vmNames);
+
+        assertEquals(2, stats.size());
+        assertEquals(2, stats.get("i-2-3-VM").getNumCPUs());
+        // 20 KBps on average over the 20 seconds sampled
+        assertEquals(400.0, stats.get("i-2-3-VM").getNetworkReadKBs(), 0.001);
+        assertEquals(0.0, stats.get("i-2-3-VM").getNetworkWriteKBs(), 0.001);
+        assertEquals(0.0, stats.get("i-2-4-VM").getNetworkReadKBs(), 0.001);
+
+        ArgumentCaptor<List> specs = ArgumentCaptor.forClass(List.class);
+        verify(vimPort, times(2)).queryPerf(eq(perfMgr), specs.capture());
+        assertEquals(2, specs.getValue().size());
+        for (Object spec : specs.getValue()) {
+            assertEquals(2, ((PerfQuerySpec)spec).getMetricId().size());
+            assertTrue(((PerfQuerySpec)spec).getEntity().getValue().startsWith("vm-"));
+        }
+        verify(vimPort, never()).queryAvailablePerfMetric(any(ManagedObjectReference.class), any(ManagedObjectReference.class),
+                any(javax.xml.datatype.XMLGregorianCalendar.class), any(javax.xml.datatype.XMLGregorianCalendar.class), any(Integer.class));
+        verify(vimClient, times(1)).getDynamicProperty(perfMgr, "perfCounter");
+        verify(hyperHost, never()).findVmOnHyperHost(anyString());
+    }
+
 }
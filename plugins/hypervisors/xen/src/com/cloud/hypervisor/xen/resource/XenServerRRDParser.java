@@ -0,0 +1,175 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streaming parser for the rrd_updates (xport) document returned by the
+ * gethostvmstats plugin.  Only the columns accepted by the filter are kept
+ * and their values are averaged as the rows go by, so memory use depends on
+ * the number of wanted columns rather than on the size of the document.
+ *
+ * <pre>
+ * &lt;xport&gt;&lt;meta&gt;...&lt;legend&gt;&lt;entry&gt;AVERAGE:vm:uuid:cpu0&lt;/entry&gt;...&lt;/legend&gt;&lt;/meta&gt;
+ * &lt;data&gt;&lt;row&gt;&lt;t&gt;time&lt;/t&gt;&lt;v&gt;value&lt;/v&gt;...&lt;/row&gt;...&lt;/data&gt;&lt;/xport&gt;
+ * </pre>
+ */
+public class XenServerRRDParser {
+    private static final Logger s_logger = Logger.getLogger(XenServerRRDParser.class);
+
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+    static {
+        s_factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    public interface ColumnFilter {
+        /**
+         * @param type "host" or "vm".
+         * @param uuid uuid of the host or vm.
+         * @param param name of the data source, e.g. cpu0 or vif_0_rx.
+         * @return true if the column is wanted.
+         */
+        boolean accept(String type, String uuid, String param);
+    }
+
+    public static class Column {
+        final String type;
+        final String uuid;
+        final String param;
+        final double average;
+
+        Column(String type, String uuid, String param, double average) {
+            this.type = type;
+            this.uuid = uuid;
+            this.param = param;
+            this.average = average;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getParam() {
+            return param;
+        }
+
+        /**
+         * @return the average over all rows, skipping NaN values.  0 if the
+         * average is not a finite number.
+         */
+        public double getAverage() {
+            return average;
+        }
+    }
+
+    /**
+     * Parses the document and averages the wanted columns.
+     * 
+     * @return wanted columns, in legend order.
+     */
+    public static List<Column> parse(Reader reader, ColumnFilter filter) throws XMLStreamException {
+        XMLStreamReader xml = s_factory.createXMLStreamReader(reader);
+        try {
+            return parse(xml, filter);
+        } finally {
+            xml.close();
+        }
+    }
+
+    protected static List<Column> parse(XMLStreamReader xml, ColumnFilter filter) throws XMLStreamException {
+        // Legend position -> index in the arrays below, or -1 if the column is not wanted.
+        int[] slots = new int[16];
+        int numColumns = 0;
+        List<String[]> wanted = new ArrayList<String[]>();
+
+        double[] sums = null;
+        int[] counts = null;
+        int column = -1;
+
+        while (xml.hasNext()) {
+            if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            String name = xml.getLocalName();
+            if (name.equals("entry")) {
+                String[] metadata = xml.getElementText().trim().split(":");
+                int slot = -1;
+                if (metadata.length == 4 && filter.accept(metadata[1], metadata[2], metadata[3])) {
+                    slot = wanted.size();
+                    wanted.add(metadata);
+                }
+                if (numColumns == slots.length) {
+                    int[] grown = new int[slots.length * 2];
+                    System.arraycopy(slots, 0, grown, 0, slots.length);
+                    slots = grown;
+                }
+                slots[numColumns++] = slot;
+            } else if (name.equals("data")) {
+                sums = new double[wanted.size()];
+                counts = new int[wanted.size()];
+            } else if (name.equals("row")) {
+                column = 0;
+            } else if (name.equals("v") && sums != null) {
+                int slot = column < numColumns ? slots[column] : -1;
+                column++;
+                if (slot < 0) {
+                    continue;
+                }
+                double value = parseValue(xml.getElementText());
+                if (!Double.isNaN(value)) {
+                    sums[slot] += value;
+                    counts[slot]++;
+                }
+            }
+        }
+
+        List<Column> columns = new ArrayList<Column>(wanted.size());
+        for (int i = 0; i < wanted.size(); i++) {
+            String[] metadata = wanted.get(i);
+            double average = sums == null ? 0 : counts[i] == 0 ? sums[i] : sums[i] / counts[i];
+            if (Double.isInfinite(average) || Double.isNaN(average)) {
+                s_logger.warn("Found an invalid value (infinity/NaN) for " + metadata[1] + ":" + metadata[2] + ":" + metadata[3]);
+                average = 0;
+            }
+            columns.add(new Column(metadata[1], metadata[2], metadata[3], average));
+        }
+        return columns;
+    }
+
+    protected static double parseValue(String text) {
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
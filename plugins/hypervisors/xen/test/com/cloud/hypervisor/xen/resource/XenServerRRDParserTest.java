@@ -0,0 +1,216 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Checks the streaming rrd_updates parser against the DOM walk it replaced
+ * and compares the two on documents shaped like the ones returned for 50,
+ * 200 and 500 VM pools.
+ */
+public class XenServerRRDParserTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(XenServerRRDParserTest.class);
+
+    private static final int ROWS = 20;
+    private static final String[] VM_PARAMS = {"cpu0", "cpu1", "vif_0_rx", "vif_0_tx", "vbd_xvda_read", "vbd_xvda_write", "memory", "memory_internal_free"};
+    private static final String[] HOST_PARAMS = {"cpu0", "cpu1", "cpu2", "cpu3", "pif_eth0_rx", "pif_eth0_tx", "memory_total_kib", "memory_free_kib", "loadavg"};
+    private static final int ITERATIONS = Integer.getInteger("rrd.perf.iterations", 5);
+
+    static final String SMALL = "<xport><meta><start>0</start><step>60</step><end>120</end><rows>3</rows><columns>4</columns><legend>"
+            + "<entry>AVERAGE:host:h1:cpu0</entry><entry>AVERAGE:vm:v1:cpu0</entry><entry>AVERAGE:vm:v2:vif_0_rx</entry><entry>bogus</entry>"
+            + "</legend></meta><data>"
+            + "<row><t>120</t><v>0.5</v><v>NaN</v><v>10</v><v>1</v></row>\n"
+            + "  <row><t>60</t><v>0.25</v><v>0.2</v><v>20</v><v>1</v></row>\n"
+            + "  <row><t>0</t><v>0.75</v><v>0.4</v><v>garbage</v><v>1</v></row>\n"
+            + "</data></xport>";
+
+    public void testAveragesOnlyWantedColumns() throws Exception {
+        List<XenServerRRDParser.Column> columns = XenServerRRDParser.parse(new StringReader(SMALL), new XenServerRRDParser.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return type.equals("vm");
+            }
+        });
+
+        assertEquals(2, columns.size());
+        assertEquals("v1", columns.get(0).getUuid());
+        assertEquals("cpu0", columns.get(0).getParam());
+        assertEquals(0.3, columns.get(0).getAverage(), 1e-9);
+        assertEquals("v2", columns.get(1).getUuid());
+        assertEquals(15.0, columns.get(1).getAverage(), 1e-9);
+    }
+
+    public void testEmptyAndInvalidData() throws Exception {
+        String xml = "<xport><meta><legend><entry>AVERAGE:host:h1:cpu0</entry><entry>AVERAGE:host:h1:cpu1</entry></legend></meta>"
+                + "<data><row><t>0</t><v>NaN</v><v>Infinity</v></row></data></xport>";
+        List<XenServerRRDParser.Column> columns = XenServerRRDParser.parse(new StringReader(xml), new XenServerRRDParser.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return true;
+            }
+        });
+        assertEquals(2, columns.size());
+        assertEquals(0.0, columns.get(0).getAverage());
+        assertEquals(0.0, columns.get(1).getAverage());
+    }
+
+    public void testPools() throws Exception {
+        for (int vms : new int[] {50, 200, 500}) {
+            compare(vms);
+        }
+    }
+
+    protected void compare(int vms) throws Exception {
+        String xml = generate(vms, new Random(vms));
+        // A host reports every VM in the pool but is only asked about its own.
+        final Set<String> wanted = new HashSet<String>();
+        for (int i = 0; i < vms; i += 4) {
+            wanted.add(uuid(i));
+        }
+        XenServerRRDParser.ColumnFilter filter = new XenServerRRDParser.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return type.equals("vm") && wanted.contains(uuid);
+            }
+        };
+
+        Map<String, Double> expected = parseWithDom(xml, wanted);
+        List<XenServerRRDParser.Column> columns = XenServerRRDParser.parse(new StringReader(xml), filter);
+        assertEquals(expected.size(), columns.size());
+        for (XenServerRRDParser.Column column : columns) {
+            assertEquals(expected.get(column.getUuid() + ":" + column.getParam()), column.getAverage(), 1e-9);
+        }
+
+        long dom = 0;
+        long stax = 0;
+        for (int i = 0; i < ITERATIONS + 1; i++) {
+            long start = System.nanoTime();
+            parseWithDom(xml, wanted);
+            long middle = System.nanoTime();
+            XenServerRRDParser.parse(new StringReader(xml), filter);
+            long end = System.nanoTime();
+            // The first round only warms up.
+            if (i > 0) {
+                dom += middle - start;
+                stax += end - middle;
+            }
+        }
+        s_logger.info(vms + " VMs (" + xml.length() / 1024 + " KB): DOM " + dom / ITERATIONS / 1000 + " us, StAX " + stax / ITERATIONS / 1000 + " us");
+    }
+
+    static String uuid(int vm) {
+        return String.format("%08d-1111-2222-3333-444455556666", vm);
+    }
+
+    /**
+     * Builds an rrd_updates document with the host and vm columns xapi
+     * reports, laid out the same way (no whitespace between elements).
+     */
+    static String generate(int vms, Random random) {
+        StringBuilder xml = new StringBuilder();
+        int columns = HOST_PARAMS.length + vms * VM_PARAMS.length;
+        xml.append("<xport><meta><start>0</start><step>60</step><end>").append((ROWS - 1) * 60).append("</end><rows>").append(ROWS).append("</rows><columns>")
+                .append(columns).append("</columns><legend>");
+        for (String param : HOST_PARAMS) {
+            xml.append("<entry>AVERAGE:host:h1:").append(param).append("</entry>");
+        }
+        for (int vm = 0; vm < vms; vm++) {
+            for (String param : VM_PARAMS) {
+                xml.append("<entry>AVERAGE:vm:").append(uuid(vm)).append(':').append(param).append("</entry>");
+            }
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < ROWS; row++) {
+            xml.append("<row><t>").append((ROWS - 1 - row) * 60).append("</t>");
+            for (int col = 0; col < columns; col++) {
+                xml.append("<v>");
+                if (random.nextInt(50) == 0) {
+                    xml.append("NaN");
+                } else {
+                    xml.append(random.nextDouble() * 1000);
+                }
+                xml.append("</v>");
+            }
+            xml.append("</row>");
+        }
+        xml.append("</data></xport>");
+        return xml.toString();
+    }
+
+    /**
+     * The DOM walk CitrixResourceBase used before, kept as the reference.
+     */
+    static Map<String, Double> parseWithDom(String xml, Set<String> wanted) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        NodeList secondLevelChildren = doc.getChildNodes().item(0).getChildNodes();
+        Node metaNode = secondLevelChildren.item(0);
+        Node dataNode = secondLevelChildren.item(1);
+
+        int numRows = 0;
+        int numColumns = 0;
+        Node legend = null;
+        NodeList metaNodeChildren = metaNode.getChildNodes();
+        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
+            Node n = metaNodeChildren.item(i);
+            if (n.getNodeName().equals("rows")) {
+                numRows = Integer.valueOf(n.getChildNodes().item(0).getNodeValue());
+            } else if (n.getNodeName().equals("columns")) {
+                numColumns = Integer.valueOf(n.getChildNodes().item(0).getNodeValue());
+            } else if (n.getNodeName().equals("legend")) {
+                legend = n;
+            }
+        }
+
+        Map<String, Double> averages = new HashMap<String, Double>();
+        NodeList legendChildren = legend.getChildNodes();
+        for (int col = 0; col < numColumns; col++) {
+            String[] metadata = legendChildren.item(col).getChildNodes().item(0).getNodeValue().split(":");
+            if (!metadata[1].equals("vm") || !wanted.contains(metadata[2])) {
+                continue;
+            }
+            double value = 0;
+            int used = 0;
+            for (int row = 0; row < numRows; row++) {
+                Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
+                Double current = Double.valueOf(data.getChildNodes().item(0).getNodeValue());
+                if (!current.equals(Double.NaN)) {
+                    used++;
+                    value += current;
+                }
+            }
+            averages.put(metadata[2] + ":" + metadata[3], used == 0 ? value : value / used);
+        }
+        return averages;
+    }
+}
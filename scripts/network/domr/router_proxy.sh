@@ -45,6 +45,16 @@ shift
 
 check_gw "$domRIp"
 
+# "-i <file>" feeds the file to the script's stdin, used to send a whole
+# batch of configuration to the router over a single ssh session
+if [ "$1" == "-i" ]
+then
+  input=$2
+  shift 2
+  ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/opt/cloud/bin/$script $*" < $input
+  exit $?
+fi
+
 ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/opt/cloud/bin/$script $*"
 exit $?
 
@@ -68,6 +68,7 @@ import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
 import com.cloud.configuration.Config;
@@ -192,6 +193,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             "The number of direct agents to load each time", false, null);
     protected final ConfigKey<Integer> DirectAgentPoolSize = new ConfigKey<Integer>(Integer.class, "direct.agent.pool.size", "Advance", AgentManager.class, "500",
             "Default size for DirectAgentPool", false, null);
+    protected final ConfigKey<Boolean> BinaryCodecEnabled = new ConfigKey<Boolean>(Boolean.class, "agent.binary.codec.enabled", "Advance", AgentManager.class, "true",
+            "Use the binary wire codec instead of json with agents that support it", false, null);
+    protected final ConfigKey<Integer> Selectors = new ConfigKey<Integer>(Integer.class, "agent.nio.selectors", "Advance", AgentManager.class, "1",
+            "Number of selector threads handling remote agent connections. More than one spreads the agents across selectors.", false, "1-Number of cores");
+
+    protected ConfigValue<Boolean> _binaryCodecEnabled;
 
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -205,6 +212,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         _wait = _configDepot.get(Wait);
         _alertWait = _configDepot.get(AlertWait);
         _pingTimeout = _configDepot.get(PingTimeout);
+        _binaryCodecEnabled = _configDepot.get(BinaryCodecEnabled);
 
         s_logger.info("Ping Timeout is " + _pingTimeout);
 
@@ -224,8 +232,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         //allow core threads to time out even when there are no items in the queue
         _connectExecutor.allowCoreThreadTimeOut(true);
 
-        _connection = new NioServer("AgentManager", _port, workers + 10, this);
-        s_logger.info("Listening on " + _port + " with " + workers + " workers");
+        ConfigValue<Integer> selectors = _configDepot.get(Selectors);
+        _connection = new NioServer("AgentManager", _port, workers + 10, selectors.value(), this);
+        s_logger.info("Listening on " + _port + " with " + workers + " workers and " + selectors.value() + " selectors");
 
         
         ConfigValue<Integer> size = _configDepot.get(DirectAgentPoolSize);
@@ -358,6 +367,19 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         return null;
     }
 
+    protected Version getWireVersion(StartupCommand startup) {
+        if (!_binaryCodecEnabled.value()) {
+            return Version.v1;
+        }
+        return Request.negotiateVersion(startup.getWireVersion());
+    }
+
+    protected StartupAnswer createStartupAnswer(StartupCommand startup, long hostId) {
+        StartupAnswer answer = new StartupAnswer(startup, hostId, getPingInterval());
+        answer.setWireVersion(getWireVersion(startup).ordinal());
+        return answer;
+    }
+
     protected int getPingInterval() {
         return _pingInterval.value();
     }
@@ -1016,6 +1038,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             if (host != null) {
                 ready = new ReadyCommand(host.getDataCenterId(), host.getId());
                 attache = createAttacheForConnect(host, link);
+                if (attache instanceof ConnectedAgentAttache) {
+                    ((ConnectedAgentAttache)attache).setWireVersion(getWireVersion(startup[0]));
+                }
                 attache = notifyMonitorsOfConnection(attache, startup, false);
             }
         } catch (Exception e) {
@@ -1107,7 +1132,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         for (int i = 0; i < cmds.length; i++) {
             cmd = cmds[i];
             if ((cmd instanceof StartupRoutingCommand) || (cmd instanceof StartupProxyCommand) || (cmd instanceof StartupSecondaryStorageCommand) || (cmd instanceof StartupStorageCommand)) {
-                answers[i] = new StartupAnswer((StartupCommand)cmds[i], 0, getPingInterval());
+                answers[i] = createStartupAnswer((StartupCommand)cmds[i], 0);
                 break;
             }
         }
@@ -1171,16 +1196,16 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                 try {
                     if (cmd instanceof StartupRoutingCommand) {
                         final StartupRoutingCommand startup = (StartupRoutingCommand) cmd;
-                        answer = new StartupAnswer(startup, attache.getId(), getPingInterval());
+                        answer = createStartupAnswer(startup, attache.getId());
                     } else if (cmd instanceof StartupProxyCommand) {
                         final StartupProxyCommand startup = (StartupProxyCommand) cmd;
-                        answer = new StartupAnswer(startup, attache.getId(), getPingInterval());
+                        answer = createStartupAnswer(startup, attache.getId());
                     } else if (cmd instanceof StartupSecondaryStorageCommand) {
                         final StartupSecondaryStorageCommand startup = (StartupSecondaryStorageCommand) cmd;
-                        answer = new StartupAnswer(startup, attache.getId(), getPingInterval());
+                        answer = createStartupAnswer(startup, attache.getId());
                     } else if (cmd instanceof StartupStorageCommand) {
                         final StartupStorageCommand startup = (StartupStorageCommand) cmd;
-                        answer = new StartupAnswer(startup, attache.getId(), getPingInterval());
+                        answer = createStartupAnswer(startup, attache.getId());
                     } else if (cmd instanceof ShutdownCommand) {
                         final ShutdownCommand shutdown = (ShutdownCommand) cmd;
                         final String reason = shutdown.getReason();
@@ -58,6 +58,7 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.LockNotificationCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
@@ -90,6 +91,7 @@ import com.cloud.storage.resource.DummySecondaryStorageResource;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.Profiler;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.Merovingian2;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
@@ -615,7 +617,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
                 final byte[] data = task.getData();
                 Version ver = Request.getVersion(data);
-                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal()) {
+                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal() && ver.ordinal() != Version.v4.ordinal()) {
                     s_logger.warn("Wrong version for clustered agent request");
                     super.doTask(task);
                     return;
@@ -1327,6 +1329,17 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 Answer[] answers = new Answer[1];
                 answers[0] = new Answer(cmd, result, null);
                 return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof LockNotificationCommand) {
+                LockNotificationCommand cmd = (LockNotificationCommand)cmds[0];
+                Merovingian2 lockMaster = Merovingian2.getLockMaster();
+                if (lockMaster != null) {
+                    if (cmd.isReleased()) {
+                        lockMaster.peerReleased(cmd.getKey());
+                    } else {
+                        lockMaster.peerWaiting(cmd.getKey(), cmd.getMsId());
+                    }
+                }
+                return null;
             } else if (cmds.length == 1 && cmds[0] instanceof ScheduleHostScanTaskCommand) {
                 ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 String response = handleScheduleHostScanTaskCommand(cmd);
@@ -32,14 +32,23 @@ public class ConnectedAgentAttache extends AgentAttache {
     private static final Logger s_logger = Logger.getLogger(ConnectedAgentAttache.class);
 
     protected Link _link;
+    protected volatile Request.Version _wireVersion = Request.Version.v1;
 
     public ConnectedAgentAttache(AgentManagerImpl agentMgr, final long id, final Link link, boolean maintenance) {
         super(agentMgr, id, maintenance);
         _link = link;
     }
 
+    /**
+     * Sets the wire version negotiated with the agent at startup.
+     */
+    public void setWireVersion(Request.Version wireVersion) {
+        _wireVersion = wireVersion;
+    }
+
     @Override
     public synchronized void send(Request req) throws AgentUnavailableException {
+        req.setVersion(_wireVersion);
         try {
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
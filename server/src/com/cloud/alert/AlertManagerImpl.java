@@ -346,9 +346,7 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager {
             // Calculate CPU and RAM capacities
             // 	get all hosts...even if they are not in 'UP' state
             List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);	        	        
-            for (HostVO host : hosts) {
-                _capacityMgr.updateCapacityForHost(host);
-            }
+            _capacityMgr.updateCapacityForHosts(hosts);
 
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Done executing cpu/ram capacity update");
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.List;
+
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
 import com.cloud.host.Host;
@@ -42,6 +44,12 @@ public interface CapacityManager extends Manager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, float memoryOvercommitRatio, boolean considerReservedCapacity);
 
 	void updateCapacityForHost(Host host);
+
+    /**
+     * Reconciles the cpu and memory capacity of the hosts with the vms on them.  The vm state
+     * transitions keep the capacity up to date, so differences found here are reported as drift.
+     */
+    void updateCapacityForHosts(List<? extends Host> hosts);
     
 	/**
      * @param pool storage pool
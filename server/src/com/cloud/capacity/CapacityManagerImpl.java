@@ -17,9 +17,12 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -81,9 +84,7 @@ import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.fsm.StateListener;
-import com.cloud.vm.UserVmDetailVO;
 import com.cloud.vm.UserVmVO;
-import com.cloud.vm.UserVmDetailVO;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.Event;
@@ -149,6 +150,10 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     private static final String MESSAGE_RESERVED_CAPACITY_FREED_FLAG = "Message.ReservedCapacityFreed.Flag";
 
+    // number of hosts whose vms are loaded at once when updating the capacity
+    private static final int CAPACITY_UPDATE_BATCH_SIZE = 50;
+    private final ConcurrentHashMap<Long, ServiceOfferingVO> _offeringCache = new ConcurrentHashMap<Long, ServiceOfferingVO>();
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
@@ -536,19 +541,88 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @DB
     @Override
 	public void updateCapacityForHost(Host host){
-    	// prepare the service offerings
-        List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
-        Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
-        for (ServiceOfferingVO offering : offerings) {
-            offeringsMap.put(offering.getId(), offering);
+        updateCapacityForHosts(Collections.singletonList(host));
+    }
+
+    @DB
+    @Override
+    public void updateCapacityForHosts(List<? extends Host> hosts) {
+        int drifted = 0;
+        for (int from = 0; from < hosts.size(); from += CAPACITY_UPDATE_BATCH_SIZE) {
+            List<? extends Host> batch = hosts.subList(from, Math.min(from + CAPACITY_UPDATE_BATCH_SIZE, hosts.size()));
+            List<Long> hostIds = new ArrayList<Long>(batch.size());
+            for (Host host : batch) {
+                hostIds.add(host.getId());
+            }
+
+            // load the vms of the whole batch of hosts and their overcommit details in one go
+            Map<Long, List<VMInstanceVO>> vmsByHostId = new HashMap<Long, List<VMInstanceVO>>();
+            Map<Long, List<VMInstanceVO>> vmsByLastHostId = new HashMap<Long, List<VMInstanceVO>>();
+            List<Long> vmIds = new ArrayList<Long>();
+            List<Long> stoppedVmIds = new ArrayList<Long>();
+            for (VMInstanceVO vm : _vmDao.listUpByHostIds(hostIds)) {
+                addToHost(vmsByHostId, vm.getHostId(), vm);
+                vmIds.add(vm.getId());
+            }
+            for (VMInstanceVO vm : _vmDao.listByLastHostIds(hostIds)) {
+                addToHost(vmsByLastHostId, vm.getLastHostId(), vm);
+                vmIds.add(vm.getId());
+                stoppedVmIds.add(vm.getId());
+            }
+            Map<Long, String> vmCpuOvercommitRatios = _userVmDetailsDao.findDetails(vmIds, "cpuOvercommitRatio");
+            Map<Long, String> vmRamOvercommitRatios = _userVmDetailsDao.findDetails(vmIds, "memoryOvercommitRatio");
+            Map<Long, String> messageSentFlags = _userVmDetailsDao.findDetails(stoppedVmIds, MESSAGE_RESERVED_CAPACITY_FREED_FLAG);
+
+            for (Host host : batch) {
+                List<VMInstanceVO> vms = vmsByHostId.get(host.getId());
+                List<VMInstanceVO> vmsByLastHost = vmsByLastHostId.get(host.getId());
+                if (updateCapacityForHost(host, vms == null ? new ArrayList<VMInstanceVO>() : vms,
+                        vmsByLastHost == null ? new ArrayList<VMInstanceVO>() : vmsByLastHost,
+                        vmCpuOvercommitRatios, vmRamOvercommitRatios, messageSentFlags)) {
+                    drifted++;
+                }
+            }
         }
 
+        if (drifted > 0) {
+            s_logger.info("Calibrated cpu/memory capacity of " + drifted + " out of " + hosts.size() + " hosts");
+        }
+    }
+
+    private static void addToHost(Map<Long, List<VMInstanceVO>> vmsByHostId, Long hostId, VMInstanceVO vm) {
+        List<VMInstanceVO> vms = vmsByHostId.get(hostId);
+        if (vms == null) {
+            vms = new ArrayList<VMInstanceVO>();
+            vmsByHostId.put(hostId, vms);
+        }
+        vms.add(vm);
+    }
+
+    /**
+     * Service offerings never change the cpu and memory they hand out, so they are kept around
+     * instead of being reloaded on every capacity update.
+     */
+    protected ServiceOfferingVO getServiceOffering(long offeringId) {
+        ServiceOfferingVO offering = _offeringCache.get(offeringId);
+        if (offering == null) {
+            offering = _offeringsDao.findByIdIncludingRemoved(offeringId);
+            if (offering != null) {
+                _offeringCache.put(offeringId, offering);
+            }
+        }
+        return offering;
+    }
+
+    /**
+     * @return true if the capacity of the host had to be calibrated.
+     */
+    private boolean updateCapacityForHost(Host host, List<VMInstanceVO> vms, List<VMInstanceVO> vmsByLastHostId,
+            Map<Long, String> vmCpuOvercommitRatios, Map<Long, String> vmRamOvercommitRatios, Map<Long, String> messageSentFlags) {
         long usedCpu = 0;
         long usedMemory = 0;
         long reservedMemory = 0;
         long reservedCpu = 0;
 
-        List<VMInstanceVO> vms = _vmDao.listUpByHostId(host.getId());
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Found " + vms.size() + " VMs on host " + host.getId());
         }
@@ -558,43 +632,50 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         ClusterDetailsVO clusterDetailRam = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
         Float clusterCpuOvercommitRatio = Float.parseFloat(clusterDetailCpu.getValue());
         Float clusterRamOvercommitRatio = Float.parseFloat(clusterDetailRam.getValue());
-        Float cpuOvercommitRatio = 1f;
-        Float ramOvercommitRatio = 1f;
         for (VMInstanceVO vm : vms) {
-            UserVmDetailVO vmDetailCpu = _userVmDetailsDao.findDetail(vm.getId(), "cpuOvercommitRatio");
-            UserVmDetailVO vmDetailRam = _userVmDetailsDao.findDetail(vm.getId(),"memoryOvercommitRatio");
-            if (vmDetailCpu != null ) {
+            Float cpuOvercommitRatio = 1f;
+            Float ramOvercommitRatio = 1f;
+            String vmDetailCpu = vmCpuOvercommitRatios.get(vm.getId());
+            String vmDetailRam = vmRamOvercommitRatios.get(vm.getId());
+            if (vmDetailCpu != null && vmDetailRam != null) {
                 //if vmDetail_cpu is not null it means it is running in a overcommited cluster.
-                cpuOvercommitRatio = Float.parseFloat(vmDetailCpu.getValue());
-                ramOvercommitRatio = Float.parseFloat(vmDetailRam.getValue());
+                cpuOvercommitRatio = Float.parseFloat(vmDetailCpu);
+                ramOvercommitRatio = Float.parseFloat(vmDetailRam);
+            }
+            ServiceOffering so = getServiceOffering(vm.getServiceOfferingId());
+            if (so == null) {
+                continue;
             }
-            ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
             usedMemory += ((so.getRamSize() * 1024L * 1024L)/ramOvercommitRatio)*clusterRamOvercommitRatio;
             usedCpu += ((so.getCpu() * so.getSpeed())/cpuOvercommitRatio)*clusterCpuOvercommitRatio;
         }
 
-        List<VMInstanceVO> vmsByLastHostId = _vmDao.listByLastHostId(host.getId());
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Found " + vmsByLastHostId.size() + " VM, not running on host " + host.getId());
         }
         for (VMInstanceVO vm : vmsByLastHostId) {
             long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - vm.getUpdateTime().getTime()) / 1000;
             if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
-                UserVmDetailVO vmDetailCpu = _userVmDetailsDao.findDetail(vm.getId(), "cpuOvercommitRatio");
-                UserVmDetailVO vmDetailRam = _userVmDetailsDao.findDetail(vm.getId(),"memoryOvercommitRatio");
-                if (vmDetailCpu != null ) {
+                Float cpuOvercommitRatio = 1f;
+                Float ramOvercommitRatio = 1f;
+                String vmDetailCpu = vmCpuOvercommitRatios.get(vm.getId());
+                String vmDetailRam = vmRamOvercommitRatios.get(vm.getId());
+                if (vmDetailCpu != null && vmDetailRam != null) {
                     //if vmDetail_cpu is not null it means it is running in a overcommited cluster.
-                    cpuOvercommitRatio = Float.parseFloat(vmDetailCpu.getValue());
-                    ramOvercommitRatio = Float.parseFloat(vmDetailRam.getValue());
+                    cpuOvercommitRatio = Float.parseFloat(vmDetailCpu);
+                    ramOvercommitRatio = Float.parseFloat(vmDetailRam);
+                }
+                ServiceOffering so = getServiceOffering(vm.getServiceOfferingId());
+                if (so == null) {
+                    continue;
                 }
-                ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
                 reservedMemory += ((so.getRamSize() * 1024L * 1024L)/ramOvercommitRatio)*clusterRamOvercommitRatio;
                 reservedCpu += (so.getCpu() * so.getSpeed()/cpuOvercommitRatio)*clusterCpuOvercommitRatio;
             } else {
                 // signal if not done already, that the VM has been stopped for skip.counting.hours,
                 // hence capacity will not be reserved anymore.
-                UserVmDetailVO messageSentFlag = _userVmDetailsDao.findDetail(vm.getId(), MESSAGE_RESERVED_CAPACITY_FREED_FLAG);
-                if (messageSentFlag == null || !Boolean.valueOf(messageSentFlag.getValue())) {
+                String messageSentFlag = messageSentFlags.get(vm.getId());
+                if (messageSentFlag == null || !Boolean.valueOf(messageSentFlag)) {
                     _messageBus.publish(_name, "VM_ReservedCapacity_Free", PublishScope.LOCAL, vm);
 
                     if (vm.getType() == VirtualMachine.Type.User) {
@@ -611,42 +692,54 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_MEMORY);
 
         if (cpuCap != null && memCap != null){
-        	if (cpuCap.getUsedCapacity() == usedCpu && cpuCap.getReservedCapacity() == reservedCpu) {
-        		s_logger.debug("No need to calibrate cpu capacity, host:" + host.getId() + " usedCpu: " + cpuCap.getUsedCapacity()
-        				+ " reservedCpu: " + cpuCap.getReservedCapacity());
-        	} else if (cpuCap.getReservedCapacity() != reservedCpu) {
-        		s_logger.debug("Calibrate reserved cpu for host: " + host.getId() + " old reservedCpu:" + cpuCap.getReservedCapacity()
-        				+ " new reservedCpu:" + reservedCpu);
-        		cpuCap.setReservedCapacity(reservedCpu);
-        	} else if (cpuCap.getUsedCapacity() != usedCpu) {
-        		s_logger.debug("Calibrate used cpu for host: " + host.getId() + " old usedCpu:" + cpuCap.getUsedCapacity() + " new usedCpu:"
-        				+ usedCpu);
-        		cpuCap.setUsedCapacity(usedCpu);
-        	}
-
-	        if (memCap.getUsedCapacity() == usedMemory && memCap.getReservedCapacity() == reservedMemory) {
-	            s_logger.debug("No need to calibrate memory capacity, host:" + host.getId() + " usedMem: " + memCap.getUsedCapacity()
-	                    + " reservedMem: " + memCap.getReservedCapacity());
-	        } else if (memCap.getReservedCapacity() != reservedMemory) {
-	            s_logger.debug("Calibrate reserved memory for host: " + host.getId() + " old reservedMem:" + memCap.getReservedCapacity()
-	                    + " new reservedMem:" + reservedMemory);
-	            memCap.setReservedCapacity(reservedMemory);
-	        } else if (memCap.getUsedCapacity() != usedMemory) {
-	            /*
-	             * Didn't calibrate for used memory, because VMs can be in state(starting/migrating) that I don't know on which host they are
-	             * allocated
-	             */
-	            s_logger.debug("Calibrate used memory for host: " + host.getId() + " old usedMem: " + memCap.getUsedCapacity()
-	                    + " new usedMem: " + usedMemory);
-	            memCap.setUsedCapacity(usedMemory);
-	        }
-
-	        try {
-	            _capacityDao.update(cpuCap.getId(), cpuCap);
-	            _capacityDao.update(memCap.getId(), memCap);
-	        } catch (Exception e) {
-	        	s_logger.error("Caught exception while updating cpu/memory capacity for the host " +host.getId(), e);
-	        }
+            // The vm state transitions keep the capacity up to date, a difference here means some were missed
+            boolean cpuDrifted = false;
+            if (cpuCap.getReservedCapacity() != reservedCpu) {
+                s_logger.info("Calibrate reserved cpu for host: " + host.getId() + " old reservedCpu:" + cpuCap.getReservedCapacity()
+                        + " new reservedCpu:" + reservedCpu);
+                cpuCap.setReservedCapacity(reservedCpu);
+                cpuDrifted = true;
+            }
+            if (cpuCap.getUsedCapacity() != usedCpu) {
+                s_logger.info("Calibrate used cpu for host: " + host.getId() + " old usedCpu:" + cpuCap.getUsedCapacity() + " new usedCpu:"
+                        + usedCpu);
+                cpuCap.setUsedCapacity(usedCpu);
+                cpuDrifted = true;
+            }
+            if (!cpuDrifted) {
+                s_logger.debug("No need to calibrate cpu capacity, host:" + host.getId() + " usedCpu: " + cpuCap.getUsedCapacity()
+                        + " reservedCpu: " + cpuCap.getReservedCapacity());
+            }
+
+            boolean memDrifted = false;
+            if (memCap.getReservedCapacity() != reservedMemory) {
+                s_logger.info("Calibrate reserved memory for host: " + host.getId() + " old reservedMem:" + memCap.getReservedCapacity()
+                        + " new reservedMem:" + reservedMemory);
+                memCap.setReservedCapacity(reservedMemory);
+                memDrifted = true;
+            }
+            if (memCap.getUsedCapacity() != usedMemory) {
+                s_logger.info("Calibrate used memory for host: " + host.getId() + " old usedMem: " + memCap.getUsedCapacity()
+                        + " new usedMem: " + usedMemory);
+                memCap.setUsedCapacity(usedMemory);
+                memDrifted = true;
+            }
+            if (!memDrifted) {
+                s_logger.debug("No need to calibrate memory capacity, host:" + host.getId() + " usedMem: " + memCap.getUsedCapacity()
+                        + " reservedMem: " + memCap.getReservedCapacity());
+            }
+
+            try {
+                if (cpuDrifted) {
+                    _capacityDao.update(cpuCap.getId(), cpuCap);
+                }
+                if (memDrifted) {
+                    _capacityDao.update(memCap.getId(), memCap);
+                }
+            } catch (Exception e) {
+                s_logger.error("Caught exception while updating cpu/memory capacity for the host " +host.getId(), e);
+            }
+            return cpuDrifted || memDrifted;
         }else {
         	Transaction txn = Transaction.currentTxn();
         	txn.start();
@@ -678,7 +771,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             capacity.setCapacityState(capacityState);
             _capacityDao.persist(capacity);
             txn.commit();
-
+            return false;
         }
 
     }
@@ -75,6 +75,10 @@ public enum Config {
     StorageCacheReplacementLRUTimeInterval("Storage", ManagementServer.class, Integer.class, "storage.cache.replacement.lru.interval", "30", "time interval for unsed data on cache storage (in days).", null),
     StorageCacheReplacementEnabled("Storage", ManagementServer.class, Boolean.class, "storage.cache.replacement.enabled", "true", "enable or disable cache storage replacement algorithm.", null),
     StorageCacheReplacementInterval("Storage", ManagementServer.class, Integer.class, "storage.cache.replacement.interval", "86400", "time interval between cache replacement threads (in seconds).", null),
+    StorageCacheReplacementPolicy("Storage", ManagementServer.class, String.class, "storage.cache.replacement.policy", "LRU", "order in which unused data is evicted from cache storage, LRU (least recently used first) or LFU (least frequently used first).", "LRU,LFU"),
+    StorageCacheHighWatermark("Storage", ManagementServer.class, Float.class, "storage.cache.replacement.high.watermark", "0.90", "cache storage usage (as a fraction of its capacity) above which unused data starts being evicted.", null),
+    StorageCacheLowWatermark("Storage", ManagementServer.class, Float.class, "storage.cache.replacement.low.watermark", "0.75", "cache storage usage (as a fraction of its capacity) eviction brings the cache storage back down to.", null),
+    StorageCacheEvictionBatchSize("Storage", ManagementServer.class, Integer.class, "storage.cache.replacement.batch.size", "20", "number of objects evicted from cache storage before its usage is measured again.", null),
     MaxUploadVolumeSize("Storage",  ManagementServer.class, Integer.class, "storage.max.volume.upload.size", "500", "The maximum size for a uploaded volume(in GB).", null),
 	TotalRetries("Storage", AgentManager.class, Integer.class, "total.retries", "4", "The number of times each command sent to a host should be retried in case of failure.", null),
 	StoragePoolMaxWaitSeconds("Storage", ManagementServer.class, Integer.class, "storage.pool.max.waitseconds", "3600", "Timeout (in seconds) to synchronize storage pool operations.", null),
@@ -143,6 +147,9 @@ public enum Config {
     SnapshotWeeklyMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.weekly", "8", "Maximum weekly snapshots for a volume", null),
     SnapshotMonthlyMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.monthly", "8", "Maximum monthly snapshots for a volume", null),
     SnapshotPollInterval("Snapshots", SnapshotManager.class, Integer.class, "snapshot.poll.interval", "300", "The time interval in seconds when the management server polls for snapshots to be scheduled.", null),
+    SnapshotScheduleJitterWindow("Snapshots", SnapshotManager.class, Integer.class, "snapshot.schedule.jitter.window", "0", "Window in seconds over which recurring snapshots due at the same time are spread. Each volume gets a fixed offset within the window. Keep it below the shortest policy interval; 0 disables jitter.", null),
+    SnapshotMaxConcurrentPerPrimaryStorage("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.primary.storage", "0", "Maximum number of recurring snapshot jobs running at once against a primary storage pool, 0 for no limit.", null),
+    SnapshotMaxConcurrentPerSecondaryStorage("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.secondary.storage", "0", "Maximum number of recurring snapshot jobs running at once against the secondary storage of a zone, 0 for no limit.", null),
     SnapshotDeltaMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.delta.max", "16", "max delta snapshots between two full snapshots.", null),
     BackupSnapshotAferTakingSnapshot("Snapshots", SnapshotManager.class, Boolean.class, "snapshot.backup.rightafter", "true", "backup snapshot right after snapshot is taken", null),
     KVMSnapshotEnabled("Snapshots", SnapshotManager.class, Boolean.class, "KVM.snapshot.enabled", "false", "whether snapshot is enabled for KVM hosts", null),
@@ -193,6 +200,8 @@ public enum Config {
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
 	HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
+	HAWorkClaimBatchSize("Advanced", AgentManager.class, Integer.class, "ha.work.claim.batch.size", "10", "Maximum number of ha work items a management server claims at a time.", null),
+	HAWorkShardByHost("Advanced", AgentManager.class, Boolean.class, "ha.work.shard.by.host", "true", "If true, ha work for the VMs of a host is handled by one management server, picked by host id, instead of whichever server polls first.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/cloudstack/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -239,6 +248,8 @@ public enum Config {
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
 	VmDiskStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.disk.stats.interval", "0", "Interval (in seconds) to report vm disk statistics.", null),
+	StatsCollectorThreads("Advanced", ManagementServer.class, Integer.class, "stats.collector.threads", "10", "The number of hosts and storage pools whose stats are retrieved in parallel.", null),
+	StatsCollectorHostTimeout("Advanced", ManagementServer.class, Integer.class, "stats.collector.host.timeout", "60000", "The time (in milliseconds) to wait for the stats of one host or storage pool before skipping it for the current interval.", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
 	VmDestroyForcestop("Advanced", ManagementServer.class, Boolean.class, "vm.destroy.forcestop", "false", "On destroy, force-stop takes this value ", null),
         VmDiskThrottlingIopsReadRate("Advanced", ManagementServer.class, Integer.class, "vm.disk.throttling.iops_read_rate", "0", "Default disk I/O read rate in requests per second allowed in User vm's disk.", null),
@@ -420,6 +431,8 @@ public enum Config {
 	ApiLimitInterval("Advanced", ManagementServer.class, Integer.class, "api.throttling.interval", "1", "Time interval (in seconds) to reset API count", null),
     ApiLimitMax("Advanced", ManagementServer.class, Integer.class, "api.throttling.max", "25", "Max allowed number of APIs within fixed interval", null),
     ApiLimitCacheSize("Advanced", ManagementServer.class, Integer.class, "api.throttling.cachesize", "50000", "Account based API count cache size", null),
+    ApiLimitWeights("Advanced", ManagementServer.class, String.class, "api.throttling.weights", "", "Comma separated api=weight pairs for apis that count as more than one request towards the api limit, e.g. deployVirtualMachine=5", null),
+    ApiLimitClusterWide("Advanced", ManagementServer.class, Boolean.class, "api.throttling.clusterwide", "false", "If true, api.throttling.max is shared by all the management servers in the cluster instead of applying to each of them", null),
 
     // object store
     S3EnableRRS("Advanced", ManagementServer.class, Boolean.class, "s3.rrs.enabled", "false", "enable s3 reduced redundancy storage", null),
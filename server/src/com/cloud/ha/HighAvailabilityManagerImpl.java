@@ -17,13 +17,18 @@
 package com.cloud.ha;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -38,6 +43,8 @@ import com.cloud.agent.AgentManager;
 import com.cloud.alert.AlertManager;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.dc.ClusterDetailsDao;
@@ -68,6 +75,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -100,9 +108,28 @@ import com.cloud.vm.dao.VMInstanceDao;
 @Local(value = { HighAvailabilityManager.class })
 public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener {
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
-    WorkerThread[] _workers;
-    boolean _stopped;
+    WorkDispatcher _dispatcher;
+    ExecutorService _workExecutor;
+    int _workerCount;
+    int _claimBatchSize;
+    boolean _shardByHost;
+    long _stealAfter;
+    volatile boolean _stopped;
     long _timeToSleep;
+    volatile long[] _shardOwners;
+    volatile long _shardOwnersRefreshed;
+
+    // instance id -> work id of the work items being processed here.
+    final ConcurrentHashMap<Long, Long> _inFlight = new ConcurrentHashMap<Long, Long>();
+    final Map<Long, HostRecovery> _recoveries = new HashMap<Long, HostRecovery>();
+    final AtomicLong _claimedCount = new AtomicLong();
+    final AtomicLong _completedCount = new AtomicLong();
+    final AtomicLong _failedCount = new AtomicLong();
+    final AtomicLong _rescheduledCount = new AtomicLong();
+    final AtomicLong _hostsRecovered = new AtomicLong();
+    final AtomicLong _totalTimeToRecover = new AtomicLong();
+    volatile long _lastTimeToRecover;
+    volatile long _maxTimeToRecover;
     @Inject
     HighAvailabilityDao _haDao;
     @Inject
@@ -115,6 +142,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     HostPodDao _podDao;
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
+    @Inject
+    ManagementServerHostDao _msHostDao;
     long _serverId;
 
     List<Investigator> _investigators;
@@ -264,8 +293,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     }
 
     protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
+        if (_dispatcher != null) {
+            _dispatcher.wakeup();
         }
     }
 
@@ -701,16 +730,20 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         String value = params.get(Config.HAWorkers.key());
         final int count = NumbersUtil.parseInt(value, 1);
-        _workers = new WorkerThread[count];
-        for (int i = 0; i < _workers.length; i++) {
-            _workers[i] = new WorkerThread("HA-Worker-" + i);
-        }
+        _workerCount = Math.max(count, 1);
+        _workExecutor = Executors.newFixedThreadPool(_workerCount, new NamedThreadFactory("HA-Worker"));
+        _dispatcher = new WorkDispatcher("HA-Dispatcher");
+
+        _claimBatchSize = NumbersUtil.parseInt(params.get(Config.HAWorkClaimBatchSize.key()), 10);
+        _shardByHost = Boolean.parseBoolean(params.get(Config.HAWorkShardByHost.key()));
 
         value = params.get("force.ha");
         _forceHA = Boolean.parseBoolean(value);
 
         value = params.get("time.to.sleep");
         _timeToSleep = NumbersUtil.parseInt(value, 60) * 1000;
+        // Work left unclaimed by its shard owner for two polls is taken by anyone.
+        _stealAfter = (_timeToSleep * 2) >> 10;
 
         value = params.get("max.retries");
         _maxRetries = NumbersUtil.parseInt(value, 5);
@@ -753,8 +786,15 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean start() {
         _stopped = false;
 
-        for (final WorkerThread thread : _workers) {
-            thread.start();
+        if (_shardByHost) {
+            refreshShardOwners();
+        }
+        _dispatcher.start();
+
+        try {
+            JmxUtil.registerMBean("HighAvailabilityManager", "HighAvailabilityManager", new HighAvailabilityManagerMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the HA manager MBean", e);
         }
 
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
@@ -769,6 +809,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         wakeupWorkers();
 
         _executor.shutdown();
+        _workExecutor.shutdown();
 
         return true;
     }
@@ -783,11 +824,30 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             } catch (Exception e) {
                 s_logger.warn("Error while cleaning up", e);
             }
+
+            // Forget hosts whose HA work finished on another management server.
+            long cutoff = System.currentTimeMillis() - _timeBetweenFailures;
+            synchronized (_recoveries) {
+                for (Iterator<HostRecovery> it = _recoveries.values().iterator(); it.hasNext();) {
+                    HostRecovery recovery = it.next();
+                    if (recovery.outstanding <= 0 && recovery.start < cutoff) {
+                        it.remove();
+                    }
+                }
+            }
         }
     }
 
-    protected class WorkerThread extends Thread {
-        public WorkerThread(String name) {
+    /**
+     * Claims due work items as workers free up and hands them to the worker
+     * pool.  Scheduling work wakes it up right away; the time.to.sleep poll
+     * is only there to pick up work scheduled by other management servers
+     * and retries that have come due.
+     */
+    protected class WorkDispatcher extends Thread {
+        boolean _signalled;
+
+        public WorkDispatcher(String name) {
             super(name);
         }
 
@@ -797,76 +857,321 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             try {
                 s_logger.info("Starting work");
                 while (!_stopped) {
-                    HaWorkVO work = null;
-                        try {
-                        s_logger.trace("Checking the database");
-                        work = _haDao.take(_serverId);
-                        if (work == null) {
+                    int dispatched = 0;
+                    try {
+                        dispatched = dispatch();
+                    } catch (final Throwable th) {
+                        s_logger.error("Caught this throwable, ", th);
+                    }
+
+                    synchronized (this) {
+                        if (!_signalled && dispatched == 0 && !_stopped) {
                             try {
-                                synchronized (this) {
-                                    wait(_timeToSleep);
-                                }
-                                continue;
+                                wait(_timeToSleep);
                             } catch (final InterruptedException e) {
                                 s_logger.info("Interrupted");
-                                continue;
-                            }
-                        }
-
-                        NDC.push("work-" + work.getId());
-                        s_logger.info("Processing " + work);
-
-                        try {
-                            final WorkType wt = work.getWorkType();
-                            Long nextTime = null;
-                            if (wt == WorkType.Migration) {
-                                nextTime = migrate(work);
-                            } else if (wt == WorkType.HA) {
-                                nextTime = restart(work);
-                            } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
-                                nextTime = stopVM(work);
-                            } else if (wt == WorkType.Destroy) {
-                                nextTime = destroyVM(work);
-                            } else {
-                                assert false : "How did we get here with " + wt.toString();
-                                continue;
-                            }
-
-                            if (nextTime == null) {
-                                s_logger.info("Completed " + work);
-                                work.setStep(Step.Done);
-                            } else {
-                                s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
-                                work.setTimeToTry(nextTime);
-                                work.setServerId(null);
-                                work.setDateTaken(null);
-                            }
-                        } catch (Exception e) {
-                            s_logger.error("Terminating " + work, e);
-                            work.setStep(Step.Error);
-                        }
-                        _haDao.update(work.getId(), work);
-                    } catch (final Throwable th) {
-                        s_logger.error("Caught this throwable, ", th);
-                    } finally {
-                        if (work != null) {
-                            NDC.pop();
                             }
                         }
+                        _signalled = false;
                     }
+                }
                 s_logger.info("Time to go home!");
             } finally {
                 ServerContexts.unregisterSystemContext();
             }
         }
 
-        public synchronized void wakup() {
+        public synchronized void wakeup() {
+            _signalled = true;
             notifyAll();
         }
     }
 
+    protected class WorkTask implements Runnable {
+        final HaWorkVO _work;
+
+        public WorkTask(HaWorkVO work) {
+            _work = work;
+        }
+
+        @Override
+        public void run() {
+            ServerContexts.registerSystemContext();
+            NDC.push("work-" + _work.getId());
+            try {
+                processWork(_work);
+            } catch (final Throwable th) {
+                s_logger.error("Caught this throwable, ", th);
+            } finally {
+                NDC.pop();
+                _inFlight.remove(_work.getInstanceId());
+                ServerContexts.unregisterSystemContext();
+                wakeupWorkers();
+            }
+        }
+    }
+
+    /**
+     * Claims up to as many due work items as there are idle workers.  Work
+     * for a VM that is already being worked on here is left for later, and
+     * work sharded to another management server is left to it unless it has
+     * been overdue for a while.
+     * 
+     * @return number of work items handed to the workers.
+     */
+    protected int dispatch() {
+        int free = _workerCount - _inFlight.size();
+        if (free <= 0) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis() >> 10;
+        long[] owners = getShardOwners();
+        int limit = Math.max(free, _claimBatchSize) * Math.max(owners.length, 1);
+        List<HaWorkVO> candidates = _haDao.listTakeable(now, limit);
+
+        int dispatched = 0;
+        for (HaWorkVO work : candidates) {
+            if (dispatched >= free) {
+                break;
+            }
+            if (!isOwner(work, owners, now) || _inFlight.containsKey(work.getInstanceId())) {
+                continue;
+            }
+            if (!_haDao.take(work.getId(), _serverId)) {
+                continue;
+            }
+
+            work.setServerId(_serverId);
+            work.setDateTaken(new Date());
+            _inFlight.put(work.getInstanceId(), work.getId());
+            _claimedCount.incrementAndGet();
+            trackClaimed(work);
+            _workExecutor.execute(new WorkTask(work));
+            dispatched++;
+        }
+
+        if (dispatched > 0 && s_logger.isDebugEnabled()) {
+            s_logger.debug("Dispatched " + dispatched + " HA work items, " + _inFlight.size() + " in progress");
+        }
+        return dispatched;
+    }
+
+    protected boolean isOwner(HaWorkVO work, long[] owners, long now) {
+        if (!_shardByHost || owners.length <= 1) {
+            return true;
+        }
+
+        if (work.getTimeToTry() + _stealAfter < now) {
+            // The owner seems to be stuck or gone; don't let the work starve.
+            return true;
+        }
+
+        if (Arrays.binarySearch(owners, _serverId) < 0) {
+            return true;
+        }
+
+        return owners[(int)(work.getHostId() % owners.length)] == _serverId;
+    }
+
+    protected long[] getShardOwners() {
+        long[] owners = _shardOwners;
+        if (_shardByHost && (owners == null || System.currentTimeMillis() - _shardOwnersRefreshed > _timeToSleep)) {
+            owners = refreshShardOwners();
+        }
+        return owners != null ? owners : new long[0];
+    }
+
+    protected long[] refreshShardOwners() {
+        List<ManagementServerHostVO> servers = _msHostDao.listBy(ManagementServerHost.State.Up);
+        long[] owners = new long[servers.size()];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = servers.get(i).getMsid();
+        }
+        Arrays.sort(owners);
+
+        _shardOwners = owners;
+        _shardOwnersRefreshed = System.currentTimeMillis();
+        return owners;
+    }
+
+    protected void processWork(final HaWorkVO work) {
+        s_logger.info("Processing " + work);
+
+        boolean failed = false;
+        Long nextTime = null;
+        try {
+            final WorkType wt = work.getWorkType();
+            if (wt == WorkType.Migration) {
+                nextTime = migrate(work);
+            } else if (wt == WorkType.HA) {
+                nextTime = restart(work);
+            } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
+                nextTime = stopVM(work);
+            } else if (wt == WorkType.Destroy) {
+                nextTime = destroyVM(work);
+            } else {
+                assert false : "How did we get here with " + wt.toString();
+                return;
+            }
+
+            if (nextTime == null) {
+                s_logger.info("Completed " + work);
+                work.setStep(Step.Done);
+            } else {
+                s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
+                work.setTimeToTry(nextTime);
+                work.setServerId(null);
+                work.setDateTaken(null);
+            }
+        } catch (Exception e) {
+            s_logger.error("Terminating " + work, e);
+            work.setStep(Step.Error);
+            failed = true;
+        }
+
+        try {
+            _haDao.update(work.getId(), work);
+        } finally {
+            if (failed) {
+                _failedCount.incrementAndGet();
+            } else if (nextTime != null) {
+                _rescheduledCount.incrementAndGet();
+            } else {
+                _completedCount.incrementAndGet();
+            }
+            trackFinished(work);
+        }
+    }
+
+    /**
+     * Time to recover for a host is measured from the first HA work item
+     * scheduled for its VMs to the moment no HA work is left for the host.
+     * Since work is sharded by host, the same management server normally
+     * sees all of it.
+     */
+    protected void trackClaimed(HaWorkVO work) {
+        if (work.getWorkType() != WorkType.HA) {
+            return;
+        }
+
+        long created = work.getCreated() != null ? work.getCreated().getTime() : System.currentTimeMillis();
+        synchronized (_recoveries) {
+            HostRecovery recovery = _recoveries.get(work.getHostId());
+            if (recovery == null) {
+                recovery = new HostRecovery(created);
+                _recoveries.put(work.getHostId(), recovery);
+            } else if (created < recovery.start) {
+                recovery.start = created;
+            }
+            recovery.outstanding++;
+        }
+    }
+
+    protected void trackFinished(HaWorkVO work) {
+        if (work.getWorkType() != WorkType.HA) {
+            return;
+        }
+
+        HostRecovery recovery;
+        synchronized (_recoveries) {
+            recovery = _recoveries.get(work.getHostId());
+            if (recovery == null || --recovery.outstanding > 0) {
+                return;
+            }
+        }
+
+        if (_haDao.hasPendingHaWorkForHost(work.getHostId())) {
+            return;
+        }
+
+        synchronized (_recoveries) {
+            if (recovery.outstanding > 0 || _recoveries.get(work.getHostId()) != recovery) {
+                return;
+            }
+            _recoveries.remove(work.getHostId());
+        }
+
+        long timeToRecover = System.currentTimeMillis() - recovery.start;
+        recordTimeToRecover(timeToRecover);
+        s_logger.info("HA for VMs on host " + work.getHostId() + " finished " + timeToRecover + " ms after it was scheduled");
+    }
+
+    protected void recordTimeToRecover(long timeToRecover) {
+        _hostsRecovered.incrementAndGet();
+        _totalTimeToRecover.addAndGet(timeToRecover);
+        _lastTimeToRecover = timeToRecover;
+        if (timeToRecover > _maxTimeToRecover) {
+            _maxTimeToRecover = timeToRecover;
+        }
+    }
+
+    protected static class HostRecovery {
+        long start;
+        int outstanding;
+
+        public HostRecovery(long start) {
+            this.start = start;
+        }
+    }
+
+    public int getWorkerCount() {
+        return _workerCount;
+    }
+
+    public int getInFlightCount() {
+        return _inFlight.size();
+    }
+
+    public long getClaimedCount() {
+        return _claimedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return _completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return _failedCount.get();
+    }
+
+    public long getRescheduledCount() {
+        return _rescheduledCount.get();
+    }
+
+    public int getRecoveringHostCount() {
+        synchronized (_recoveries) {
+            return _recoveries.size();
+        }
+    }
+
+    public long getHostsRecovered() {
+        return _hostsRecovered.get();
+    }
+
+    public long getLastTimeToRecover() {
+        return _lastTimeToRecover;
+    }
+
+    public long getMaxTimeToRecover() {
+        return _maxTimeToRecover;
+    }
+
+    public long getAverageTimeToRecover() {
+        long recovered = _hostsRecovered.get();
+        return recovered == 0 ? 0 : _totalTimeToRecover.get() / recovered;
+    }
+
+    public int getShardCount() {
+        long[] owners = _shardOwners;
+        return owners != null ? owners.length : 0;
+    }
+
     @Override
     public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        if (_shardByHost) {
+            _shardOwners = null;
+        }
     }
 
     @Override
@@ -874,6 +1179,10 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (ManagementServerHost node : nodeList) {
             _haDao.releaseWorkItems(node.getMsid());
         }
+        if (_shardByHost) {
+            _shardOwners = null;
+        }
+        wakeupWorkers();
     }
 
     @Override
@@ -0,0 +1,88 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import javax.management.StandardMBean;
+
+public class HighAvailabilityManagerMBeanImpl extends StandardMBean implements HighAvailabilityManagerMBean {
+    private final HighAvailabilityManagerImpl _haMgr;
+
+    protected HighAvailabilityManagerMBeanImpl(HighAvailabilityManagerImpl haMgr) {
+        super(HighAvailabilityManagerMBean.class, false);
+        _haMgr = haMgr;
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return _haMgr.getWorkerCount();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return _haMgr.getInFlightCount();
+    }
+
+    @Override
+    public long getClaimedCount() {
+        return _haMgr.getClaimedCount();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return _haMgr.getCompletedCount();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return _haMgr.getFailedCount();
+    }
+
+    @Override
+    public long getRescheduledCount() {
+        return _haMgr.getRescheduledCount();
+    }
+
+    @Override
+    public int getShardCount() {
+        return _haMgr.getShardCount();
+    }
+
+    @Override
+    public int getRecoveringHostCount() {
+        return _haMgr.getRecoveringHostCount();
+    }
+
+    @Override
+    public long getHostsRecovered() {
+        return _haMgr.getHostsRecovered();
+    }
+
+    @Override
+    public long getLastTimeToRecover() {
+        return _haMgr.getLastTimeToRecover();
+    }
+
+    @Override
+    public long getAverageTimeToRecover() {
+        return _haMgr.getAverageTimeToRecover();
+    }
+
+    @Override
+    public long getMaxTimeToRecover() {
+        return _haMgr.getMaxTimeToRecover();
+    }
+}
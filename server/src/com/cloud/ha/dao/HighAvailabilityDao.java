@@ -32,6 +32,33 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Lists work items that are ready to be taken, oldest first, without
+     * locking them.  Use take(workId, serverId) to claim one.
+     * 
+     * @param time time to try (in seconds >> 10) the work items must be due by.
+     * @param limit maximum number of work items to return.
+     * @return list of WorkVO or empty list.
+     */
+    List<HaWorkVO> listTakeable(long time, int limit);
+
+    /**
+     * Takes a specific work item if no other server has taken it yet.
+     * 
+     * @param workId work item to take.
+     * @param serverId server that is taking this.
+     * @return true if this server now owns the work item.
+     */
+    boolean take(long workId, long serverId);
+
+    /**
+     * Checks if there's HA work for VMs on a host that has not finished yet.
+     * 
+     * @param hostId host the VMs were on.
+     * @return true if any HA work item is still scheduled or running.
+     */
+    boolean hasPendingHaWorkForHost(long hostId);
+
     /**
      * Finds all the work items related to this instance.
      * 
@@ -49,6 +49,8 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
     private final SearchBuilder<HaWorkVO> ReleaseSearch;
     private final SearchBuilder<HaWorkVO> FutureHaWorkSearch;
     private final SearchBuilder<HaWorkVO> RunningHaWorkSearch;
+    private final SearchBuilder<HaWorkVO> TakeByIdSearch;
+    private final SearchBuilder<HaWorkVO> PendingHostWorkSearch;
 
     protected HighAvailabilityDaoImpl() {
         super();
@@ -106,6 +108,18 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         RunningHaWorkSearch.and("taken", RunningHaWorkSearch.entity().getDateTaken(), Op.NNULL);
         RunningHaWorkSearch.and("step", RunningHaWorkSearch.entity().getStep(), Op.NIN);
         RunningHaWorkSearch.done();
+
+        TakeByIdSearch = createSearchBuilder();
+        TakeByIdSearch.and("id", TakeByIdSearch.entity().getId(), Op.EQ);
+        TakeByIdSearch.and("server", TakeByIdSearch.entity().getServerId(), Op.NULL);
+        TakeByIdSearch.and("taken", TakeByIdSearch.entity().getDateTaken(), Op.NULL);
+        TakeByIdSearch.done();
+
+        PendingHostWorkSearch = createSearchBuilder();
+        PendingHostWorkSearch.and("host", PendingHostWorkSearch.entity().getHostId(), Op.EQ);
+        PendingHostWorkSearch.and("type", PendingHostWorkSearch.entity().getWorkType(), Op.EQ);
+        PendingHostWorkSearch.and("step", PendingHostWorkSearch.entity().getStep(), Op.NIN);
+        PendingHostWorkSearch.done();
     }
 
     @Override
@@ -159,6 +173,38 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         }
     }
 
+    @Override
+    public List<HaWorkVO> listTakeable(final long time, final int limit) {
+        final SearchCriteria<HaWorkVO> sc = TBASearch.create();
+        sc.setParameters("time", time);
+
+        final Filter filter = new Filter(HaWorkVO.class, "timeToTry", true, 0l, (long)limit);
+        filter.addOrderBy(HaWorkVO.class, "id", true);
+        return search(sc, filter);
+    }
+
+    @Override
+    public boolean take(final long workId, final long serverId) {
+        final SearchCriteria<HaWorkVO> sc = TakeByIdSearch.create();
+        sc.setParameters("id", workId);
+
+        final HaWorkVO vo = createForUpdate();
+        vo.setServerId(serverId);
+        vo.setDateTaken(new Date());
+
+        return update(vo, sc) > 0;
+    }
+
+    @Override
+    public boolean hasPendingHaWorkForHost(final long hostId) {
+        final SearchCriteria<HaWorkVO> sc = PendingHostWorkSearch.create();
+        sc.setParameters("host", hostId);
+        sc.setParameters("type", WorkType.HA);
+        sc.setParameters("step", Step.Done, Step.Error, Step.Cancelled);
+
+        return !listBy(sc, new Filter(HaWorkVO.class, "id", true, 0l, 1l)).isEmpty();
+    }
+
     @Override
     public List<HaWorkVO> findPreviousHA(final long instanceId) {
         final SearchCriteria<HaWorkVO> sc = PreviousInstanceSearch.create();
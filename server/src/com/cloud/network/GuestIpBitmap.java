@@ -0,0 +1,205 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * One bit per usable address of a guest network cidr, set when the address is
+ * in use.  Picking a free address this way doesn't need the whole list of the
+ * used addresses of the network, which is expensive on large shared networks.
+ *
+ * The bitmap is only a cache of the nics, secondary ips and load balancers of
+ * the network, so an address picked from it still has to be checked with the
+ * database before it is handed out.  Addresses handed out are remembered as
+ * reservations until the bitmap is reloaded, so that a reload doesn't free an
+ * address whose nic isn't committed yet.
+ */
+public class GuestIpBitmap {
+    private final String _cidr;
+    private final long _startIp;
+    private final int _size;
+    private final BitSet _used;
+    private int _usedCount;
+    // address -> when it was handed out
+    private final Map<Long, Long> _reserved = new HashMap<Long, Long>();
+    private volatile long _loaded;
+
+    public GuestIpBitmap(String cidr) {
+        String[] parts = cidr.split("/");
+        long cidrSize = Long.parseLong(parts[1]);
+        assert (cidrSize <= 32) : "Only ipv4 cidrs are supported, got " + cidr;
+
+        // Same range as NetUtils.getAllIpsFromCidr(), without the network and broadcast addresses
+        long ip = NetUtils.ip2Long(parts[0]);
+        long start = (ip & NetUtils.ip2Long(NetUtils.getCidrNetmask(cidrSize))) + 1;
+        long end = (((start >> (32 - cidrSize)) + 1) << (32 - cidrSize)) - 2;
+
+        _cidr = cidr;
+        _startIp = start;
+        _size = end >= start ? (int)(end - start + 1) : 0;
+        _used = new BitSet(_size);
+        _loaded = System.currentTimeMillis();
+    }
+
+    public String getCidr() {
+        return _cidr;
+    }
+
+    public long getLoaded() {
+        return _loaded;
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    public synchronized int getFreeCount() {
+        return _size - _usedCount;
+    }
+
+    public boolean contains(long ip) {
+        return ip >= _startIp && ip < _startIp + _size;
+    }
+
+    public synchronized boolean isUsed(long ip) {
+        return contains(ip) && _used.get((int)(ip - _startIp));
+    }
+
+    /**
+     * @return false if the address was in use already or isn't in the cidr.
+     */
+    public synchronized boolean markUsed(long ip) {
+        if (!contains(ip)) {
+            return false;
+        }
+        int index = (int)(ip - _startIp);
+        if (_used.get(index)) {
+            return false;
+        }
+        _used.set(index);
+        _usedCount++;
+        return true;
+    }
+
+    /**
+     * Marks the address as used and remembers it as handed out.
+     *
+     * @return false if the address was in use already or isn't in the cidr.
+     */
+    public synchronized boolean reserve(long ip) {
+        if (!markUsed(ip)) {
+            return false;
+        }
+        _reserved.put(ip, System.currentTimeMillis());
+        return true;
+    }
+
+    public synchronized void markFree(long ip) {
+        if (!contains(ip)) {
+            return;
+        }
+        _reserved.remove(ip);
+        int index = (int)(ip - _startIp);
+        if (_used.get(index)) {
+            _used.clear(index);
+            _usedCount--;
+        }
+    }
+
+    /**
+     * Picks a free address at random and marks it as used.  Addresses ending
+     * with .1 are left alone as they are usually taken by routers.
+     *
+     * @return the address, -1 if there is no free address.
+     */
+    public synchronized long allocateRandom(Random rand) {
+        if (_usedCount >= _size) {
+            return -1;
+        }
+
+        int from = rand.nextInt(_size);
+        int index = findFree(from, _size);
+        if (index < 0) {
+            index = findFree(0, from);
+        }
+        if (index < 0) {
+            return -1;
+        }
+
+        _used.set(index);
+        _usedCount++;
+        long ip = _startIp + index;
+        _reserved.put(ip, System.currentTimeMillis());
+        return ip;
+    }
+
+    /**
+     * Replaces the used addresses with the ones read from the database.  The
+     * addresses handed out since keepReservedSince stay used as their nics may
+     * not be committed yet; the older ones are in the database by now, or
+     * their allocation was rolled back and they are free again.
+     *
+     * @param usedIps used addresses of the network in the database.
+     */
+    public synchronized void reload(Collection<Long> usedIps, long keepReservedSince) {
+        _used.clear();
+        _usedCount = 0;
+        for (Long ip : usedIps) {
+            markUsed(ip);
+        }
+        for (Iterator<Map.Entry<Long, Long>> it = _reserved.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Long> entry = it.next();
+            if (entry.getValue() < keepReservedSince) {
+                it.remove();
+            } else {
+                markUsed(entry.getKey());
+            }
+        }
+        _loaded = System.currentTimeMillis();
+    }
+
+    /**
+     * Lists the free addresses in ascending order.
+     *
+     * @param max maximum number of addresses to return.
+     */
+    public synchronized long[] listFree(int max) {
+        long[] ips = new long[Math.min(max, _size - _usedCount)];
+        int count = 0;
+        for (int index = _used.nextClearBit(0); index < _size && count < ips.length; index = _used.nextClearBit(index + 1)) {
+            ips[count++] = _startIp + index;
+        }
+        return ips;
+    }
+
+    private int findFree(int from, int to) {
+        for (int index = _used.nextClearBit(from); index < to; index = _used.nextClearBit(index + 1)) {
+            if (((_startIp + index) & 0xff) != 1) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
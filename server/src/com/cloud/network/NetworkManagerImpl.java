@@ -26,7 +26,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
@@ -2349,6 +2348,7 @@ public class NetworkManagerImpl extends ManagerBase implements NetworkManager, L
         NetworkGuru guru = AdapterBase.getAdapterByName(_networkGurus, network.getGuruName());
         guru.deallocate(network, profile, vm);
         _nicDao.remove(nic.getId());
+        _networkModel.releaseGuestIp(network.getId(), nic.getIp4Address());
         s_logger.debug("Removed nic id=" + nic.getId());
         //remove the secondary ip addresses corresponding to to this nic
         if (!removeVmSecondaryIpsOfNic(nic.getId())) {
@@ -3568,10 +3568,6 @@ public class NetworkManagerImpl extends ManagerBase implements NetworkManager, L
         return ip;
     }
 
-    
-
-    Random _rand = new Random(System.currentTimeMillis());
-
     @Override
     public List<? extends Nic> listVmNics(Long vmId, Long nicId) {
         List<NicVO> result = null;
@@ -3606,31 +3602,7 @@ public class NetworkManagerImpl extends ManagerBase implements NetworkManager, L
             return null;
         }
 
-        Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
-
-        if (availableIps == null || availableIps.isEmpty()) {
-            return null;
-        }
-
-        Long[] array = availableIps.toArray(new Long[availableIps.size()]);
-
-        if (requestedIp != null) {
-            // check that requested ip has the same cidr
-            String[] cidr = network.getCidr().split("/");
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
-            if (!isSameCidr) {
-                s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
-                return null;
-            } else {
-                return requestedIp;
-            }
-        }
-
-        String result;
-        do {
-            result = NetUtils.long2Ip(array[_rand.nextInt(array.length)]);
-        } while (result.split("\\.")[3].equals("1"));
-        return result;
+        return _networkModel.pickFreeGuestIp(network, requestedIp);
     }
 
     
@@ -4506,6 +4478,7 @@ public class NetworkManagerImpl extends ManagerBase implements NetworkManager, L
            if (ipList != null) {
                for (NicSecondaryIpVO ip: ipList) {
                    _nicSecondaryIpDao.remove(ip.getId());
+                   _networkModel.releaseGuestIp(ip.getNetworkId(), ip.getIp4Address());
                }
                s_logger.debug("Revoving nic secondary ip entry ...");
            }
@@ -25,8 +25,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -109,6 +111,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
@@ -197,6 +200,14 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
     NetworkOfferingDetailsDao _ntwkOffDetailsDao;
 
     private final HashMap<String, NetworkOfferingVO> _systemNetworks = new HashMap<String, NetworkOfferingVO>(5);
+
+    // the guest ip bitmaps are rebuilt from time to time to pick up the ips released on other management servers
+    private static final long GUEST_IP_BITMAP_TTL = 10 * 60 * 1000L;
+    // long enough for the nic of a picked guest ip to be committed
+    private static final long GUEST_IP_RESERVATION_TTL = 2 * 60 * 1000L;
+    private static final int GUEST_IP_PICK_ATTEMPTS = 3;
+    private final ConcurrentHashMap<Long, GuestIpBitmap> _guestIpBitmaps = new ConcurrentHashMap<Long, GuestIpBitmap>();
+    private final Random _rand = new Random(System.currentTimeMillis());
     static Long _privateOfferingId = null;
 
 
@@ -582,7 +593,12 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
         		hasFreeIps = isIP6AddressAvailableInNetwork(network.getId());
         	}
         } else {
-            hasFreeIps = (getAvailableIps(network, null)).size() > 0;
+            GuestIpBitmap bitmap = getGuestIpBitmap(network);
+            if (bitmap.getFreeCount() == 0) {
+                // ips may have been released on other management servers since the bitmap was loaded
+                reloadGuestIpBitmap(network, bitmap);
+            }
+            hasFreeIps = bitmap.getFreeCount() > 0;
         }
     
         return hasFreeIps;
@@ -1691,28 +1707,112 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
 
     @Override
     public Set<Long> getAvailableIps(Network network, String requestedIp) {
-        String[] cidr = network.getCidr().split("/");
-        List<String> ips = getUsedIpsInNetwork(network);
-        Set<Long> usedIps = new TreeSet<Long>(); 
+        GuestIpBitmap bitmap = getGuestIpBitmap(network);
+        if (requestedIp != null && bitmap.isUsed(NetUtils.ip2Long(requestedIp)) && isGuestIpInUse(network, requestedIp)) {
+            s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+            return null;
+        }
+
+        // get 255 ips as maximum, like NetUtils.getAllIpsFromCidr()
+        Set<Long> availableIps = new TreeSet<Long>();
+        for (long ip : bitmap.listFree(255)) {
+            availableIps.add(ip);
+        }
+        return availableIps;
+    }
 
-        for (String ip : ips) {
-            if (requestedIp != null && requestedIp.equals(ip)) {
+    @Override
+    public String pickFreeGuestIp(Network network, String requestedIp) {
+        GuestIpBitmap bitmap = getGuestIpBitmap(network);
+
+        if (requestedIp != null) {
+            long ip = NetUtils.ip2Long(requestedIp);
+            if (!bitmap.contains(ip)) {
+                s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
+                return null;
+            }
+            if (isGuestIpInUse(network, requestedIp)) {
+                bitmap.markUsed(ip);
                 s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
                 return null;
             }
+            bitmap.reserve(ip);
+            return requestedIp;
+        }
 
-            usedIps.add(NetUtils.ip2Long(ip));
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < GUEST_IP_PICK_ATTEMPTS; i++) {
+                long ip = bitmap.allocateRandom(_rand);
+                if (ip < 0) {
+                    break;
+                }
+                String ipAddress = NetUtils.long2Ip(ip);
+                if (!isGuestIpInUse(network, ipAddress)) {
+                    return ipAddress;
+                }
+            }
+
+            if (round == 0) {
+                // Other management servers have been handing out and releasing addresses since the bitmap was loaded
+                s_logger.debug("Guest ip bitmap of network " + network + " is out of date, reloading it");
+                reloadGuestIpBitmap(network, bitmap);
+            }
         }
+        return null;
+    }
 
-        Set<Long> allPossibleIps = NetUtils.getAllIpsFromCidr(cidr[0], Integer.parseInt(cidr[1]), usedIps);
+    @Override
+    public void releaseGuestIp(long networkId, String ip) {
+        GuestIpBitmap bitmap = _guestIpBitmaps.get(networkId);
+        if (bitmap != null && ip != null && NetUtils.isValidIp(ip)) {
+            bitmap.markFree(NetUtils.ip2Long(ip));
+        }
+    }
 
+    /**
+     * @return the guest ip bitmap of the network, built from the used ips of
+     * the network if there is none yet, reloaded if it is too old.
+     */
+    protected GuestIpBitmap getGuestIpBitmap(Network network) {
+        GuestIpBitmap bitmap = _guestIpBitmaps.get(network.getId());
+        if (bitmap == null || !bitmap.getCidr().equals(network.getCidr())) {
+            GuestIpBitmap created = new GuestIpBitmap(network.getCidr());
+            reloadGuestIpBitmap(network, created);
+            boolean stored = bitmap == null ? _guestIpBitmaps.putIfAbsent(network.getId(), created) == null
+                    : _guestIpBitmaps.replace(network.getId(), bitmap, created);
+            // otherwise another thread stored its own bitmap first, use that one
+            return stored ? created : getGuestIpBitmap(network);
+        }
+        if (System.currentTimeMillis() - bitmap.getLoaded() >= GUEST_IP_BITMAP_TTL) {
+            reloadGuestIpBitmap(network, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reloads the bitmap in place from the used ips of the network.  The ips
+     * other threads picked lately stay used, their nics may not be in the
+     * database yet.
+     */
+    protected void reloadGuestIpBitmap(Network network, GuestIpBitmap bitmap) {
+        long keepReservedSince = System.currentTimeMillis() - GUEST_IP_RESERVATION_TTL;
+        List<Long> usedIps = new ArrayList<Long>();
+        for (String ip : getUsedIpsInNetwork(network)) {
+            usedIps.add(NetUtils.ip2Long(ip));
+        }
         String gateway = network.getGateway();
-        if ((gateway != null) && (allPossibleIps.contains(NetUtils.ip2Long(gateway))))
-            allPossibleIps.remove(NetUtils.ip2Long(gateway));
+        if (gateway != null) {
+            usedIps.add(NetUtils.ip2Long(gateway));
+        }
+        bitmap.reload(usedIps, keepReservedSince);
+    }
 
-        return allPossibleIps;
+    protected boolean isGuestIpInUse(Network network, String ip) {
+        return _nicDao.findByIp4AddressAndNetworkId(ip, network.getId()) != null
+                || _nicSecondaryIpDao.findByIp4AddressAndNetworkId(ip, network.getId()) != null
+                || _appLbRuleDao.countBySourceIp(new Ip(ip), network.getId()) > 0;
     }
-    
+
     @Override
     public List<String> getUsedIpsInNetwork(Network network) {
         //Get all ips used by vms nics
@@ -16,21 +16,42 @@
 // under the License.
 package com.cloud.server;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.LockNotificationCommand;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHost;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.utils.db.Merovingian2;
 
 /**
- * when a management server is down.
+ * when a management server is down.  Also carries the lock notifications
+ * between the management servers so waiters don't have to poll op_lock.
  *
  */
-public class LockMasterListener implements ClusterManagerListener {
+public class LockMasterListener implements ClusterManagerListener, Merovingian2.PeerNotifier {
+    private static final Logger s_logger = Logger.getLogger(LockMasterListener.class);
+
     Merovingian2 _lockMaster;
-    
+    ClusterManager _clusterMgr;
+    long _msId;
+
     public LockMasterListener(long msId) {
+        this(msId, null);
+    }
+
+    public LockMasterListener(long msId, ClusterManager clusterMgr) {
+        _msId = msId;
+        _clusterMgr = clusterMgr;
         _lockMaster = Merovingian2.createLockMaster(msId);
+        if (clusterMgr != null) {
+            _lockMaster.setPeerNotifier(this);
+        }
     }
 
     @Override
@@ -48,4 +69,28 @@ public class LockMasterListener implements ClusterManagerListener {
     public void onManagementNodeIsolated() {
     }
 
+    @Override
+    public void waitingFor(String key, long ownerMsId) {
+        send(ownerMsId, new LockNotificationCommand(key, _msId, false));
+    }
+
+    @Override
+    public void released(String key, Collection<Long> waitingMsIds) {
+        for (Long msId : waitingMsIds) {
+            send(msId, new LockNotificationCommand(key, _msId, true));
+        }
+    }
+
+    protected void send(long msId, LockNotificationCommand cmd) {
+        if (msId == _msId) {
+            return;
+        }
+        try {
+            Command[] cmds = new Command[] { cmd };
+            _clusterMgr.executeAsync(Long.toString(msId), 0, GsonHelper.getGson().toJson(cmds), false);
+        } catch (Exception e) {
+            // Best effort, the waiters recheck op_lock periodically anyways.
+            s_logger.debug("Unable to notify " + msId + " about lck-" + cmd.getKey() + ": " + e.getMessage());
+        }
+    }
 }
@@ -803,7 +803,7 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
     public boolean start() {
         s_logger.info("Startup CloudStack management server...");
 
-        _clusterMgr.registerListener(new LockMasterListener(ManagementServerNode.getManagementServerId()));
+        _clusterMgr.registerListener(new LockMasterListener(ManagementServerNode.getManagementServerId(), _clusterMgr));
 
         enableAdminUser("password");
         return true;
@@ -21,14 +21,22 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 
@@ -58,6 +66,7 @@ import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.manager.Commands;
 import com.cloud.cluster.ManagementServerHostVO;
 import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.StorageUnavailableException;
 import com.cloud.host.Host;
@@ -84,6 +93,7 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.MacAddress;
 import com.cloud.vm.UserVmManager;
 import com.cloud.vm.UserVmVO;
@@ -119,7 +129,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     @Inject private ManagementServerHostDao _msHostDao;
 
 	private ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
-	private final ConcurrentHashMap<Long, VmStats> _VmStats = new ConcurrentHashMap<Long, VmStats>();
+	private final ConcurrentHashMap<Long, VmStatsAccumulator> _VmStats = new ConcurrentHashMap<Long, VmStatsAccumulator>();
 	private ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
@@ -138,6 +148,15 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private static final int USAGE_AGGREGATION_RANGE_MIN = 10; // 10 minutes, same to com.cloud.usage.UsageManagerImpl.USAGE_AGGREGATION_RANGE_MIN
     private boolean _dailyOrHourly = false;
 
+    // Hosts and storage pools are asked for their stats in parallel on this
+    // pool; each one gets _hostStatsTimeout from the moment it is picked up.
+    private ThreadPoolExecutor _workers;
+    private long _hostStatsTimeout = 60000L;
+    private final CycleMetrics _hostStatsMetrics = new CycleMetrics("host");
+    private final CycleMetrics _vmStatsMetrics = new CycleMetrics("vm");
+    private final CycleMetrics _imageStoreStatsMetrics = new CycleMetrics("image.store");
+    private final CycleMetrics _storagePoolStatsMetrics = new CycleMetrics("storage.pool");
+
 	//private final GlobalLock m_capacityCheckLock = GlobalLock.getInternLock("capacity.check");
 
     public static StatsCollector getInstance() {
@@ -162,6 +181,17 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 	private void init(Map<String, String> configs) {
 		_executor = Executors.newScheduledThreadPool(3, new NamedThreadFactory("StatsCollector"));
 
+		int workers = NumbersUtil.parseInt(configs.get(Config.StatsCollectorThreads.key()), 10);
+		_hostStatsTimeout = NumbersUtil.parseLong(configs.get(Config.StatsCollectorHostTimeout.key()), 60000L);
+		_workers = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("StatsCollector-Worker"));
+		_workers.allowCoreThreadTimeOut(true);
+
+		try {
+		    JmxUtil.registerMBean("StatsCollector", "StatsCollector", new StatsCollectorMBeanImpl(this));
+		} catch (Exception e) {
+		    s_logger.warn("Unable to register the stats collector MBean", e);
+		}
+
 		 hostStatsInterval = NumbersUtil.parseLong(configs.get("host.stats.interval"), 60000L);
 		 hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
 		 storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
@@ -252,15 +282,22 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalPxe.toString());
 				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
 				List<HostVO> hosts = _hostDao.search(sc, null);
-				for (HostVO host : hosts)
-				{
-				    HostStatsEntry stats = (HostStatsEntry) _resourceMgr.getHostStatistics(host.getId());
-				    if (stats != null)
-				    {
-                        hostStats.put(host.getId(), stats);
-				    }
-				    else
-				    {
+				Map<Long, Callable<HostStatsEntry>> tasks = new LinkedHashMap<Long, Callable<HostStatsEntry>>();
+				for (final HostVO host : hosts) {
+				    tasks.put(host.getId(), new Callable<HostStatsEntry>() {
+				        @Override
+				        public HostStatsEntry call() {
+				            return (HostStatsEntry) _resourceMgr.getHostStatistics(host.getId());
+				        }
+				    });
+				}
+
+				Map<Long, HostStatsEntry> results = collect(_hostStatsMetrics, tasks);
+				for (HostVO host : hosts) {
+				    HostStatsEntry stats = results.get(host.getId());
+				    if (stats != null) {
+				        hostStats.put(host.getId(), stats);
+				    } else {
 				        s_logger.warn("Received invalid host stats for host: " + host.getId());
 				    }
 				}
@@ -290,56 +327,51 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 				List<HostVO> hosts = _hostDao.search(sc, null);
 
+				// One query for the running vms of all the hosts instead of one per host.
+				List<Long> hostIds = new ArrayList<Long>(hosts.size());
 				for (HostVO host : hosts) {
-					List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-					List<Long> vmIds = new ArrayList<Long>();
-
-					for (UserVmVO vm : vms) {
-						vmIds.add(vm.getId());
-					}
-
-					try
-					{
-							HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-
-							if(vmStatsById != null)
-							{
-								VmStatsEntry statsInMemory = null;
-
-								Set<Long> vmIdSet = vmStatsById.keySet();
-								for(Long vmId : vmIdSet)
-								{
-									VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-									statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
-
-									if(statsInMemory == null)
-									{
-										//no stats exist for this vm, directly persist
-										_VmStats.put(vmId, statsForCurrentIteration);
-									}
-									else
-									{
-										//update each field
-										statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-										statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-										statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-										statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-										statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
-                                                                                statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
-                                                                                statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
-                                                                                statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
-
-										_VmStats.put(vmId, statsInMemory);
-									}
-								}
-							}
-
-					} catch (Exception e) {
-						s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-						continue;
-					}
+				    hostIds.add(host.getId());
+				}
+				Map<Long, Map<Long, String>> vmsByHost = new HashMap<Long, Map<Long, String>>();
+				for (UserVmVO vm : _userVmDao.listRunningByHostIds(hostIds)) {
+				    Map<Long, String> vms = vmsByHost.get(vm.getHostId());
+				    if (vms == null) {
+				        vms = new LinkedHashMap<Long, String>();
+				        vmsByHost.put(vm.getHostId(), vms);
+				    }
+				    vms.put(vm.getId(), vm.getInstanceName());
+				}
+
+				Map<Long, Callable<Integer>> tasks = new LinkedHashMap<Long, Callable<Integer>>();
+				for (final HostVO host : hosts) {
+				    final Map<Long, String> vms = vmsByHost.get(host.getId());
+				    if (vms == null) {
+				        continue;
+				    }
+				    tasks.put(host.getId(), new Callable<Integer>() {
+				        @Override
+				        public Integer call() {
+				            HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vms);
+				            if (vmStatsById == null) {
+				                return null;
+				            }
+				            for (Map.Entry<Long, VmStatsEntry> entry : vmStatsById.entrySet()) {
+				                VmStatsAccumulator statsInMemory = _VmStats.get(entry.getKey());
+				                if (statsInMemory == null) {
+				                    VmStatsAccumulator created = new VmStatsAccumulator();
+				                    statsInMemory = _VmStats.putIfAbsent(entry.getKey(), created);
+				                    if (statsInMemory == null) {
+				                        statsInMemory = created;
+				                    }
+				                }
+				                statsInMemory.add(entry.getValue());
+				            }
+				            return vmStatsById.size();
+				        }
+				    });
 				}
 
+				collect(_vmStatsMetrics, tasks);
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve VM stats", t);
 			}
@@ -369,6 +401,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         txn.start();
                         //get all stats with delta > 0
                         List<VmDiskStatisticsVO> updatedVmNetStats = _vmDiskStatsDao.listUpdatedStats();
+                        Map<Long, VmDiskStatisticsVO> aggregated = new LinkedHashMap<Long, VmDiskStatisticsVO>();
                         for(VmDiskStatisticsVO stat : updatedVmNetStats){
                             if (_dailyOrHourly) {
                                 //update agg bytes
@@ -376,9 +409,10 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                                 stat.setAggBytesWrite(stat.getCurrentBytesWrite() + stat.getNetBytesWrite());
                                 stat.setAggIORead(stat.getCurrentIORead() + stat.getNetIORead());
                                 stat.setAggIOWrite(stat.getCurrentIOWrite() + stat.getNetIOWrite());
-                                _vmDiskStatsDao.update(stat.getId(), stat);
+                                aggregated.put(stat.getId(), stat);
                             }
                         }
+                        _vmDiskStatsDao.updateBatch(aggregated);
                         s_logger.debug("Successfully updated aggregate vm disk stats");
                         txn.commit();
                     } catch (Exception e){
@@ -410,6 +444,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.EQ, Host.Type.Routing.toString());
                 sc.addAnd("hypervisorType", SearchCriteria.Op.EQ, HypervisorType.KVM); // support KVM only util 2013.06.25
                 List<HostVO> hosts = _hostDao.search(sc, null);
+                // The rows are locked until commit, so their updates can be sent together.
+                Map<Long, VmDiskStatisticsVO> updatedStats = new LinkedHashMap<Long, VmDiskStatisticsVO>();
 
                 for (HostVO host : hosts) {
                     List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
@@ -506,10 +542,11 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                                 vmDiskStat_lock.setAggIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
                             }
 
-                            _vmDiskStatsDao.update(vmDiskStat_lock.getId(), vmDiskStat_lock);
+                            updatedStats.put(vmDiskStat_lock.getId(), vmDiskStat_lock);
                         }
                     }
                 }
+                _vmDiskStatsDao.updateBatch(updatedStats);
                 txn.commit();
             } catch (Exception e) {
                 s_logger.warn("Error while collecting vm disk stats from hosts", e);
@@ -529,53 +566,63 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 	            }
 
 	            List<DataStore> stores = _dataStoreMgr.listImageStores();
-                ConcurrentHashMap<Long, StorageStats> storageStats = new ConcurrentHashMap<Long, StorageStats>();
+                Map<Long, Callable<StorageStats>> tasks = new LinkedHashMap<Long, Callable<StorageStats>>();
                 for (DataStore store : stores) {
                     if ( store.getUri() == null ) {
                         continue;
                     }
 
-                    GetStorageStatsCommand command = new GetStorageStatsCommand(store.getTO());
-                    EndPoint ssAhost = _epSelector.select(store);
+                    final GetStorageStatsCommand command = new GetStorageStatsCommand(store.getTO());
+                    final EndPoint ssAhost = _epSelector.select(store);
                     if (ssAhost == null) {
                         s_logger.debug("There is no secondary storage VM for secondary storage host " + store.getName());
                         continue;
                     }
-                    long storeId = store.getId();
-                    Answer answer = ssAhost.sendMessage(command);
-                    if (answer != null && answer.getResult()) {
-                        storageStats.put(storeId, (StorageStats)answer);
-                        s_logger.trace("HostId: "+storeId+ " Used: " + ((StorageStats)answer).getByteUsed() + " Total Available: " + ((StorageStats)answer).getCapacityBytes());
-                    }
+                    final long storeId = store.getId();
+                    tasks.put(storeId, new Callable<StorageStats>() {
+                        @Override
+                        public StorageStats call() {
+                            Answer answer = ssAhost.sendMessage(command);
+                            if (answer != null && answer.getResult()) {
+                                s_logger.trace("HostId: "+storeId+ " Used: " + ((StorageStats)answer).getByteUsed() + " Total Available: " + ((StorageStats)answer).getCapacityBytes());
+                                return (StorageStats)answer;
+                            }
+                            return null;
+                        }
+                    });
                 }
-                _storageStats = storageStats;
-				ConcurrentHashMap<Long, StorageStats> storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+                _storageStats = new ConcurrentHashMap<Long, StorageStats>(collect(_imageStoreStatsMetrics, tasks));
 
+				Map<Long, Callable<StorageStats>> poolTasks = new LinkedHashMap<Long, Callable<StorageStats>>();
 				List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-				for (StoragePoolVO pool: storagePools) {
+				for (final StoragePoolVO pool: storagePools) {
 					// check if the pool has enabled hosts
 					List<Long> hostIds = _storageManager.getUpHostsInPool(pool.getId());
 					if (hostIds == null || hostIds.isEmpty()) continue;
-					GetStorageStatsCommand command = new GetStorageStatsCommand(pool.getUuid(), pool.getPoolType(), pool.getPath());
-					long poolId = pool.getId();
-					try {
-    					Answer answer = _storageManager.sendToPool(pool, command);
-    					if (answer != null && answer.getResult()) {
-    						storagePoolStats.put(pool.getId(), (StorageStats)answer);
-
-    						// Seems like we have dynamically updated the pool size since the prev. size and the current do not match
-    						if (_storagePoolStats.get(poolId)!= null &&
-    								_storagePoolStats.get(poolId).getCapacityBytes() != ((StorageStats)answer).getCapacityBytes()){
-    		                    pool.setCapacityBytes(((StorageStats)answer).getCapacityBytes());
-    		                    _storagePoolDao.update(pool.getId(), pool);
-    	                    }
-    					}
-                    } catch (StorageUnavailableException e) {
-                        s_logger.info("Unable to reach " + pool, e);
-                    } catch (Exception e) {
-                        s_logger.warn("Unable to get stats for " + pool, e);
-                    }
+					final GetStorageStatsCommand command = new GetStorageStatsCommand(pool.getUuid(), pool.getPoolType(), pool.getPath());
+					final long poolId = pool.getId();
+					poolTasks.put(poolId, new Callable<StorageStats>() {
+					    @Override
+					    public StorageStats call() {
+					        try {
+					            Answer answer = _storageManager.sendToPool(pool, command);
+					            if (answer != null && answer.getResult()) {
+					                // Seems like we have dynamically updated the pool size since the prev. size and the current do not match
+					                if (_storagePoolStats.get(poolId)!= null &&
+					                        _storagePoolStats.get(poolId).getCapacityBytes() != ((StorageStats)answer).getCapacityBytes()){
+					                    pool.setCapacityBytes(((StorageStats)answer).getCapacityBytes());
+					                    _storagePoolDao.update(pool.getId(), pool);
+					                }
+					                return (StorageStats)answer;
+					            }
+					        } catch (StorageUnavailableException e) {
+					            s_logger.info("Unable to reach " + pool, e);
+					        }
+					        return null;
+					    }
+					});
 				}
+				ConcurrentHashMap<Long, StorageStats> storagePoolStats = new ConcurrentHashMap<Long, StorageStats>(collect(_storagePoolStatsMetrics, poolTasks));
                 _storagePoolStats = storagePoolStats;
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve storage stats", t);
@@ -594,4 +641,234 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 	public StorageStats getStoragePoolStats(long id) {
 		return _storagePoolStats.get(id);
 	}
+
+    protected CycleMetrics[] getCycleMetrics() {
+        return new CycleMetrics[] {_hostStatsMetrics, _vmStatsMetrics, _imageStoreStatsMetrics, _storagePoolStatsMetrics};
+    }
+
+    protected CycleMetrics getHostStatsMetrics() {
+        return _hostStatsMetrics;
+    }
+
+    protected CycleMetrics getVmStatsMetrics() {
+        return _vmStatsMetrics;
+    }
+
+    protected int getActiveWorkers() {
+        return _workers != null ? _workers.getActiveCount() : 0;
+    }
+
+    /**
+     * Runs the tasks on the worker pool and waits for each of them for at
+     * most _hostStatsTimeout from the moment it started running.  A task
+     * that runs out of time is interrupted and its host is skipped for this
+     * cycle, so one slow hypervisor no longer holds up the others.
+     *
+     * @param tasks tasks by host or storage id.
+     * @return the non-null results by id of the tasks that finished in time.
+     */
+    protected <T> Map<Long, T> collect(CycleMetrics metrics, Map<Long, Callable<T>> tasks) {
+        long start = System.currentTimeMillis();
+        Map<Long, TimedTask<T>> submitted = new LinkedHashMap<Long, TimedTask<T>>();
+        for (Map.Entry<Long, Callable<T>> entry : tasks.entrySet()) {
+            TimedTask<T> task = new TimedTask<T>(entry.getValue());
+            _workers.execute(task);
+            submitted.put(entry.getKey(), task);
+        }
+
+        // A task may sit in the queue behind slow ones; this is the longest
+        // that can take if every task ahead of it used all of its time.
+        int rounds = (tasks.size() + _workers.getMaximumPoolSize() - 1) / _workers.getMaximumPoolSize();
+        long queueDeadline = start + _hostStatsTimeout * Math.max(rounds, 1);
+
+        Map<Long, T> results = new HashMap<Long, T>();
+        Map<Long, Long> latencies = new HashMap<Long, Long>();
+        int skipped = 0;
+        for (Map.Entry<Long, TimedTask<T>> entry : submitted.entrySet()) {
+            TimedTask<T> task = entry.getValue();
+            try {
+                T result = task.await(_hostStatsTimeout, queueDeadline);
+                latencies.put(entry.getKey(), task.getElapsed());
+                if (result != null) {
+                    results.put(entry.getKey(), result);
+                }
+            } catch (TimeoutException e) {
+                task.cancel(true);
+                skipped++;
+                s_logger.warn("Skipping " + metrics.getName() + " stats for " + entry.getKey() + ", no answer within " + _hostStatsTimeout + "ms");
+            } catch (ExecutionException e) {
+                skipped++;
+                s_logger.debug("Failed to get " + metrics.getName() + " stats for " + entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                task.cancel(true);
+                skipped++;
+            }
+        }
+
+        metrics.update(System.currentTimeMillis() - start, skipped, latencies);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Collected " + metrics.getName() + " stats for " + results.size() + " of " + tasks.size() + " in " + metrics.getLastCycleMillis() + "ms, skipped " + skipped);
+        }
+        return results;
+    }
+
+    protected static class TimedTask<T> extends FutureTask<T> {
+        private volatile long _started = 0;
+        private volatile long _finished = 0;
+
+        public TimedTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            _started = System.currentTimeMillis();
+            try {
+                super.run();
+            } finally {
+                _finished = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Waits until timeout after the task started running, or until
+         * queueDeadline if it has not been picked up by then.
+         */
+        public T await(long timeout, long queueDeadline) throws InterruptedException, ExecutionException, TimeoutException {
+            while (true) {
+                long started = _started;
+                long deadline = started == 0 ? queueDeadline : started + timeout;
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    if (isDone()) {
+                        return get();
+                    }
+                    if (started == 0 && _started != 0) {
+                        continue;
+                    }
+                    throw new TimeoutException();
+                }
+                try {
+                    return get(started == 0 ? Math.min(wait, timeout) : wait, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // loop to re-evaluate the deadline now that it may have started
+                }
+            }
+        }
+
+        public long getElapsed() {
+            return _started == 0 ? 0 : Math.max(_finished, _started) - _started;
+        }
+    }
+
+    /**
+     * What the last cycle of one collector looked like.
+     */
+    protected static class CycleMetrics {
+        private final String _name;
+        private volatile long _lastCycleMillis;
+        private volatile int _lastSkipped;
+        private volatile Map<Long, Long> _latencies = new HashMap<Long, Long>();
+
+        public CycleMetrics(String name) {
+            _name = name;
+        }
+
+        public void update(long cycleMillis, int skipped, Map<Long, Long> latencies) {
+            _lastCycleMillis = cycleMillis;
+            _lastSkipped = skipped;
+            _latencies = latencies;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public long getLastCycleMillis() {
+            return _lastCycleMillis;
+        }
+
+        public int getLastSkipped() {
+            return _lastSkipped;
+        }
+
+        public Map<Long, Long> getLatencies() {
+            return new HashMap<Long, Long>(_latencies);
+        }
+    }
+
+    /**
+     * Running totals for one vm.  Hosts report deltas for network and disk
+     * and the current value for cpu; every field is updated with a CAS so
+     * collectors for different hosts can merge without locking.
+     */
+    protected static class VmStatsAccumulator implements VmStats {
+        private final AtomicLong _cpuUtilization = new AtomicLong(Double.doubleToLongBits(0));
+        private final AtomicLong _networkReadKBs = new AtomicLong(Double.doubleToLongBits(0));
+        private final AtomicLong _networkWriteKBs = new AtomicLong(Double.doubleToLongBits(0));
+        private final AtomicLong _diskReadIOs = new AtomicLong(Double.doubleToLongBits(0));
+        private final AtomicLong _diskWriteIOs = new AtomicLong(Double.doubleToLongBits(0));
+        private final AtomicLong _diskReadKBs = new AtomicLong(Double.doubleToLongBits(0));
+        private final AtomicLong _diskWriteKBs = new AtomicLong(Double.doubleToLongBits(0));
+        private volatile int _numCPUs;
+
+        public void add(VmStatsEntry stats) {
+            _cpuUtilization.set(Double.doubleToLongBits(stats.getCPUUtilization()));
+            _numCPUs = stats.getNumCPUs();
+            add(_networkReadKBs, stats.getNetworkReadKBs());
+            add(_networkWriteKBs, stats.getNetworkWriteKBs());
+            add(_diskReadIOs, stats.getDiskReadIOs());
+            add(_diskWriteIOs, stats.getDiskWriteIOs());
+            add(_diskReadKBs, stats.getDiskReadKBs());
+            add(_diskWriteKBs, stats.getDiskWriteKBs());
+        }
+
+        private static void add(AtomicLong value, double delta) {
+            while (true) {
+                long current = value.get();
+                if (value.compareAndSet(current, Double.doubleToLongBits(Double.longBitsToDouble(current) + delta))) {
+                    return;
+                }
+            }
+        }
+
+        public int getNumCPUs() {
+            return _numCPUs;
+        }
+
+        @Override
+        public double getCPUUtilization() {
+            return Double.longBitsToDouble(_cpuUtilization.get());
+        }
+
+        @Override
+        public double getNetworkReadKBs() {
+            return Double.longBitsToDouble(_networkReadKBs.get());
+        }
+
+        @Override
+        public double getNetworkWriteKBs() {
+            return Double.longBitsToDouble(_networkWriteKBs.get());
+        }
+
+        @Override
+        public double getDiskReadIOs() {
+            return Double.longBitsToDouble(_diskReadIOs.get());
+        }
+
+        @Override
+        public double getDiskWriteIOs() {
+            return Double.longBitsToDouble(_diskWriteIOs.get());
+        }
+
+        @Override
+        public double getDiskReadKBs() {
+            return Double.longBitsToDouble(_diskReadKBs.get());
+        }
+
+        @Override
+        public double getDiskWriteKBs() {
+            return Double.longBitsToDouble(_diskWriteKBs.get());
+        }
+    }
 }
@@ -0,0 +1,47 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.Map;
+
+/**
+ * Allows JMX access to how long the stats collectors take.  Every collector
+ * (host, vm, storage) reports on its last completed cycle.
+ */
+public interface StatsCollectorMBean {
+    /**
+     * @return wall clock time of the last cycle in milliseconds by collector.
+     */
+    Map<String, Long> getLastCycleMillis();
+
+    /**
+     * @return hosts or storages that timed out or failed in the last cycle by collector.
+     */
+    Map<String, Integer> getLastCycleSkipped();
+
+    /**
+     * @return time in milliseconds each host took to answer in the last vm stats cycle.
+     */
+    Map<Long, Long> getVmStatsLatencies();
+
+    /**
+     * @return time in milliseconds each host took to answer in the last host stats cycle.
+     */
+    Map<Long, Long> getHostStatsLatencies();
+
+    int getActiveWorkers();
+}
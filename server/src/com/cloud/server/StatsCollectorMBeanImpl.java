@@ -0,0 +1,66 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+import com.cloud.server.StatsCollector.CycleMetrics;
+
+public class StatsCollectorMBeanImpl extends StandardMBean implements StatsCollectorMBean {
+    private final StatsCollector _collector;
+
+    protected StatsCollectorMBeanImpl(StatsCollector collector) {
+        super(StatsCollectorMBean.class, false);
+        _collector = collector;
+    }
+
+    @Override
+    public Map<String, Long> getLastCycleMillis() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (CycleMetrics metrics : _collector.getCycleMetrics()) {
+            result.put(metrics.getName(), metrics.getLastCycleMillis());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Integer> getLastCycleSkipped() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (CycleMetrics metrics : _collector.getCycleMetrics()) {
+            result.put(metrics.getName(), metrics.getLastSkipped());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Long, Long> getVmStatsLatencies() {
+        return _collector.getVmStatsMetrics().getLatencies();
+    }
+
+    @Override
+    public Map<Long, Long> getHostStatsLatencies() {
+        return _collector.getHostStatsMetrics().getLatencies();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return _collector.getActiveWorkers();
+    }
+}
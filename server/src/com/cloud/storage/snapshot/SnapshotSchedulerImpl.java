@@ -16,10 +16,15 @@
 // under the License.
 package com.cloud.storage.snapshot;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -40,6 +45,7 @@ import com.cloud.async.AsyncJobManager;
 import com.cloud.async.AsyncJobResult;
 import com.cloud.async.AsyncJobVO;
 import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.event.EventTypes;
 import com.cloud.storage.Snapshot;
@@ -62,6 +68,7 @@ import com.cloud.utils.concurrency.TestClock;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.mgmt.JmxUtil;
 
 
 @Component
@@ -82,6 +89,17 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     private Timer      _testClockTimer;
     private Date       _currentTimestamp;
     private TestClock  _testTimerTask;
+    private int        _jitterWindow;
+    private int        _maxConcurrentPerPrimary;
+    private int        _maxConcurrentPerSecondary;
+    private long       _staleJobThreshold;
+
+    private volatile Map<Long, AdmissionStats> _primaryStats = new HashMap<Long, AdmissionStats>();
+    private volatile Map<Long, AdmissionStats> _secondaryStats = new HashMap<Long, AdmissionStats>();
+    private volatile int _lastQueuedCount;
+    private volatile int _lastRunningCount;
+    private volatile int _lastDeferredCount;
+    private volatile int _lastAdmittedCount;
 
     private Date getNextScheduledTime(long policyId, Date currentTimestamp) {
         SnapshotPolicyVO policy = _snapshotPolicyDao.findById(policyId);
@@ -208,20 +226,44 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         List<SnapshotScheduleVO> snapshotsToBeExecuted = _snapshotScheduleDao.getSchedulesToExecute(_currentTimestamp);
         s_logger.debug("Got " + snapshotsToBeExecuted.size() + " snapshots to be executed at " + displayTime);
 
+        // Anything still holding a job id after checkStatusOfCurrentlyExecutingSnapshots() may be in progress.
+        SearchCriteria<SnapshotScheduleVO> sc = _snapshotScheduleDao.createSearchCriteria();
+        sc.addAnd("asyncJobId", SearchCriteria.Op.NNULL);
+        List<SnapshotScheduleVO> runningSchedules = listRunningSchedules(_snapshotScheduleDao.search(sc, null), DateUtil.currentGMTTime());
+
+        Set<Long> volumeIds = new HashSet<Long>();
+        Set<Long> policyIds = new HashSet<Long>();
+        for (SnapshotScheduleVO schedule : snapshotsToBeExecuted) {
+            volumeIds.add(schedule.getVolumeId());
+            policyIds.add(schedule.getPolicyId());
+        }
+        for (SnapshotScheduleVO schedule : runningSchedules) {
+            volumeIds.add(schedule.getVolumeId());
+        }
+        Map<Long, VolumeVO> volumes = listVolumes(volumeIds);
+        Set<Long> existingPolicyIds = listPolicyIds(policyIds);
+
+        List<SnapshotScheduleVO> candidates = new ArrayList<SnapshotScheduleVO>(snapshotsToBeExecuted.size());
         for (SnapshotScheduleVO snapshotToBeExecuted : snapshotsToBeExecuted) {
+            VolumeVO volume = volumes.get(snapshotToBeExecuted.getVolumeId());
+            if (volume == null || volume.getPoolId() == null) {
+                // this volume is removed or not attached
+                continue;
+            }
+            if (!existingPolicyIds.contains(snapshotToBeExecuted.getPolicyId())) {
+                _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
+                continue;
+            }
+            candidates.add(snapshotToBeExecuted);
+        }
+
+        List<SnapshotScheduleVO> admitted = admitSchedules(candidates, runningSchedules, volumes, _currentTimestamp);
+
+        for (SnapshotScheduleVO snapshotToBeExecuted : admitted) {
             SnapshotScheduleVO tmpSnapshotScheduleVO = null;
             long snapshotScheId = snapshotToBeExecuted.getId();
-            long policyId = snapshotToBeExecuted.getPolicyId();
             long volumeId = snapshotToBeExecuted.getVolumeId();
             try {
-                VolumeVO volume = _volsDao.findById(volumeId);
-                if ( volume.getPoolId() == null) {
-                    // this volume is not attached
-                    continue;
-                }
-                if ( _snapshotPolicyDao.findById(policyId) == null ) {
-                    _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
-                }
                 if (s_logger.isDebugEnabled()) {
                     Date scheduledTimestamp = snapshotToBeExecuted.getScheduledTimestamp();
                     displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
@@ -229,30 +271,13 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
                             + snapshotToBeExecuted.getId() + " at " + displayTime);
                 }
 
-
-
                 tmpSnapshotScheduleVO = _snapshotScheduleDao.acquireInLockTable(snapshotScheId);
-                Long eventId = ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(),
-                        EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" + volumeId, 0);
-
-                Map<String, String> params = new HashMap<String, String>();
-                params.put(ApiConstants.VOLUME_ID, "" + volumeId);
-                params.put(ApiConstants.POLICY_ID, "" + policyId);
-                params.put("ctxUserId", "1");
-                params.put("ctxAccountId", "" + volume.getAccountId());
-                params.put("ctxStartEventId", String.valueOf(eventId));
-
-                CreateSnapshotCmd cmd = new CreateSnapshotCmd();
-                ComponentContext.inject(cmd);
-                ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
-                params.put("id", ""+cmd.getEntityId());
-                params.put("ctxStartEventId", "1");
-
-                AsyncJobVO job = new AsyncJobVO(User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
-                        ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
-                        cmd.getInstanceType());
+                if (tmpSnapshotScheduleVO == null) {
+                    s_logger.debug("Unable to lock snapshot schedule " + snapshotScheId + ", skipping it in this pass");
+                    continue;
+                }
 
-                long jobId = _asyncMgr.submitAsyncJob(job);
+                long jobId = submitSnapshotJob(snapshotToBeExecuted, volumes.get(volumeId));
 
                 tmpSnapshotScheduleVO.setAsyncJobId(jobId);
                 _snapshotScheduleDao.update(snapshotScheId, tmpSnapshotScheduleVO);
@@ -266,6 +291,244 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         }
     }
 
+    protected long submitSnapshotJob(SnapshotScheduleVO schedule, VolumeVO volume) throws Exception {
+        long volumeId = volume.getId();
+        Long eventId = ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(),
+                EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" + volumeId, 0);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.VOLUME_ID, "" + volumeId);
+        params.put(ApiConstants.POLICY_ID, "" + schedule.getPolicyId());
+        params.put("ctxUserId", "1");
+        params.put("ctxAccountId", "" + volume.getAccountId());
+        params.put("ctxStartEventId", String.valueOf(eventId));
+
+        CreateSnapshotCmd cmd = new CreateSnapshotCmd();
+        ComponentContext.inject(cmd);
+        ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
+        params.put("id", ""+cmd.getEntityId());
+        params.put("ctxStartEventId", "1");
+
+        AsyncJobVO job = new AsyncJobVO(User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
+                ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
+                cmd.getInstanceType());
+
+        return _asyncMgr.submitAsyncJob(job);
+    }
+
+    /**
+     * Decides which of the due schedules get a snapshot job in this pass.  A
+     * schedule is held back until its volume's jitter offset has passed, and
+     * then until its primary pool and the secondary storage of its zone are
+     * below their concurrency caps.  Admission is in order of jittered due
+     * time so that deferred schedules go first in the next pass.
+     */
+    protected List<SnapshotScheduleVO> admitSchedules(List<SnapshotScheduleVO> due, List<SnapshotScheduleVO> running,
+            Map<Long, VolumeVO> volumes, Date now) {
+        Map<Long, AdmissionStats> primaryStats = new HashMap<Long, AdmissionStats>();
+        Map<Long, AdmissionStats> secondaryStats = new HashMap<Long, AdmissionStats>();
+
+        for (SnapshotScheduleVO schedule : running) {
+            VolumeVO volume = volumes.get(schedule.getVolumeId());
+            if (volume == null) {
+                continue;
+            }
+            if (volume.getPoolId() != null) {
+                getStats(primaryStats, volume.getPoolId()).running++;
+            }
+            getStats(secondaryStats, volume.getDataCenterId()).running++;
+        }
+
+        final Map<Long, Long> releaseTimes = new HashMap<Long, Long>();
+        List<SnapshotScheduleVO> eligible = new ArrayList<SnapshotScheduleVO>(due.size());
+        int deferred = 0;
+        for (SnapshotScheduleVO schedule : due) {
+            VolumeVO volume = volumes.get(schedule.getVolumeId());
+            long releaseTime = schedule.getScheduledTimestamp().getTime() + getJitterOffset(schedule.getVolumeId()) * 1000L;
+            if (releaseTime > now.getTime()) {
+                getStats(primaryStats, volume.getPoolId()).deferred++;
+                getStats(secondaryStats, volume.getDataCenterId()).deferred++;
+                deferred++;
+                continue;
+            }
+            releaseTimes.put(schedule.getId(), releaseTime);
+            eligible.add(schedule);
+        }
+        Collections.sort(eligible, new Comparator<SnapshotScheduleVO>() {
+            @Override
+            public int compare(SnapshotScheduleVO s1, SnapshotScheduleVO s2) {
+                long t1 = releaseTimes.get(s1.getId());
+                long t2 = releaseTimes.get(s2.getId());
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+
+        List<SnapshotScheduleVO> admitted = new ArrayList<SnapshotScheduleVO>(eligible.size());
+        int queued = 0;
+        for (SnapshotScheduleVO schedule : eligible) {
+            VolumeVO volume = volumes.get(schedule.getVolumeId());
+            AdmissionStats primary = getStats(primaryStats, volume.getPoolId());
+            AdmissionStats secondary = getStats(secondaryStats, volume.getDataCenterId());
+            if ((_maxConcurrentPerPrimary > 0 && primary.running >= _maxConcurrentPerPrimary)
+                    || (_maxConcurrentPerSecondary > 0 && secondary.running >= _maxConcurrentPerSecondary)) {
+                primary.queued++;
+                secondary.queued++;
+                queued++;
+                continue;
+            }
+            primary.running++;
+            secondary.running++;
+            admitted.add(schedule);
+        }
+
+        _primaryStats = primaryStats;
+        _secondaryStats = secondaryStats;
+        _lastQueuedCount = queued;
+        _lastDeferredCount = deferred;
+        _lastRunningCount = running.size() + admitted.size();
+        _lastAdmittedCount = admitted.size();
+
+        if (queued > 0 || deferred > 0) {
+            s_logger.info("Snapshot scheduler admitted " + admitted.size() + " of " + due.size() + " due snapshots, "
+                    + deferred + " deferred by jitter, " + queued + " queued behind storage concurrency caps");
+        }
+        return admitted;
+    }
+
+    /**
+     * @return the deterministic delay, in seconds, applied to every scheduled
+     * snapshot of this volume.  It is spread evenly over the jitter window.
+     */
+    protected long getJitterOffset(long volumeId) {
+        if (_jitterWindow <= 0) {
+            return 0;
+        }
+        // Fibonacci hashing so that consecutive volume ids land far apart in the window.
+        return ((volumeId * 0x9E3779B97F4A7C15L) >>> 1) % _jitterWindow;
+    }
+
+    private static AdmissionStats getStats(Map<Long, AdmissionStats> stats, Long storeId) {
+        AdmissionStats s = stats.get(storeId);
+        if (s == null) {
+            s = new AdmissionStats();
+            stats.put(storeId, s);
+        }
+        return s;
+    }
+
+    private Map<Long, VolumeVO> listVolumes(Set<Long> volumeIds) {
+        Map<Long, VolumeVO> volumes = new HashMap<Long, VolumeVO>();
+        if (volumeIds.isEmpty()) {
+            return volumes;
+        }
+        SearchCriteria<VolumeVO> sc = _volsDao.createSearchCriteria();
+        sc.addAnd("id", SearchCriteria.Op.IN, volumeIds.toArray());
+        for (VolumeVO volume : _volsDao.search(sc, null)) {
+            volumes.put(volume.getId(), volume);
+        }
+        return volumes;
+    }
+
+    private Set<Long> listPolicyIds(Set<Long> policyIds) {
+        Set<Long> existing = new HashSet<Long>();
+        if (policyIds.isEmpty()) {
+            return existing;
+        }
+        SearchCriteria<SnapshotPolicyVO> sc = _snapshotPolicyDao.createSearchCriteria();
+        sc.addAnd("id", SearchCriteria.Op.IN, policyIds.toArray());
+        for (SnapshotPolicyVO policy : _snapshotPolicyDao.search(sc, null)) {
+            existing.add(policy.getId());
+        }
+        return existing;
+    }
+
+    /**
+     * @return the schedules whose snapshot job is actually running.  A job
+     * left in progress by a management server that went away is never
+     * completed, so jobs that have not been updated for
+     * job.cancel.threshold.minutes don't count against the caps.
+     */
+    protected List<SnapshotScheduleVO> listRunningSchedules(List<SnapshotScheduleVO> schedules, Date now) {
+        List<SnapshotScheduleVO> running = new ArrayList<SnapshotScheduleVO>();
+        if (schedules.isEmpty()) {
+            return running;
+        }
+
+        Set<Long> jobIds = new HashSet<Long>();
+        for (SnapshotScheduleVO schedule : schedules) {
+            jobIds.add(schedule.getAsyncJobId());
+        }
+        SearchCriteria<AsyncJobVO> sc = _asyncJobDao.createSearchCriteria();
+        sc.addAnd("id", SearchCriteria.Op.IN, jobIds.toArray());
+        sc.addAnd("status", SearchCriteria.Op.EQ, AsyncJobResult.STATUS_IN_PROGRESS);
+        Set<Long> activeJobIds = new HashSet<Long>();
+        for (AsyncJobVO job : _asyncJobDao.search(sc, null)) {
+            Date lastUpdated = job.getLastUpdated() != null ? job.getLastUpdated() : job.getCreated();
+            if (lastUpdated != null && now.getTime() - lastUpdated.getTime() < _staleJobThreshold) {
+                activeJobIds.add(job.getId());
+            }
+        }
+
+        for (SnapshotScheduleVO schedule : schedules) {
+            if (activeJobIds.contains(schedule.getAsyncJobId())) {
+                running.add(schedule);
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Snapshot job " + schedule.getAsyncJobId() + " of schedule " + schedule.getId() + " is not running, not counting it against the caps");
+            }
+        }
+        return running;
+    }
+
+    public int getQueuedCount() {
+        return _lastQueuedCount;
+    }
+
+    public int getRunningCount() {
+        return _lastRunningCount;
+    }
+
+    public int getDeferredCount() {
+        return _lastDeferredCount;
+    }
+
+    public int getAdmittedCount() {
+        return _lastAdmittedCount;
+    }
+
+    public Map<Long, AdmissionStats> getPrimaryStorageAdmission() {
+        return _primaryStats;
+    }
+
+    public Map<Long, AdmissionStats> getSecondaryStorageAdmission() {
+        return _secondaryStats;
+    }
+
+    /**
+     * Per storage admission counts from the last scheduling pass.
+     */
+    public static class AdmissionStats {
+        int queued;
+        int running;
+        int deferred;
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public int getDeferred() {
+            return deferred;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queued + ", running=" + running + ", deferred=" + deferred;
+        }
+    }
+
     private Date scheduleNextSnapshotJob(SnapshotScheduleVO snapshotSchedule) {
         if ( snapshotSchedule == null ) {
             return null;
@@ -335,6 +598,10 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     throws ConfigurationException {
 
      _snapshotPollInterval = NumbersUtil.parseInt(_configDao.getValue("snapshot.poll.interval"), 300);
+        _jitterWindow = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotScheduleJitterWindow.key()), 0);
+        _maxConcurrentPerPrimary = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotMaxConcurrentPerPrimaryStorage.key()), 0);
+        _maxConcurrentPerSecondary = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotMaxConcurrentPerSecondaryStorage.key()), 0);
+        _staleJobThreshold = NumbersUtil.parseInt(_configDao.getValue(Config.JobCancelThresholdMinutes.key()), 60) * 60 * 1000L;
         boolean snapshotsRecurringTest = Boolean.parseBoolean(_configDao.getValue("snapshot.recurring.test"));
         if (snapshotsRecurringTest) {
             // look for some test values in the configuration table so that snapshots can be taken more frequently (QA test code)
@@ -385,6 +652,12 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
             _testClockTimer.schedule(timerTask, _snapshotPollInterval*1000L, _snapshotPollInterval*1000L);
         }
 
+        try {
+            JmxUtil.registerMBean("SnapshotScheduler", "SnapshotScheduler", new SnapshotSchedulerMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the snapshot scheduler MBean", e);
+        }
+
         return true;
     }
 
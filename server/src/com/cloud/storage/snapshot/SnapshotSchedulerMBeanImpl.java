@@ -0,0 +1,71 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+import com.cloud.storage.snapshot.SnapshotSchedulerImpl.AdmissionStats;
+
+public class SnapshotSchedulerMBeanImpl extends StandardMBean implements SnapshotSchedulerMBean {
+    private final SnapshotSchedulerImpl _scheduler;
+
+    protected SnapshotSchedulerMBeanImpl(SnapshotSchedulerImpl scheduler) {
+        super(SnapshotSchedulerMBean.class, false);
+        _scheduler = scheduler;
+    }
+
+    @Override
+    public int getQueuedCount() {
+        return _scheduler.getQueuedCount();
+    }
+
+    @Override
+    public int getRunningCount() {
+        return _scheduler.getRunningCount();
+    }
+
+    @Override
+    public int getDeferredCount() {
+        return _scheduler.getDeferredCount();
+    }
+
+    @Override
+    public int getAdmittedCount() {
+        return _scheduler.getAdmittedCount();
+    }
+
+    @Override
+    public Map<String, String> getPrimaryStorageAdmission() {
+        return toStrings("pool-", _scheduler.getPrimaryStorageAdmission());
+    }
+
+    @Override
+    public Map<String, String> getSecondaryStorageAdmission() {
+        return toStrings("zone-", _scheduler.getSecondaryStorageAdmission());
+    }
+
+    private static Map<String, String> toStrings(String prefix, Map<Long, AdmissionStats> stats) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<Long, AdmissionStats> entry : stats.entrySet()) {
+            result.put(prefix + entry.getKey(), entry.getValue().toString());
+        }
+        return result;
+    }
+}
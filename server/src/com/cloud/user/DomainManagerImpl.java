@@ -114,17 +114,7 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
 
     @Override
     public Set<Long> getDomainChildrenIds(String parentDomainPath) {
-        Set<Long> childDomains = new HashSet<Long>();
-        SearchCriteria<DomainVO> sc = _domainDao.createSearchCriteria();
-        sc.addAnd("path", SearchCriteria.Op.LIKE, parentDomainPath + "%");
-
-        List<DomainVO> domains = _domainDao.search(sc, null);
-
-        for (DomainVO domain : domains) {
-            childDomains.add(domain.getId());
-        }
-
-        return childDomains;
+        return new HashSet<Long>(_domainDao.getDomainChildrenIds(parentDomainPath));
     }
 
     @Override
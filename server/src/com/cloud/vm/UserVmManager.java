@@ -69,6 +69,15 @@ public interface UserVmManager extends UserVmService {
      * @return GetVmStatsAnswer
      */
     HashMap<Long, VmStatsEntry> getVirtualMachineStatistics(long hostId, String hostName, List<Long> vmIds);
+
+    /**
+     * Same as above for callers that already have the VMs loaded
+     * @param host ID
+     * @param host name
+     * @param map of VM ID to instance name
+     * @return statistics by VM ID; null if the host could not be asked
+     */
+    HashMap<Long, VmStatsEntry> getVirtualMachineStatistics(long hostId, String hostName, Map<Long, String> vmInstanceNames);
     
     HashMap<Long, List<VmDiskStatsEntry>> getVmDiskStatistics(long hostId, String hostName, List<Long> vmIds);
     
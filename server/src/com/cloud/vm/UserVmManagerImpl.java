@@ -1334,17 +1334,28 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     @Override
     public HashMap<Long, VmStatsEntry> getVirtualMachineStatistics(long hostId,
             String hostName, List<Long> vmIds) throws CloudRuntimeException {
+        Map<Long, String> vmInstanceNames = new LinkedHashMap<Long, String>();
+        for (Long vmId : vmIds) {
+            UserVmVO vm = _vmDao.findById(vmId);
+            vmInstanceNames.put(vmId, vm.getInstanceName());
+        }
+
+        return getVirtualMachineStatistics(hostId, hostName, vmInstanceNames);
+    }
+
+    @Override
+    public HashMap<Long, VmStatsEntry> getVirtualMachineStatistics(long hostId,
+            String hostName, Map<Long, String> vmInstanceNames) throws CloudRuntimeException {
         HashMap<Long, VmStatsEntry> vmStatsById = new HashMap<Long, VmStatsEntry>();
 
-        if (vmIds.isEmpty()) {
+        if (vmInstanceNames.isEmpty()) {
             return vmStatsById;
         }
 
-        List<String> vmNames = new ArrayList<String>();
-
-        for (Long vmId : vmIds) {
-            UserVmVO vm = _vmDao.findById(vmId);
-            vmNames.add(vm.getInstanceName());
+        List<String> vmNames = new ArrayList<String>(vmInstanceNames.values());
+        Map<String, Long> vmIdsByName = new HashMap<String, Long>();
+        for (Map.Entry<Long, String> entry : vmInstanceNames.entrySet()) {
+            vmIdsByName.put(entry.getValue(), entry.getKey());
         }
 
         Answer answer = _agentMgr.easySend(hostId, new GetVmStatsCommand(
@@ -1362,7 +1373,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
             }
 
             for (String vmName : vmStatsByName.keySet()) {
-                vmStatsById.put(vmIds.get(vmNames.indexOf(vmName)),
+                vmStatsById.put(vmIdsByName.get(vmName),
                         vmStatsByName.get(vmName));
             }
         }
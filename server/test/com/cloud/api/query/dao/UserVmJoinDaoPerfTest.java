@@ -0,0 +1,175 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query.dao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.query.vo.UserVmJoinVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Attribute;
+
+/**
+ * Compares mapping user_vm_view rows through the per-statement row mapper
+ * with the old per-row ResultSetMetaData lookups.  The row count is kept
+ * small so this runs as part of the regular build; raise
+ * -Ddao.perf.rows to get stable numbers.
+ */
+public class UserVmJoinDaoPerfTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(UserVmJoinDaoPerfTest.class);
+
+    private static final int ROWS = Integer.getInteger("dao.perf.rows", 2000);
+
+    public void testRowMapper() throws Exception {
+        TestDao dao = new TestDao();
+        List<Attribute> columns = dao.getColumns();
+
+        // Warm up before measuring.
+        dao.readWithRowMapper(newResultSet(columns, ROWS));
+        dao.readWithMetaData(newResultSet(columns, ROWS));
+
+        long start = System.nanoTime();
+        List<UserVmJoinVO> mapped = dao.readWithRowMapper(newResultSet(columns, ROWS));
+        long rowMapper = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<UserVmJoinVO> legacy = dao.readWithMetaData(newResultSet(columns, ROWS));
+        long metaData = System.nanoTime() - start;
+
+        s_logger.info("UserVmJoinVO: row mapper " + rowMapper / ROWS + " ns/row, metadata lookups " + metaData / ROWS + " ns/row over " + columns.size() + " columns");
+
+        assertEquals(ROWS, mapped.size());
+        assertEquals(ROWS, legacy.size());
+        for (Attribute attr : columns) {
+            Field field = attr.getField();
+            assertEquals(field.getName(), field.get(legacy.get(ROWS - 1)), field.get(mapped.get(ROWS - 1)));
+        }
+    }
+
+    protected static class TestDao extends UserVmJoinDaoImpl {
+        public List<Attribute> getColumns() {
+            List<Attribute> columns = new ArrayList<Attribute>();
+            for (Map.Entry<Pair<String, String>, Attribute> entry : _allColumns.entrySet()) {
+                if (entry.getKey().first().equals(_table)) {
+                    columns.add(entry.getValue());
+                }
+            }
+            return columns;
+        }
+
+        public List<UserVmJoinVO> readWithRowMapper(ResultSet rs) throws SQLException {
+            List<UserVmJoinVO> result = new ArrayList<UserVmJoinVO>();
+            getRowMapper("SELECT * FROM user_vm_view", rs);
+            while (rs.next()) {
+                result.add(toEntityBean(rs, false));
+            }
+            return result;
+        }
+
+        public List<UserVmJoinVO> readWithMetaData(ResultSet rs) throws SQLException {
+            List<UserVmJoinVO> result = new ArrayList<UserVmJoinVO>();
+            while (rs.next()) {
+                UserVmJoinVO vo = createForUpdate();
+                ResultSetMetaData meta = rs.getMetaData();
+                for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
+                    setField(vo, rs, meta, index);
+                }
+                result.add(vo);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * An in-memory result set that returns the same row over and over with
+     * a value of the right type for every column of the view.
+     */
+    protected static ResultSet newResultSet(final List<Attribute> columns, final int rows) {
+        final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getColumnCount")) {
+                            return columns.size();
+                        }
+                        Attribute attr = columns.get((Integer)args[0] - 1);
+                        if (name.equals("getTableName")) {
+                            return "user_vm_view";
+                        } else if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+                            return attr.getColumnName();
+                        }
+                        return "cloud";
+                    }
+                });
+
+        return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+            int _row = 0;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("next")) {
+                    return _row++ < rows;
+                } else if (name.equals("getMetaData")) {
+                    return meta;
+                }
+                Class<?> type = columns.get((Integer)args[0] - 1).getField().getType();
+                if (name.equals("getBytes")) {
+                    return (type.getSimpleName() + _row).getBytes("UTF-8");
+                } else if (name.equals("getString")) {
+                    if (type.isEnum()) {
+                        return ((Enum<?>)type.getEnumConstants()[_row % type.getEnumConstants().length]).name().toLowerCase();
+                    } else if (type == Date.class) {
+                        return "2013-06-01 10:00:00";
+                    }
+                    return "10.1.1." + (_row % 250);
+                } else if (name.equals("getObject") || name.equals("getDate")) {
+                    return new java.sql.Date(0);
+                } else if (name.equals("getLong")) {
+                    return (long)_row;
+                } else if (name.equals("getInt")) {
+                    return _row;
+                } else if (name.equals("getShort")) {
+                    return (short)_row;
+                } else if (name.equals("getByte")) {
+                    return (byte)_row;
+                } else if (name.equals("getFloat")) {
+                    return (float)_row;
+                } else if (name.equals("getDouble")) {
+                    return (double)_row;
+                } else if (name.equals("getBoolean")) {
+                    return _row % 2 == 0;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
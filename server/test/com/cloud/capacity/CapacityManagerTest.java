@@ -19,11 +19,20 @@ package com.cloud.capacity;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.host.HostVO;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.vm.UserVmDetailVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.dao.UserVmDetailsDao;
+import com.cloud.vm.dao.VMInstanceDao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import org.apache.log4j.Logger;
 import org.junit.*;
 import org.junit.Test;
@@ -75,4 +84,69 @@ public class CapacityManagerTest {
         Assert.assertTrue(hasCapacity);
 
     }
+
+    @Test
+    public void updateCapacityForHostsTest() {
+        capMgr = setUp();
+        VMInstanceDao vmDao = mock(VMInstanceDao.class);
+        UserVmDetailsDao vmDetailsDao = mock(UserVmDetailsDao.class);
+        ClusterDao clusterDao = mock(ClusterDao.class);
+        capMgr._vmDao = vmDao;
+        capMgr._userVmDetailsDao = vmDetailsDao;
+        capMgr._clusterDao = clusterDao;
+
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long hostId = 1; hostId <= 2; hostId++) {
+            HostVO host = mock(HostVO.class);
+            when(host.getId()).thenReturn(hostId);
+            when(host.getClusterId()).thenReturn(10l);
+            hosts.add(host);
+        }
+        ClusterVO cluster = mock(ClusterVO.class);
+        when(cluster.getId()).thenReturn(10l);
+        when(clusterDao.findById(10l)).thenReturn(cluster);
+        when(ClusterDetailsDao.findDetail(10l, "cpuOvercommitRatio")).thenReturn(cluster_detail_cpu);
+        when(ClusterDetailsDao.findDetail(10l, "memoryOvercommitRatio")).thenReturn(cluster_detail_ram);
+        when(cluster_detail_cpu.getValue()).thenReturn("1");
+        when(cluster_detail_ram.getValue()).thenReturn("1");
+
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        for (long vmId = 1; vmId <= 4; vmId++) {
+            VMInstanceVO vmInstance = mock(VMInstanceVO.class);
+            when(vmInstance.getId()).thenReturn(vmId);
+            when(vmInstance.getHostId()).thenReturn(vmId % 2 + 1);
+            when(vmInstance.getServiceOfferingId()).thenReturn(2l);
+            vms.add(vmInstance);
+        }
+        when(vmDao.listUpByHostIds(anyListOf(Long.class))).thenReturn(vms);
+        when(vmDao.listByLastHostIds(anyListOf(Long.class))).thenReturn(new ArrayList<VMInstanceVO>());
+        when(vmDetailsDao.findDetails(anyListOf(Long.class), anyString())).thenReturn(new HashMap<Long, String>());
+        when(SOfferingDao.findByIdIncludingRemoved(2l)).thenReturn(svo);
+        when(svo.getCpu()).thenReturn(1);
+        when(svo.getSpeed()).thenReturn(500);
+        when(svo.getRamSize()).thenReturn(512);
+
+        // host 1 is in sync, host 2 missed a vm start
+        CapacityVO[] cpuCaps = new CapacityVO[] { new CapacityVO(1l, 1l, 1l, 10l, 1000l, 4000l, Capacity.CAPACITY_TYPE_CPU),
+                new CapacityVO(2l, 1l, 1l, 10l, 500l, 4000l, Capacity.CAPACITY_TYPE_CPU) };
+        CapacityVO[] memCaps = new CapacityVO[] { new CapacityVO(1l, 1l, 1l, 10l, 1024l * 1024 * 1024, 4096l * 1024 * 1024, Capacity.CAPACITY_TYPE_MEMORY),
+                new CapacityVO(2l, 1l, 1l, 10l, 1024l * 1024 * 1024, 4096l * 1024 * 1024, Capacity.CAPACITY_TYPE_MEMORY) };
+        for (int i = 0; i < 2; i++) {
+            when(CDao.findByHostIdType(i + 1l, Capacity.CAPACITY_TYPE_CPU)).thenReturn(cpuCaps[i]);
+            when(CDao.findByHostIdType(i + 1l, Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(memCaps[i]);
+        }
+
+        capMgr.updateCapacityForHosts(hosts);
+        capMgr.updateCapacityForHosts(hosts);
+
+        Assert.assertEquals(1000l, cpuCaps[1].getUsedCapacity());
+        // the vms of all the hosts are loaded at once, the offering only once
+        verify(vmDao, times(2)).listUpByHostIds(anyListOf(Long.class));
+        verify(vmDao, never()).listUpByHostId(anyLong());
+        verify(vmDetailsDao, never()).findDetail(anyLong(), anyString());
+        verify(SOfferingDao, times(1)).findByIdIncludingRemoved(2l);
+        verify(SOfferingDao, never()).listAllIncludingRemoved();
+        // only the drifted capacity is written
+        verify(CDao, times(1)).update(anyLong(), any(CapacityVO.class));
+    }
 }
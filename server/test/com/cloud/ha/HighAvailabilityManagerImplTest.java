@@ -0,0 +1,135 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.TestCase;
+
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.ha.dao.HighAvailabilityDao;
+
+public class HighAvailabilityManagerImplTest extends TestCase {
+    HighAvailabilityManagerImpl _haMgr;
+    HighAvailabilityDao _haDao;
+    ExecutorService _workExecutor;
+
+    @Override
+    protected void setUp() {
+        _haDao = mock(HighAvailabilityDao.class);
+        _workExecutor = mock(ExecutorService.class);
+
+        _haMgr = new HighAvailabilityManagerImpl();
+        _haMgr._haDao = _haDao;
+        _haMgr._workExecutor = _workExecutor;
+        _haMgr._serverId = 200;
+        _haMgr._workerCount = 2;
+        _haMgr._claimBatchSize = 10;
+        _haMgr._timeToSleep = 60000;
+        _haMgr._stealAfter = 120;
+        _haMgr._shardByHost = false;
+    }
+
+    protected HaWorkVO work(long id, long instanceId, long hostId) {
+        HaWorkVO work = mock(HaWorkVO.class);
+        when(work.getId()).thenReturn(id);
+        when(work.getInstanceId()).thenReturn(instanceId);
+        when(work.getHostId()).thenReturn(hostId);
+        when(work.getWorkType()).thenReturn(WorkType.HA);
+        when(work.getTimeToTry()).thenReturn(System.currentTimeMillis() >> 10);
+        when(work.getCreated()).thenReturn(new Date(System.currentTimeMillis() - 1000));
+        return work;
+    }
+
+    public void testDispatchClaimsOnlyAsManyAsThereAreIdleWorkers() {
+        List<HaWorkVO> works = Arrays.asList(work(1, 11, 1), work(2, 12, 1), work(3, 13, 1));
+        when(_haDao.listTakeable(anyLong(), anyInt())).thenReturn(works);
+        when(_haDao.take(anyLong(), eq(200L))).thenReturn(true);
+
+        assertEquals(2, _haMgr.dispatch());
+        assertEquals(2, _haMgr.getInFlightCount());
+        verify(_workExecutor, times(2)).execute(any(Runnable.class));
+
+        // Both workers are busy now.
+        assertEquals(0, _haMgr.dispatch());
+    }
+
+    public void testDispatchSkipsBusyVmsAndWorkTakenElsewhere() {
+        _haMgr._inFlight.put(11L, 100L);
+        List<HaWorkVO> works = Arrays.asList(work(1, 11, 1), work(2, 12, 1), work(3, 13, 1));
+        when(_haDao.listTakeable(anyLong(), anyInt())).thenReturn(works);
+        when(_haDao.take(2L, 200L)).thenReturn(false);
+        when(_haDao.take(3L, 200L)).thenReturn(true);
+
+        assertEquals(1, _haMgr.dispatch());
+        verify(_haDao, times(0)).take(1L, 200L);
+        assertEquals(Long.valueOf(3), _haMgr._inFlight.get(13L));
+    }
+
+    public void testWorkIsShardedByHost() {
+        _haMgr._shardByHost = true;
+        long[] owners = new long[] {100, 200};
+        long now = System.currentTimeMillis() >> 10;
+
+        assertTrue(_haMgr.isOwner(work(1, 11, 1), owners, now));
+        assertFalse(_haMgr.isOwner(work(2, 12, 2), owners, now));
+
+        // Overdue work is taken by whoever gets to it.
+        HaWorkVO overdue = work(3, 13, 2);
+        when(overdue.getTimeToTry()).thenReturn(now - 1000);
+        assertTrue(_haMgr.isOwner(overdue, owners, now));
+
+        // A server that doesn't know itself as being up takes everything.
+        assertTrue(_haMgr.isOwner(work(2, 12, 2), new long[] {100, 300}, now));
+    }
+
+    public void testTimeToRecoverIsRecordedWhenTheLastWorkForAHostFinishes() {
+        HaWorkVO first = work(1, 11, 5);
+        HaWorkVO second = work(2, 12, 5);
+        _haMgr.trackClaimed(first);
+        _haMgr.trackClaimed(second);
+        assertEquals(1, _haMgr.getRecoveringHostCount());
+
+        _haMgr.trackFinished(first);
+        assertEquals(0, _haMgr.getHostsRecovered());
+
+        when(_haDao.hasPendingHaWorkForHost(5)).thenReturn(true);
+        _haMgr.trackFinished(second);
+        assertEquals(0, _haMgr.getHostsRecovered());
+
+        // The rescheduled work comes back and finishes.
+        when(_haDao.hasPendingHaWorkForHost(5)).thenReturn(false);
+        _haMgr.trackClaimed(second);
+        _haMgr.trackFinished(second);
+        assertEquals(1, _haMgr.getHostsRecovered());
+        assertEquals(0, _haMgr.getRecoveringHostCount());
+        assertTrue(_haMgr.getLastTimeToRecover() >= 1000);
+        assertEquals(_haMgr.getLastTimeToRecover(), _haMgr.getAverageTimeToRecover());
+    }
+}
@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.cloud.utils.net.NetUtils;
+
+public class GuestIpBitmapTest {
+
+    @Test
+    public void testRange() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/24");
+        Assert.assertEquals(254, bitmap.getSize());
+        Assert.assertTrue(bitmap.contains(NetUtils.ip2Long("10.1.1.1")));
+        Assert.assertTrue(bitmap.contains(NetUtils.ip2Long("10.1.1.254")));
+        Assert.assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.0")));
+        Assert.assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.255")));
+
+        Assert.assertEquals(65534, new GuestIpBitmap("10.1.0.0/16").getSize());
+        Assert.assertEquals(0, new GuestIpBitmap("10.1.1.1/32").getSize());
+    }
+
+    @Test
+    public void testMarkUsedAndFree() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/24");
+        long ip = NetUtils.ip2Long("10.1.1.10");
+        Assert.assertTrue(bitmap.markUsed(ip));
+        Assert.assertFalse(bitmap.markUsed(ip));
+        Assert.assertFalse(bitmap.markUsed(NetUtils.ip2Long("10.1.2.10")));
+        Assert.assertTrue(bitmap.isUsed(ip));
+        Assert.assertEquals(253, bitmap.getFreeCount());
+
+        bitmap.markFree(ip);
+        bitmap.markFree(ip);
+        Assert.assertFalse(bitmap.isUsed(ip));
+        Assert.assertEquals(254, bitmap.getFreeCount());
+    }
+
+    @Test
+    public void testAllocateRandomUntilFull() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/24");
+        Random rand = new Random(1);
+        Set<Long> allocated = new HashSet<Long>();
+        long ip;
+        while ((ip = bitmap.allocateRandom(rand)) >= 0) {
+            Assert.assertTrue(allocated.add(ip));
+            Assert.assertFalse("addresses ending with .1 are not picked", NetUtils.long2Ip(ip).endsWith(".1"));
+        }
+        // everything but 10.1.1.1
+        Assert.assertEquals(253, allocated.size());
+        Assert.assertEquals(1, bitmap.getFreeCount());
+    }
+
+    @Test
+    public void testListFree() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/29");
+        bitmap.markUsed(NetUtils.ip2Long("10.1.1.2"));
+        long[] free = bitmap.listFree(255);
+        Assert.assertEquals(5, free.length);
+        Assert.assertEquals(NetUtils.ip2Long("10.1.1.1"), free[0]);
+        Assert.assertEquals(NetUtils.ip2Long("10.1.1.3"), free[1]);
+        Assert.assertEquals(2, bitmap.listFree(2).length);
+    }
+
+    @Test
+    public void testReload() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.1.1.0/29");
+        long inDb = NetUtils.ip2Long("10.1.1.2");
+        long released = NetUtils.ip2Long("10.1.1.3");
+        long reserved = NetUtils.ip2Long("10.1.1.4");
+        bitmap.markUsed(released);
+        Assert.assertTrue(bitmap.reserve(reserved));
+        Assert.assertFalse(bitmap.reserve(reserved));
+
+        List<Long> usedIps = new ArrayList<Long>();
+        usedIps.add(inDb);
+        // the reservation is recent, its nic may not be committed yet
+        bitmap.reload(usedIps, 0);
+        Assert.assertTrue(bitmap.isUsed(inDb));
+        Assert.assertFalse(bitmap.isUsed(released));
+        Assert.assertTrue(bitmap.isUsed(reserved));
+        Assert.assertEquals(4, bitmap.getFreeCount());
+
+        // the reservation is old, its allocation was rolled back
+        bitmap.reload(usedIps, Long.MAX_VALUE);
+        Assert.assertFalse(bitmap.isUsed(reserved));
+        Assert.assertEquals(5, bitmap.getFreeCount());
+
+        long picked = bitmap.allocateRandom(new Random(1));
+        bitmap.reload(usedIps, 0);
+        Assert.assertTrue(bitmap.isUsed(picked));
+        bitmap.markFree(picked);
+        bitmap.reload(usedIps, 0);
+        Assert.assertFalse("released addresses are not reservations any more", bitmap.isUsed(picked));
+    }
+
+    @Test
+    public void testAllocateOnLargeNetwork() {
+        GuestIpBitmap bitmap = new GuestIpBitmap("10.0.0.0/8");
+        Random rand = new Random(1);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertTrue(bitmap.allocateRandom(rand) >= 0);
+        }
+        Assert.assertEquals(bitmap.getSize() - 100000, bitmap.getFreeCount());
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+}
@@ -762,6 +762,23 @@ public class MockNetworkModelImpl extends ManagerBase implements NetworkModel {
         return null;
     }
 
+    /* (non-Javadoc)
+     * @see com.cloud.network.NetworkModel#pickFreeGuestIp(com.cloud.network.Network, java.lang.String)
+     */
+    @Override
+    public String pickFreeGuestIp(Network network, String requestedIp) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.cloud.network.NetworkModel#releaseGuestIp(long, java.lang.String)
+     */
+    @Override
+    public void releaseGuestIp(long networkId, String ip) {
+        // TODO Auto-generated method stub
+    }
+
     /* (non-Javadoc)
      * @see com.cloud.network.NetworkModel#getDomainNetworkDomain(long, long)
      */
@@ -20,18 +20,25 @@ package com.cloud.network;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import junit.framework.Assert;
 
 import org.junit.Before;
+import org.apache.cloudstack.lb.dao.ApplicationLoadBalancerRuleDao;
 import org.junit.Test;
 
 import com.cloud.dc.VlanVO;
 import com.cloud.dc.dao.VlanDao;
+import com.cloud.network.Network.GuestType;
+import com.cloud.network.Networks.TrafficType;
 import com.cloud.network.dao.IPAddressDao;
 import com.cloud.network.dao.IPAddressVO;
 import com.cloud.user.Account;
@@ -39,6 +46,9 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.net.Ip;
+import com.cloud.vm.NicVO;
+import com.cloud.vm.dao.NicDao;
+import com.cloud.vm.dao.NicSecondaryIpDao;
 
 public class NetworkModelTest {
     @Before
@@ -86,4 +96,83 @@ public class NetworkModelTest {
 
     }
 
+
+    @Test
+    public void testPickFreeGuestIp() {
+        NetworkModelImpl modelImpl = new NetworkModelImpl();
+        NicDao nicDao = mock(NicDao.class);
+        NicSecondaryIpDao nicSecondaryIpDao = mock(NicSecondaryIpDao.class);
+        ApplicationLoadBalancerRuleDao appLbRuleDao = mock(ApplicationLoadBalancerRuleDao.class);
+        modelImpl._nicDao = nicDao;
+        modelImpl._nicSecondaryIpDao = nicSecondaryIpDao;
+        modelImpl._appLbRuleDao = appLbRuleDao;
+
+        Network network = mock(Network.class);
+        when(network.getId()).thenReturn(1L);
+        when(network.getCidr()).thenReturn("10.1.1.0/29");
+        when(network.getGateway()).thenReturn("10.1.1.1");
+        List<String> usedIps = new ArrayList<String>();
+        usedIps.add("10.1.1.2");
+        when(nicDao.listIpAddressInNetwork(1L)).thenReturn(usedIps);
+        when(nicSecondaryIpDao.listSecondaryIpAddressInNetwork(1L)).thenReturn(new ArrayList<String>());
+        when(appLbRuleDao.listLbIpsBySourceIpNetworkId(1L)).thenReturn(new ArrayList<String>());
+        // handed out by another management server after the bitmap is built
+        when(nicDao.findByIp4AddressAndNetworkId("10.1.1.3", 1L)).thenReturn(mock(NicVO.class));
+
+        Assert.assertNull(modelImpl.pickFreeGuestIp(network, "10.1.1.3"));
+        Assert.assertNull(modelImpl.pickFreeGuestIp(network, "10.1.2.4"));
+        Assert.assertEquals("10.1.1.4", modelImpl.pickFreeGuestIp(network, "10.1.1.4"));
+
+        Set<String> picked = new HashSet<String>();
+        for (int i = 0; i < 2; i++) {
+            picked.add(modelImpl.pickFreeGuestIp(network, null));
+        }
+        Assert.assertTrue(picked.contains("10.1.1.5"));
+        Assert.assertTrue(picked.contains("10.1.1.6"));
+        Assert.assertNull(modelImpl.pickFreeGuestIp(network, null));
+
+        modelImpl.releaseGuestIp(1L, "10.1.1.5");
+        Assert.assertEquals("10.1.1.5", modelImpl.pickFreeGuestIp(network, null));
+        // the used ips are loaded once, and reloaded once when the bitmap runs out
+        verify(nicDao, times(2)).listIpAddressInNetwork(1L);
+    }
+
+    @Test
+    public void testGuestIpReleasedElsewhere() {
+        NetworkModelImpl modelImpl = new NetworkModelImpl();
+        NicDao nicDao = mock(NicDao.class);
+        NicSecondaryIpDao nicSecondaryIpDao = mock(NicSecondaryIpDao.class);
+        ApplicationLoadBalancerRuleDao appLbRuleDao = mock(ApplicationLoadBalancerRuleDao.class);
+        modelImpl._nicDao = nicDao;
+        modelImpl._nicSecondaryIpDao = nicSecondaryIpDao;
+        modelImpl._appLbRuleDao = appLbRuleDao;
+
+        Network network = mock(Network.class);
+        when(network.getId()).thenReturn(1L);
+        when(network.getTrafficType()).thenReturn(TrafficType.Guest);
+        when(network.getGuestType()).thenReturn(GuestType.Isolated);
+        when(network.getCidr()).thenReturn("10.1.1.0/29");
+        when(network.getGateway()).thenReturn("10.1.1.1");
+        List<String> allUsed = new ArrayList<String>();
+        for (int i = 2; i <= 6; i++) {
+            allUsed.add("10.1.1." + i);
+        }
+        List<String> oneReleased = new ArrayList<String>(allUsed);
+        oneReleased.remove("10.1.1.4");
+        List<String> anotherReleased = new ArrayList<String>(allUsed);
+        anotherReleased.remove("10.1.1.5");
+        when(nicDao.listIpAddressInNetwork(1L)).thenReturn(allUsed, oneReleased, oneReleased, allUsed, anotherReleased);
+        when(nicSecondaryIpDao.listSecondaryIpAddressInNetwork(1L)).thenReturn(new ArrayList<String>());
+        when(appLbRuleDao.listLbIpsBySourceIpNetworkId(1L)).thenReturn(new ArrayList<String>());
+
+        // 10.1.1.4 was released on another management server after the bitmap was loaded
+        Assert.assertEquals("10.1.1.4", modelImpl.pickFreeGuestIp(network, null));
+        // and the pick is not lost when the bitmap is reloaded before its nic is committed
+        Assert.assertNull(modelImpl.pickFreeGuestIp(network, null));
+        Assert.assertNull(modelImpl.pickFreeGuestIp(network, null));
+
+        // 10.1.1.5 was released on another management server
+        Assert.assertTrue(modelImpl.canUseForDeploy(network));
+        verify(nicDao, times(5)).listIpAddressInNetwork(1L);
+    }
 }
@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.server.StatsCollector.TimedTask;
+import com.cloud.server.StatsCollector.VmStatsAccumulator;
+
+public class StatsCollectorTest {
+
+    @Test
+    public void testVmStatsAccumulatorConcurrentMerge() throws Exception {
+        final VmStatsAccumulator stats = new VmStatsAccumulator();
+        final int threads = 8;
+        final int merges = 1000;
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < threads; i++) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    go.await();
+                    for (int j = 0; j < merges; j++) {
+                        stats.add(new VmStatsEntry(50.0, 1.0, 2.0, 3.0, 4.0, 2, "vm"));
+                    }
+                    return null;
+                }
+            });
+        }
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (Callable<Object> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        go.countDown();
+        for (Future<Object> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(50.0, stats.getCPUUtilization(), 0);
+        assertEquals(2, stats.getNumCPUs());
+        assertEquals(threads * merges * 1.0, stats.getNetworkReadKBs(), 0);
+        assertEquals(threads * merges * 2.0, stats.getNetworkWriteKBs(), 0);
+        assertEquals(threads * merges * 3.0, stats.getDiskReadKBs(), 0);
+        assertEquals(threads * merges * 4.0, stats.getDiskWriteKBs(), 0);
+    }
+
+    @Test
+    public void testTimedTaskDeadline() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        final CountDownLatch hang = new CountDownLatch(1);
+        TimedTask<String> slow = new TimedTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                hang.await();
+                return "slow";
+            }
+        });
+        TimedTask<String> fast = new TimedTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return "fast";
+            }
+        });
+        executor.execute(slow);
+        executor.execute(fast);
+
+        long start = System.currentTimeMillis();
+        try {
+            slow.await(200, start + 1000);
+            fail("The hung task should have timed out");
+        } catch (TimeoutException e) {
+            slow.cancel(true);
+        }
+
+        // The fast task was queued behind the hung one and only starts once
+        // that one is interrupted.
+        assertEquals("fast", fast.await(200, start + 1000));
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,212 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.async.AsyncJobVO;
+import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.storage.SnapshotScheduleVO;
+import com.cloud.storage.VolumeVO;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+public class SnapshotSchedulerImplTest {
+    SnapshotSchedulerImpl _scheduler;
+    ConfigurationDao _configDao;
+    AsyncJobDao _asyncJobDao;
+    Map<Long, VolumeVO> _volumes = new HashMap<Long, VolumeVO>();
+
+    @Before
+    public void setUp() {
+        _configDao = mock(ConfigurationDao.class);
+        _scheduler = new SnapshotSchedulerImpl();
+        _scheduler._configDao = _configDao;
+        _asyncJobDao = mock(AsyncJobDao.class);
+        _scheduler._asyncJobDao = _asyncJobDao;
+    }
+
+    private void configure(String jitterWindow, String perPrimary, String perSecondary) throws Exception {
+        when(_configDao.getValue(Config.SnapshotScheduleJitterWindow.key())).thenReturn(jitterWindow);
+        when(_configDao.getValue(Config.SnapshotMaxConcurrentPerPrimaryStorage.key())).thenReturn(perPrimary);
+        when(_configDao.getValue(Config.SnapshotMaxConcurrentPerSecondaryStorage.key())).thenReturn(perSecondary);
+        when(_configDao.getValue(Config.JobCancelThresholdMinutes.key())).thenReturn("60");
+        _scheduler.configure("SnapshotScheduler", new HashMap<String, Object>());
+    }
+
+    private SnapshotScheduleVO schedule(long id, long volumeId, long poolId, long zoneId, Date due) {
+        VolumeVO volume = mock(VolumeVO.class);
+        when(volume.getId()).thenReturn(volumeId);
+        when(volume.getPoolId()).thenReturn(poolId);
+        when(volume.getDataCenterId()).thenReturn(zoneId);
+        _volumes.put(volumeId, volume);
+
+        SnapshotScheduleVO schedule = mock(SnapshotScheduleVO.class);
+        when(schedule.getId()).thenReturn(id);
+        when(schedule.getVolumeId()).thenReturn(volumeId);
+        when(schedule.getScheduledTimestamp()).thenReturn(due);
+        return schedule;
+    }
+
+    private AsyncJobVO job(long id, Date lastUpdated) {
+        AsyncJobVO job = mock(AsyncJobVO.class);
+        when(job.getId()).thenReturn(id);
+        when(job.getLastUpdated()).thenReturn(lastUpdated);
+        return job;
+    }
+
+    @Test
+    public void testJitterOffsetIsDeterministicAndInsideWindow() throws Exception {
+        configure("600", "0", "0");
+        int[] buckets = new int[6];
+        for (long volumeId = 1; volumeId <= 6000; volumeId++) {
+            long offset = _scheduler.getJitterOffset(volumeId);
+            assertTrue(offset >= 0 && offset < 600);
+            assertEquals(offset, _scheduler.getJitterOffset(volumeId));
+            buckets[(int)(offset / 100)]++;
+        }
+        // Consecutive volume ids should spread over the whole window.
+        for (int bucket : buckets) {
+            assertTrue(bucket > 800 && bucket < 1200);
+        }
+    }
+
+    @Test
+    public void testNoJitterAdmitsEverything() throws Exception {
+        configure("0", "0", "0");
+        Date due = new Date(1000000L);
+        List<SnapshotScheduleVO> schedules = new ArrayList<SnapshotScheduleVO>();
+        for (long i = 1; i <= 20; i++) {
+            schedules.add(schedule(i, i, 1, 1, due));
+        }
+        List<SnapshotScheduleVO> admitted = _scheduler.admitSchedules(schedules, new ArrayList<SnapshotScheduleVO>(), _volumes, new Date(due.getTime() + 1));
+        assertEquals(20, admitted.size());
+        assertEquals(0, _scheduler.getDeferredCount());
+        assertEquals(20, _scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testJitterDefersUntilOffsetPasses() throws Exception {
+        configure("3600", "0", "0");
+        Date due = new Date(10000000L);
+        List<SnapshotScheduleVO> schedules = new ArrayList<SnapshotScheduleVO>();
+        for (long i = 1; i <= 100; i++) {
+            schedules.add(schedule(i, i, 1, 1, due));
+        }
+        Date now = new Date(due.getTime() + 1800 * 1000L);
+        int expected = 0;
+        for (long i = 1; i <= 100; i++) {
+            if (_scheduler.getJitterOffset(i) <= 1800) {
+                expected++;
+            }
+        }
+        List<SnapshotScheduleVO> admitted = _scheduler.admitSchedules(schedules, new ArrayList<SnapshotScheduleVO>(), _volumes, now);
+        assertEquals(expected, admitted.size());
+        assertEquals(100 - expected, _scheduler.getDeferredCount());
+        assertEquals(100 - expected, _scheduler.getPrimaryStorageAdmission().get(1L).getDeferred());
+
+        admitted = _scheduler.admitSchedules(schedules, new ArrayList<SnapshotScheduleVO>(), _volumes, new Date(due.getTime() + 3600 * 1000L));
+        assertEquals(100, admitted.size());
+    }
+
+    @Test
+    public void testConcurrencyCapsPerPrimaryAndSecondary() throws Exception {
+        configure("0", "2", "3");
+        Date due = new Date(1000000L);
+        List<SnapshotScheduleVO> running = new ArrayList<SnapshotScheduleVO>();
+        running.add(schedule(100, 100, 1, 1, due));
+
+        List<SnapshotScheduleVO> schedules = new ArrayList<SnapshotScheduleVO>();
+        for (long i = 1; i <= 4; i++) {
+            schedules.add(schedule(i, i, 1, 1, due));
+        }
+        for (long i = 5; i <= 8; i++) {
+            schedules.add(schedule(i, i, 2, 1, due));
+        }
+        for (long i = 9; i <= 10; i++) {
+            schedules.add(schedule(i, i, 3, 2, due));
+        }
+
+        List<SnapshotScheduleVO> admitted = _scheduler.admitSchedules(schedules, running, _volumes, new Date(due.getTime() + 1));
+        // Zone 1 allows 3 jobs and one is already running on pool 1, pool 1 takes 1 more and pool 2 gets the last slot.
+        // Zone 2 is independent and pool 3 takes its cap of 2.
+        assertEquals(4, admitted.size());
+        assertEquals(2, _scheduler.getPrimaryStorageAdmission().get(1L).getRunning());
+        assertEquals(3, _scheduler.getPrimaryStorageAdmission().get(1L).getQueued());
+        assertEquals(1, _scheduler.getPrimaryStorageAdmission().get(2L).getRunning());
+        assertEquals(3, _scheduler.getPrimaryStorageAdmission().get(2L).getQueued());
+        assertEquals(2, _scheduler.getPrimaryStorageAdmission().get(3L).getRunning());
+        assertEquals(3, _scheduler.getSecondaryStorageAdmission().get(1L).getRunning());
+        assertEquals(6, _scheduler.getSecondaryStorageAdmission().get(1L).getQueued());
+        assertEquals(6, _scheduler.getQueuedCount());
+        assertEquals(5, _scheduler.getRunningCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStaleAndFinishedJobsDoNotUseTheCap() throws Exception {
+        configure("0", "1", "0");
+        Date now = new Date(100000000L);
+        Date due = new Date(now.getTime() - 1000);
+
+        // Schedule 100's job was updated a minute ago, 101's job belongs to a management server
+        // that went away two hours ago and 102's job is no longer in progress.
+        List<SnapshotScheduleVO> withJob = new ArrayList<SnapshotScheduleVO>();
+        for (long i = 100; i <= 102; i++) {
+            SnapshotScheduleVO schedule = schedule(i, i, i - 99, 1, due);
+            when(schedule.getAsyncJobId()).thenReturn(i + 1000);
+            withJob.add(schedule);
+        }
+        List<AsyncJobVO> inProgress = Arrays.asList(job(1100, new Date(now.getTime() - 60 * 1000L)), job(1101, new Date(now.getTime() - 2 * 3600 * 1000L)));
+        SearchCriteria<AsyncJobVO> sc = mock(SearchCriteria.class);
+        when(_asyncJobDao.createSearchCriteria()).thenReturn(sc);
+        when(_asyncJobDao.search(any(SearchCriteria.class), (Filter)isNull())).thenReturn(inProgress);
+
+        List<SnapshotScheduleVO> running = _scheduler.listRunningSchedules(withJob, now);
+        assertEquals(1, running.size());
+        assertEquals(100L, running.get(0).getId());
+
+        // Pools 2 and 3 only have stale or finished jobs, so they still admit one each.
+        List<SnapshotScheduleVO> schedules = new ArrayList<SnapshotScheduleVO>();
+        schedules.add(schedule(1, 1, 1, 1, due));
+        schedules.add(schedule(2, 2, 2, 1, due));
+        schedules.add(schedule(3, 3, 3, 1, due));
+        List<SnapshotScheduleVO> admitted = _scheduler.admitSchedules(schedules, running, _volumes, now);
+        assertEquals(2, admitted.size());
+        assertEquals(1, _scheduler.getPrimaryStorageAdmission().get(1L).getRunning());
+        assertEquals(1, _scheduler.getPrimaryStorageAdmission().get(1L).getQueued());
+        assertEquals(1, _scheduler.getPrimaryStorageAdmission().get(2L).getRunning());
+        assertEquals(1, _scheduler.getPrimaryStorageAdmission().get(3L).getRunning());
+    }
+}
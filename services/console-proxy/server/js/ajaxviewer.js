@@ -907,29 +907,35 @@ AjaxViewer.prototype = {
 		this.eventQueue = aggratedQueue; 
 	},
 	
+	// serialize and clear the pending events
+	getEventBag: function() {
+		var sb = new StringBuilder();
+		sb.append(""+this.eventQueue.length).append("|");
+		$.each(this.eventQueue, function() {
+			var item = this;
+			if(item.type == AjaxViewer.EVENT_QUEUE_MOUSE_EVENT) {
+				sb.append(""+item.type).append("|");
+				sb.append(""+item.event).append("|");
+				sb.append(""+item.x).append("|");
+				sb.append(""+item.y).append("|");
+				sb.append(""+item.code).append("|");
+				sb.append(""+item.modifiers).append("|");
+			} else {
+				sb.append(""+item.type).append("|");
+				sb.append(""+item.event).append("|");
+				sb.append(""+item.code).append("|");
+				sb.append(""+item.modifiers).append("|");
+			}
+		});
+		this.eventQueue.length = 0;
+		return sb;
+	},
+	
 	checkEventQueue: function() {
 		var ajaxViewer = this;
 		
 		if(!this.sendingEventInProgress && this.eventQueue.length > 0) {
-			var sb = new StringBuilder();
-			sb.append(""+this.eventQueue.length).append("|");
-			$.each(this.eventQueue, function() {
-				var item = this;
-				if(item.type == AjaxViewer.EVENT_QUEUE_MOUSE_EVENT) {
-					sb.append(""+item.type).append("|");
-					sb.append(""+item.event).append("|");
-					sb.append(""+item.x).append("|");
-					sb.append(""+item.y).append("|");
-					sb.append(""+item.code).append("|");
-					sb.append(""+item.modifiers).append("|");
-				} else {
-					sb.append(""+item.type).append("|");
-					sb.append(""+item.event).append("|");
-					sb.append(""+item.code).append("|");
-					sb.append(""+item.modifiers).append("|");
-				}
-			});
-			this.eventQueue.length = 0;
+			var sb = this.getEventBag();
 			
 			var url = ajaxViewer.updateUrl + "&event=" + AjaxViewer.EVENT_BAG;
 			
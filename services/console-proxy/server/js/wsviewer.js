@@ -0,0 +1,175 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+ 
+  http://www.apache.org/licenses/LICENSE-2.0
+ 
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+*/
+
+//
+// WebSocket frame buffer streaming for AjaxViewer
+//
+// When the console proxy has a WebSocket port configured, screen updates are pushed over a
+// WebSocket and drawn onto a single canvas on top of the AJAX tiles, and input events are sent
+// back over the same connection. If the connection can not be made or is lost the viewer falls
+// back to AJAX polling. See TileDiffEncoder.java for the message layout.
+//
+AjaxViewer.STREAM_MSG_RESIZE = 1;
+AjaxViewer.STREAM_MSG_UPDATE = 2;
+
+AjaxViewer.STREAM_TILE_SOLID = 0;
+AjaxViewer.STREAM_TILE_PALETTE = 1;
+AjaxViewer.STREAM_TILE_RAW = 2;
+
+AjaxViewer.STREAM_CANVAS_ZINDEX = 2000000000;
+
+AjaxViewer.prototype.pollUpdate = AjaxViewer.prototype.checkUpdate;
+AjaxViewer.prototype.postEventQueue = AjaxViewer.prototype.checkEventQueue;
+
+AjaxViewer.prototype.checkUpdate = function() {
+	if(this.ws)
+		return;
+	this.pollUpdate();
+};
+
+AjaxViewer.prototype.checkEventQueue = function() {
+	if(!this.ws) {
+		this.postEventQueue();
+		return;
+	}
+	
+	if(this.eventQueue.length > 0)
+		this.ws.send(this.getEventBag().toString());
+};
+
+AjaxViewer.prototype.startWebSocket = function(port, token) {
+	if(!window.WebSocket || !window.Uint8Array || !document.createElement("canvas").getContext)
+		return;
+	
+	var ajaxViewer = this;
+	var scheme = window.location.protocol == "https:" ? "wss://" : "ws://";
+	var ws;
+	try {
+		ws = new WebSocket(scheme + window.location.hostname + ":" + port + "/console?token=" + token);
+	} catch(e) {
+		g_logger.log(Logger.LEVEL_WARN, "Unable to open WebSocket, keep polling: " + e);
+		return;
+	}
+	ws.binaryType = "arraybuffer";
+	
+	ws.onopen = function() {
+		g_logger.log(Logger.LEVEL_INFO, "WebSocket connected, switch to push updates");
+		ajaxViewer.ws = ws;
+	};
+	
+	ws.onmessage = function(e) {
+		ajaxViewer.onStreamMessage(new Uint8Array(e.data));
+	};
+	
+	ws.onclose = function() {
+		if(ajaxViewer.ws == ws) {
+			g_logger.log(Logger.LEVEL_WARN, "WebSocket closed, fall back to polling");
+			ajaxViewer.ws = null;
+			if(ajaxViewer.streamCanvas) {
+				ajaxViewer.streamCanvas.remove();
+				ajaxViewer.streamCanvas = null;
+			}
+			ajaxViewer.setDirty(true);
+		}
+	};
+};
+
+AjaxViewer.prototype.onStreamMessage = function(data) {
+	if(data[0] == AjaxViewer.STREAM_MSG_RESIZE) {
+		this.onStreamResize(
+			(data[1] << 8) | data[2], (data[3] << 8) | data[4],
+			(data[5] << 8) | data[6], (data[7] << 8) | data[8]);
+	} else if(data[0] == AjaxViewer.STREAM_MSG_UPDATE && this.streamCanvas) {
+		this.onStreamUpdate(data);
+	}
+};
+
+AjaxViewer.prototype.onStreamResize = function(width, height, tileWidth, tileHeight) {
+	var panelId = this.panel.parent().attr("id");
+	if(width != this.width || height != this.height)
+		this.resize(panelId, width, height, tileWidth, tileHeight);
+	
+	if(this.streamCanvas)
+		this.streamCanvas.remove();
+	
+	var offset = this.panel.offset();
+	this.streamCanvas = $("<canvas class=\"canvas_tile\" width=\"" + width + "\" height=\"" + height + "\" style=\"position:absolute;z-index:" 
+		+ AjaxViewer.STREAM_CANVAS_ZINDEX + ";left:" + offset.left + "px;top:" + offset.top + "px\"></canvas>").appendTo($(document.body));
+	this.streamContext = this.streamCanvas[0].getContext("2d");
+};
+
+AjaxViewer.prototype.onStreamUpdate = function(data) {
+	var ctx = this.streamContext;
+	var count = (data[1] << 8) | data[2];
+	var pos = 3;
+	var palette = [];
+	
+	for(var t = 0; t < count; t++) {
+		var x = (data[pos] << 8) | data[pos + 1];
+		var y = (data[pos + 2] << 8) | data[pos + 3];
+		var w = (data[pos + 4] << 8) | data[pos + 5];
+		var h = (data[pos + 6] << 8) | data[pos + 7];
+		var encoding = data[pos + 8];
+		pos += 9;
+		
+		var img = ctx.createImageData(w, h);
+		var pixels = img.data;
+		var size = w * h;
+		var i, p;
+		
+		if(encoding == AjaxViewer.STREAM_TILE_SOLID) {
+			var r = data[pos], g = data[pos + 1], b = data[pos + 2];
+			pos += 3;
+			for(i = 0, p = 0; i < size; i++, p += 4) {
+				pixels[p] = r;
+				pixels[p + 1] = g;
+				pixels[p + 2] = b;
+				pixels[p + 3] = 255;
+			}
+		} else if(encoding == AjaxViewer.STREAM_TILE_PALETTE) {
+			var colors = data[pos++] + 1;
+			for(i = 0; i < colors; i++, pos += 3)
+				palette[i] = pos;
+			
+			var bits = colors <= 2 ? 1 : (colors <= 4 ? 2 : (colors <= 16 ? 4 : 8));
+			var mask = (1 << bits) - 1;
+			var rowBytes = (w * bits + 7) >> 3;
+			p = 0;
+			for(var row = 0; row < h; row++, pos += rowBytes) {
+				for(var col = 0; col < w; col++, p += 4) {
+					var bitPos = col * bits;
+					var c = palette[(data[pos + (bitPos >> 3)] >> (8 - bits - (bitPos & 7))) & mask];
+					pixels[p] = data[c];
+					pixels[p + 1] = data[c + 1];
+					pixels[p + 2] = data[c + 2];
+					pixels[p + 3] = 255;
+				}
+			}
+		} else {
+			for(i = 0, p = 0; i < size; i++, p += 4, pos += 3) {
+				pixels[p] = data[pos];
+				pixels[p + 1] = data[pos + 1];
+				pixels[p + 2] = data[pos + 2];
+				pixels[p + 3] = 255;
+			}
+		}
+		
+		ctx.putImageData(img, x, y);
+	}
+};
@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
@@ -66,6 +67,8 @@ public class ConsoleProxy {
     static Hashtable<String, ConsoleProxyClient> connectionMap = new Hashtable<String, ConsoleProxyClient>();
     static int httpListenPort = 80;
     static int httpCmdListenPort = 8001;
+    static int webSocketListenPort = 0;
+    static int webSocketMaxFps = 20;
     static int reconnectMaxRetry = 5;
     static int readTimeoutSeconds = 90;
     static int keyboardType = KEYBOARD_RAW;
@@ -145,6 +148,18 @@ public class ConsoleProxy {
             s_logger.info("Setting httpCmdListenPort=" + s);
         }
         
+        s = conf.getProperty("consoleproxy.webSocketListenPort");
+        if (s!=null) {
+            webSocketListenPort = Integer.parseInt(s);
+            s_logger.info("Setting webSocketListenPort=" + s);
+        }
+        
+        s = conf.getProperty("consoleproxy.webSocketMaxFps");
+        if (s!=null) {
+            webSocketMaxFps = Integer.parseInt(s);
+            s_logger.info("Setting webSocketMaxFps=" + s);
+        }
+        
         s = conf.getProperty("consoleproxy.reconnectMaxRetry");
         if (s!=null) {
             reconnectMaxRetry = Integer.parseInt(s);
@@ -337,6 +352,12 @@ public class ConsoleProxy {
             s_logger.info("HTTP command port is disabled");
         }
         
+        if(webSocketListenPort > 0) {
+            startupWebSocket();
+        } else {
+            s_logger.info("WebSocket viewer port is disabled");
+        }
+        
         ConsoleProxyGCThread cthread = new ConsoleProxyGCThread(connectionMap);
         cthread.setName("Console Proxy GC Thread");
         cthread.start();
@@ -376,6 +397,22 @@ public class ConsoleProxy {
         }
     }
     
+    private static void startupWebSocket() {
+        try {
+            ConsoleProxyServerFactory factory = getHttpServerFactory();
+            ServerSocket serverSocket = null;
+            if(factory != null)
+                serverSocket = factory.createSSLServerSocket(webSocketListenPort);
+            if(serverSocket == null)
+                serverSocket = new ServerSocket(webSocketListenPort, 50);
+            
+            new ConsoleProxyWebSocketServer(serverSocket).start();
+        } catch(Exception e) {
+            // the AJAX viewer keeps working without it
+            s_logger.error("Unable to start WebSocket viewer port " + webSocketListenPort, e);
+        }
+    }
+    
     public static void main(String[] argv) {
         standaloneStart = true;
         configLog4j();
@@ -45,6 +45,11 @@ public interface ConsoleProxyClient {
     String onAjaxClientUpdate();
     String onAjaxClientKickoff();
 
+    //
+    // WebSocket viewer
+    //
+    ConsoleProxyFrameStream getFrameStream();
+
     //
     // Input handling
     //
@@ -45,6 +45,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     protected Object tileDirtyEvent = new Object();
     protected TileTracker tracker;
     protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
+    protected ConsoleProxyFrameStream frameStream = new ConsoleProxyFrameStream(this);
 
     protected ConsoleProxyClientParam clientParam;
     protected String clientToken;
@@ -81,6 +82,11 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     public AjaxFIFOImageCache getAjaxImageCache() {
         return ajaxImageCache;
     }
+
+    @Override
+    public ConsoleProxyFrameStream getFrameStream() {
+        return frameStream;
+    }
     
     public Image getClientScaledImage(int width, int height) {
         FrameBufferCanvas canvas = getFrameBufferCavas();
@@ -137,6 +143,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     @Override
     public void onFramebufferSizeChange(int w, int h) {
         tracker.resize(w, h);
+        frameStream.onFramebufferSizeChange(w, h);
 
         synchronized(this) {
             framebufferResized = true;
@@ -152,6 +159,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         if(s_logger.isTraceEnabled())
             s_logger.trace("Frame buffer update {" + x + "," + y + "," + w + "," + h + "}");
         tracker.invalidate(new Rectangle(x, y, w, h));
+        frameStream.onFramebufferUpdate(x, y, w, h);
         
         signalTileDirtyEvent();
     }
@@ -307,6 +315,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
             "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/ajaxkeys.js\"></script>",
             "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/ajaxviewer.js\"></script>",
             "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/handler.js\"></script>",
+            "<script type=\"text/javascript\" language=\"javascript\" src=\"/resource/js/wsviewer.js\"></script>",
             "<link rel=\"stylesheet\" type=\"text/css\" href=\"/resource/css/ajaxviewer.css\"></link>",
             "<link rel=\"stylesheet\" type=\"text/css\" href=\"/resource/css/logger.css\"></link>",
             "<title>" + title + "</title>",
@@ -347,6 +356,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 
             "$(function() {",
                 "ajaxViewer.start();",
+                ConsoleProxy.webSocketListenPort > 0 ? "ajaxViewer.startWebSocket(" + ConsoleProxy.webSocketListenPort + ", '" + clientToken + "');" : "",
             "});",
 
             "</script>",
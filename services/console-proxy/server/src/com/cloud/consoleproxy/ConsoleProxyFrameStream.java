@@ -0,0 +1,317 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileDiffEncoder;
+import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.util.TileTracker;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+/**
+ * ConsoleProxyFrameStream pushes frame buffer updates of one console session to all of its
+ * WebSocket viewers.
+ *
+ * Dirty tiles are tracked separately from the AJAX viewer, encoded once per update by a single
+ * pusher thread and the resulting bytes, deflated once as well, are handed to every viewer.
+ * Viewers that join, or that fall too far behind, are brought up to date with a key frame that
+ * is also shared until the screen changes again.
+ */
+public class ConsoleProxyFrameStream {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyFrameStream.class);
+
+    private static final int TILE_WIDTH = 64;
+    private static final int TILE_HEIGHT = 64;
+
+    /**
+     * An encoded message shared by all viewers.  Deflated bytes are present when at least one
+     * viewer negotiated permessage-deflate at the time the message was encoded.
+     */
+    public static class Frame {
+        private final byte[] raw;
+        private final byte[] deflated;
+
+        Frame(byte[] raw, byte[] deflated) {
+            this.raw = raw;
+            this.deflated = deflated;
+        }
+
+        public byte[] getRaw() {
+            return raw;
+        }
+
+        public byte[] getDeflated() {
+            return deflated;
+        }
+    }
+
+    private final ConsoleProxyClientBase client;
+    private final TileTracker tracker;
+    private final TileDiffEncoder encoder;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] deflateBuffer = new byte[64 * 1024];
+
+    private final Object lock = new Object();
+    private final List<ConsoleProxyWebSocketViewer> viewers = new ArrayList<ConsoleProxyWebSocketViewer>();
+    private final List<ConsoleProxyWebSocketViewer> pendingViewers = new ArrayList<ConsoleProxyWebSocketViewer>();
+    private Thread pusher;
+    private boolean dirty;
+    private boolean resized = true;
+
+    // Key frame cache, valid until the next update is encoded
+    private Frame resizeFrame;
+    private Frame keyFrame;
+    private boolean keyFrameDeflated;
+
+    private volatile long framesEncoded;
+    private volatile long bytesEncoded;
+
+    public ConsoleProxyFrameStream(ConsoleProxyClientBase client) {
+        this.client = client;
+        tracker = new TileTracker();
+        tracker.initTracking(TILE_WIDTH, TILE_HEIGHT, 800, 600);
+        encoder = new TileDiffEncoder(TILE_WIDTH, TILE_HEIGHT);
+    }
+
+    public int getViewerCount() {
+        synchronized (lock) {
+            return viewers.size() + pendingViewers.size();
+        }
+    }
+
+    public long getFramesEncoded() {
+        return framesEncoded;
+    }
+
+    public long getBytesEncoded() {
+        return bytesEncoded;
+    }
+
+    public void onFramebufferSizeChange(int w, int h) {
+        tracker.resize(w, h);
+        synchronized (lock) {
+            resized = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void onFramebufferUpdate(int x, int y, int w, int h) {
+        tracker.invalidate(new Rectangle(x, y, w, h));
+        synchronized (lock) {
+            dirty = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void subscribe(ConsoleProxyWebSocketViewer viewer) {
+        synchronized (lock) {
+            pendingViewers.add(viewer);
+            if (pusher == null) {
+                pusher = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        push();
+                    }
+                }, "Console Stream " + client.getClientId());
+                pusher.setDaemon(true);
+                pusher.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public void unsubscribe(ConsoleProxyWebSocketViewer viewer) {
+        synchronized (lock) {
+            viewers.remove(viewer);
+            pendingViewers.remove(viewer);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called when a viewer has dropped updates and needs a full frame to catch up.
+     */
+    public void requestKeyFrame(ConsoleProxyWebSocketViewer viewer) {
+        synchronized (lock) {
+            if (viewers.remove(viewer)) {
+                pendingViewers.add(viewer);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public void close() {
+        List<ConsoleProxyWebSocketViewer> toClose = new ArrayList<ConsoleProxyWebSocketViewer>();
+        synchronized (lock) {
+            toClose.addAll(viewers);
+            toClose.addAll(pendingViewers);
+            viewers.clear();
+            pendingViewers.clear();
+            lock.notifyAll();
+        }
+        for (ConsoleProxyWebSocketViewer viewer : toClose)
+            viewer.close();
+    }
+
+    private void push() {
+        long minFrameInterval = 1000L / Math.max(1, ConsoleProxy.webSocketMaxFps);
+        while (true) {
+            List<ConsoleProxyWebSocketViewer> current;
+            List<ConsoleProxyWebSocketViewer> joining;
+            boolean doResize;
+            synchronized (lock) {
+                while (!dirty && !resized && pendingViewers.isEmpty() && !viewers.isEmpty()) {
+                    try {
+                        lock.wait(5000);
+                    } catch (InterruptedException e) {
+                    }
+                    // keep the session from being swept while it is watched
+                    client.updateFrontEndActivityTime();
+                }
+                if (viewers.isEmpty() && pendingViewers.isEmpty()) {
+                    pusher = null;
+                    return;
+                }
+
+                doResize = resized;
+                resized = false;
+                dirty = false;
+                if (doResize) {
+                    pendingViewers.addAll(viewers);
+                    viewers.clear();
+                }
+                current = new ArrayList<ConsoleProxyWebSocketViewer>(viewers);
+                joining = new ArrayList<ConsoleProxyWebSocketViewer>(pendingViewers);
+                pendingViewers.clear();
+            }
+
+            long startTick = System.currentTimeMillis();
+            client.updateFrontEndActivityTime();
+            try {
+                encodeAndSend(current, joining, doResize);
+            } catch (Throwable e) {
+                s_logger.warn("Unable to push frame buffer update, resetting the stream", e);
+                synchronized (lock) {
+                    resized = true;
+                    pendingViewers.addAll(current);
+                    pendingViewers.addAll(joining);
+                    viewers.removeAll(current);
+                }
+            }
+
+            long elapsed = System.currentTimeMillis() - startTick;
+            if (elapsed < minFrameInterval) {
+                try {
+                    Thread.sleep(minFrameInterval - elapsed);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    private void encodeAndSend(List<ConsoleProxyWebSocketViewer> current, List<ConsoleProxyWebSocketViewer> joining, boolean doResize) {
+        FrameBufferCanvas canvas = client.getFrameBufferCavas();
+        if (canvas == null) {
+            // not connected yet, try again on the next round
+            synchronized (lock) {
+                pendingViewers.addAll(joining);
+                resized |= doResize;
+            }
+            return;
+        }
+
+        if (doResize) {
+            encoder.resize(tracker.getTrackWidth(), tracker.getTrackHeight());
+            encoder.encodeUpdate(canvas, tracker.scan(true));
+            resizeFrame = null;
+            keyFrame = null;
+        } else {
+            List<TileInfo> tiles = tracker.scan(false);
+            if (!tiles.isEmpty()) {
+                byte[] update = encoder.encodeUpdate(canvas, tiles);
+                if (update != null) {
+                    keyFrame = null;
+                    Frame frame = createFrame(update, current);
+                    for (ConsoleProxyWebSocketViewer viewer : current)
+                        viewer.send(frame);
+                }
+            }
+        }
+
+        if (!joining.isEmpty()) {
+            boolean needDeflate = needsDeflate(joining);
+            if (resizeFrame == null || keyFrame == null || (needDeflate && !keyFrameDeflated)) {
+                resizeFrame = createFrame(encoder.encodeResize(), joining);
+                keyFrame = createFrame(encoder.encodeKeyframe(), joining);
+                keyFrameDeflated = needDeflate;
+            }
+            for (ConsoleProxyWebSocketViewer viewer : joining) {
+                viewer.send(resizeFrame);
+                viewer.send(keyFrame);
+            }
+            synchronized (lock) {
+                for (ConsoleProxyWebSocketViewer viewer : joining) {
+                    if (!viewer.isClosed())
+                        viewers.add(viewer);
+                }
+            }
+        }
+    }
+
+    private static boolean needsDeflate(List<ConsoleProxyWebSocketViewer> targets) {
+        for (ConsoleProxyWebSocketViewer viewer : targets) {
+            if (viewer.isDeflateEnabled())
+                return true;
+        }
+        return false;
+    }
+
+    private Frame createFrame(byte[] raw, List<ConsoleProxyWebSocketViewer> targets) {
+        framesEncoded++;
+        bytesEncoded += raw.length;
+        if (!needsDeflate(targets))
+            return new Frame(raw, null);
+        return new Frame(raw, deflate(raw));
+    }
+
+    /**
+     * Compress a whole message with no context takeover, so that the result can be sent as is
+     * to every viewer that negotiated permessage-deflate.
+     */
+    private byte[] deflate(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == deflateBuffer.length) {
+                byte[] buf = new byte[deflateBuffer.length * 2];
+                System.arraycopy(deflateBuffer, 0, buf, 0, len);
+                deflateBuffer = buf;
+            }
+            len += deflater.deflate(deflateBuffer, len, deflateBuffer.length - len);
+        }
+        byte[] deflated = new byte[len];
+        System.arraycopy(deflateBuffer, 0, deflated, 0, len);
+        return deflated;
+    }
+}
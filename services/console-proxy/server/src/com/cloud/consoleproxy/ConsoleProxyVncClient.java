@@ -139,6 +139,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
     	workerDone = true;
         if(client != null)
             client.shutdown();
+        frameStream.close();
     }
     
     @Override
@@ -149,6 +150,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
         s_logger.info("Received client close indication. remove viewer from map.");
         
         ConsoleProxy.removeViewer(this);
+        frameStream.close();
     }
     
     @Override
@@ -0,0 +1,215 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.WebSocketHelper;
+
+/**
+ * ConsoleProxyWebSocketServer accepts WebSocket viewers on a dedicated port.  The HTTP server
+ * used for the AJAX viewer can not hand over its connections, so the upgrade handshake is done
+ * here.  A viewer connects with the same encrypted token as the AJAX viewer and is attached to
+ * the frame stream of the existing console session.
+ */
+public class ConsoleProxyWebSocketServer extends Thread {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketServer.class);
+
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+    private final ServerSocket serverSocket;
+
+    public ConsoleProxyWebSocketServer(ServerSocket serverSocket) {
+        super("Console Proxy WebSocket Server");
+        setDaemon(true);
+        this.serverSocket = serverSocket;
+    }
+
+    @Override
+    public void run() {
+        s_logger.info("Listening for WebSocket viewers on port " + serverSocket.getLocalPort());
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                s_logger.error("Unable to accept WebSocket connection", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                }
+                continue;
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnection(socket);
+                }
+            }, "Console Viewer " + socket.getRemoteSocketAddress()).start();
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+
+            DataInputStream is = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream os = socket.getOutputStream();
+
+            Map<String, String> headers = new HashMap<String, String>();
+            String requestLine = readHeaders(is, headers);
+            if (requestLine == null) {
+                socket.close();
+                return;
+            }
+
+            String[] parts = requestLine.split(" ");
+            String key = headers.get("sec-websocket-key");
+            String upgrade = headers.get("upgrade");
+            if (parts.length != 3 || !"GET".equals(parts[0]) || key == null || upgrade == null || !"websocket".equalsIgnoreCase(upgrade.trim())
+                    || !"13".equals(trim(headers.get("sec-websocket-version")))) {
+                sendError(os, "400 Bad Request");
+                socket.close();
+                return;
+            }
+
+            ConsoleProxyClient client = getClient(parts[1]);
+            if (client == null) {
+                sendError(os, "403 Forbidden");
+                socket.close();
+                return;
+            }
+
+            String extensions = headers.get("sec-websocket-extensions");
+            boolean deflate = extensions != null && extensions.toLowerCase().contains("permessage-deflate");
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 101 Switching Protocols\r\n");
+            sb.append("Upgrade: websocket\r\n");
+            sb.append("Connection: Upgrade\r\n");
+            sb.append("Sec-WebSocket-Accept: ").append(WebSocketHelper.getAcceptKey(key)).append("\r\n");
+            if (deflate)
+                sb.append("Sec-WebSocket-Extensions: permessage-deflate; server_no_context_takeover; client_no_context_takeover\r\n");
+            sb.append("\r\n");
+            os.write(sb.toString().getBytes("ISO-8859-1"));
+            os.flush();
+
+            socket.setSoTimeout(0);
+            if (s_logger.isInfoEnabled())
+                s_logger.info("WebSocket viewer " + socket.getRemoteSocketAddress() + " attached to " + client + (deflate ? " with permessage-deflate" : ""));
+
+            new ConsoleProxyWebSocketViewer(socket, is, os, client, deflate).run();
+        } catch (SocketException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket connection " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+        } catch (Throwable e) {
+            s_logger.warn("Unexpected exception in WebSocket connection " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private ConsoleProxyClient getClient(String uri) {
+        int pos = uri.indexOf('?');
+        if (pos < 0)
+            return null;
+
+        Map<String, String> queryMap = ConsoleProxyHttpHandlerHelper.getQueryMap(uri.substring(pos + 1));
+        String host = queryMap.get("host");
+        String portStr = queryMap.get("port");
+        String sid = queryMap.get("sid");
+        if (host == null || portStr == null || sid == null)
+            return null;
+
+        ConsoleProxyClientParam param = new ConsoleProxyClientParam();
+        param.setClientHostAddress(host);
+        param.setClientTag(queryMap.get("tag") != null ? queryMap.get("tag") : "");
+        param.setClientHostPassword(sid);
+        param.setTicket(queryMap.get("ticket"));
+        param.setClientTunnelUrl(queryMap.get("consoleurl"));
+        param.setClientTunnelSession(queryMap.get("sessionref"));
+        try {
+            param.setClientHostPort(Integer.parseInt(portStr));
+            return ConsoleProxy.getAjaxVncViewer(param, null);
+        } catch (NumberFormatException e) {
+            s_logger.warn("Invalid number parameter in query string: " + portStr);
+        } catch (Exception e) {
+            s_logger.warn("Failed to attach WebSocket viewer due to " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @return the request line, with header names lower cased into the map, or null if the
+     * connection closed before the headers were complete
+     */
+    private static String readHeaders(DataInputStream is, Map<String, String> headers) throws IOException {
+        StringBuilder line = new StringBuilder();
+        String requestLine = null;
+        int total = 0;
+        while (true) {
+            int c = is.read();
+            if (c < 0)
+                return null;
+            if (++total > MAX_HEADER_SIZE)
+                throw new IOException("Request headers exceed " + MAX_HEADER_SIZE + " bytes");
+
+            if (c == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r')
+                    line.setLength(len - 1);
+                if (line.length() == 0)
+                    return requestLine;
+
+                if (requestLine == null) {
+                    requestLine = line.toString();
+                } else {
+                    int colon = line.indexOf(":");
+                    if (colon > 0)
+                        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+                line.setLength(0);
+            } else {
+                line.append((char)c);
+            }
+        }
+    }
+
+    private static String trim(String s) {
+        return s != null ? s.trim() : null;
+    }
+
+    private static void sendError(OutputStream os, String status) throws IOException {
+        os.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        os.flush();
+    }
+}
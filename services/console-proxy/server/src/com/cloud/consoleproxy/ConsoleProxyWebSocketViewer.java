@@ -0,0 +1,235 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.WebSocketHelper;
+
+/**
+ * ConsoleProxyWebSocketViewer is one browser connected over WebSocket.  Frame buffer updates
+ * are queued by the shared ConsoleProxyFrameStream and written by a per-viewer thread so that
+ * a slow viewer never holds up the others; input events are read on the connection thread and
+ * forwarded to the console session.
+ */
+public class ConsoleProxyWebSocketViewer {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketViewer.class);
+
+    private static final int MAX_QUEUED_FRAMES = 16;
+    private static final int MAX_INPUT_MESSAGE_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream is;
+    private final OutputStream os;
+    private final ConsoleProxyClient client;
+    private final ConsoleProxyFrameStream stream;
+    private final boolean deflateEnabled;
+    private final BlockingQueue<ConsoleProxyFrameStream.Frame> queue = new ArrayBlockingQueue<ConsoleProxyFrameStream.Frame>(MAX_QUEUED_FRAMES);
+    private volatile boolean closed = false;
+
+    public ConsoleProxyWebSocketViewer(Socket socket, DataInputStream is, OutputStream os, ConsoleProxyClient client, boolean deflateEnabled) {
+        this.socket = socket;
+        this.is = is;
+        this.os = new BufferedOutputStream(os, 16 * 1024);
+        this.client = client;
+        this.stream = client.getFrameStream();
+        this.deflateEnabled = deflateEnabled;
+    }
+
+    public boolean isDeflateEnabled() {
+        return deflateEnabled;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Queue a frame for this viewer without blocking.  If the viewer has fallen too far behind
+     * its backlog is dropped and it is sent a key frame instead.
+     */
+    public void send(ConsoleProxyFrameStream.Frame frame) {
+        if (closed)
+            return;
+
+        if (!queue.offer(frame)) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket viewer " + socket.getRemoteSocketAddress() + " is falling behind, dropping queued updates");
+            queue.clear();
+            stream.requestKeyFrame(this);
+        }
+    }
+
+    /**
+     * Serve the connection until either end closes it.
+     */
+    public void run() {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        }, "Console Viewer Writer " + socket.getRemoteSocketAddress());
+        writer.setDaemon(true);
+        writer.start();
+
+        stream.subscribe(this);
+        try {
+            readMessages();
+        } catch (IOException e) {
+            if (!closed && s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket viewer " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        stream.unsubscribe(this);
+        queue.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void writeFrames() {
+        try {
+            while (!closed) {
+                ConsoleProxyFrameStream.Frame frame = queue.poll(1, TimeUnit.SECONDS);
+                if (frame == null)
+                    continue;
+
+                synchronized (os) {
+                    do {
+                        if (deflateEnabled && frame.getDeflated() != null)
+                            WebSocketHelper.writeFrame(os, WebSocketHelper.OPCODE_BINARY, true, frame.getDeflated());
+                        else
+                            WebSocketHelper.writeFrame(os, WebSocketHelper.OPCODE_BINARY, false, frame.getRaw());
+                        frame = queue.poll();
+                    } while (frame != null);
+                    os.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            if (!closed && s_logger.isDebugEnabled())
+                s_logger.debug("Unable to write to WebSocket viewer " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    private void readMessages() throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean messageCompressed = false;
+        Inflater inflater = null;
+
+        while (!closed) {
+            WebSocketHelper.Frame frame = WebSocketHelper.readFrame(is, MAX_INPUT_MESSAGE_SIZE);
+            switch (frame.opcode) {
+            case WebSocketHelper.OPCODE_CLOSE:
+                synchronized (os) {
+                    WebSocketHelper.writeFrame(os, WebSocketHelper.OPCODE_CLOSE, false, frame.payload);
+                    os.flush();
+                }
+                return;
+
+            case WebSocketHelper.OPCODE_PING:
+                synchronized (os) {
+                    WebSocketHelper.writeFrame(os, WebSocketHelper.OPCODE_PONG, false, frame.payload);
+                    os.flush();
+                }
+                break;
+
+            case WebSocketHelper.OPCODE_PONG:
+                break;
+
+            case WebSocketHelper.OPCODE_TEXT:
+            case WebSocketHelper.OPCODE_BINARY:
+            case WebSocketHelper.OPCODE_CONTINUATION:
+                if (frame.opcode != WebSocketHelper.OPCODE_CONTINUATION) {
+                    message.reset();
+                    messageCompressed = frame.compressed;
+                }
+                message.write(frame.payload);
+                if (message.size() > MAX_INPUT_MESSAGE_SIZE)
+                    throw new IOException("Input message exceeds the limit of " + MAX_INPUT_MESSAGE_SIZE + " bytes");
+                if (!frame.fin)
+                    break;
+
+                byte[] data = message.toByteArray();
+                if (messageCompressed) {
+                    if (!deflateEnabled)
+                        throw new IOException("Compressed message received without permessage-deflate");
+                    if (inflater == null)
+                        inflater = new Inflater(true);
+                    data = inflate(inflater, data);
+                }
+                onInput(new String(data, "UTF-8"));
+                break;
+
+            default:
+                throw new IOException("Unsupported WebSocket opcode " + frame.opcode);
+            }
+        }
+    }
+
+    private void onInput(String eventBag) {
+        ConsoleProxyAjaxHandler.handleClientEventBag(client, eventBag);
+    }
+
+    static byte[] inflate(Inflater inflater, byte[] data) throws IOException {
+        // Each client message is compressed on its own, see client_no_context_takeover
+        inflater.reset();
+        byte[] input = new byte[data.length + 4];
+        System.arraycopy(data, 0, input, 0, data.length);
+        input[data.length + 2] = (byte)0xff;
+        input[data.length + 3] = (byte)0xff;
+        inflater.setInput(input);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+        byte[] buf = new byte[4096];
+        try {
+            while (!inflater.finished() && !inflater.needsInput()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                bos.write(buf, 0, n);
+                if (bos.size() > MAX_INPUT_MESSAGE_SIZE)
+                    throw new IOException("Input message exceeds the limit of " + MAX_INPUT_MESSAGE_SIZE + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed message: " + e.getMessage());
+        }
+        return bos.toByteArray();
+    }
+}
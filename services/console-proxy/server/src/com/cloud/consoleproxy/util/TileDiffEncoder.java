@@ -0,0 +1,344 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+/**
+ * TileDiffEncoder turns dirty frame buffer tiles into the binary update messages that are
+ * pushed to WebSocket viewers.
+ *
+ * It keeps a copy of the pixels last sent so that tiles which were reported dirty but did
+ * not actually change are dropped. Every tile is encoded losslessly, as a solid color, as a
+ * palette of up to 256 colors with packed indices, or as raw RGB, whichever is smallest.
+ * All working buffers are allocated once and reused, so an encoder must only be used by
+ * one thread at a time.
+ *
+ * Message layout, all integers are unsigned and big-endian
+ *
+ *   resize: u8 MSG_RESIZE, u16 width, u16 height, u16 tile width, u16 tile height
+ *   update: u8 MSG_UPDATE, u16 tile count, tiles
+ *   tile:   u16 x, u16 y, u16 w, u16 h, u8 encoding, encoding specific data
+ *
+ *   TILE_SOLID:   3 bytes RGB
+ *   TILE_PALETTE: u8 colors - 1, 3 bytes RGB per color, then w * h indices of 1, 2, 4
+ *                 or 8 bits (the smallest that fits), most significant bits first, each
+ *                 row starting on a byte boundary
+ *   TILE_RAW:     w * h * 3 bytes RGB
+ */
+public class TileDiffEncoder {
+    public static final int MSG_RESIZE = 1;
+    public static final int MSG_UPDATE = 2;
+
+    public static final int TILE_SOLID = 0;
+    public static final int TILE_PALETTE = 1;
+    public static final int TILE_RAW = 2;
+
+    private static final int MAX_PALETTE_SIZE = 256;
+    private static final int HASH_SIZE = 1024;
+
+    private final int tileWidth;
+    private final int tileHeight;
+
+    private int width;
+    private int height;
+
+    // Pixels as last sent to the viewers
+    private int[] previous = new int[0];
+
+    // Reusable working buffers
+    private final int[] tilePixels;
+    private final int[] palette = new int[MAX_PALETTE_SIZE];
+    private final int[] hashColors = new int[HASH_SIZE];
+    private final int[] hashIndexes = new int[HASH_SIZE];
+    private final int[] hashStamps = new int[HASH_SIZE];
+    private int hashStamp = 0;
+
+    private byte[] out = new byte[64 * 1024];
+    private int outPos;
+
+    private long tilesEncoded;
+    private long tilesSkipped;
+
+    public TileDiffEncoder(int tileWidth, int tileHeight) {
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        tilePixels = new int[tileWidth * tileHeight];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getTilesEncoded() {
+        return tilesEncoded;
+    }
+
+    public long getTilesSkipped() {
+        return tilesSkipped;
+    }
+
+    /**
+     * Forget what has been sent and start tracking a frame buffer of the given size.
+     */
+    public void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        previous = new int[width * height];
+    }
+
+    public byte[] encodeResize() {
+        outPos = 0;
+        writeByte(MSG_RESIZE);
+        writeShort(width);
+        writeShort(height);
+        writeShort(tileWidth);
+        writeShort(tileHeight);
+        return toByteArray();
+    }
+
+    /**
+     * Encode the tiles whose pixels differ from what was sent before.
+     *
+     * @return the update message, or null if none of the tiles has changed
+     */
+    public byte[] encodeUpdate(FrameBufferCanvas canvas, List<TileInfo> tiles) {
+        outPos = 0;
+        writeByte(MSG_UPDATE);
+        writeShort(0);
+
+        int count = 0;
+        for (TileInfo tile : tiles) {
+            Rectangle rc = clip(tile.getTileRect());
+            if (rc == null)
+                continue;
+
+            int size = rc.width * rc.height;
+            copyFromPrevious(rc, tilePixels);
+            canvas.copyFrameBufferPixels(rc, tilePixels);
+            if (!updatePrevious(rc, tilePixels)) {
+                tilesSkipped++;
+                continue;
+            }
+
+            encodeTile(rc, tilePixels, size);
+            count++;
+        }
+
+        if (count == 0)
+            return null;
+
+        out[1] = (byte)(count >> 8);
+        out[2] = (byte)count;
+        return toByteArray();
+    }
+
+    /**
+     * Encode the whole frame buffer as last sent, for viewers that have just joined.
+     */
+    public byte[] encodeKeyframe() {
+        outPos = 0;
+        writeByte(MSG_UPDATE);
+        writeShort(0);
+
+        int count = 0;
+        Rectangle rc = new Rectangle();
+        for (int y = 0; y < height; y += tileHeight) {
+            for (int x = 0; x < width; x += tileWidth) {
+                rc.setBounds(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y));
+                copyFromPrevious(rc, tilePixels);
+                encodeTile(rc, tilePixels, rc.width * rc.height);
+                count++;
+            }
+        }
+
+        out[1] = (byte)(count >> 8);
+        out[2] = (byte)count;
+        return toByteArray();
+    }
+
+    private Rectangle clip(Rectangle rc) {
+        int w = Math.min(Math.min(rc.width, tileWidth), width - rc.x);
+        int h = Math.min(Math.min(rc.height, tileHeight), height - rc.y);
+        if (rc.x < 0 || rc.y < 0 || w <= 0 || h <= 0)
+            return null;
+        if (w == rc.width && h == rc.height)
+            return rc;
+        return new Rectangle(rc.x, rc.y, w, h);
+    }
+
+    private void copyFromPrevious(Rectangle rc, int[] pixels) {
+        for (int i = 0; i < rc.height; i++)
+            System.arraycopy(previous, (rc.y + i) * width + rc.x, pixels, i * rc.width, rc.width);
+    }
+
+    private boolean updatePrevious(Rectangle rc, int[] pixels) {
+        boolean changed = false;
+        for (int i = 0; i < rc.height; i++) {
+            int base = (rc.y + i) * width + rc.x;
+            int src = i * rc.width;
+            for (int j = 0; j < rc.width; j++) {
+                if (previous[base + j] != pixels[src + j]) {
+                    previous[base + j] = pixels[src + j];
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void encodeTile(Rectangle rc, int[] pixels, int size) {
+        tilesEncoded++;
+
+        writeShort(rc.x);
+        writeShort(rc.y);
+        writeShort(rc.width);
+        writeShort(rc.height);
+
+        int colors = buildPalette(pixels, size);
+        if (colors == 1) {
+            writeByte(TILE_SOLID);
+            writeRgb(pixels[0]);
+            return;
+        }
+
+        int bits = 0;
+        if (colors > 0)
+            bits = colors <= 2 ? 1 : (colors <= 4 ? 2 : (colors <= 16 ? 4 : 8));
+        int rowBytes = (rc.width * bits + 7) / 8;
+        if (colors == 0 || 1 + colors * 3 + rowBytes * rc.height >= size * 3) {
+            writeByte(TILE_RAW);
+            ensureCapacity(size * 3);
+            for (int i = 0; i < size; i++)
+                writeRgb(pixels[i]);
+            return;
+        }
+
+        writeByte(TILE_PALETTE);
+        writeByte(colors - 1);
+        for (int i = 0; i < colors; i++)
+            writeRgb(palette[i]);
+
+        ensureCapacity(rowBytes * rc.height);
+        int mask = (1 << bits) - 1;
+        for (int y = 0; y < rc.height; y++) {
+            int acc = 0;
+            int accBits = 0;
+            int base = y * rc.width;
+            for (int x = 0; x < rc.width; x++) {
+                acc = (acc << bits) | (lookupIndex(pixels[base + x]) & mask);
+                accBits += bits;
+                if (accBits == 8) {
+                    out[outPos++] = (byte)acc;
+                    acc = 0;
+                    accBits = 0;
+                }
+            }
+            if (accBits > 0)
+                out[outPos++] = (byte)(acc << (8 - accBits));
+        }
+    }
+
+    /**
+     * @return number of distinct colors in the tile, or 0 if there are more than fit a palette
+     */
+    private int buildPalette(int[] pixels, int size) {
+        // Bumping the stamp invalidates the whole hash table without clearing it
+        hashStamp++;
+        if (hashStamp == 0) {
+            Arrays.fill(hashStamps, 0);
+            hashStamp = 1;
+        }
+
+        int colors = 0;
+        int last = ~pixels[0];
+        for (int i = 0; i < size; i++) {
+            int color = pixels[i];
+            if (color == last)
+                continue;
+            last = color;
+
+            int slot = hash(color);
+            while (true) {
+                if (hashStamps[slot] != hashStamp) {
+                    if (colors == MAX_PALETTE_SIZE)
+                        return 0;
+                    hashStamps[slot] = hashStamp;
+                    hashColors[slot] = color;
+                    hashIndexes[slot] = colors;
+                    palette[colors++] = color;
+                    break;
+                }
+                if (hashColors[slot] == color)
+                    break;
+                slot = (slot + 1) & (HASH_SIZE - 1);
+            }
+        }
+        return colors;
+    }
+
+    private int lookupIndex(int color) {
+        int slot = hash(color);
+        while (hashColors[slot] != color)
+            slot = (slot + 1) & (HASH_SIZE - 1);
+        return hashIndexes[slot];
+    }
+
+    private static int hash(int color) {
+        return ((color * 0x9E3779B1) >>> 22) & (HASH_SIZE - 1);
+    }
+
+    private void writeRgb(int color) {
+        ensureCapacity(3);
+        out[outPos++] = (byte)(color >> 16);
+        out[outPos++] = (byte)(color >> 8);
+        out[outPos++] = (byte)color;
+    }
+
+    private void writeShort(int value) {
+        ensureCapacity(2);
+        out[outPos++] = (byte)(value >> 8);
+        out[outPos++] = (byte)value;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        out[outPos++] = (byte)value;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (outPos + bytes > out.length) {
+            byte[] buf = new byte[Math.max(out.length * 2, outPos + bytes)];
+            System.arraycopy(out, 0, buf, 0, outPos);
+            out = buf;
+        }
+    }
+
+    private byte[] toByteArray() {
+        byte[] msg = new byte[outPos];
+        System.arraycopy(out, 0, msg, 0, outPos);
+        return msg;
+    }
+}
@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Minimal RFC 6455 framing, enough for the console proxy to push frame buffer updates to
+ * browsers and read back input events.
+ */
+public class WebSocketHelper {
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    private static final String HANDSHAKE_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    public static class Frame {
+        public boolean fin;
+        public boolean compressed;
+        public int opcode;
+        public byte[] payload;
+    }
+
+    public static String getAcceptKey(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest((key.trim() + HANDSHAKE_GUID).getBytes("ISO-8859-1"));
+            return Base64.encodeBase64String(digest).trim();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("ISO-8859-1 is not available", e);
+        }
+    }
+
+    /**
+     * Write an unmasked server frame.  The frame is not flushed.
+     */
+    public static void writeFrame(OutputStream os, int opcode, boolean compressed, byte[] payload) throws IOException {
+        int len = payload != null ? payload.length : 0;
+        byte[] header;
+        if (len < 126) {
+            header = new byte[2];
+            header[1] = (byte)len;
+        } else if (len < 65536) {
+            header = new byte[4];
+            header[1] = 126;
+            header[2] = (byte)(len >> 8);
+            header[3] = (byte)len;
+        } else {
+            header = new byte[10];
+            header[1] = 127;
+            for (int i = 0; i < 8; i++)
+                header[9 - i] = (byte)(((long)len) >> (8 * i));
+        }
+        header[0] = (byte)(0x80 | (compressed ? 0x40 : 0) | opcode);
+
+        os.write(header);
+        if (len > 0)
+            os.write(payload);
+    }
+
+    /**
+     * Read one frame sent by a client and unmask it.
+     *
+     * @throws IOException if the frame is not masked or is larger than maxPayload
+     */
+    public static Frame readFrame(InputStream is, int maxPayload) throws IOException {
+        DataInputStream dis = is instanceof DataInputStream ? (DataInputStream)is : new DataInputStream(is);
+
+        int b0 = dis.readUnsignedByte();
+        int b1 = dis.readUnsignedByte();
+
+        Frame frame = new Frame();
+        frame.fin = (b0 & 0x80) != 0;
+        frame.compressed = (b0 & 0x40) != 0;
+        frame.opcode = b0 & 0x0F;
+
+        if ((b1 & 0x80) == 0)
+            throw new IOException("Client frame is not masked");
+
+        long len = b1 & 0x7F;
+        if (len == 126)
+            len = dis.readUnsignedShort();
+        else if (len == 127)
+            len = dis.readLong();
+        if (len < 0 || len > maxPayload)
+            throw new IOException("Client frame of " + len + " bytes exceeds the limit of " + maxPayload);
+
+        byte[] mask = new byte[4];
+        dis.readFully(mask);
+        frame.payload = new byte[(int)len];
+        dis.readFully(frame.payload);
+        for (int i = 0; i < frame.payload.length; i++)
+            frame.payload[i] ^= mask[i & 3];
+        return frame;
+    }
+}
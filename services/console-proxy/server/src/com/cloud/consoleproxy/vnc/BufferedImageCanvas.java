@@ -147,4 +147,25 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
         }
         return imgBits;
     }
-}
\ No newline at end of file
+
+    @Override
+    public void copyFrameBufferPixels(Rectangle rc, int[] pixels) {
+        synchronized (offlineImage) {
+            int w = Math.min(rc.width, offlineImage.getWidth() - rc.x);
+            int h = Math.min(rc.height, offlineImage.getHeight() - rc.y);
+            if (w <= 0 || h <= 0)
+                return;
+
+            // Read straight from the raster so that no intermediate image is created
+            if (w == rc.width) {
+                offlineImage.getRaster().getDataElements(rc.x, rc.y, w, h, pixels);
+            } else {
+                int[] row = new int[w];
+                for (int i = 0; i < h; i++) {
+                    offlineImage.getRaster().getDataElements(rc.x, rc.y + i, w, 1, row);
+                    System.arraycopy(row, 0, pixels, i * rc.width, w);
+                }
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.cloud.consoleproxy.vnc;
 
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.util.List;
 
 import com.cloud.consoleproxy.util.TileInfo;
@@ -27,4 +28,11 @@ public interface FrameBufferCanvas {
     public byte[] getFrameBufferJpeg();
 
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+
+    /**
+     * Copy the RGB pixels of a frame buffer region into a caller supplied
+     * buffer, row by row with a stride of rc.width.  Parts of the region that
+     * fall outside of the frame buffer are left untouched.
+     */
+    public void copyFrameBufferPixels(Rectangle rc, int[] pixels);
 }
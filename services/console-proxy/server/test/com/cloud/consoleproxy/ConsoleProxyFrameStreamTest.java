@@ -0,0 +1,148 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.consoleproxy.util.TileDiffEncoder;
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+import com.cloud.consoleproxy.vnc.PaintNotificationListener;
+
+public class ConsoleProxyFrameStreamTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 200;
+
+    private BufferedImageCanvas canvas;
+    private ConsoleProxyFrameStream stream;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Before
+    public void setUp() {
+        canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+            @Override
+            public void imagePaintedOnScreen() {
+            }
+        }, WIDTH, HEIGHT);
+        canvas.getOfflineGraphics().setColor(Color.BLACK);
+        canvas.getOfflineGraphics().fillRect(0, 0, WIDTH, HEIGHT);
+
+        ConsoleProxyClientBase client = mock(ConsoleProxyClientBase.class);
+        when(client.getFrameBufferCavas()).thenReturn(canvas);
+        stream = new ConsoleProxyFrameStream(client);
+        stream.onFramebufferSizeChange(WIDTH, HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        stream.close();
+    }
+
+    private static ConsoleProxyWebSocketViewer recordingViewer(final List<ConsoleProxyFrameStream.Frame> frames) {
+        ConsoleProxyWebSocketViewer viewer = mock(ConsoleProxyWebSocketViewer.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                frames.add((ConsoleProxyFrameStream.Frame)invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(viewer).send(any(ConsoleProxyFrameStream.Frame.class));
+        return viewer;
+    }
+
+    private static void waitForFrames(List<ConsoleProxyFrameStream.Frame> frames, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (frames.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(count, frames.size());
+    }
+
+    private static int tileCount(ConsoleProxyFrameStream.Frame frame) {
+        byte[] raw = frame.getRaw();
+        assertEquals(TileDiffEncoder.MSG_UPDATE, raw[0]);
+        return ((raw[1] & 0xff) << 8) | (raw[2] & 0xff);
+    }
+
+    @Test
+    public void testJoiningAndLaggingViewersGetSharedKeyFrames() throws Exception {
+        List<ConsoleProxyFrameStream.Frame> first = Collections.synchronizedList(new ArrayList<ConsoleProxyFrameStream.Frame>());
+        ConsoleProxyWebSocketViewer firstViewer = recordingViewer(first);
+        stream.subscribe(firstViewer);
+        waitForFrames(first, 2);
+        assertEquals(TileDiffEncoder.MSG_RESIZE, first.get(0).getRaw()[0]);
+        // A key frame covers every tile of the 320x200 screen
+        assertEquals(5 * 4, tileCount(first.get(1)));
+        assertNull(first.get(1).getDeflated());
+
+        // Nothing has changed, so a second viewer gets the very same key frame
+        List<ConsoleProxyFrameStream.Frame> second = Collections.synchronizedList(new ArrayList<ConsoleProxyFrameStream.Frame>());
+        ConsoleProxyWebSocketViewer secondViewer = recordingViewer(second);
+        stream.subscribe(secondViewer);
+        waitForFrames(second, 2);
+        assertSame(first.get(0), second.get(0));
+        assertSame(first.get(1), second.get(1));
+        assertEquals(2, stream.getViewerCount());
+
+        // A viewer that dropped its backlog is brought back with the key frame too
+        stream.requestKeyFrame(firstViewer);
+        waitForFrames(first, 4);
+        assertSame(second.get(1), first.get(3));
+
+        // An update goes to every viewer as one shared frame and retires the cached key frame
+        canvas.getOfflineGraphics().setColor(Color.WHITE);
+        canvas.getOfflineGraphics().fillRect(10, 10, 20, 20);
+        stream.onFramebufferUpdate(10, 10, 20, 20);
+        waitForFrames(first, 5);
+        waitForFrames(second, 3);
+        assertSame(first.get(4), second.get(2));
+        assertEquals(1, tileCount(first.get(4)));
+
+        stream.requestKeyFrame(secondViewer);
+        waitForFrames(second, 5);
+        assertNotSame(first.get(1), second.get(4));
+        assertEquals(5 * 4, tileCount(second.get(4)));
+        assertTrue(stream.getFramesEncoded() >= 5);
+
+        // Nothing else is sent while the screen stays the same
+        Thread.sleep(200);
+        assertEquals(5, first.size());
+        assertEquals(5, second.size());
+    }
+}
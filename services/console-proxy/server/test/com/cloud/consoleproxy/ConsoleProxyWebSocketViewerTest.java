@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class ConsoleProxyWebSocketViewerTest {
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        while (!deflater.finished())
+            bos.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testInflateEachMessageOnItsOwn() throws IOException {
+        Inflater inflater = new Inflater(true);
+        byte[] first = "{\"events\":[{\"type\":1,\"x\":10,\"y\":20}]}".getBytes("UTF-8");
+        byte[] second = "{\"events\":[{\"type\":4,\"code\":65}]}".getBytes("UTF-8");
+        // The same inflater is reused for every message of a connection
+        assertArrayEquals(first, ConsoleProxyWebSocketViewer.inflate(inflater, deflate(first)));
+        assertArrayEquals(second, ConsoleProxyWebSocketViewer.inflate(inflater, deflate(second)));
+        assertArrayEquals(new byte[0], ConsoleProxyWebSocketViewer.inflate(inflater, deflate(new byte[0])));
+    }
+
+    @Test
+    public void testInflateRejectsBombsAndGarbage() {
+        Inflater inflater = new Inflater(true);
+        try {
+            ConsoleProxyWebSocketViewer.inflate(inflater, deflate(new byte[1024 * 1024]));
+            fail("Message inflating past the input limit accepted");
+        } catch (IOException e) {
+        }
+        try {
+            ConsoleProxyWebSocketViewer.inflate(inflater, new byte[] {(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff});
+            fail("Invalid compressed message accepted");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testSlowViewerDropsBacklogForKeyFrame() {
+        ConsoleProxyFrameStream stream = mock(ConsoleProxyFrameStream.class);
+        ConsoleProxyClient client = mock(ConsoleProxyClient.class);
+        when(client.getFrameStream()).thenReturn(stream);
+        ConsoleProxyWebSocketViewer viewer = new ConsoleProxyWebSocketViewer(new Socket(), null, new ByteArrayOutputStream(), client, false);
+
+        ConsoleProxyFrameStream.Frame frame = new ConsoleProxyFrameStream.Frame(new byte[] {2, 0, 0}, null);
+        for (int i = 0; i < 16; i++)
+            viewer.send(frame);
+        verify(stream, never()).requestKeyFrame(viewer);
+
+        // The queue is full, so the backlog goes and a key frame is asked for instead
+        viewer.send(frame);
+        verify(stream, times(1)).requestKeyFrame(viewer);
+
+        // After the drop there is room for a whole queue again
+        for (int i = 0; i < 16; i++)
+            viewer.send(frame);
+        verify(stream, times(1)).requestKeyFrame(viewer);
+        viewer.send(frame);
+        verify(stream, times(2)).requestKeyFrame(viewer);
+
+        viewer.close();
+        for (int i = 0; i < 20; i++)
+            viewer.send(frame);
+        verify(stream, times(2)).requestKeyFrame(viewer);
+    }
+}
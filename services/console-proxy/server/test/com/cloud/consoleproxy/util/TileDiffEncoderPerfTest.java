@@ -0,0 +1,179 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+import com.cloud.consoleproxy.vnc.PaintNotificationListener;
+
+/**
+ * Measures how many frame buffer updates one core can encode for WebSocket viewers, next to
+ * the JPEG encoding done for the AJAX viewer.  Encoded updates are shared by all viewers of a
+ * session, so the numbers do not depend on how many viewers are watching.  It only logs its
+ * numbers and is left out of the regular build; raise -Dconsole.perf.frames to get stable
+ * numbers.
+ */
+public class TileDiffEncoderPerfTest {
+    private static final Logger s_logger = Logger.getLogger(TileDiffEncoderPerfTest.class);
+
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 768;
+    private static final int TILE = 64;
+    private static final int FRAMES = Integer.getInteger("console.perf.frames", 20);
+
+    private interface Painter {
+        Rectangle paint(Graphics2D g, BufferedImage img, int frame);
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    private static BufferedImageCanvas createCanvas() {
+        BufferedImageCanvas canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+            @Override
+            public void imagePaintedOnScreen() {
+            }
+        }, WIDTH, HEIGHT);
+        Graphics2D g = canvas.getOfflineGraphics();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        return canvas;
+    }
+
+    @Test
+    public void testTerminal() {
+        final Font font = new Font(Font.MONOSPACED, Font.PLAIN, 14);
+        benchmark("terminal typing", new Painter() {
+            @Override
+            public Rectangle paint(Graphics2D g, BufferedImage img, int frame) {
+                int row = (frame / 80) % 40;
+                int col = frame % 80;
+                g.setFont(font);
+                g.setColor(Color.LIGHT_GRAY);
+                g.drawString(String.valueOf((char)('a' + frame % 26)), 8 + col * 12, 18 + row * 18);
+                return new Rectangle(8 + col * 12, row * 18, 12, 18);
+            }
+        });
+    }
+
+    @Test
+    public void testScrollingText() {
+        final Font font = new Font(Font.MONOSPACED, Font.PLAIN, 14);
+        benchmark("scrolling text", new Painter() {
+            @Override
+            public Rectangle paint(Graphics2D g, BufferedImage img, int frame) {
+                g.copyArea(0, 18, WIDTH, HEIGHT - 18, 0, -18);
+                g.setColor(Color.BLACK);
+                g.fillRect(0, HEIGHT - 18, WIDTH, 18);
+                g.setFont(font);
+                g.setColor(frame % 2 == 0 ? Color.GREEN : Color.WHITE);
+                g.drawString("[  " + frame + ".000000] scsi 2:0:0:0: Direct-Access     QEMU     QEMU HARDDISK    1.0  PQ: 0 ANSI: 5", 8, HEIGHT - 4);
+                return new Rectangle(0, 0, WIDTH, HEIGHT);
+            }
+        });
+    }
+
+    @Test
+    public void testPhotoDesktop() {
+        final Random random = new Random(1);
+        benchmark("noisy desktop", new Painter() {
+            @Override
+            public Rectangle paint(Graphics2D g, BufferedImage img, int frame) {
+                for (int y = 0; y < 256; y++) {
+                    for (int x = 0; x < 256; x++)
+                        img.setRGB(x, y, random.nextInt(0xffffff));
+                }
+                return new Rectangle(0, 0, 256, 256);
+            }
+        });
+    }
+
+    private void benchmark(String name, Painter painter) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        BufferedImageCanvas canvas = createCanvas();
+        Graphics2D g = canvas.getOfflineGraphics();
+
+        TileTracker tracker = new TileTracker();
+        tracker.initTracking(TILE, TILE, WIDTH, HEIGHT);
+        TileDiffEncoder encoder = new TileDiffEncoder(TILE, TILE);
+        encoder.resize(WIDTH, HEIGHT);
+        encoder.encodeUpdate(canvas, tracker.scan(true));
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] deflateBuffer = new byte[1024 * 1024];
+
+        TileTracker jpegTracker = new TileTracker();
+        jpegTracker.initTracking(TILE, TILE, WIDTH, HEIGHT);
+
+        long streamCpu = 0;
+        long streamBytes = 0;
+        long jpegCpu = 0;
+        long jpegBytes = 0;
+        for (int frame = 0; frame < FRAMES * 2; frame++) {
+            Rectangle dirty = painter.paint(g, canvas.getOfflineImage(), frame);
+            tracker.invalidate(dirty);
+            jpegTracker.invalidate(dirty);
+
+            long start = mx.getCurrentThreadCpuTime();
+            byte[] update = encoder.encodeUpdate(canvas, tracker.scan(false));
+            int len = 0;
+            if (update != null) {
+                deflater.reset();
+                deflater.setInput(update);
+                deflater.finish();
+                while (!deflater.finished())
+                    len += deflater.deflate(deflateBuffer, len, deflateBuffer.length - len);
+            }
+            long streamTime = mx.getCurrentThreadCpuTime() - start;
+
+            start = mx.getCurrentThreadCpuTime();
+            List<TileInfo> tiles = jpegTracker.scan(false);
+            byte[] jpeg = canvas.getTilesMergedJpeg(tiles, TILE, TILE);
+            long jpegTime = mx.getCurrentThreadCpuTime() - start;
+
+            // The first half warms up
+            if (frame >= FRAMES) {
+                streamCpu += streamTime;
+                streamBytes += len;
+                jpegCpu += jpegTime;
+                jpegBytes += jpeg != null ? jpeg.length : 0;
+            }
+        }
+
+        s_logger.info(name + ": websocket " + fps(streamCpu) + " frames/s per core, " + streamBytes / FRAMES + " bytes/frame; ajax jpeg "
+                + fps(jpegCpu) + " frames/s per core, " + jpegBytes / FRAMES + " bytes/frame");
+    }
+
+    private static long fps(long cpuNanos) {
+        return cpuNanos > 0 ? FRAMES * 1000000000L / cpuNanos : 0;
+    }
+}
@@ -0,0 +1,227 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+import com.cloud.consoleproxy.vnc.PaintNotificationListener;
+
+public class TileDiffEncoderTest {
+    private static final int TILE = 64;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    private static BufferedImageCanvas createCanvas(int width, int height) {
+        BufferedImageCanvas canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+            @Override
+            public void imagePaintedOnScreen() {
+            }
+        }, width, height);
+        Graphics2D g = canvas.getOfflineGraphics();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, width, height);
+        return canvas;
+    }
+
+    /**
+     * Reference decoder for the messages described in TileDiffEncoder, the same work
+     * wsviewer.js does in the browser.
+     */
+    static class Decoder {
+        int width;
+        int height;
+        int[] pixels = new int[0];
+        int[] encodings = new int[3];
+
+        private byte[] msg;
+        private int pos;
+
+        void decode(byte[] msg) {
+            this.msg = msg;
+            pos = 0;
+            int type = readByte();
+            if (type == TileDiffEncoder.MSG_RESIZE) {
+                width = readShort();
+                height = readShort();
+                readShort();
+                readShort();
+                pixels = new int[width * height];
+            } else {
+                assertEquals(TileDiffEncoder.MSG_UPDATE, type);
+                int count = readShort();
+                for (int i = 0; i < count; i++)
+                    decodeTile();
+            }
+            assertEquals("trailing bytes in message", msg.length, pos);
+        }
+
+        private void decodeTile() {
+            int x = readShort();
+            int y = readShort();
+            int w = readShort();
+            int h = readShort();
+            int encoding = readByte();
+            encodings[encoding]++;
+            switch (encoding) {
+            case TileDiffEncoder.TILE_SOLID:
+                int color = readRgb();
+                for (int j = 0; j < h; j++) {
+                    for (int i = 0; i < w; i++)
+                        pixels[(y + j) * width + x + i] = color;
+                }
+                break;
+
+            case TileDiffEncoder.TILE_PALETTE:
+                int colors = readByte() + 1;
+                int[] palette = new int[colors];
+                for (int i = 0; i < colors; i++)
+                    palette[i] = readRgb();
+                int bits = colors <= 2 ? 1 : (colors <= 4 ? 2 : (colors <= 16 ? 4 : 8));
+                for (int j = 0; j < h; j++) {
+                    int bitPos = 0;
+                    for (int i = 0; i < w; i++) {
+                        int b = msg[pos + (bitPos >> 3)] & 0xff;
+                        int index = (b >> (8 - bits - (bitPos & 7))) & ((1 << bits) - 1);
+                        pixels[(y + j) * width + x + i] = palette[index];
+                        bitPos += bits;
+                    }
+                    pos += (w * bits + 7) / 8;
+                }
+                break;
+
+            case TileDiffEncoder.TILE_RAW:
+                for (int j = 0; j < h; j++) {
+                    for (int i = 0; i < w; i++)
+                        pixels[(y + j) * width + x + i] = readRgb();
+                }
+                break;
+
+            default:
+                throw new AssertionError("Unknown tile encoding " + encoding);
+            }
+        }
+
+        private int readByte() {
+            return msg[pos++] & 0xff;
+        }
+
+        private int readShort() {
+            return (readByte() << 8) | readByte();
+        }
+
+        private int readRgb() {
+            return (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+    }
+
+    private static void assertSamePixels(BufferedImage image, Decoder decoder) {
+        assertEquals(image.getWidth(), decoder.width);
+        assertEquals(image.getHeight(), decoder.height);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++)
+                assertEquals("pixel at " + x + "," + y, image.getRGB(x, y) & 0xffffff, decoder.pixels[y * decoder.width + x]);
+        }
+    }
+
+    @Test
+    public void testUnchangedTilesAreSkipped() {
+        BufferedImageCanvas canvas = createCanvas(1024, 768);
+        TileTracker tracker = new TileTracker();
+        tracker.initTracking(TILE, TILE, 1024, 768);
+        TileDiffEncoder encoder = new TileDiffEncoder(TILE, TILE);
+        encoder.resize(1024, 768);
+
+        // The first update sends the black screen, the second has nothing new
+        assertNotNull(encoder.encodeUpdate(canvas, tracker.scan(true)));
+        assertNull(encoder.encodeUpdate(canvas, tracker.scan(true)));
+
+        canvas.getOfflineGraphics().setColor(Color.WHITE);
+        canvas.getOfflineGraphics().fillRect(100, 100, 10, 10);
+        tracker.invalidate(new Rectangle(0, 0, 1024, 768));
+        byte[] update = encoder.encodeUpdate(canvas, tracker.scan(false));
+        assertNotNull(update);
+        assertEquals(TileDiffEncoder.MSG_UPDATE, update[0]);
+        assertEquals(1, ((update[1] & 0xff) << 8) | (update[2] & 0xff));
+        assertEquals(TileDiffEncoder.TILE_PALETTE, update[3 + 8]);
+    }
+
+    @Test
+    public void testRandomUpdatesDecodePixelForPixel() {
+        // Not a multiple of the tile size, so the edge tiles are clipped
+        int width = 300;
+        int height = 170;
+        BufferedImageCanvas canvas = createCanvas(width, height);
+        BufferedImage image = canvas.getOfflineImage();
+        TileTracker tracker = new TileTracker();
+        tracker.initTracking(TILE, TILE, width, height);
+        TileDiffEncoder encoder = new TileDiffEncoder(TILE, TILE);
+        encoder.resize(width, height);
+
+        Decoder decoder = new Decoder();
+        decoder.decode(encoder.encodeResize());
+        decoder.decode(encoder.encodeUpdate(canvas, tracker.scan(true)));
+        assertSamePixels(image, decoder);
+
+        Random random = new Random(1);
+        for (int frame = 0; frame < 200; frame++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int w = 1 + random.nextInt(width - x);
+            int h = 1 + random.nextInt(height - y);
+
+            // 1 to 300 distinct colors, covering solid, every palette depth and raw tiles
+            int[] colors = new int[1 + random.nextInt(random.nextBoolean() ? 20 : 300)];
+            for (int i = 0; i < colors.length; i++)
+                colors[i] = random.nextInt(0x1000000);
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++)
+                    image.setRGB(x + i, y + j, colors[random.nextInt(colors.length)]);
+            }
+
+            tracker.invalidate(new Rectangle(x, y, w, h));
+            byte[] update = encoder.encodeUpdate(canvas, tracker.scan(false));
+            if (update != null)
+                decoder.decode(update);
+            assertSamePixels(image, decoder);
+        }
+        assertTrue(decoder.encodings[TileDiffEncoder.TILE_SOLID] > 0);
+        assertTrue(decoder.encodings[TileDiffEncoder.TILE_PALETTE] > 0);
+        assertTrue(decoder.encodings[TileDiffEncoder.TILE_RAW] > 0);
+
+        // A viewer joining now only gets the key frame
+        Decoder joined = new Decoder();
+        joined.decode(encoder.encodeResize());
+        joined.decode(encoder.encodeKeyframe());
+        assertSamePixels(image, joined);
+    }
+}
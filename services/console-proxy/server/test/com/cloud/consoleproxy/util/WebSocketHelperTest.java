@@ -0,0 +1,153 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class WebSocketHelperTest {
+
+    /**
+     * Builds a client frame, masked unless mask is null.
+     */
+    private static byte[] clientFrame(int opcode, boolean fin, byte[] mask, byte[] payload, long declaredLength) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write((fin ? 0x80 : 0) | opcode);
+        int maskBit = mask != null ? 0x80 : 0;
+        if (declaredLength < 126) {
+            bos.write(maskBit | (int)declaredLength);
+        } else if (declaredLength < 65536) {
+            bos.write(maskBit | 126);
+            bos.write((int)(declaredLength >> 8));
+            bos.write((int)declaredLength);
+        } else {
+            bos.write(maskBit | 127);
+            for (int i = 7; i >= 0; i--)
+                bos.write((int)(declaredLength >> (8 * i)));
+        }
+        if (mask != null) {
+            bos.write(mask, 0, 4);
+            for (int i = 0; i < payload.length; i++)
+                bos.write(payload[i] ^ mask[i & 3]);
+        } else {
+            bos.write(payload, 0, payload.length);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testAcceptKeyMatchesRfcSample() {
+        // RFC 6455 section 1.3
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketHelper.getAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketHelper.getAcceptKey(" dGhlIHNhbXBsZSBub25jZQ== "));
+    }
+
+    @Test
+    public void testReadFrameUnmasksPayload() throws IOException {
+        byte[] mask = new byte[] {0x37, (byte)0xfa, 0x21, 0x3d};
+        byte[] payload = "Hello".getBytes("UTF-8");
+        WebSocketHelper.Frame frame = WebSocketHelper.readFrame(new ByteArrayInputStream(clientFrame(WebSocketHelper.OPCODE_TEXT, true, mask, payload, payload.length)), 1024);
+        assertTrue(frame.fin);
+        assertFalse(frame.compressed);
+        assertEquals(WebSocketHelper.OPCODE_TEXT, frame.opcode);
+        assertArrayEquals(payload, frame.payload);
+
+        // RFC 6455 section 5.7, a single-frame masked text message
+        byte[] sample = new byte[] {(byte)0x81, (byte)0x85, 0x37, (byte)0xfa, 0x21, 0x3d, 0x7f, (byte)0x9f, 0x4d, 0x51, 0x58};
+        assertArrayEquals(payload, WebSocketHelper.readFrame(new ByteArrayInputStream(sample), 1024).payload);
+    }
+
+    @Test
+    public void testReadFrameExtendedLengths() throws IOException {
+        byte[] mask = new byte[] {1, 2, 3, 4};
+        for (int len : new int[] {125, 126, 65535, 65536}) {
+            byte[] payload = new byte[len];
+            for (int i = 0; i < len; i++)
+                payload[i] = (byte)i;
+            WebSocketHelper.Frame frame = WebSocketHelper.readFrame(new ByteArrayInputStream(clientFrame(WebSocketHelper.OPCODE_BINARY, false, mask, payload, len)), 65536);
+            assertFalse(frame.fin);
+            assertArrayEquals(payload, frame.payload);
+        }
+    }
+
+    @Test
+    public void testReadFrameRejectsUnmaskedFrames() {
+        try {
+            WebSocketHelper.readFrame(new ByteArrayInputStream(clientFrame(WebSocketHelper.OPCODE_TEXT, true, null, new byte[] {1, 2}, 2)), 1024);
+            fail("Unmasked client frame accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not masked"));
+        }
+    }
+
+    @Test
+    public void testReadFrameRejectsFramesOverTheLimit() {
+        byte[] mask = new byte[] {1, 2, 3, 4};
+        // Only the header is sent, the length alone has to be enough to refuse the frame
+        long[] lengths = new long[] {1025, 70000, Long.MAX_VALUE};
+        for (long len : lengths) {
+            try {
+                WebSocketHelper.readFrame(new ByteArrayInputStream(clientFrame(WebSocketHelper.OPCODE_BINARY, true, mask, new byte[0], len)), 1024);
+                fail("Frame of " + len + " bytes accepted");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("exceeds the limit"));
+            }
+        }
+
+        // A 64 bit length with the most significant bit set
+        byte[] negative = new byte[] {(byte)0x82, (byte)0xff, (byte)0x80, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4};
+        try {
+            WebSocketHelper.readFrame(new ByteArrayInputStream(negative), 1024);
+            fail("Frame with a negative length accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("exceeds the limit"));
+        }
+    }
+
+    @Test
+    public void testWriteFrameRoundTrip() throws IOException {
+        for (int len : new int[] {0, 125, 126, 65535, 65536}) {
+            byte[] payload = new byte[len];
+            for (int i = 0; i < len; i++)
+                payload[i] = (byte)(i * 7);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            WebSocketHelper.writeFrame(bos, WebSocketHelper.OPCODE_BINARY, true, payload);
+            byte[] bytes = bos.toByteArray();
+
+            assertEquals(0x80 | 0x40 | WebSocketHelper.OPCODE_BINARY, bytes[0] & 0xff);
+            // Server frames are never masked
+            assertEquals(0, bytes[1] & 0x80);
+            int header = len < 126 ? 2 : (len < 65536 ? 4 : 10);
+            assertEquals(header + len, bytes.length);
+            long declared = bytes[1] & 0x7f;
+            if (declared == 126)
+                declared = ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+            else if (declared == 127)
+                declared = ((long)(bytes[6] & 0xff) << 24) | ((bytes[7] & 0xff) << 16) | ((bytes[8] & 0xff) << 8) | (bytes[9] & 0xff);
+            assertEquals(len, declared);
+        }
+    }
+}
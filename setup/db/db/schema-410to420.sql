@@ -2191,3 +2191,13 @@ ALTER TABLE `cloud_usage`.`usage_storage` ADD COLUMN `virtual_size` bigint unsig
 ALTER TABLE `cloud_usage`.`cloud_usage` ADD COLUMN `virtual_size` bigint unsigned;
 
 INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'kvm.ssh.to.agent', 'true', 'Specify whether or not the management server is allowed to SSH into KVM Agents');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'stats.collector.threads', '10', 'The number of hosts and storage pools whose stats are retrieved in parallel.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'stats.collector.host.timeout', '60000', 'The time (in milliseconds) to wait for the stats of one host or storage pool before skipping it for the current interval.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.cache.replacement.policy', 'LRU', 'order in which unused data is evicted from cache storage, LRU (least recently used first) or LFU (least frequently used first).');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.cache.replacement.high.watermark', '0.90', 'cache storage usage (as a fraction of its capacity) above which unused data starts being evicted.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.cache.replacement.low.watermark', '0.75', 'cache storage usage (as a fraction of its capacity) eviction brings the cache storage back down to.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.cache.replacement.batch.size', '20', 'number of objects evicted from cache storage before its usage is measured again.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'api.throttling.weights', '', 'Comma separated api=weight pairs for apis that count as more than one request towards the api limit, e.g. deployVirtualMachine=5');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'api.throttling.clusterwide', 'false', 'If true, api.throttling.max is shared by all the management servers in the cluster instead of applying to each of them');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'ha.work.claim.batch.size', '10', 'Maximum number of ha work items a management server claims at a time.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'ha.work.shard.by.host', 'true', 'If true, ha work for the VMs of a host is handled by one management server, picked by host id, instead of whichever server polls first.');
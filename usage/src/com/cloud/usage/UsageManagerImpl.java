@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -553,9 +554,13 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
 
                     // - loop over the list of events and create entries in the helper tables
                     // - create the usage records using the parse methods below
+                    Map<Long, UsageEventVO> processed = new LinkedHashMap<Long, UsageEventVO>();
                     for (UsageEventVO event : events) {
                         event.setProcessed(true);
-                        _usageEventDao.update(event.getId(), event);
+                        processed.put(event.getId(), event);
+                    }
+                    _usageEventDao.updateBatch(processed);
+                    for (UsageEventVO event : events) {
                         createHelperRecord(event);
                     }
                 }
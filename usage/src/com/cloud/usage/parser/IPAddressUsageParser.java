@@ -17,6 +17,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -105,6 +106,7 @@ public class IPAddressUsageParser {
             updateIpUsageData(usageMap, key, usageIp.getId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String ipIdKey : usageMap.keySet()) {
             Pair<Long, Long> ipTimeInfo = usageMap.get(ipIdKey);
             long useTime = ipTimeInfo.second().longValue();
@@ -112,10 +114,11 @@ public class IPAddressUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 IpInfo info = IPMap.get(ipIdKey);
-                createUsageRecord(info.getZoneId(), useTime, startDate, endDate, account, info.getIpId(), info.getIPAddress(), info.isSourceNat(), info.isSystem);
+                createUsageRecord(usageRecords, info.getZoneId(), useTime, startDate, endDate, account, info.getIpId(), info.getIPAddress(), info.isSourceNat(), info.isSystem);
             }
         }
 
+        m_usageDao.saveUsageRecords(usageRecords);
         return true;
     }
 
@@ -131,7 +134,7 @@ public class IPAddressUsageParser {
         usageDataMap.put(key, ipUsageInfo);
     }
 
-    private static void createUsageRecord(long zoneId, long runningTime, Date startDate, Date endDate, AccountVO account, long IpId, String IPAddress, boolean isSourceNat, boolean isSystem) {
+    private static void createUsageRecord(List<UsageVO> usageRecords, long zoneId, long runningTime, Date startDate, Date endDate, AccountVO account, long IpId, String IPAddress, boolean isSourceNat, boolean isSystem) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total usage time " + runningTime + "ms");
         }
@@ -151,7 +154,7 @@ public class IPAddressUsageParser {
 
         UsageVO usageRecord = new UsageVO(zoneId, account.getAccountId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", UsageTypes.IP_ADDRESS, new Double(usage), IpId, 
                 (isSystem?1:0), (isSourceNat?"SourceNat":""), startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
 
     private static class IpInfo {
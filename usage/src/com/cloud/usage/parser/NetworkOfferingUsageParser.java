@@ -17,6 +17,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -103,6 +104,7 @@ public class NetworkOfferingUsageParser {
             updateNOUsageData(usageMap, key, usageNO.getVmInstanceId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String noIdKey : usageMap.keySet()) {
             Pair<Long, Long> notimeInfo = usageMap.get(noIdKey);
             long useTime = notimeInfo.second().longValue();
@@ -110,10 +112,11 @@ public class NetworkOfferingUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 NOInfo info = noMap.get(noIdKey);
-                createUsageRecord(UsageTypes.NETWORK_OFFERING, useTime, startDate, endDate, account, info.getVmId(), info.getNOId(), info.getZoneId(), info.isDefault());
+                createUsageRecord(usageRecords, UsageTypes.NETWORK_OFFERING, useTime, startDate, endDate, account, info.getVmId(), info.getNOId(), info.getZoneId(), info.isDefault());
             }
         }
 
+        m_usageDao.saveUsageRecords(usageRecords);
         return true;
     }
 
@@ -129,7 +132,7 @@ public class NetworkOfferingUsageParser {
         usageDataMap.put(key, noUsageInfo);
     }
 
-    private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long noId, long zoneId, boolean isDefault) {
+    private static void createUsageRecord(List<UsageVO> usageRecords, int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long noId, long zoneId, boolean isDefault) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -150,7 +153,7 @@ public class NetworkOfferingUsageParser {
         long defaultNic = (isDefault) ? 1 : 0;
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), vmId, null, noId, null, defaultNic, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
     
     private static class NOInfo {
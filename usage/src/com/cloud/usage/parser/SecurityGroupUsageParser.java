@@ -17,6 +17,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -103,6 +104,7 @@ public class SecurityGroupUsageParser {
             updateSGUsageData(usageMap, key, usageSG.getVmInstanceId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String sgIdKey : usageMap.keySet()) {
             Pair<Long, Long> sgtimeInfo = usageMap.get(sgIdKey);
             long useTime = sgtimeInfo.second().longValue();
@@ -110,10 +112,11 @@ public class SecurityGroupUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 SGInfo info = sgMap.get(sgIdKey);
-                createUsageRecord(UsageTypes.SECURITY_GROUP, useTime, startDate, endDate, account, info.getVmId(), info.getSGId(), info.getZoneId());
+                createUsageRecord(usageRecords, UsageTypes.SECURITY_GROUP, useTime, startDate, endDate, account, info.getVmId(), info.getSGId(), info.getZoneId());
             }
         }
 
+        m_usageDao.saveUsageRecords(usageRecords);
         return true;
     }
 
@@ -129,7 +132,7 @@ public class SecurityGroupUsageParser {
         usageDataMap.put(key, sgUsageInfo);
     }
 
-    private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long sgId, long zoneId) {
+    private static void createUsageRecord(List<UsageVO> usageRecords, int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long sgId, long zoneId) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -149,7 +152,7 @@ public class SecurityGroupUsageParser {
 
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), vmId, null, null, null, sgId, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
     
     private static class SGInfo {
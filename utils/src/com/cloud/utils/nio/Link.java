@@ -132,59 +132,99 @@ public class Link {
     }
      */
 
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
-        SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+    /**
+     * Wraps the buffers into SSL records and appends them, each preceded by
+     * its 4 byte header, to netBuf.  netBuf is flushed to the channel
+     * whenever it can not take another record, so several records, and
+     * several queued messages, go out in one write.
+     */
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, int offset, int length, SSLEngine sslEngine, ByteBuffer netBuf, NioConnection connection) throws IOException {
+        int recordSize = sslEngine.getSession().getPacketBufferSize() + 4;
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
-        int totalLen = 0;
-        for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
+        int remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += buffers[i].remaining();
         }
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
+        while (remaining > 0) {
+            if (netBuf.remaining() < recordSize) {
+                flush(ch, netBuf, connection);
+            }
+            int headerPos = netBuf.position();
+            netBuf.position(headerPos + 4);
+            engResult = sslEngine.wrap(buffers, offset, length, netBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
                 throw new IOException("SSL: SSLEngine return bad result! " + engResult);
             }
 
-            processedLen = 0;
-            for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
+            remaining = 0;
+            for (int i = offset; i < offset + length; i++) {
+                remaining += buffers[i].remaining();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
+            int header = netBuf.position() - headerPos - 4;
+            if (remaining > 0) {
                 header = header | HEADER_FLAG_FOLLOWING;
             }
-            headBuf.putInt(header);
-            headBuf.flip();
+            netBuf.putInt(headerPos, header);
+            if (connection != null) {
+                connection.recordSent();
+            }
+        }
+    }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
-                }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
+    private static void flush(SocketChannel ch, ByteBuffer netBuf, NioConnection connection) throws IOException {
+        netBuf.flip();
+        int dataRemaining = netBuf.remaining();
+        if (connection != null && dataRemaining > 0) {
+            connection.bytesSent(dataRemaining);
+        }
+        while (dataRemaining > 0) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Writing Data " + dataRemaining);
             }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
-                }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
+            long count = ch.write(netBuf);
+            dataRemaining -= count;
+        }
+        netBuf.clear();
+    }
+
+    /**
+     * @return this thread's buffer for outgoing SSL records, big enough for
+     *         RECORDS_PER_WRITE records of the session.
+     */
+    private static ByteBuffer getNetBuffer(SSLSession sslSession, NioConnection connection) {
+        int size = (sslSession.getPacketBufferSize() + 4) * RECORDS_PER_WRITE;
+        ByteBuffer netBuf = s_netBuffer.get();
+        if (netBuf == null || netBuf.capacity() < size) {
+            netBuf = ByteBuffer.allocateDirect(size);
+            s_netBuffer.set(netBuf);
+            if (connection != null) {
+                connection.bufferAllocated();
             }
         }
+        netBuf.clear();
+        return netBuf;
+    }
+
+    /**
+     * @return this thread's buffer to unwrap SSL records into.
+     */
+    private static ByteBuffer getAppBuffer(SSLSession sslSession, NioConnection connection) {
+        int size = sslSession.getApplicationBufferSize() + 40;
+        ByteBuffer appBuf = s_appBuffer.get();
+        if (appBuf == null || appBuf.capacity() < size) {
+            appBuf = ByteBuffer.allocateDirect(size);
+            s_appBuffer.set(appBuf);
+            if (connection != null) {
+                connection.bufferAllocated();
+            }
+        }
+        appBuf.clear();
+        return appBuf;
     }
 
     /**
@@ -198,13 +238,26 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized(ch) {
-            doWrite(ch, buffers, sslEngine);
+            ByteBuffer netBuf = getNetBuffer(sslEngine.getSession(), null);
+            doWrite(ch, buffers, 0, buffers.length, sslEngine, netBuf, null);
+            flush(ch, netBuf, null);
         } 
     }
 
     /* SSL has limitation of 16k, we may need to split packets. 18000 is 16k + some extra SSL informations */
     protected static final int      MAX_SIZE_PER_PACKET = 18000;
     protected static final int      HEADER_FLAG_FOLLOWING = 0x10000;
+    /* Number of SSL records gathered before they are written out */
+    protected static final int      RECORDS_PER_WRITE = 4;
+    /* Plaintext buffers grown past this are not kept between packets */
+    protected static final int      MAX_RETAINED_PLAINTEXT_SIZE = 65536;
+
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
+
+    // SSL wrap/unwrap buffers are only used for the duration of a call, so
+    // they are kept per thread instead of being allocated for every packet.
+    private static final ThreadLocal<ByteBuffer> s_netBuffer = new ThreadLocal<ByteBuffer>();
+    private static final ThreadLocal<ByteBuffer> s_appBuffer = new ThreadLocal<ByteBuffer>();
 
     public byte[] read(SocketChannel ch) throws IOException {
         if (_readHeader) {   // Start of a packet
@@ -212,9 +265,11 @@ public class Link {
                 _readBuffer.limit(4);
             }
 
-            if (ch.read(_readBuffer) == -1) {
+            int count = ch.read(_readBuffer);
+            if (count == -1) {
                 throw new IOException("Connection closed with -1 on reading size.");
             }
+            _connection.bytesReceived(count);
 
             if (_readBuffer.hasRemaining()) {
                 s_logger.trace("Need to read the rest of the packet length");
@@ -232,7 +287,12 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                if (_plaintextBuffer == null) {
+                    _plaintextBuffer = ByteBuffer.allocate(2000);
+                    _connection.bufferAllocated();
+                } else {
+                    _plaintextBuffer.clear();
+                }
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -249,13 +309,16 @@ public class Link {
                     s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
                 }
                 _readBuffer = ByteBuffer.allocate(readSize);
+                _connection.bufferAllocated();
             }
             _readBuffer.limit(readSize);
         }
 
-        if (ch.read(_readBuffer) == -1) {
+        int count = ch.read(_readBuffer);
+        if (count == -1) {
             throw new IOException("Connection closed with -1 on read.");
         }
+        _connection.bytesReceived(count);
 
         if (_readBuffer.hasRemaining()) {   // We're not done yet.
             if (s_logger.isTraceEnabled()) {
@@ -266,15 +329,13 @@ public class Link {
 
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
-        SSLSession sslSession = _sslEngine.getSession();
+        ByteBuffer appBuf = getAppBuffer(_sslEngine.getSession(), _connection);
         SSLEngineResult engResult;
         int remaining = 0;
 
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
+            appBuf.clear();
             engResult = _sslEngine.unwrap(_readBuffer, appBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
@@ -284,14 +345,20 @@ public class Link {
             if (remaining == _readBuffer.remaining()) {
                 throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
             }
+            _connection.recordReceived();
 
             appBuf.flip();
             if (_plaintextBuffer.remaining() < appBuf.limit()) {
                 // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
+                int capacity = _plaintextBuffer.capacity();
+                while (capacity - _plaintextBuffer.position() < appBuf.limit()) {
+                    capacity <<= 1;
+                }
+                ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
                 _plaintextBuffer.flip();
                 newBuffer.put(_plaintextBuffer);
                 _plaintextBuffer = newBuffer;
+                _connection.bufferAllocated();
             }
             _plaintextBuffer.put(appBuf);
             if (s_logger.isTraceEnabled()) {
@@ -306,6 +373,9 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            if (_plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT_SIZE) {
+                _plaintextBuffer = null;
+            }
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -324,24 +394,17 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        _writeQueue.add(data);
         if  (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -361,21 +424,28 @@ public class Link {
         }
     }
 
+    /**
+     * Writes out everything queued on this link.  Records of consecutive
+     * messages are gathered into the same write.
+     * 
+     * @return true if the connection should be closed.
+     */
     public boolean write(SocketChannel ch) throws IOException {
+        ByteBuffer netBuf = getNetBuffer(_sslEngine.getSession(), _connection);
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_REQUEST) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
+                flush(ch, netBuf, _connection);
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, 0, data.length, _sslEngine, netBuf, _connection);
+            _connection.messageSent();
         }
+        flush(ch, netBuf, _connection);
         return false;
     }
 
@@ -26,14 +26,17 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -41,26 +44,52 @@ import javax.net.ssl.SSLEngine;
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
+ * 
+ * By default one selector thread does all of the accepts, connects, reads
+ * and writes.  If more selectors are requested, the main selector only
+ * accepts, the SSL handshakes are done by a pool of the same size and the
+ * accepted channels are spread round robin across the additional selector
+ * threads.  A channel stays with its selector for its whole life, so the
+ * packets of a link are still read, and their tasks handed to the executor,
+ * in the order they arrived.
  */
 public abstract class NioConnection implements Runnable {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
     
     protected Selector _selector;
     protected Thread _thread;
-    protected boolean _isRunning;
+    protected volatile boolean _isRunning;
     protected boolean _isStartup;
     protected int _port;
-    protected List<ChangeRequest> _todos;
+    protected Queue<ChangeRequest> _todos;
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected int _selectorCount;
+    protected IoSelector[] _ioSelectors;
+    protected ExecutorService _handshakeExecutor;
+    protected final AtomicInteger _nextIoSelector = new AtomicInteger();
+
+    // Traffic counters updated by the links, exposed through NioConnectionMBean
+    protected final AtomicLong _bytesSent = new AtomicLong();
+    protected final AtomicLong _bytesReceived = new AtomicLong();
+    protected final AtomicLong _recordsSent = new AtomicLong();
+    protected final AtomicLong _recordsReceived = new AtomicLong();
+    protected final AtomicLong _messagesSent = new AtomicLong();
+    protected final AtomicLong _bufferAllocations = new AtomicLong();
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, workers, 1, factory);
+    }
+
+    public NioConnection(String name, int port, int workers, int selectors, HandlerFactory factory) {
         _name = name;
+        _selectorCount = Math.max(1, selectors);
         _isRunning = false;
         _thread = null;
         _selector = null;
@@ -70,19 +99,47 @@ public abstract class NioConnection implements Runnable {
     }
 
     public void start() {
-        _todos = new ArrayList<ChangeRequest>();
-        
+        _todos = new ConcurrentLinkedQueue<ChangeRequest>();
+
+        if (_selectorCount > 1) {
+            _ioSelectors = new IoSelector[_selectorCount - 1];
+            for (int i = 0; i < _ioSelectors.length; i++) {
+                try {
+                    _ioSelectors[i] = new IoSelector(_name + "-Selector-" + (i + 1));
+                } catch (IOException e) {
+                    s_logger.warn("Unable to open selector " + (i + 1) + " for " + _name + ", running with " + i + " additional selectors", e);
+                    IoSelector[] opened = new IoSelector[i];
+                    System.arraycopy(_ioSelectors, 0, opened, 0, i);
+                    _ioSelectors = opened;
+                    break;
+                }
+            }
+            _handshakeExecutor = Executors.newFixedThreadPool(_selectorCount, new NamedThreadFactory(_name + "-Handshake"));
+            _isRunning = true;
+            for (IoSelector ioSelector : _ioSelectors) {
+                ioSelector.start();
+            }
+        }
+
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
         _thread.start();
-        // Wait until we got init() done
+        // Wait until we got init() done, the thread notifies when it is up or
+        // when it dies because init() failed.
         synchronized(_thread) {
             try {
-                _thread.wait();
+                while (!_isStartup && _thread.isAlive()) {
+                    _thread.wait();
+                }
             } catch (InterruptedException e) {
                 s_logger.warn("Interrupted start thread ", e);
             }
         }
+        try {
+            JmxUtil.registerMBean("NioConnection", _name, new NioConnectionMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register NioConnection MBean for " + _name, e);
+        }
     }
 
     public void stop() {
@@ -91,6 +148,41 @@ public abstract class NioConnection implements Runnable {
         if (_thread != null) {
             _thread.interrupt();
         }
+        if (_ioSelectors != null) {
+            for (IoSelector ioSelector : _ioSelectors) {
+                ioSelector.stop();
+            }
+            _handshakeExecutor.shutdown();
+        }
+        try {
+            JmxUtil.unregisterMBean("NioConnection", _name);
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister NioConnection MBean for " + _name + ": " + e.getMessage());
+        }
+    }
+
+    void bytesSent(long count) {
+        _bytesSent.addAndGet(count);
+    }
+
+    void bytesReceived(long count) {
+        _bytesReceived.addAndGet(count);
+    }
+
+    void recordSent() {
+        _recordsSent.incrementAndGet();
+    }
+
+    void recordReceived() {
+        _recordsReceived.incrementAndGet();
+    }
+
+    void messageSent() {
+        _messagesSent.incrementAndGet();
+    }
+
+    void bufferAllocated() {
+        _bufferAllocations.incrementAndGet();
     }
     
     public boolean isRunning() {
@@ -123,42 +215,7 @@ public abstract class NioConnection implements Runnable {
         while (_isRunning) {
             try {
                 _selector.select();
-
-                // Someone is ready for I/O, get the ready keys
-                Set<SelectionKey> readyKeys = _selector.selectedKeys();
-                Iterator<SelectionKey> i = readyKeys.iterator();
-
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Keys Processing: " + readyKeys.size());
-                }
-                // Walk through the ready keys collection.
-                while (i.hasNext()) {
-                    SelectionKey sk = i.next();
-                    i.remove();
-
-                    if (!sk.isValid()) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Selection Key is invalid: " + sk.toString());
-                        }
-                        Link link = (Link)sk.attachment();
-                        if (link != null) {
-                            link.terminated();
-                        } else {
-                            closeConnection(sk);
-                        }
-                    } else if (sk.isReadable()) {
-                        read(sk);
-                    } else if (sk.isWritable()) {
-                        write(sk);
-                    } else if (sk.isAcceptable()) {
-                        accept(sk);
-                    } else if (sk.isConnectable()) {
-                        connect(sk);
-                    }
-                }
-                
-                s_logger.trace("Keys Done Processing.");
-
+                processSelectedKeys(_selector);
                 processTodos();
             } catch (Throwable e) {
                 s_logger.warn("Caught an exception but continuing on.", e);
@@ -169,6 +226,43 @@ public abstract class NioConnection implements Runnable {
     	}
     }
 
+    protected void processSelectedKeys(Selector selector) throws IOException {
+        // Someone is ready for I/O, get the ready keys
+        Set<SelectionKey> readyKeys = selector.selectedKeys();
+        Iterator<SelectionKey> i = readyKeys.iterator();
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Keys Processing: " + readyKeys.size());
+        }
+        // Walk through the ready keys collection.
+        while (i.hasNext()) {
+            SelectionKey sk = i.next();
+            i.remove();
+
+            if (!sk.isValid()) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Selection Key is invalid: " + sk.toString());
+                }
+                Link link = (Link)sk.attachment();
+                if (link != null) {
+                    link.terminated();
+                } else {
+                    closeConnection(sk);
+                }
+            } else if (sk.isReadable()) {
+                read(sk);
+            } else if (sk.isWritable()) {
+                write(sk);
+            } else if (sk.isAcceptable()) {
+                accept(sk);
+            } else if (sk.isConnectable()) {
+                connect(sk);
+            }
+        }
+
+        s_logger.trace("Keys Done Processing.");
+    }
+
     abstract void init() throws IOException;
     abstract void registerLink(InetSocketAddress saddr, Link link);
     abstract void unregisterLink(InetSocketAddress saddr);
@@ -176,19 +270,51 @@ public abstract class NioConnection implements Runnable {
     protected void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
 
-        SocketChannel socketChannel = serverSocketChannel.accept();
+        final SocketChannel socketChannel = serverSocketChannel.accept();
         Socket socket = socketChannel.socket();
         socket.setKeepAlive(true);
 
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Connection accepted for " + socket);
         }
-        
-        // Begin SSL handshake in BLOCKING mode
-        socketChannel.configureBlocking(true);
 
+        final IoSelector ioSelector = nextIoSelector();
+        if (ioSelector != null) {
+            // Don't hold up the accepts with the blocking handshake.  Once it
+            // is done, the selector thread registers the channel and then
+            // reports the connect.
+            _handshakeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Link link = handshake(socketChannel);
+                    if (link != null) {
+                        ioSelector.addTodo(new ChangeRequest(socketChannel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
+                    }
+                }
+            });
+            return;
+        }
+
+        Link link = handshake(socketChannel);
+        if (link != null) {
+            link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+            connected(link.getSocketAddress(), link);
+        }
+    }
+
+    /**
+     * Does the SSL handshake for an accepted channel.
+     * 
+     * @return the link for the channel or null if the handshake failed, in
+     *         which case the channel has been closed.
+     */
+    protected Link handshake(SocketChannel socketChannel) {
+        Socket socket = socketChannel.socket();
         SSLEngine sslEngine = null;
         try {
+            // Begin SSL handshake in BLOCKING mode
+            socketChannel.configureBlocking(true);
+
             SSLContext sslContext = Link.initSSLContext(false);
             sslEngine = sslContext.createSSLEngine();
             sslEngine.setUseClientMode(false);
@@ -196,6 +322,10 @@ public abstract class NioConnection implements Runnable {
 
             Link.doHandshake(socketChannel, sslEngine, false);
 
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("SSL: Handshake done");
+            }
+            socketChannel.configureBlocking(false);
         } catch (Exception e) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Socket " + socket + " closed on read.  Probably -1 returned: " + e.getMessage());
@@ -205,21 +335,29 @@ public abstract class NioConnection implements Runnable {
                 socket.close();
             } catch (IOException ignore) {
             }
-            return;
-        }
-        
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("SSL: Handshake done");
+            return null;
         }
-        socketChannel.configureBlocking(false);
+
         InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+        return link;
+    }
+
+    protected void connected(InetSocketAddress saddr, Link link) {
         Task task = _factory.create(Task.Type.CONNECT, link, null);
         registerLink(saddr, link);
         _executor.execute(task);
     }
+
+    protected IoSelector nextIoSelector() {
+        IoSelector[] ioSelectors = _ioSelectors;
+        if (ioSelectors == null || ioSelectors.length == 0) {
+            return null;
+        }
+        int next = (_nextIoSelector.getAndIncrement() & Integer.MAX_VALUE) % ioSelectors.length;
+        return ioSelectors[next];
+    }
     
     protected void terminate(SelectionKey key) {
         Link link = (Link)key.attachment();
@@ -283,21 +421,18 @@ public abstract class NioConnection implements Runnable {
     }
     
     protected void processTodos() {
-        List<ChangeRequest> todos;
-        if (_todos.size() == 0) {
+        processTodos(_selector, _todos);
+    }
+
+    protected void processTodos(Selector selector, Queue<ChangeRequest> todos) {
+        ChangeRequest todo;
+        if (todos.isEmpty()) {
             return;             // Nothing to do.
         }
-        
-        synchronized (this) {
-            todos = _todos;
-            _todos = new ArrayList<ChangeRequest>();
-        }
 
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Todos Processing: " + todos.size());
-        }
+        s_logger.trace("Todos Processing");
         SelectionKey key;
-        for (ChangeRequest todo : todos) {
+        while ((todo = todos.poll()) != null) {
             switch (todo.type) {
                 case ChangeRequest.CHANGEOPS :
                     try {
@@ -315,11 +450,15 @@ public abstract class NioConnection implements Runnable {
                     }
                     break;
                 case ChangeRequest.REGISTER :
+                case ChangeRequest.ACCEPT :
                     try {
-                        key = ((SocketChannel)(todo.key)).register(_selector, todo.ops, todo.att);
+                        key = ((SocketChannel)(todo.key)).register(selector, todo.ops, todo.att);
                         if (todo.att != null) {
                             Link link = (Link)todo.att;
                             link.setKey(key);
+                            if (todo.type == ChangeRequest.ACCEPT) {
+                                connected(link.getSocketAddress(), link);
+                            }
                         }
                     } catch (ClosedChannelException e) {
                         s_logger.warn("Couldn't register socket: " + todo.key);
@@ -418,39 +557,104 @@ public abstract class NioConnection implements Runnable {
 
     public void register(int ops, SocketChannel key, Object att) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.REGISTER, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
+        _todos.add(todo);
         _selector.wakeup();
     }
 
     public void change(int ops, SelectionKey key, Object att) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        addTodo(todo, key);
     }
 
     public void close(SelectionKey key) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
-        synchronized (this) {
-            _todos.add(todo);
+        addTodo(todo, key);
+    }
+
+    /**
+     * Queues the change with the selector thread that owns the key.
+     */
+    protected void addTodo(ChangeRequest todo, SelectionKey key) {
+        IoSelector[] ioSelectors = _ioSelectors;
+        if (key != null && ioSelectors != null) {
+            Selector selector = key.selector();
+            for (IoSelector ioSelector : ioSelectors) {
+                if (ioSelector._selector == selector) {
+                    ioSelector.addTodo(todo);
+                    return;
+                }
+            }
         }
+        _todos.add(todo);
         _selector.wakeup();
     }
 
+    public int getSelectorCount() {
+        return _ioSelectors == null ? 1 : _ioSelectors.length + 1;
+    }
+
     /* Release the resource used by the instance */
     public void cleanUp() throws IOException {
        if (_selector != null) {
            _selector.close();
        }
+       if (_ioSelectors != null) {
+           for (IoSelector ioSelector : _ioSelectors) {
+               ioSelector._selector.close();
+           }
+       }
+    }
+
+    /**
+     * An additional selector thread.  It only serves the channels handed to
+     * it by accept() and has its own queue of changes.
+     */
+    protected class IoSelector implements Runnable {
+        protected final String _threadName;
+        protected final Selector _selector;
+        protected final Queue<ChangeRequest> _todos = new ConcurrentLinkedQueue<ChangeRequest>();
+        protected Thread _thread;
+
+        public IoSelector(String threadName) throws IOException {
+            _threadName = threadName;
+            _selector = Selector.open();
+        }
+
+        public void start() {
+            _thread = new Thread(this, _threadName);
+            _thread.start();
+        }
+
+        public void stop() {
+            if (_thread != null) {
+                _thread.interrupt();
+            }
+        }
+
+        public void addTodo(ChangeRequest todo) {
+            _todos.add(todo);
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (_isRunning) {
+                try {
+                    _selector.select();
+                    processSelectedKeys(_selector);
+                    processTodos(_selector, _todos);
+                } catch (Throwable e) {
+                    s_logger.warn("Caught an exception but continuing on.", e);
+                }
+            }
+        }
     }
 
     public class ChangeRequest {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
@@ -0,0 +1,63 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import javax.management.StandardMBean;
+
+public class NioConnectionMBeanImpl extends StandardMBean implements NioConnectionMBean {
+    private final NioConnection _connection;
+
+    public NioConnectionMBeanImpl(NioConnection connection) {
+        super(NioConnectionMBean.class, false);
+        _connection = connection;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return _connection._bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return _connection._bytesReceived.get();
+    }
+
+    @Override
+    public long getRecordsSent() {
+        return _connection._recordsSent.get();
+    }
+
+    @Override
+    public long getRecordsReceived() {
+        return _connection._recordsReceived.get();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return _connection._messagesSent.get();
+    }
+
+    @Override
+    public long getBufferAllocations() {
+        return _connection._bufferAllocations.get();
+    }
+
+    @Override
+    public int getSelectorCount() {
+        return _connection.getSelectorCount();
+    }
+}
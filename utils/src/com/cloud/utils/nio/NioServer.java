@@ -34,7 +34,11 @@ public class NioServer extends NioConnection {
     protected WeakHashMap<InetSocketAddress, Link> _links;
     
     public NioServer(String name, int port, int workers, HandlerFactory factory) {
-        super(name, port, workers, factory);
+        this(name, port, workers, 1, factory);
+    }
+
+    public NioServer(String name, int port, int workers, int selectors, HandlerFactory factory) {
+        super(name, port, workers, selectors, factory);
         _localAddr = null;
         _links = new WeakHashMap<InetSocketAddress, Link>(1024);
     }
@@ -51,17 +55,22 @@ public class NioServer extends NioConnection {
 
         ssc.register(_selector, SelectionKey.OP_ACCEPT, null);
         
-        s_logger.info("NioConnection started and listening on " + _localAddr.toString());
+        s_logger.info("NioConnection started and listening on " + _localAddr.toString() + " with " + _selectorCount + " selectors");
     }
     
     @Override
     protected void registerLink(InetSocketAddress addr, Link link) {
-        _links.put(addr, link);
+        // Links are registered from every selector thread
+        synchronized (_links) {
+            _links.put(addr, link);
+        }
     }
 
     @Override
     protected void unregisterLink(InetSocketAddress saddr) {
-        _links.remove(saddr);
+        synchronized (_links) {
+            _links.remove(saddr);
+        }
     }
     
     /**
@@ -74,7 +83,10 @@ public class NioServer extends NioConnection {
      * @return null if not sent.  attach object in link if sent.
      */
     public Object send(InetSocketAddress saddr, byte[] data) throws ClosedChannelException {
-        Link link = _links.get(saddr);
+        Link link;
+        synchronized (_links) {
+            link = _links.get(saddr);
+        }
         if (link == null) {
             return null;
         }
@@ -0,0 +1,264 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends messages over a loopback SSL connection through the queue of one
+ * link and reads them back with another.
+ */
+public class LinkTest {
+    ExecutorService _executor;
+    SocketChannel _clientChannel;
+    SocketChannel _serverChannel;
+    TestConnection _clientConnection;
+    TestConnection _serverConnection;
+    Link _clientLink;
+    Link _serverLink;
+
+    static class TestConnection extends NioConnection {
+        int changes;
+
+        TestConnection(String name) {
+            super(name, 0, 1, null);
+        }
+
+        @Override
+        void init() throws IOException {
+        }
+
+        @Override
+        void registerLink(InetSocketAddress saddr, Link link) {
+        }
+
+        @Override
+        void unregisterLink(InetSocketAddress saddr) {
+        }
+
+        @Override
+        public void change(int ops, SelectionKey key, Object att) {
+            assertEquals(SelectionKey.OP_WRITE, ops);
+            changes++;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _executor = Executors.newSingleThreadExecutor();
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            _clientChannel = SocketChannel.open(ssc.socket().getLocalSocketAddress());
+            _serverChannel = ssc.accept();
+        } finally {
+            ssc.close();
+        }
+
+        final SSLEngine serverEngine = getServerContext().createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.setNeedClientAuth(false);
+        Future<Void> serverHandshake = _executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Link.doHandshake(_serverChannel, serverEngine, false);
+                return null;
+            }
+        });
+        SSLEngine clientEngine = Link.initSSLContext(true).createSSLEngine("127.0.0.1", _serverChannel.socket().getLocalPort());
+        clientEngine.setUseClientMode(true);
+        Link.doHandshake(_clientChannel, clientEngine, true);
+        serverHandshake.get();
+
+        _clientConnection = new TestConnection("LinkTestClient");
+        _clientLink = new Link((InetSocketAddress)_clientChannel.socket().getRemoteSocketAddress(), _clientConnection);
+        _clientLink.setSSLEngine(clientEngine);
+        _clientLink.setKey(mock(SelectionKey.class));
+
+        _serverConnection = new TestConnection("LinkTestServer");
+        _serverLink = new Link((InetSocketAddress)_serverChannel.socket().getRemoteSocketAddress(), _serverConnection);
+        _serverLink.setSSLEngine(serverEngine);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        _executor.shutdownNow();
+        _clientChannel.close();
+        _serverChannel.close();
+    }
+
+    /**
+     * The server side of Link.initSSLContext() needs db.properties to find
+     * its keystore, so the test loads the fail-safe one itself.
+     */
+    static SSLContext getServerContext() throws Exception {
+        char[] passphrase = "vmops.com".toCharArray();
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream stream = LinkTest.class.getResourceAsStream("/cloud.keystore");
+        try {
+            ks.load(stream, passphrase);
+        } finally {
+            stream.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(ks, passphrase);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    /**
+     * Writes on another thread, a large message doesn't fit in the socket
+     * buffers before it is read.
+     */
+    Future<Boolean> write() {
+        return _executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return _clientLink.write(_clientChannel);
+            }
+        });
+    }
+
+    byte[] receive() throws IOException {
+        byte[] data;
+        while ((data = _serverLink.read(_serverChannel)) == null) {
+            // Keep reading until the last record of the message is in.
+        }
+        return data;
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testQueuedMessagesAreWrittenInOrder() throws Exception {
+        byte[][] messages = new byte[][] { randomBytes(100), randomBytes(100000), randomBytes(1) };
+        for (byte[] message : messages) {
+            _clientLink.send(message);
+        }
+        // Sending only queues the messages and asks for a write.
+        assertEquals(messages.length, _clientConnection.changes);
+        assertEquals(0, _clientConnection._bytesSent.get());
+        assertEquals(0, _clientConnection._messagesSent.get());
+
+        Future<Boolean> close = write();
+        for (byte[] message : messages) {
+            assertArrayEquals(message, receive());
+        }
+        assertFalse(close.get());
+
+        assertEquals(messages.length, _clientConnection._messagesSent.get());
+        // The large message is split into records of at most 16k.
+        assertTrue(_clientConnection._recordsSent.get() >= 2 + 100000 / 16384 + 1);
+        assertEquals(_clientConnection._recordsSent.get(), _serverConnection._recordsReceived.get());
+        assertEquals(_clientConnection._bytesSent.get(), _serverConnection._bytesReceived.get());
+    }
+
+    @Test
+    public void testMessageSplitOverBuffers() throws Exception {
+        byte[] head = randomBytes(10);
+        byte[] body = randomBytes(50000);
+        _clientLink.send(new ByteBuffer[] { ByteBuffer.wrap(head), ByteBuffer.wrap(body) });
+        Future<Boolean> close = write();
+        byte[] received = receive();
+        assertFalse(close.get());
+        assertEquals(head.length + body.length, received.length);
+        ByteBuffer expected = ByteBuffer.allocate(received.length);
+        expected.put(head).put(body);
+        assertArrayEquals(expected.array(), received);
+        assertEquals(1, _clientConnection._messagesSent.get());
+    }
+
+    @Test
+    public void testBuffersAreReused() throws Exception {
+        // The first round trip allocates the write, unwrap and plaintext
+        // buffers, the ones after it only reuse them.
+        _clientLink.send(randomBytes(1000));
+        write().get();
+        receive();
+        long clientAllocations = _clientConnection._bufferAllocations.get();
+        long serverAllocations = _serverConnection._bufferAllocations.get();
+
+        for (int i = 0; i < 10; i++) {
+            _clientLink.send(randomBytes(1000));
+            write().get();
+            receive();
+        }
+        assertEquals(clientAllocations, _clientConnection._bufferAllocations.get());
+        assertEquals(serverAllocations, _serverConnection._bufferAllocations.get());
+    }
+
+    @Test
+    public void testCloseIsWrittenAfterTheQueuedMessages() throws Exception {
+        byte[] first = randomBytes(200);
+        byte[] last = randomBytes(300);
+        _clientLink.send(first);
+        _clientLink.send(last, true);
+        _clientLink.send(randomBytes(400));
+
+        // Everything up to the close request is flushed before the link
+        // asks for the connection to be closed.
+        Future<Boolean> close = write();
+        assertArrayEquals(first, receive());
+        assertArrayEquals(last, receive());
+        assertTrue(close.get());
+        assertEquals(2, _clientConnection._messagesSent.get());
+    }
+
+    @Test
+    public void testSendOnTerminatedLink() throws Exception {
+        _clientLink.terminated();
+        try {
+            _clientLink.send(randomBytes(10));
+            fail("Sent on a terminated link");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+}
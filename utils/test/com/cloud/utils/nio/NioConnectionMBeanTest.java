@@ -0,0 +1,79 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class NioConnectionMBeanTest {
+
+    static void stop(NioServer server) throws Exception {
+        server.stop();
+        server._thread.join(10000);
+        server.cleanUp();
+    }
+
+    @Test
+    public void testCountersAreRegistered() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.cloud:type=NioConnection, name=NioConnectionMBeanTest");
+
+        NioServer server = new NioServer("NioConnectionMBeanTest", 0, 1, 3, null);
+        server.start();
+        try {
+            assertTrue(mbeanServer.isRegistered(name));
+            assertEquals(3, mbeanServer.getAttribute(name, "SelectorCount"));
+
+            server.bytesSent(100);
+            server.bytesSent(20);
+            server.bytesReceived(30);
+            server.recordSent();
+            server.recordSent();
+            server.recordReceived();
+            server.messageSent();
+            server.bufferAllocated();
+            assertEquals(120L, mbeanServer.getAttribute(name, "BytesSent"));
+            assertEquals(30L, mbeanServer.getAttribute(name, "BytesReceived"));
+            assertEquals(2L, mbeanServer.getAttribute(name, "RecordsSent"));
+            assertEquals(1L, mbeanServer.getAttribute(name, "RecordsReceived"));
+            assertEquals(1L, mbeanServer.getAttribute(name, "MessagesSent"));
+            assertEquals(1L, mbeanServer.getAttribute(name, "BufferAllocations"));
+        } finally {
+            stop(server);
+        }
+        assertFalse(mbeanServer.isRegistered(name));
+    }
+
+    @Test
+    public void testSingleSelector() throws Exception {
+        NioServer server = new NioServer("NioConnectionMBeanTestSingle", 0, 1, null);
+        server.start();
+        try {
+            assertEquals(1, new NioConnectionMBeanImpl(server).getSelectorCount());
+        } finally {
+            stop(server);
+        }
+    }
+}
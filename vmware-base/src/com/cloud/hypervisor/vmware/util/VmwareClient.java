@@ -166,6 +166,22 @@ public class VmwareClient {
         isConnected = false;
     }
 
+    /**
+     * @return true if the session is still logged in.
+     */
+    public boolean validate() {
+        if (!isConnected) {
+            return false;
+        }
+
+        try {
+            vimPort.currentTime(SVC_INST_REF);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * @return Service instance
      */
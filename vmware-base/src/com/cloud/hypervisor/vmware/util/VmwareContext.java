@@ -66,6 +66,10 @@ public class VmwareContext {
 	private Map<String, Object> _stockMap = new HashMap<String, Object>();
 	private int _CHUNKSIZE = 1*1024*1024;		// 1M
 
+	private VmwareContextPool _pool;
+	private String _poolKey;
+	private long _idleSince;
+
 	static {
 		try {
 			javax.net.ssl.TrustManager[] trustAllCerts = new javax.net.ssl.TrustManager[1];
@@ -594,7 +598,45 @@ public class VmwareContext {
 	        throw new Exception("Unable to connect to " + conn.toString());
 	}
 
+	public void setPoolInfo(VmwareContextPool pool, String poolKey) {
+		_pool = pool;
+		_poolKey = poolKey;
+	}
+
+	public String getPoolKey() {
+		return _poolKey;
+	}
+
+	public long getIdleSince() {
+		return _idleSince;
+	}
+
+	public void setIdleSince(long idleSince) {
+		_idleSince = idleSince;
+	}
+
+	/**
+	 * @return true if the session with vCenter is still usable
+	 */
+	public boolean validate() {
+		return _vimClient.validate();
+	}
+
+	/**
+	 * Hands the context back to its pool, if it came from one, otherwise logs out of vCenter.
+	 */
 	public void close() {
+		if (_pool != null) {
+			_pool.returnContext(this);
+		} else {
+			closeSession();
+		}
+	}
+
+	/**
+	 * Logs out of vCenter, bypassing the pool.
+	 */
+	public void closeSession() {
 		try {
 			_vimClient.disconnect();
 		} catch(Exception e) {
@@ -0,0 +1,153 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the vCenter sessions of closed contexts around for reuse, so a
+ * context doesn't cost a login every time.  At most maxIdlePerKey sessions
+ * are kept per vCenter and credentials; a session is checked with vCenter before it
+ * is handed out again, and dropped once it has been idle for longer than
+ * vCenter keeps idle sessions alive.
+ */
+public class VmwareContextPool {
+    private static final Logger s_logger = Logger.getLogger(VmwareContextPool.class);
+
+    private static final int DEFAULT_MAX_IDLE_PER_KEY = 10;
+    // vCenter logs idle sessions out after 30 minutes by default
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 20 * 60 * 1000L;
+    // pool keys show up in the logs, so the password hash is salted
+    private static final byte[] s_keySalt = new SecureRandom().generateSeed(16);
+
+    private final Map<String, LinkedList<VmwareContext>> _pool = new HashMap<String, LinkedList<VmwareContext>>();
+    private final int _maxIdlePerKey;
+    private final long _idleTimeoutMs;
+
+    public VmwareContextPool() {
+        this(DEFAULT_MAX_IDLE_PER_KEY, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public VmwareContextPool(int maxIdlePerKey, long idleTimeoutMs) {
+        _maxIdlePerKey = maxIdlePerKey;
+        _idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * @return a healthy idle context for the vCenter and credentials, or null if there is none.
+     */
+    public VmwareContext getContext(String vCenterAddress, String vCenterUserName, String vCenterPassword) {
+        String poolKey = composePoolKey(vCenterAddress, vCenterUserName, vCenterPassword);
+        while (true) {
+            VmwareContext context;
+            synchronized (this) {
+                LinkedList<VmwareContext> l = _pool.get(poolKey);
+                if (l == null || l.isEmpty()) {
+                    return null;
+                }
+                // the most recently used session is the least likely to have expired
+                context = l.removeLast();
+            }
+
+            if (System.currentTimeMillis() - context.getIdleSince() > _idleTimeoutMs) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Drop idle VmwareContext of " + poolKey);
+                }
+                context.closeSession();
+                continue;
+            }
+
+            if (!context.validate()) {
+                s_logger.info("Drop VmwareContext of " + poolKey + " as its session is no longer valid");
+                context.closeSession();
+                continue;
+            }
+
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Reuse VmwareContext of " + poolKey);
+            }
+            return context;
+        }
+    }
+
+    public void returnContext(VmwareContext context) {
+        String poolKey = context.getPoolKey();
+        assert (poolKey != null);
+
+        synchronized (this) {
+            LinkedList<VmwareContext> l = _pool.get(poolKey);
+            if (l == null) {
+                l = new LinkedList<VmwareContext>();
+                _pool.put(poolKey, l);
+            }
+
+            if (l.contains(context)) {
+                // closed twice
+                return;
+            }
+
+            if (l.size() < _maxIdlePerKey) {
+                context.setIdleSince(System.currentTimeMillis());
+                l.add(context);
+                return;
+            }
+        }
+
+        context.closeSession();
+    }
+
+    /**
+     * @return number of idle contexts kept for the vCenter and credentials.
+     */
+    public synchronized int getIdleCount(String vCenterAddress, String vCenterUserName, String vCenterPassword) {
+        LinkedList<VmwareContext> l = _pool.get(composePoolKey(vCenterAddress, vCenterUserName, vCenterPassword));
+        return l == null ? 0 : l.size();
+    }
+
+    /**
+     * The key includes a hash of the password, so that once the password is
+     * changed the sessions logged in with the old one are not reused.
+     */
+    public static String composePoolKey(String vCenterAddress, String vCenterUserName, String vCenterPassword) {
+        return vCenterUserName + "@" + vCenterAddress + "#" + hashPassword(vCenterPassword);
+    }
+
+    private static String hashPassword(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(s_keySalt);
+            byte[] hash = digest.digest(password.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 is not available", e);
+        }
+    }
+}
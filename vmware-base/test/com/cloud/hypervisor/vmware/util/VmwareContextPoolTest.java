@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class VmwareContextPoolTest {
+    private static final String ADDRESS = "vcenter.example.com";
+    private static final String USER = "administrator";
+    private static final String PASSWORD = "password";
+
+    private VmwareContextPool _pool;
+
+    @Before
+    public void setup() {
+        _pool = new VmwareContextPool(2, 60000L);
+    }
+
+    private VmwareContext mockContext(boolean valid, long idleSince) {
+        return mockContext(valid, idleSince, PASSWORD);
+    }
+
+    private VmwareContext mockContext(boolean valid, long idleSince, String password) {
+        VmwareContext context = mock(VmwareContext.class);
+        when(context.getPoolKey()).thenReturn(VmwareContextPool.composePoolKey(ADDRESS, USER, password));
+        when(context.validate()).thenReturn(valid);
+        when(context.getIdleSince()).thenReturn(idleSince);
+        return context;
+    }
+
+    @Test
+    public void testReuseReturnedContext() {
+        VmwareContext context = mockContext(true, System.currentTimeMillis());
+        assertNull(_pool.getContext(ADDRESS, USER, PASSWORD));
+
+        _pool.returnContext(context);
+        assertEquals(1, _pool.getIdleCount(ADDRESS, USER, PASSWORD));
+
+        assertSame(context, _pool.getContext(ADDRESS, USER, PASSWORD));
+        assertEquals(0, _pool.getIdleCount(ADDRESS, USER, PASSWORD));
+        verify(context, never()).closeSession();
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        VmwareContext first = mockContext(true, System.currentTimeMillis());
+        VmwareContext second = mockContext(true, System.currentTimeMillis());
+        VmwareContext third = mockContext(true, System.currentTimeMillis());
+
+        _pool.returnContext(first);
+        _pool.returnContext(second);
+        _pool.returnContext(third);
+
+        assertEquals(2, _pool.getIdleCount(ADDRESS, USER, PASSWORD));
+        verify(third).closeSession();
+        verify(first, never()).closeSession();
+    }
+
+    @Test
+    public void testDoubleReturnIsIgnored() {
+        VmwareContext context = mockContext(true, System.currentTimeMillis());
+        _pool.returnContext(context);
+        _pool.returnContext(context);
+
+        assertEquals(1, _pool.getIdleCount(ADDRESS, USER, PASSWORD));
+        verify(context, never()).closeSession();
+    }
+
+    @Test
+    public void testInvalidContextIsDropped() {
+        VmwareContext healthy = mockContext(true, System.currentTimeMillis());
+        VmwareContext broken = mockContext(false, System.currentTimeMillis());
+        _pool.returnContext(healthy);
+        _pool.returnContext(broken);
+
+        assertSame(healthy, _pool.getContext(ADDRESS, USER, PASSWORD));
+        verify(broken).closeSession();
+    }
+
+    @Test
+    public void testExpiredContextIsDropped() {
+        VmwareContext expired = mockContext(true, System.currentTimeMillis() - 120000L);
+        _pool.returnContext(expired);
+
+        assertNull(_pool.getContext(ADDRESS, USER, PASSWORD));
+        verify(expired).closeSession();
+        verify(expired, never()).validate();
+    }
+
+    @Test
+    public void testContextOfOldPasswordIsNotReused() {
+        VmwareContext old = mockContext(true, System.currentTimeMillis(), "old-password");
+        _pool.returnContext(old);
+
+        assertNull(_pool.getContext(ADDRESS, USER, PASSWORD));
+        assertEquals(1, _pool.getIdleCount(ADDRESS, USER, "old-password"));
+        assertFalse(VmwareContextPool.composePoolKey(ADDRESS, USER, PASSWORD).contains(PASSWORD));
+    }
+}